@@ -0,0 +1,239 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+
+/**
+ * \file net_java_sip_communicator_impl_netaddr_NetlinkMonitor.c
+ * \brief Notifications of the changes of the network interfaces and of their
+ * addresses through an rtnetlink socket.
+ */
+
+#include "net_java_sip_communicator_impl_netaddr_NetlinkMonitor.h"
+
+#include <errno.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#include <sys/socket.h>
+
+#include <linux/netlink.h>
+#include <linux/rtnetlink.h>
+
+/**
+ * \brief The rtnetlink socket and the pipe which interrupts the waits for its
+ * notifications.
+ */
+typedef struct
+{
+    int nl;
+    int pipe[2];
+} NetlinkMonitor;
+
+/**
+ * \brief Closes the file descriptors of a monitor and frees it.
+ * \param monitor the monitor
+ */
+static void NetlinkMonitor_free(NetlinkMonitor *monitor)
+{
+    if (monitor->nl != -1)
+        close(monitor->nl);
+    if (monitor->pipe[0] != -1)
+        close(monitor->pipe[0]);
+    if (monitor->pipe[1] != -1)
+        close(monitor->pipe[1]);
+    free(monitor);
+}
+
+/**
+ * \brief Consumes the pending notifications of an rtnetlink socket.
+ * \param nl the rtnetlink socket
+ * \return 1 if a notification of a change of a link or an address has been
+ * consumed, 0 otherwise or -1 if the socket has failed
+ */
+static int NetlinkMonitor_drain(int nl)
+{
+    char buf[8192];
+    int changed = 0;
+
+    for (;;)
+    {
+        ssize_t len = recv(nl, buf, sizeof(buf), MSG_DONTWAIT);
+        struct nlmsghdr *nh;
+
+        if (len < 0)
+        {
+            if (errno == EINTR)
+                continue;
+            if ((errno == EAGAIN) || (errno == EWOULDBLOCK))
+                break;
+            /* messages have been lost, the configuration may have changed */
+            if (errno == ENOBUFS)
+            {
+                changed = 1;
+                continue;
+            }
+            return -1;
+        }
+        if (len == 0)
+            break;
+
+        for (nh = (struct nlmsghdr *) buf;
+                NLMSG_OK(nh, (unsigned int) len);
+                nh = NLMSG_NEXT(nh, len))
+        {
+            switch (nh->nlmsg_type)
+            {
+            case RTM_NEWLINK:
+            case RTM_DELLINK:
+            case RTM_NEWADDR:
+            case RTM_DELADDR:
+                changed = 1;
+                break;
+            default:
+                break;
+            }
+        }
+    }
+    return changed;
+}
+
+/*
+ * Class:     net_java_sip_communicator_impl_netaddr_NetlinkMonitor
+ * Method:    open0
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_net_java_sip_communicator_impl_netaddr_NetlinkMonitor_open0
+  (JNIEnv *env, jclass clazz)
+{
+    NetlinkMonitor *monitor = malloc(sizeof(NetlinkMonitor));
+    struct sockaddr_nl addr;
+
+    (void) env;
+    (void) clazz;
+
+    if (!monitor)
+        return 0;
+    monitor->pipe[0] = monitor->pipe[1] = -1;
+
+    monitor->nl = socket(AF_NETLINK, SOCK_RAW, NETLINK_ROUTE);
+    if (monitor->nl == -1)
+    {
+        NetlinkMonitor_free(monitor);
+        return 0;
+    }
+    fcntl(monitor->nl, F_SETFD, FD_CLOEXEC);
+
+    memset(&addr, 0, sizeof(addr));
+    addr.nl_family = AF_NETLINK;
+    addr.nl_groups = RTMGRP_LINK | RTMGRP_IPV4_IFADDR | RTMGRP_IPV6_IFADDR;
+    if ((bind(monitor->nl, (struct sockaddr *) &addr, sizeof(addr)) == -1)
+            || (pipe(monitor->pipe) == -1))
+    {
+        NetlinkMonitor_free(monitor);
+        return 0;
+    }
+    fcntl(monitor->pipe[0], F_SETFD, FD_CLOEXEC);
+    fcntl(monitor->pipe[1], F_SETFD, FD_CLOEXEC);
+    fcntl(monitor->pipe[1], F_SETFL, O_NONBLOCK);
+
+    return (jlong) (intptr_t) monitor;
+}
+
+/*
+ * Class:     net_java_sip_communicator_impl_netaddr_NetlinkMonitor
+ * Method:    waitForChange0
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_net_java_sip_communicator_impl_netaddr_NetlinkMonitor_waitForChange0
+  (JNIEnv *env, jclass clazz, jlong ptr, jint timeout)
+{
+    NetlinkMonitor *monitor = (NetlinkMonitor *) (intptr_t) ptr;
+    struct pollfd fds[2];
+
+    (void) env;
+    (void) clazz;
+
+    fds[0].fd = monitor->nl;
+    fds[0].events = POLLIN;
+    fds[1].fd = monitor->pipe[0];
+    fds[1].events = POLLIN;
+
+    for (;;)
+    {
+        int changed;
+
+        fds[0].revents = fds[1].revents = 0;
+        switch (poll(fds, 2, timeout))
+        {
+        case -1:
+            if (errno == EINTR)
+                continue;
+            return -1;
+        case 0:
+            return net_java_sip_communicator_impl_netaddr_NetlinkMonitor_TIMEOUT;
+        default:
+            break;
+        }
+
+        if (fds[1].revents)
+        {
+            char c;
+
+            while (read(monitor->pipe[0], &c, 1) == -1 && errno == EINTR);
+            return -1;
+        }
+        if (fds[0].revents & (POLLERR | POLLHUP | POLLNVAL))
+            return -1;
+
+        changed = NetlinkMonitor_drain(monitor->nl);
+        if (changed != 0)
+        {
+            return
+                (changed < 0)
+                    ? -1
+                    : net_java_sip_communicator_impl_netaddr_NetlinkMonitor_CHANGED;
+        }
+        /* only uninteresting notifications, keep on waiting */
+    }
+}
+
+/*
+ * Class:     net_java_sip_communicator_impl_netaddr_NetlinkMonitor
+ * Method:    interrupt0
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_net_java_sip_communicator_impl_netaddr_NetlinkMonitor_interrupt0
+  (JNIEnv *env, jclass clazz, jlong ptr)
+{
+    NetlinkMonitor *monitor = (NetlinkMonitor *) (intptr_t) ptr;
+    char c = 0;
+    ssize_t written;
+
+    (void) env;
+    (void) clazz;
+
+    do
+        written = write(monitor->pipe[1], &c, 1);
+    while ((written == -1) && (errno == EINTR));
+}
+
+/*
+ * Class:     net_java_sip_communicator_impl_netaddr_NetlinkMonitor
+ * Method:    close0
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_net_java_sip_communicator_impl_netaddr_NetlinkMonitor_close0
+  (JNIEnv *env, jclass clazz, jlong ptr)
+{
+    (void) env;
+    (void) clazz;
+
+    NetlinkMonitor_free((NetlinkMonitor *) (intptr_t) ptr);
+}
@@ -0,0 +1,325 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.contactlist.event.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Delivers the events of the meta contact list to a
+ * <tt>MetaContactListBatchListener</tt> from a queue and a thread of its own.
+ * <p>
+ * The queue is ordered by the time the events were fired. The events which
+ * only tell that a source has changed (a meta contact has been modified,
+ * renamed or has a new avatar, a protocol contact has been modified or the
+ * children of a group have been reordered) are coalesced: such an event
+ * removes the previous one of the same kind and source from the queue and
+ * takes its place at the end. The events delivered are therefore a
+ * subsequence of the events fired, and the events of a source keep their
+ * order.
+ */
+class MclEventDispatcher
+    implements Runnable
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>MclEventDispatcher</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MclEventDispatcher.class);
+
+    /**
+     * The listener the events are delivered to.
+     */
+    private final MetaContactListBatchListener listener;
+
+    /**
+     * The events waiting to be delivered by coalescing key, in the order they
+     * are to be delivered in.
+     */
+    private Map<Object, EventObject> pendingEvents
+        = new LinkedHashMap<Object, EventObject>();
+
+    /**
+     * The thread delivering the events or <tt>null</tt> if none has been
+     * queued yet.
+     */
+    private Thread thread;
+
+    /**
+     * Whether the listener has been removed and no more events are to be
+     * delivered.
+     */
+    private boolean stopped = false;
+
+    /**
+     * Creates a dispatcher of the events of the meta contact list to a
+     * listener.
+     *
+     * @param listener the listener to deliver the events to
+     */
+    MclEventDispatcher(MetaContactListBatchListener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Queues an event for delivery.
+     *
+     * @param event the event to deliver
+     */
+    synchronized void dispatch(EventObject event)
+    {
+        if (stopped)
+            return;
+
+        Object key = getCoalescingKey(event);
+
+        // put at the end even if the key is queued already
+        pendingEvents.remove(key);
+        pendingEvents.put(key, event);
+
+        if (thread == null)
+        {
+            thread = new Thread(this, getClass().getName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stops delivering events, discarding the ones which are queued.
+     */
+    synchronized void stop()
+    {
+        stopped = true;
+        pendingEvents.clear();
+        notifyAll();
+    }
+
+    /**
+     * Delivers the queued events in batches until stopped.
+     */
+    public void run()
+    {
+        while (true)
+        {
+            Collection<EventObject> batch;
+
+            synchronized (this)
+            {
+                while (!stopped && pendingEvents.isEmpty())
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException ie)
+                    {
+                    }
+                }
+                if (stopped)
+                    break;
+
+                batch = pendingEvents.values();
+                pendingEvents = new LinkedHashMap<Object, EventObject>();
+            }
+
+            if (logger.isTraceEnabled())
+            {
+                logger.trace("Will dispatch a batch of " + batch.size()
+                    + " mcl events to " + listener);
+            }
+
+            try
+            {
+                listener.eventBatchStarted();
+                try
+                {
+                    for (EventObject event : batch)
+                        deliver(listener, event);
+                }
+                finally
+                {
+                    listener.eventBatchEnded();
+                }
+            }
+            catch (Throwable t)
+            {
+                /*
+                 * XXX ThreadDeath must be rethrown; otherwise, the related
+                 * Thread will not die.
+                 */
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                logger.error("Error delivering mcl events to " + listener, t);
+            }
+        }
+    }
+
+    /**
+     * Returns the key under which an event is queued. The events which may
+     * replace one another have equal keys, the others are their own keys.
+     *
+     * @param event the event
+     * @return the key of <tt>event</tt>
+     */
+    private static Object getCoalescingKey(EventObject event)
+    {
+        if (event instanceof MetaContactModifiedEvent)
+        {
+            return Arrays.asList(
+                    MetaContactModifiedEvent.class,
+                    event.getSource(),
+                    ((MetaContactModifiedEvent) event).getModificationName());
+        }
+        else if ((event instanceof MetaContactRenamedEvent)
+                || (event instanceof MetaContactAvatarUpdateEvent))
+        {
+            return Arrays.asList(event.getClass(), event.getSource());
+        }
+        else if ((event instanceof ProtoContactEvent)
+                && ProtoContactEvent.PROTO_CONTACT_MODIFIED.equals(
+                        ((ProtoContactEvent) event).getPropertyName()))
+        {
+            return Arrays.asList(
+                    ProtoContactEvent.class,
+                    event.getSource(),
+                    ((ProtoContactEvent) event).getNewParent());
+        }
+        else if ((event instanceof MetaContactGroupEvent)
+                && (((MetaContactGroupEvent) event).getEventID()
+                        == MetaContactGroupEvent.CHILD_CONTACTS_REORDERED))
+        {
+            return Arrays.asList(
+                    MetaContactGroupEvent.class,
+                    event.getSource());
+        }
+        return event;
+    }
+
+    /**
+     * Delivers an event to a listener on the current thread, as a batch of
+     * its own if the listener is a <tt>MetaContactListBatchListener</tt>.
+     *
+     * @param listener the listener
+     * @param event the event
+     */
+    static void deliverNow(MetaContactListListener listener, EventObject event)
+    {
+        if (listener instanceof MetaContactListBatchListener)
+        {
+            MetaContactListBatchListener batchListener
+                = (MetaContactListBatchListener) listener;
+
+            batchListener.eventBatchStarted();
+            try
+            {
+                deliver(listener, event);
+            }
+            finally
+            {
+                batchListener.eventBatchEnded();
+            }
+        }
+        else
+            deliver(listener, event);
+    }
+
+    /**
+     * Calls the method of a listener which handles an event.
+     *
+     * @param listener the listener
+     * @param event the event
+     */
+    private static void deliver(
+            MetaContactListListener listener,
+            EventObject event)
+    {
+        if (event instanceof MetaContactEvent)
+        {
+            MetaContactEvent evt = (MetaContactEvent) event;
+
+            switch (evt.getEventID())
+            {
+                case MetaContactEvent.META_CONTACT_ADDED:
+                    listener.metaContactAdded(evt);
+                    break;
+                case MetaContactEvent.META_CONTACT_REMOVED:
+                    listener.metaContactRemoved(evt);
+                    break;
+                default:
+                    logger.error("Unknown event type " + evt.getEventID());
+            }
+        }
+        else if (event instanceof MetaContactMovedEvent)
+        {
+            listener.metaContactMoved((MetaContactMovedEvent) event);
+        }
+        else if (event instanceof MetaContactRenamedEvent)
+        {
+            listener.metaContactRenamed((MetaContactRenamedEvent) event);
+        }
+        else if (event instanceof MetaContactModifiedEvent)
+        {
+            listener.metaContactModified((MetaContactModifiedEvent) event);
+        }
+        else if (event instanceof MetaContactAvatarUpdateEvent)
+        {
+            listener.metaContactAvatarUpdated(
+                (MetaContactAvatarUpdateEvent) event);
+        }
+        else if (event instanceof ProtoContactEvent)
+        {
+            ProtoContactEvent evt = (ProtoContactEvent) event;
+            String eventName = evt.getPropertyName();
+
+            if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_ADDED))
+                listener.protoContactAdded(evt);
+            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MOVED))
+                listener.protoContactMoved(evt);
+            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_REMOVED))
+                listener.protoContactRemoved(evt);
+            else if (eventName.equals(
+                    ProtoContactEvent.PROTO_CONTACT_MODIFIED))
+                listener.protoContactModified(evt);
+        }
+        else if (event instanceof MetaContactGroupEvent)
+        {
+            MetaContactGroupEvent evt = (MetaContactGroupEvent) event;
+
+            switch (evt.getEventID())
+            {
+                case MetaContactGroupEvent.META_CONTACT_GROUP_ADDED:
+                    listener.metaContactGroupAdded(evt);
+                    break;
+                case MetaContactGroupEvent.META_CONTACT_GROUP_REMOVED:
+                    listener.metaContactGroupRemoved(evt);
+                    break;
+                case MetaContactGroupEvent.CHILD_CONTACTS_REORDERED:
+                    listener.childContactsReordered(evt);
+                    break;
+                case MetaContactGroupEvent
+                    .META_CONTACT_GROUP_RENAMED:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_RENAMED_IN_META_GROUP:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_REMOVED_FROM_META_GROUP:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_ADDED_TO_META_GROUP:
+                    listener.metaContactGroupModified(evt);
+                    break;
+                default:
+                    logger.error("Unknown event type (" + evt.getEventID()
+                                 + ") for event: " + evt);
+            }
+        }
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+import javax.xml.transform.*;
+import javax.xml.transform.dom.*;
+import javax.xml.transform.stream.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+import org.xml.sax.*;
+
+/**
+ * A change log of the meta contacts of the contact list file. Instead of
+ * rewriting the whole contact list every time a meta contact changes, the
+ * <tt>MclStorageManager</tt> appends the current state of the changed meta
+ * contacts to the journal and only writes a new snapshot of the contact list
+ * once the journal grows too large.
+ * <p>
+ * Every entry holds either the whole <tt>meta-contact</tt> element and the
+ * UID of its parent group, or only the UID of a removed meta contact. As
+ * entries replace meta contacts as a whole, replaying them more than once
+ * does not change the result.
+ * <p>
+ * Every entry is tagged with the generation of the snapshot it applies to,
+ * which is incremented by each snapshot. The journal is cleared after the
+ * snapshot is committed, and if the application stops in between, the
+ * entries of the previous generation are ignored rather than replayed over
+ * the newer snapshot. An entry which was not completely written when the
+ * application stopped is ignored as well.
+ */
+public class MclJournal
+{
+    private static final Logger logger = Logger.getLogger(MclJournal.class);
+
+    /**
+     * The name of the elements of the journal entries.
+     */
+    private static final String ENTRY_NODE_NAME = "entry";
+
+    /**
+     * The closing tag ending each complete entry.
+     */
+    private static final String ENTRY_END_TAG = "</" + ENTRY_NODE_NAME + ">";
+
+    /**
+     * The attribute of an entry holding the UID of the parent group of the
+     * meta contact. Entries without it remove the meta contact.
+     */
+    private static final String GROUP_UID_ATTR_NAME = "group";
+
+    /**
+     * The attribute of an entry holding the generation of the snapshot the
+     * entry applies to.
+     */
+    private static final String GENERATION_ATTR_NAME = "generation";
+
+    /**
+     * The encoding of the journal.
+     */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * The file of the journal.
+     */
+    private final File file;
+
+    /**
+     * Serializes the entries.
+     */
+    private Transformer transformer;
+
+    /**
+     * Creates a journal stored in <tt>file</tt>.
+     *
+     * @param file the file of the journal
+     */
+    public MclJournal(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Appends entries to the journal.
+     *
+     * @param entries the entries to append
+     * @param generation the generation of the snapshot the entries apply to
+     * @throws IOException if writing fails
+     */
+    public void append(List<Element> entries, long generation)
+        throws IOException
+    {
+        if (entries.isEmpty())
+            return;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try
+        {
+            if (transformer == null)
+            {
+                transformer = TransformerFactory.newInstance().newTransformer();
+                transformer.setOutputProperty(
+                    OutputKeys.OMIT_XML_DECLARATION, "yes");
+                transformer.setOutputProperty(OutputKeys.ENCODING, ENCODING);
+            }
+
+            for (Element entry : entries)
+            {
+                entry.setAttribute(
+                    GENERATION_ATTR_NAME, Long.toString(generation));
+                transformer.transform(
+                    new DOMSource(entry), new StreamResult(out));
+                out.write('\n');
+            }
+        }
+        catch (TransformerException ex)
+        {
+            IOException ioe = new IOException("Failed to write journal entry");
+
+            ioe.initCause(ex);
+            throw ioe;
+        }
+
+        FileOutputStream stream = new FileOutputStream(file, true);
+        try
+        {
+            stream.write(out.toByteArray());
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /**
+     * Reads the complete entries of the journal which apply to a snapshot.
+     *
+     * @param builder the builder to parse the journal with
+     * @param generation the generation of the snapshot
+     * @return the entries in the order they were written
+     * @throws IOException if reading fails
+     */
+    public List<Element> read(DocumentBuilder builder, long generation)
+        throws IOException
+    {
+        List<Element> entries = new ArrayList<Element>();
+
+        if (length() == 0)
+            return entries;
+
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            in.readFully(bytes);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        // Every entry is parsed on its own so that an entry which was not
+        // completely written, and is followed by the entries appended after
+        // the application was started again, only loses itself.
+        String content = new String(bytes, ENCODING);
+        int staleEntries = 0;
+        int tornEntries = 0;
+        int from = 0;
+        int end;
+
+        while ((end = content.indexOf(ENTRY_END_TAG, from)) != -1)
+        {
+            end += ENTRY_END_TAG.length();
+
+            int start = getEntryStart(content, from, end);
+
+            if ((start == -1)
+                    || (content.substring(from, start).trim().length() != 0))
+                tornEntries++;
+
+            if (start != -1)
+            {
+                Element entry = parseEntry(
+                    builder, content.substring(start, end));
+
+                if (entry == null)
+                    tornEntries++;
+                // left over from a snapshot committed before clearing the
+                // journal
+                else if (getGeneration(entry) != generation)
+                    staleEntries++;
+                else
+                    entries.add(entry);
+            }
+            from = end;
+        }
+        if (content.substring(from).trim().length() != 0)
+            tornEntries++;
+
+        if (tornEntries != 0)
+        {
+            logger.warn("Ignoring " + tornEntries
+                + " incomplete contact list journal entries");
+        }
+        if (staleEntries != 0)
+        {
+            logger.warn("Ignoring " + staleEntries
+                + " contact list journal entries of an older snapshot");
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the index of the start tag of the entry which ends at a
+     * specific index of the journal.
+     *
+     * @param content the content of the journal
+     * @param from the index at which the previous entry ends
+     * @param end the index at which the entry ends
+     * @return the index of the start tag of the entry or <tt>-1</tt> if there
+     * is none after <tt>from</tt>
+     */
+    private static int getEntryStart(String content, int from, int end)
+    {
+        String startTag = "<" + ENTRY_NODE_NAME;
+        int start = end;
+
+        while ((start = content.lastIndexOf(startTag, start - 1)) >= from)
+        {
+            char next = content.charAt(start + startTag.length());
+
+            if ((next == '>') || Character.isWhitespace(next))
+                return start;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses an entry of the journal.
+     *
+     * @param builder the builder to parse the entry with
+     * @param entry the text of the entry
+     * @return the element of the entry or <tt>null</tt> if it cannot be
+     * parsed
+     * @throws IOException if reading fails
+     */
+    private static Element parseEntry(DocumentBuilder builder, String entry)
+        throws IOException
+    {
+        try
+        {
+            return builder.parse(new InputSource(new StringReader(entry)))
+                .getDocumentElement();
+        }
+        catch (SAXException ex)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug(
+                    "Failed to parse a contact list journal entry", ex);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Removes all the entries of the journal.
+     *
+     * @throws IOException if truncating the journal fails
+     */
+    public void clear()
+        throws IOException
+    {
+        if (length() == 0)
+            return;
+
+        new FileOutputStream(file).close();
+    }
+
+    /**
+     * Returns the size of the journal in bytes.
+     *
+     * @return the size of the journal
+     */
+    public long length()
+    {
+        return file.length();
+    }
+
+    /**
+     * Creates an entry storing the current state of a meta contact.
+     *
+     * @param document the document creating the entry
+     * @param metaContactNode the element of the meta contact
+     * @param groupUID the UID of the parent group of the meta contact
+     * @return the entry
+     */
+    public static Element createUpdateEntry(Document document,
+                                            Element metaContactNode,
+                                            String groupUID)
+    {
+        Element entry = document.createElement(ENTRY_NODE_NAME);
+
+        entry.setAttribute(GROUP_UID_ATTR_NAME, groupUID);
+        entry.appendChild(metaContactNode.cloneNode(true));
+        return entry;
+    }
+
+    /**
+     * Creates an entry removing a meta contact.
+     *
+     * @param document the document creating the entry
+     * @param metaContactNode an element holding only the UID of the meta
+     * contact
+     * @return the entry
+     */
+    public static Element createRemoveEntry(Document document,
+                                            Element metaContactNode)
+    {
+        Element entry = document.createElement(ENTRY_NODE_NAME);
+
+        entry.appendChild(metaContactNode);
+        return entry;
+    }
+
+    /**
+     * Returns the UID of the parent group of the meta contact of an entry.
+     *
+     * @param entry the entry
+     * @return the UID of the parent group or <tt>null</tt> if the entry
+     * removes the meta contact
+     */
+    public static String getGroupUID(Element entry)
+    {
+        return entry.hasAttribute(GROUP_UID_ATTR_NAME)
+            ? entry.getAttribute(GROUP_UID_ATTR_NAME)
+            : null;
+    }
+
+    /**
+     * Parses a snapshot generation.
+     *
+     * @param value the value of a generation attribute, which may be empty
+     * @return the generation or 0 if <tt>value</tt> is empty or malformed
+     */
+    public static long parseGeneration(String value)
+    {
+        if (value == null || value.length() == 0)
+            return 0;
+
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException ex)
+        {
+            logger.warn("Malformed contact list generation: " + value);
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the generation of the snapshot an entry applies to.
+     *
+     * @param entry the entry
+     * @return the generation of the snapshot of the entry
+     */
+    private static long getGeneration(Element entry)
+    {
+        return parseGeneration(entry.getAttribute(GENERATION_ATTR_NAME));
+    }
+
+    /**
+     * Returns the meta contact element of an entry.
+     *
+     * @param entry the entry
+     * @return the meta contact element or <tt>null</tt> if the entry is
+     * malformed
+     */
+    public static Element getMetaContactNode(Element entry)
+    {
+        NodeList nodes = entry.getChildNodes();
+
+        for (int i = 0; i < nodes.getLength(); i++)
+        {
+            if (nodes.item(i).getNodeType() == Node.ELEMENT_NODE)
+                return (Element) nodes.item(i);
+        }
+        return null;
+    }
+}
@@ -78,6 +78,34 @@ public class MclStorageManager
     private static final String FILE_NAME_PROPERTY =
         "net.java.sip.communicator.CONTACTLIST_FILE_NAME";
 
+    /**
+     * The name of the property that indicates whether changes of single meta
+     * contacts are appended to a journal instead of rewriting the whole
+     * contact list file.
+     */
+    private static final String JOURNAL_ENABLED_PROPERTY =
+        "net.java.sip.communicator.impl.contactlist.JOURNAL_ENABLED";
+
+    /**
+     * The extension added to the name of the contact list file to get the
+     * name of its journal.
+     */
+    private static final String JOURNAL_FILE_EXTENSION = ".journal";
+
+    /**
+     * The size in bytes below which the journal is never compacted into a
+     * new snapshot of the contact list. Above it, the journal is compacted
+     * once it exceeds half the size of the contact list file.
+     */
+    private static final long MIN_JOURNAL_COMPACTION_SIZE = 64 * 1024;
+
+    /**
+     * The attribute of the root element of the contact list file holding the
+     * generation of the snapshot, which tells the journal entries applying
+     * to it from those left over from a previous snapshot.
+     */
+    private static final String GENERATION_ATTR_NAME = "journal-generation";
+
     /**
      * The XML Document containing the contact list file.
      */
@@ -93,6 +121,49 @@ public class MclStorageManager
      */
     private FailSafeTransaction contactlistTrans = null;
 
+    /**
+     * The journal of the changes of meta contacts since the contact list
+     * file was last written or <tt>null</tt> if journaling is disabled.
+     */
+    private MclJournal journal = null;
+
+    /**
+     * The generation of the last snapshot written to the contact list file.
+     */
+    private long generation = 0;
+
+    /**
+     * The UIDs of the meta contacts changed since the contact list was last
+     * stored.
+     */
+    private final Set<String> modifiedMetaContacts
+        = new LinkedHashSet<String>();
+
+    /**
+     * Indicates whether the last changes require writing the whole contact
+     * list file rather than appending to the journal.
+     */
+    private boolean isSnapshotRequired = false;
+
+    /**
+     * The number of batch updates in progress. Storing the contact list is
+     * deferred until all of them ended.
+     */
+    private int batchUpdateDepth = 0;
+
+    /**
+     * The elements of the meta contacts of the contact list document by UID.
+     */
+    private final Map<String, Element> metaContactNodes
+        = new Hashtable<String, Element>();
+
+    /**
+     * The elements of the meta contact groups of the contact list document by
+     * UID.
+     */
+    private final Map<String, Element> metaContactGroupNodes
+        = new Hashtable<String, Element>();
+
     /**
      * A reference to the MetaContactListServiceImpl that created and started
      * us.
@@ -300,6 +371,12 @@ public class MclStorageManager
             if (!contactlistFile.exists() && !contactlistFile.createNewFile())
                 throw new IOException("Failed to create file"
                                           + contactlistFile.getAbsolutePath());
+
+            if (configurationService.getBoolean(JOURNAL_ENABLED_PROPERTY, true))
+            {
+                journal = new MclJournal(faService.getPrivatePersistentFile(
+                    fileName + JOURNAL_FILE_EXTENSION));
+            }
         }
         catch (Exception ex)
         {
@@ -336,6 +413,8 @@ public class MclStorageManager
                 // if the contact list does not exist - create it.
                 contactListDocument = builder.newDocument();
                 initVirginDocument(mclServImpl, contactListDocument);
+                if (journal != null)
+                    journal.clear();
 
                 // write the contact list so that it is there for the parser
                 storeContactList0();
@@ -356,11 +435,19 @@ public class MclStorageManager
                     contactlistFile.createNewFile();
                     contactListDocument = builder.newDocument();
                     initVirginDocument(mclServImpl, contactListDocument);
+                    if (journal != null)
+                        journal.clear();
 
                     // write the contact list so that it is there for the parser
                     storeContactList0();
                 }
             }
+
+            rebuildIndexes();
+            generation = MclJournal.parseGeneration(
+                contactListDocument.getDocumentElement().getAttribute(
+                    GENERATION_ATTR_NAME));
+            replayJournal(builder);
         }
         catch (ParserConfigurationException ex)
         {
@@ -388,7 +475,198 @@ public class MclStorageManager
                 return;
 
             this.isModified = true;
-            contactListRWLock.notifyAll();
+            this.isSnapshotRequired = true;
+            if (batchUpdateDepth == 0)
+                contactListRWLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stores the contact list after a change limited to the meta contact
+     * with the specified UID, which may be journaled.
+     *
+     * @param metaContactUID the UID of the changed meta contact
+     * @throws IOException if writing fails.
+     */
+    private void scheduleContactListStorage(String metaContactUID)
+        throws IOException
+    {
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted())
+                return;
+
+            this.isModified = true;
+            modifiedMetaContacts.add(metaContactUID);
+            if (batchUpdateDepth == 0)
+                contactListRWLock.notifyAll();
+        }
+    }
+
+    /**
+     * Starts a batch of changes to the contact list, such as the
+     * synchronization with the server stored contact list of an account.
+     * The changes are stored once, when the last batch ends, rather than
+     * after each of them.
+     */
+    void beginBatchUpdate()
+    {
+        synchronized (contactListRWLock)
+        {
+            batchUpdateDepth++;
+        }
+    }
+
+    /**
+     * Ends a batch of changes started with {@link #beginBatchUpdate()} and
+     * stores the changes if this was the last batch in progress.
+     */
+    void endBatchUpdate()
+    {
+        synchronized (contactListRWLock)
+        {
+            if (batchUpdateDepth > 0
+                    && --batchUpdateDepth == 0
+                    && isModified)
+                contactListRWLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stores the changes of the contact list, either by appending the
+     * modified meta contacts to the journal or by writing the whole contact
+     * list file when the journal is disabled, grew too large or the changes
+     * are not limited to meta contacts. Package-private for the contact
+     * list benchmarks, everything else stores through the storage thread.
+     *
+     * @throws IOException in case writing fails.
+     */
+    void storeContactList() throws IOException
+    {
+        if (!isStarted())
+            return;
+
+        if (journal == null
+                || isSnapshotRequired
+                || journal.length() > Math.max(MIN_JOURNAL_COMPACTION_SIZE,
+                                               contactlistFile.length() / 2))
+        {
+            storeContactList0();
+            return;
+        }
+
+        List<Element> entries = new ArrayList<Element>();
+        for (String metaContactUID : modifiedMetaContacts)
+        {
+            Element metaContactNode = findMetaContactNode(metaContactUID);
+
+            if (metaContactNode == null)
+            {
+                Element removed
+                    = contactListDocument.createElement(META_CONTACT_NODE_NAME);
+
+                removed.setAttribute(UID_ATTR_NAME, metaContactUID);
+                entries.add(
+                    MclJournal.createRemoveEntry(contactListDocument, removed));
+            }
+            else
+            {
+                // meta-contact < child-contacts < group
+                Element groupNode
+                    = (Element) metaContactNode.getParentNode().getParentNode();
+
+                entries.add(MclJournal.createUpdateEntry(
+                    contactListDocument,
+                    metaContactNode,
+                    groupNode.getAttribute(UID_ATTR_NAME)));
+            }
+        }
+
+        try
+        {
+            journal.append(entries, generation);
+            modifiedMetaContacts.clear();
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to journal contact list changes", ex);
+            storeContactList0();
+        }
+    }
+
+    /**
+     * Applies the journal to the contact list document that was just parsed
+     * from the contact list file. Failing to read the journal only loses the
+     * journaled changes and not the contact list. A journal which is not
+     * empty is compacted into a snapshot once we are started, so that the
+     * entries which could not be replayed do not stay in front of the ones
+     * appended from now on.
+     *
+     * @param builder the builder to parse the journal with
+     */
+    private void replayJournal(DocumentBuilder builder)
+    {
+        if (journal == null || journal.length() == 0)
+            return;
+
+        isModified = true;
+        isSnapshotRequired = true;
+
+        List<Element> entries;
+        try
+        {
+            entries = journal.read(builder, generation);
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to read the contact list journal", ex);
+            return;
+        }
+
+        for (Element entry : entries)
+        {
+            Element metaContactNode = MclJournal.getMetaContactNode(entry);
+            if (metaContactNode == null)
+                continue;
+
+            Element currentNode = findMetaContactNode(
+                metaContactNode.getAttribute(UID_ATTR_NAME));
+            String groupUID = MclJournal.getGroupUID(entry);
+
+            if (currentNode != null)
+                unindexNodes(currentNode);
+
+            if (groupUID == null)
+            {
+                if (currentNode != null)
+                    currentNode.getParentNode().removeChild(currentNode);
+                continue;
+            }
+
+            Element groupNode = findMetaContactGroupNode(groupUID);
+            if (groupNode == null)
+            {
+                logger.error("Journaled meta contact has no parent group: "
+                    + groupUID);
+                continue;
+            }
+
+            Node childContacts
+                = XMLUtils.findChild(groupNode, CHILD_CONTACTS_NODE_NAME);
+            Element newNode = (Element)
+                contactListDocument.importNode(metaContactNode, true);
+
+            indexNodes(newNode);
+
+            if (currentNode == null)
+                childContacts.appendChild(newNode);
+            else if (currentNode.getParentNode() == childContacts)
+                childContacts.replaceChild(newNode, currentNode);
+            else
+            {
+                currentNode.getParentNode().removeChild(currentNode);
+                childContacts.appendChild(newNode);
+            }
         }
     }
 
@@ -417,6 +695,13 @@ public class MclStorageManager
                 logger.error("the contactlist file is missing", e);
             }
 
+            // if the journal is not cleared after the commit, its entries
+            // are ignored when loading the new snapshot
+            long newGeneration = generation + 1;
+
+            contactListDocument.getDocumentElement().setAttribute(
+                GENERATION_ATTR_NAME, Long.toString(newGeneration));
+
             // really write the modification
             OutputStream stream = new FileOutputStream(contactlistFile);
             XMLUtils.indentedWriteXML(contactListDocument, stream);
@@ -431,6 +716,16 @@ public class MclStorageManager
             {
                 logger.error("the contactlist file is missing", e);
             }
+
+            // the snapshot contains all the journaled changes
+            generation = newGeneration;
+            synchronized (contactListRWLock)
+            {
+                modifiedMetaContacts.clear();
+                isSnapshotRequired = false;
+            }
+            if (journal != null)
+                journal.clear();
         }
     }
 
@@ -453,9 +748,9 @@ public class MclStorageManager
                         while (isStarted())
                         {
                             contactListRWLock.wait(5000);
-                            if (isModified)
+                            if (isModified && batchUpdateDepth == 0)
                             {
-                                storeContactList0();
+                                storeContactList();
                                 isModified = false;
                             }
                         }
@@ -494,7 +789,7 @@ public class MclStorageManager
             // write the contact list ourselves before we go out..
             try
             {
-                storeContactList0();
+                storeContactList();
             }
             catch (IOException ex)
             {
@@ -613,6 +908,7 @@ public class MclStorageManager
                 contactListDocument = builder.newDocument();
 
                 initVirginDocument(mclServiceImpl, contactListDocument);
+                rebuildIndexes();
 
                 // write the contact list so that it is there for the parser
                 storeContactList0();
@@ -860,6 +1156,7 @@ public class MclStorageManager
                     {
                         currentMetaContactNode.getParentNode().removeChild(
                             currentMetaContactNode);
+                        unindexNodes((Element) currentMetaContactNode);
                     }
                     catch (Throwable throwable)
                     {
@@ -911,6 +1208,7 @@ public class MclStorageManager
                     {
                         currentGroupNode.getParentNode().removeChild(
                             currentGroupNode);
+                        unindexNodes((Element) currentGroupNode);
                     }
                     catch (Throwable thr)
                     {
@@ -1252,10 +1550,12 @@ public class MclStorageManager
             createMetaContactNode(evt.getSourceMetaContact());
 
         parentGroupNode.appendChild(metaContactElement);
+        indexNodes(metaContactElement);
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1306,6 +1606,7 @@ public class MclStorageManager
             XMLUtils.findChild(parentGroupNode, SUBGROUPS_NODE_NAME);
 
         subgroupsNode.appendChild(newGroupElement);
+        indexNodes(newGroupElement);
 
         try
         {
@@ -1345,6 +1646,7 @@ public class MclStorageManager
 
         // remove the meta contact node.
         metaContactGroupNode.getParentNode().removeChild(metaContactGroupNode);
+        unindexNodes(metaContactGroupNode);
 
         try
         {
@@ -1392,6 +1694,7 @@ public class MclStorageManager
         {
             // create new node
             metaContactNode = createMetaContactNode(evt.getSourceMetaContact());
+            indexNodes(metaContactNode);
         }
         else
         {
@@ -1407,7 +1710,8 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1490,10 +1794,12 @@ public class MclStorageManager
 
         // remove the meta contact node.
         metaContactNode.getParentNode().removeChild(metaContactNode);
+        unindexNodes(metaContactNode);
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1548,7 +1854,8 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1588,7 +1895,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getParent().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1734,7 +2041,8 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1776,7 +2084,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getOldParent().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1837,10 +2145,12 @@ public class MclStorageManager
             Node parentNode = mcGroupNode.getParentNode();
 
             parentNode.removeChild(mcGroupNode);
+            unindexNodes(mcGroupNode);
 
             Element newGroupElement = createMetaContactGroupNode(mcGroup);
 
             parentNode.appendChild(newGroupElement);
+            indexNodes(newGroupElement);
 
             try
             {
@@ -1909,7 +2219,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getParent().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1967,7 +2277,8 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getOldParent().getMetaUID());
+            scheduleContactListStorage(evt.getNewParent().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1993,10 +2304,7 @@ public class MclStorageManager
      */
     private Element findMetaContactNode(String metaContactUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
-
-        return XMLUtils.locateElement(root, META_CONTACT_NODE_NAME,
-            UID_ATTR_NAME, metaContactUID);
+        return findIndexedNode(metaContactNodes, metaContactUID);
     }
 
     /**
@@ -2011,10 +2319,115 @@ public class MclStorageManager
      */
     private Element findMetaContactGroupNode(String metaContactGroupUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
+        return findIndexedNode(metaContactGroupNodes, metaContactGroupUID);
+    }
+
+    /**
+     * Returns the element indexed under <tt>uid</tt> provided it is still
+     * part of the contact list document.
+     *
+     * @param index the index to look in
+     * @param uid the UID of the element
+     * @return the element or <tt>null</tt> if no such element is part of the
+     *         contact list document
+     */
+    private Element findIndexedNode(Map<String, Element> index, String uid)
+    {
+        Element node = index.get(uid);
 
-        return XMLUtils.locateElement(root, GROUP_NODE_NAME, UID_ATTR_NAME,
-            metaContactGroupUID);
+        if (node == null)
+            return null;
+
+        // guards against removals which did not update the index
+        Node ancestor = node;
+        while (ancestor.getParentNode() != null)
+            ancestor = ancestor.getParentNode();
+        if (ancestor != contactListDocument)
+        {
+            index.remove(uid);
+            return null;
+        }
+        return node;
+    }
+
+    /**
+     * Indexes the meta contacts and meta contact groups of the contact list
+     * document from scratch.
+     */
+    private void rebuildIndexes()
+    {
+        metaContactNodes.clear();
+        metaContactGroupNodes.clear();
+
+        if (contactListDocument.getDocumentElement() != null)
+            indexNodes(contactListDocument.getDocumentElement());
+    }
+
+    /**
+     * Adds <tt>node</tt> and the meta contacts and meta contact groups it
+     * contains to the indexes.
+     *
+     * @param node the element which was added to the contact list document
+     */
+    private void indexNodes(Element node)
+    {
+        updateIndexes(node, true);
+    }
+
+    /**
+     * Removes <tt>node</tt> and the meta contacts and meta contact groups it
+     * contains from the indexes.
+     *
+     * @param node the element which was removed from the contact list
+     *            document
+     */
+    private void unindexNodes(Element node)
+    {
+        updateIndexes(node, false);
+    }
+
+    /**
+     * Adds or removes the meta contacts and meta contact groups in the tree
+     * of <tt>node</tt> to or from the indexes.
+     *
+     * @param node the root of the tree
+     * @param add <tt>true</tt> to add the elements to the indexes and
+     *            <tt>false</tt> to remove them
+     */
+    private void updateIndexes(Element node, boolean add)
+    {
+        String name = node.getNodeName();
+        Map<String, Element> index;
+
+        if (META_CONTACT_NODE_NAME.equals(name))
+            index = metaContactNodes;
+        else if (GROUP_NODE_NAME.equals(name))
+            index = metaContactGroupNodes;
+        else
+            index = null;
+
+        if (index != null)
+        {
+            String uid = node.getAttribute(UID_ATTR_NAME);
+
+            if (add)
+                index.put(uid, node);
+            else if (index.get(uid) == node)
+                index.remove(uid);
+
+            // meta contacts do not contain other meta contacts or groups
+            if (index == metaContactNodes)
+                return;
+        }
+
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++)
+        {
+            Node child = children.item(i);
+
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                updateIndexes((Element) child, add);
+        }
     }
 
     /**
@@ -7,6 +7,7 @@
 package net.java.sip.communicator.impl.contactlist;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.protocol.*;
@@ -78,6 +79,14 @@ public class MetaContactGroupImpl
      */
     private MetaContactGroupImpl parentMetaContactGroup = null;
 
+    /**
+     * The number of the child <tt>MetaContact</tt>s of this group which have
+     * at least one online protocol contact, maintained by the
+     * <tt>MetaContactImpl</tt>s as they go online and offline and join and
+     * leave this group.
+     */
+    private final AtomicInteger onlineChildContactsCount = new AtomicInteger();
+
     /**
      * The <tt>MetaContactListService</tt> implementation which manages this
      * <tt>MetaContactGroup</tt> and its associated hierarchy.
@@ -192,30 +201,20 @@ public class MetaContactGroupImpl
      */
     public int countOnlineChildContacts()
     {
-        int onlineContactsNumber = 0;
-        try
-        {
-            Iterator<MetaContact> itr = getChildContacts();
-            while(itr.hasNext())
-            {
-                Contact contact = itr.next().getDefaultContact();
-
-                if(contact == null)
-                    continue;
-
-                if(contact.getPresenceStatus().isOnline())
-                {
-                    onlineContactsNumber++;
-                }
-            }
-        }
-        catch(Exception e)
-        {
-            if (logger.isDebugEnabled())
-                logger.debug("Failed to count online contacts.", e);
-        }
+        return onlineChildContactsCount.get();
+    }
 
-        return onlineContactsNumber;
+    /**
+     * Updates the number of online child <tt>MetaContact</tt>s of this group
+     * when one of them goes online or offline, joins or leaves this group.
+     *
+     * @param delta <tt>1</tt> if a child contact has gone online or an online
+     * one has been added to this group, <tt>-1</tt> if one has gone offline or
+     * an online one has been removed from this group
+     */
+    void onlineChildContactsChanged(int delta)
+    {
+        onlineChildContactsCount.addAndGet(delta);
     }
 
     /**
@@ -699,6 +698,7 @@ public class MetaContactGroupImpl
         metaContact.setParentGroup(this);
 
         lightAddMetaContact(metaContact);
+        mclServiceImpl.getMetaContactIndex().metaContactAdded(metaContact);
     }
 
     /**
@@ -756,6 +756,7 @@ public class MetaContactGroupImpl
     {
         metaContact.unsetParentGroup(this);
         lightRemoveMetaContact(metaContact);
+        mclServiceImpl.getMetaContactIndex().metaContactRemoved(metaContact);
     }
 
     /**
@@ -966,6 +967,9 @@ public class MetaContactGroupImpl
 
         this.subgroupsOrderedCopy =
             new LinkedList<MetaContactGroup>(subgroups);
+
+        mclServiceImpl.getMetaContactIndex().groupAdded(
+                (MetaContactGroupImpl) subgroup);
     }
 
     /**
@@ -979,7 +983,10 @@ public class MetaContactGroupImpl
             (MetaContactGroupImpl)subgroupsOrderedCopy.get(index);
 
         if (subgroups.remove(subgroup))
+        {
             subgroup.parentMetaContactGroup = null;
+            mclServiceImpl.getMetaContactIndex().groupRemoved(subgroup);
+        }
 
         subgroupsOrderedCopy = new LinkedList<MetaContactGroup>(subgroups);
 
@@ -994,7 +1001,12 @@ public class MetaContactGroupImpl
      */
     boolean removeSubgroup(MetaContactGroup group)
     {
-        return subgroups.remove(group);
+        if (!subgroups.remove(group))
+            return false;
+
+        mclServiceImpl.getMetaContactIndex().groupRemoved(
+                (MetaContactGroupImpl) group);
+        return true;
     }
 
     /**
@@ -42,7 +42,9 @@ public class MetaContactImpl
         = new HashMap<String, List<Contact>>();
 
     /**
-     * The number of contacts online in this meta contact.
+     * The number of contacts online in this meta contact. Updated whenever a
+     * contact is added or removed or changes its status, under the
+     * {@link #getParentGroupModLock()}.
      */
     private int contactsOnline = 0;
 
@@ -119,6 +121,18 @@ public class MetaContactImpl
         this.details = details;
     }
 
+    /**
+     * Returns the number of protocol specific <tt>Contact</tt>s that this
+     * <tt>MetaContact</tt> contains and which are online.
+     *
+     * @return an int indicating the number of online protocol specific
+     *   contacts merged in this <tt>MetaContact</tt>
+     */
+    public int countOnlineContacts()
+    {
+        return contactsOnline;
+    }
+
     /**
      * Returns the number of protocol specific <tt>Contact</tt>s that this
      * <tt>MetaContact</tt> contains.
@@ -316,6 +330,8 @@ public class MetaContactImpl
      */
     public Contact getDefaultContact()
     {
+        Contact defaultContact = this.defaultContact;
+
         if(defaultContact == null)
         {
             PresenceStatus currentStatus = null;
@@ -337,6 +353,7 @@ public class MetaContactImpl
                     defaultContact = protoContact;
                 }
             }
+            this.defaultContact = defaultContact;
         }
         return defaultContact;
     }
@@ -668,9 +685,9 @@ public class MetaContactImpl
         {
             if (parentGroup != null)
                 parentGroup.lightRemoveMetaContact(this);
-            contactsOnline += contact.getPresenceStatus().isOnline() ? 1 : 0;
 
             this.protoContacts.add(contact);
+            updateContactsOnline();
 
             // Re-init the default contact.
             defaultContact = null;
@@ -687,7 +704,11 @@ public class MetaContactImpl
             }
 
             if (parentGroup != null)
+            {
                 parentGroup.lightAddMetaContact(this);
+                parentGroup.getMclServiceImpl().getMetaContactIndex()
+                    .protoContactAdded(this, contact);
+            }
 
             ProtocolProviderService contactProvider
                 = contact.getProtocolProvider();
@@ -725,7 +746,11 @@ public class MetaContactImpl
                 parentGroup.lightRemoveMetaContact(this);
             }
 
-            this.contactsOnline = 0;
+            updateContactsOnline();
+
+            // elect the default contact the way getDefaultContact() does so
+            // that it does not have to be looked for again
+            Contact defaultContact = null;
             int maxContactStatus = 0;
 
             for (Contact contact : protoContacts)
@@ -733,14 +758,14 @@ public class MetaContactImpl
                 int contactStatus = contact.getPresenceStatus()
                         .getStatus();
 
-                if(maxContactStatus < contactStatus)
+                if ((defaultContact == null)
+                        || (maxContactStatus < contactStatus))
                 {
                     maxContactStatus = contactStatus;
-                    this.defaultContact = contact;
+                    defaultContact = contact;
                 }
-                if (contact.getPresenceStatus().isOnline())
-                    contactsOnline++;
             }
+            this.defaultContact = defaultContact;
             //now read it and the contact would be automatically placed
             //properly by the containing group
             if (parentGroup != null)
@@ -767,8 +792,8 @@ public class MetaContactImpl
         {
             if (parentGroup != null)
                 parentGroup.lightRemoveMetaContact(this);
-            contactsOnline -= contact.getPresenceStatus().isOnline() ? 1 : 0;
             this.protoContacts.remove(contact);
+            updateContactsOnline();
 
             if (defaultContact == contact)
                 defaultContact = null;
@@ -780,7 +805,11 @@ public class MetaContactImpl
             }
 
             if (parentGroup != null)
+            {
                 parentGroup.lightAddMetaContact(this);
+                parentGroup.getMclServiceImpl().getMetaContactIndex()
+                    .protoContactRemoved(this, contact);
+            }
 
             ProtocolProviderService contactProvider
                 = contact.getProtocolProvider();
@@ -810,27 +839,47 @@ public class MetaContactImpl
      */
     boolean removeContactsForProvider(ProtocolProviderService provider)
     {
-        boolean modified = false;
-        Iterator<Contact> contactsIter = protoContacts.iterator();
+        List<Contact> removed = new ArrayList<Contact>();
 
-        while(contactsIter.hasNext())
+        // removed and recounted at once, so that a concurrent recount never
+        // iterates the contacts while they are being removed
+        synchronized (getParentGroupModLock())
         {
-            Contact contact = contactsIter.next();
+            Iterator<Contact> contactsIter = protoContacts.iterator();
 
-            if (contact.getProtocolProvider() == provider)
+            while(contactsIter.hasNext())
             {
-                contactsIter.remove();
-                modified = true;
+                Contact contact = contactsIter.next();
+
+                if (contact.getProtocolProvider() == provider)
+                {
+                    contactsIter.remove();
+                    removed.add(contact);
+                }
             }
+
+            if (removed.isEmpty())
+                return false;
+
+            updateContactsOnline();
+
+            // if the default contact has been modified, set it to null
+            if (!protoContacts.contains(defaultContact))
+                defaultContact = null;
         }
 
-        // if the default contact has been modified, set it to null
-        if (modified && !protoContacts.contains(defaultContact))
+        MetaContactGroupImpl parentGroup = this.parentGroup;
+
+        if (parentGroup != null)
         {
-            defaultContact = null;
+            for (Contact contact : removed)
+            {
+                parentGroup.getMclServiceImpl().getMetaContactIndex()
+                    .protoContactRemoved(this, contact);
+            }
         }
 
-        return modified;
+        return true;
     }
 
     /**
@@ -843,27 +892,47 @@ public class MetaContactImpl
      */
     boolean removeContactsForGroup(ContactGroup protoGroup)
     {
-        boolean modified = false;
-        Iterator<Contact> contactsIter = protoContacts.iterator();
+        List<Contact> removed = new ArrayList<Contact>();
 
-        while(contactsIter.hasNext())
+        // removed and recounted at once, so that a concurrent recount never
+        // iterates the contacts while they are being removed
+        synchronized (getParentGroupModLock())
         {
-            Contact contact = contactsIter.next();
+            Iterator<Contact> contactsIter = protoContacts.iterator();
 
-            if (contact.getParentContactGroup() == protoGroup)
+            while(contactsIter.hasNext())
             {
-                contactsIter.remove();
-                modified = true;
+                Contact contact = contactsIter.next();
+
+                if (contact.getParentContactGroup() == protoGroup)
+                {
+                    contactsIter.remove();
+                    removed.add(contact);
+                }
             }
+
+            if (removed.isEmpty())
+                return false;
+
+            updateContactsOnline();
+
+            // if the default contact has been modified, set it to null
+            if (!protoContacts.contains(defaultContact))
+                defaultContact = null;
         }
 
-        // if the default contact has been modified, set it to null
-        if (modified && !protoContacts.contains(defaultContact))
+        MetaContactGroupImpl parentGroup = this.parentGroup;
+
+        if (parentGroup != null)
         {
-            defaultContact = null;
+            for (Contact contact : removed)
+            {
+                parentGroup.getMclServiceImpl().getMetaContactIndex()
+                    .protoContactRemoved(this, contact);
+            }
         }
 
-        return modified;
+        return true;
     }
 
 
@@ -890,6 +959,12 @@ public class MetaContactImpl
 
         synchronized (getParentGroupModLock())
         {
+            if ((contactsOnline > 0) && (this.parentGroup != parentGroup))
+            {
+                if (this.parentGroup != null)
+                    this.parentGroup.onlineChildContactsChanged(-1);
+                parentGroup.onlineChildContactsChanged(1);
+            }
             this.parentGroup = parentGroup;
         }
     }
@@ -906,7 +981,37 @@ public class MetaContactImpl
         synchronized(getParentGroupModLock())
         {
             if (parentGroup == parentGrp)
+            {
+                if (contactsOnline > 0)
+                    parentGroup.onlineChildContactsChanged(-1);
                 parentGroup = null;
+            }
+        }
+    }
+
+    /**
+     * Recounts the protocol contacts of this meta contact which are online
+     * and lets the parent group know when this meta contact goes online or
+     * offline as a result. Called under the {@link #getParentGroupModLock()}
+     * whenever a protocol contact is added or removed or changes its status.
+     */
+    private void updateContactsOnline()
+    {
+        int oldContactsOnline = contactsOnline;
+        int newContactsOnline = 0;
+
+        for (Contact contact : protoContacts)
+        {
+            if (contact.getPresenceStatus().isOnline())
+                newContactsOnline++;
+        }
+        contactsOnline = newContactsOnline;
+
+        if ((parentGroup != null)
+                && ((oldContactsOnline > 0) != (newContactsOnline > 0)))
+        {
+            parentGroup.onlineChildContactsChanged(
+                    (newContactsOnline > 0) ? 1 : -1);
         }
     }
 
@@ -0,0 +1,332 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Indexes the meta contacts of the contact list by protocol contact, by
+ * contact address and account and by meta UID, so that the lookups of the
+ * <tt>MetaContactListServiceImpl</tt> do not have to walk the whole tree.
+ * <p>
+ * The index is updated by <tt>MetaContactGroupImpl</tt> and
+ * <tt>MetaContactImpl</tt> whenever a meta contact is added to or removed
+ * from a group, a group is added to or removed from its parent, or a protocol
+ * contact is added to or removed from a meta contact. The meta contacts found
+ * are checked to still contain the contact and to still be in the contact
+ * list, and the lookups fall back to walking the tree when they do not, so a
+ * stale entry never produces a wrong answer.
+ */
+class MetaContactIndex
+{
+    /**
+     * The root group of the contact list.
+     */
+    private final MetaContactGroupImpl rootGroup;
+
+    /**
+     * The meta contacts by protocol contact.
+     */
+    private final ConcurrentMap<Contact, MetaContactImpl> byContact
+        = new ConcurrentHashMap<Contact, MetaContactImpl>();
+
+    /**
+     * The meta contacts by address and account of their protocol contacts.
+     */
+    private final ConcurrentMap<AddressKey, MetaContactImpl> byAddress
+        = new ConcurrentHashMap<AddressKey, MetaContactImpl>();
+
+    /**
+     * The meta contacts by meta UID.
+     */
+    private final ConcurrentMap<String, MetaContactImpl> byMetaUID
+        = new ConcurrentHashMap<String, MetaContactImpl>();
+
+    /**
+     * Creates the index of a contact list.
+     *
+     * @param rootGroup the root group of the contact list
+     */
+    MetaContactIndex(MetaContactGroupImpl rootGroup)
+    {
+        this.rootGroup = rootGroup;
+    }
+
+    /**
+     * Indexes a meta contact which has been added to a group, and its
+     * protocol contacts.
+     *
+     * @param metaContact the meta contact
+     */
+    void metaContactAdded(MetaContactImpl metaContact)
+    {
+        byMetaUID.put(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+
+        while (contacts.hasNext())
+            protoContactAdded(metaContact, contacts.next());
+    }
+
+    /**
+     * Removes from the index a meta contact which has been removed from its
+     * group, and its protocol contacts.
+     *
+     * @param metaContact the meta contact
+     */
+    void metaContactRemoved(MetaContactImpl metaContact)
+    {
+        byMetaUID.remove(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+
+        while (contacts.hasNext())
+            protoContactRemoved(metaContact, contacts.next());
+    }
+
+    /**
+     * Indexes a protocol contact which has been added to a meta contact.
+     *
+     * @param metaContact the meta contact
+     * @param contact the protocol contact
+     */
+    void protoContactAdded(MetaContactImpl metaContact, Contact contact)
+    {
+        byContact.put(contact, metaContact);
+
+        AddressKey key = AddressKey.getKey(contact);
+
+        if (key != null)
+            byAddress.put(key, metaContact);
+    }
+
+    /**
+     * Removes from the index a protocol contact which has been removed from a
+     * meta contact.
+     *
+     * @param metaContact the meta contact
+     * @param contact the protocol contact
+     */
+    void protoContactRemoved(MetaContactImpl metaContact, Contact contact)
+    {
+        // the entries which another meta contact has claimed since are kept
+        byContact.remove(contact, metaContact);
+
+        AddressKey key = AddressKey.getKey(contact);
+
+        if (key != null)
+            byAddress.remove(key, metaContact);
+    }
+
+    /**
+     * Indexes the meta contacts of a group and of its subgroups, which has
+     * been added to its parent.
+     *
+     * @param group the group
+     */
+    void groupAdded(MetaContactGroupImpl group)
+    {
+        Iterator<MetaContact> metaContacts = group.getChildContacts();
+
+        while (metaContacts.hasNext())
+            metaContactAdded((MetaContactImpl) metaContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+
+        while (subgroups.hasNext())
+            groupAdded((MetaContactGroupImpl) subgroups.next());
+    }
+
+    /**
+     * Removes from the index the meta contacts of a group and of its
+     * subgroups, which has been removed from its parent.
+     *
+     * @param group the group
+     */
+    void groupRemoved(MetaContactGroupImpl group)
+    {
+        Iterator<MetaContact> metaContacts = group.getChildContacts();
+
+        while (metaContacts.hasNext())
+            metaContactRemoved((MetaContactImpl) metaContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+
+        while (subgroups.hasNext())
+            groupRemoved((MetaContactGroupImpl) subgroups.next());
+    }
+
+    /**
+     * Returns the meta contact of the contact list containing a protocol
+     * contact.
+     *
+     * @param contact the protocol contact
+     * @return the meta contact containing <tt>contact</tt> or <tt>null</tt>
+     */
+    MetaContact findMetaContactByContact(Contact contact)
+    {
+        String address = contact.getAddress();
+        ProtocolProviderService provider = contact.getProtocolProvider();
+        MetaContactImpl metaContact = byContact.get(contact);
+        boolean stale = false;
+
+        if (metaContact != null)
+        {
+            if (isInContactList(metaContact)
+                    && (metaContact.getContact(address, provider) != null))
+                return metaContact;
+            stale = true;
+        }
+
+        AddressKey key = AddressKey.getKey(contact);
+
+        metaContact = (key == null) ? null : byAddress.get(key);
+        if (metaContact != null)
+        {
+            if (isInContactList(metaContact)
+                    && (metaContact.getContact(address, provider) != null))
+                return metaContact;
+            stale = true;
+        }
+
+        return stale ? rootGroup.findMetaContactByContact(contact) : null;
+    }
+
+    /**
+     * Returns the meta contact of the contact list containing a protocol
+     * contact with a specific address and account.
+     *
+     * @param address the address of the protocol contact
+     * @param accountID the unique ID of the account of the protocol contact
+     * @return the meta contact containing the protocol contact or
+     * <tt>null</tt>
+     */
+    MetaContact findMetaContactByContact(String address, String accountID)
+    {
+        if ((address == null) || (accountID == null))
+            return null;
+
+        MetaContactImpl metaContact
+            = byAddress.get(new AddressKey(accountID, address));
+
+        if (metaContact == null)
+            return null;
+        if (isInContactList(metaContact)
+                && (metaContact.getContact(address, accountID) != null))
+            return metaContact;
+        return rootGroup.findMetaContactByContact(address, accountID);
+    }
+
+    /**
+     * Returns the meta contact of the contact list with a specific meta UID.
+     *
+     * @param metaUID the meta UID
+     * @return the meta contact with <tt>metaUID</tt> or <tt>null</tt>
+     */
+    MetaContact findMetaContactByMetaUID(String metaUID)
+    {
+        MetaContactImpl metaContact = byMetaUID.get(metaUID);
+
+        if (metaContact == null)
+            return null;
+        if (isInContactList(metaContact))
+            return metaContact;
+        return rootGroup.findMetaContactByMetaUID(metaUID);
+    }
+
+    /**
+     * Determines whether a meta contact is in the contact list, i.e. whether
+     * its group descends from the root group.
+     *
+     * @param metaContact the meta contact
+     * @return <tt>true</tt> if <tt>metaContact</tt> is in the contact list
+     */
+    private boolean isInContactList(MetaContactImpl metaContact)
+    {
+        MetaContactGroup group = metaContact.getParentGroup();
+
+        while (group != null)
+        {
+            if (group == rootGroup)
+                return true;
+            group = group.getParentMetaContactGroup();
+        }
+        return false;
+    }
+
+    /**
+     * The key of a protocol contact in the index by address and account.
+     */
+    private static class AddressKey
+    {
+        /**
+         * The unique ID of the account of the contact.
+         */
+        private final String accountID;
+
+        /**
+         * The address of the contact.
+         */
+        private final String address;
+
+        /**
+         * Creates the key of a protocol contact.
+         *
+         * @param accountID the unique ID of the account of the contact
+         * @param address the address of the contact
+         */
+        AddressKey(String accountID, String address)
+        {
+            this.accountID = accountID;
+            this.address = address;
+        }
+
+        /**
+         * Returns the key of a protocol contact.
+         *
+         * @param contact the protocol contact
+         * @return the key of <tt>contact</tt> or <tt>null</tt> if it has no
+         * address or account
+         */
+        static AddressKey getKey(Contact contact)
+        {
+            String address = contact.getAddress();
+            ProtocolProviderService provider = contact.getProtocolProvider();
+
+            if ((address == null) || (provider == null))
+                return null;
+            return
+                new AddressKey(
+                        provider.getAccountID().getAccountUniqueID(),
+                        address);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this)
+                return true;
+            if (!(obj instanceof AddressKey))
+                return false;
+
+            AddressKey key = (AddressKey) obj;
+
+            return accountID.equals(key.accountID)
+                && address.equals(key.address);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * accountID.hashCode() + address.hashCode();
+        }
+    }
+}
@@ -14,6 +14,7 @@ import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
 import net.java.sip.communicator.util.*;
 
+import org.jitsi.service.configuration.*;
 import org.jitsi.util.xml.*;
 import org.osgi.framework.*;
 
@@ -80,6 +81,29 @@ public class MetaContactListServiceImpl
     private final List<MetaContactListListener> metaContactListListeners
         = new Vector<MetaContactListListener>();
 
+    /**
+     * The dispatchers of the events delivered asynchronously to the
+     * <tt>MetaContactListBatchListener</tt>s, by listener. Guarded by
+     * {@link #metaContactListListeners}.
+     */
+    private final Map<MetaContactListListener, MclEventDispatcher>
+        eventDispatchers
+            = new HashMap<MetaContactListListener, MclEventDispatcher>();
+
+    /**
+     * The name of the property which tells whether the events are delivered
+     * asynchronously to the <tt>MetaContactListBatchListener</tt>s, which is
+     * the default, or synchronously like to the other listeners.
+     */
+    private static final String ASYNC_EVENT_DISPATCH_PROPERTY
+        = "net.java.sip.communicator.impl.contactlist.ASYNC_EVENT_DISPATCH";
+
+    /**
+     * Whether the events are delivered asynchronously to the
+     * <tt>MetaContactListBatchListener</tt>s.
+     */
+    private volatile boolean asyncEventDispatch = true;
+
     /**
      * Contains (as keys) <tt>MetaContactGroup</tt> names that are currently
      * being resolved against a given protocol and that this class's
@@ -114,6 +138,12 @@ public class MetaContactListServiceImpl
      */
     private final MclStorageManager storageManager = new MclStorageManager();
 
+    /**
+     * The index of the meta contacts of the contact list, which spares the
+     * lookups by contact and by meta UID a walk through the whole list.
+     */
+    private final MetaContactIndex metaContactIndex;
+
     /**
      * Creates an instance of this class.
      */
@@ -124,6 +154,7 @@ public class MetaContactListServiceImpl
                     this,
                     "RootMetaContactGroup",
                     "RootMetaContactGroup");
+        metaContactIndex = new MetaContactIndex(rootMetaGroup);
     }
 
     /**
@@ -151,6 +182,20 @@ public class MetaContactListServiceImpl
      */
     public void start(BundleContext bc)
     {
+        ServiceReference confReference
+            = bc.getServiceReference(ConfigurationService.class.getName());
+
+        if (confReference != null)
+        {
+            ConfigurationService configService
+                = (ConfigurationService) bc.getService(confReference);
+
+            asyncEventDispatch
+                = configService.getBoolean(
+                        ASYNC_EVENT_DISPATCH_PROPERTY,
+                        true);
+        }
+
         if (logger.isDebugEnabled())
             logger.debug("Starting the meta contact list implementation.");
         this.bundleContext = bc;
@@ -246,6 +291,13 @@ public class MetaContactListServiceImpl
         }
         currentlyInstalledProviders.clear();
         storageManager.stop();
+
+        synchronized (metaContactListListeners)
+        {
+            for (MclEventDispatcher dispatcher : eventDispatchers.values())
+                dispatcher.stop();
+            eventDispatchers.clear();
+        }
     }
 
     /**
@@ -259,7 +311,16 @@ public class MetaContactListServiceImpl
         synchronized (metaContactListListeners)
         {
             if(!metaContactListListeners.contains(listener))
+            {
                 metaContactListListeners.add(listener);
+                if (listener instanceof MetaContactListBatchListener)
+                {
+                    eventDispatchers.put(
+                        listener,
+                        new MclEventDispatcher(
+                            (MetaContactListBatchListener) listener));
+                }
+            }
         }
     }
 
@@ -1246,6 +1307,11 @@ public class MetaContactListServiceImpl
         synchronized (metaContactListListeners)
         {
             this.metaContactListListeners.remove(listener);
+
+            MclEventDispatcher dispatcher = eventDispatchers.remove(listener);
+
+            if (dispatcher != null)
+                dispatcher.stop();
         }
     }
 
@@ -1510,7 +1576,7 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByContact(Contact contact)
     {
-        return rootMetaGroup.findMetaContactByContact(contact);
+        return metaContactIndex.findMetaContactByContact(contact);
     }
 
     /**
@@ -1533,8 +1599,8 @@ public class MetaContactListServiceImpl
     public MetaContact findMetaContactByContact(String contactAddress,
                                                 String accountID)
     {
-        return rootMetaGroup.findMetaContactByContact(contactAddress
-                                                      , accountID);
+        return metaContactIndex.findMetaContactByContact(contactAddress
+                                                         , accountID);
     }
 
     /**
@@ -1547,8 +1613,18 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByMetaUID(String metaContactID)
     {
+        return metaContactIndex.findMetaContactByMetaUID(metaContactID);
+    }
 
-        return rootMetaGroup.findMetaContactByMetaUID(metaContactID);
+    /**
+     * Returns the index of the meta contacts of this contact list, which the
+     * groups and the meta contacts update as they change.
+     *
+     * @return the index of the meta contacts of this contact list
+     */
+    MetaContactIndex getMetaContactIndex()
+    {
+        return metaContactIndex;
     }
 
     /**
@@ -1874,22 +1950,31 @@ public class MetaContactListServiceImpl
         //list and merge it with the local one.
         if (opSetPersPresence != null)
         {
-            //load contacts, stored in the local contact list and corresponding to
-            //this provider.
+            //store the changes of the whole synchronization at once
+            storageManager.beginBatchUpdate();
             try
             {
-                storageManager.extractContactsForAccount(
-                    provider.getAccountID().getAccountUniqueID());
-                if (logger.isDebugEnabled())
-                    logger.debug("All contacts loaded for account "
-                                + provider.getAccountID().getAccountUniqueID());
+                //load contacts, stored in the local contact list and
+                //corresponding to this provider.
+                try
+                {
+                    storageManager.extractContactsForAccount(
+                        provider.getAccountID().getAccountUniqueID());
+                    if (logger.isDebugEnabled())
+                        logger.debug("All contacts loaded for account "
+                            + provider.getAccountID().getAccountUniqueID());
+                }
+                catch (XMLException exc)
+                {
+                    logger.error("Failed to load contacts for account "
+                        + provider.getAccountID().getAccountUniqueID(), exc);
+                }
+                synchronizeOpSetWithLocalContactList(opSetPersPresence);
             }
-            catch (XMLException exc)
+            finally
             {
-                logger.error("Failed to load contacts for account "
-                             + provider.getAccountID().getAccountUniqueID(), exc);
+                storageManager.endBatchUpdate();
             }
-            synchronizeOpSetWithLocalContactList(opSetPersPresence);
         }
         else
         {
@@ -1959,20 +2044,28 @@ public class MetaContactListServiceImpl
             // that's why it needs to hear an event for every single group.)
             Iterator<ContactGroup> subgroups = rootGroup.subgroups();
 
-            while(subgroups.hasNext())
+            storageManager.beginBatchUpdate();
+            try
             {
-                ContactGroup group = subgroups.next();
-                //remove the group
+                while(subgroups.hasNext())
+                {
+                    ContactGroup group = subgroups.next();
+                    //remove the group
+                    this.removeContactGroupFromMetaContactGroup(
+                        (MetaContactGroupImpl)
+                            findMetaContactGroupByContactGroup(group),
+                        group,
+                        provider);
+                }
+
+                //remove the root group
                 this.removeContactGroupFromMetaContactGroup(
-                    (MetaContactGroupImpl) findMetaContactGroupByContactGroup(
-                                                                        group),
-                    group,
-                    provider);
+                    this.rootMetaGroup, rootGroup, provider);
+            }
+            finally
+            {
+                storageManager.endBatchUpdate();
             }
-
-            //remove the root group
-            this.removeContactGroupFromMetaContactGroup(
-                this.rootMetaGroup, rootGroup, provider);
         }
 
         // Check if the capabilities operation set is available for this
@@ -2857,34 +2950,21 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl event: "
                      + evt);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            switch (evt.getEventID())
-            {
-                case MetaContactEvent.META_CONTACT_ADDED:
-                    listener.metaContactAdded(evt);
-                    break;
-                case MetaContactEvent.META_CONTACT_REMOVED:
-                    listener.metaContactRemoved(evt);
-                    break;
-                default:
-                    logger.error("Unknown event type " + evt.getEventID());
-            }
-        }
+        dispatchEvent(evt);
     }
 
     /**
-     * Gets a copy of the list of current <code>MetaContactListListener</code>
-     * interested in events fired by this instance.
+     * Delivers an event to the <tt>MetaContactListListener</tt>s: the
+     * <tt>MetaContactListBatchListener</tt>s get it from their queues unless
+     * asynchronous dispatch is disabled, the other listeners get it on the
+     * current thread.
      *
-     * @return an array of <code>MetaContactListListener</code>s currently
-     *         interested in events fired by this instance. The returned array
-     *         is a copy of the internal listener storage and thus can be safely
-     *         modified.
+     * @param event the event to deliver
      */
-    private MetaContactListListener[] getMetaContactListListeners()
+    private void dispatchEvent(EventObject event)
     {
         MetaContactListListener[] listeners;
+        MclEventDispatcher[] dispatchers;
 
         synchronized (metaContactListListeners)
         {
@@ -2892,8 +2972,21 @@ public class MetaContactListServiceImpl
                 = metaContactListListeners.toArray(
                         new MetaContactListListener[
                                 metaContactListListeners.size()]);
+            dispatchers = new MclEventDispatcher[listeners.length];
+            if (asyncEventDispatch)
+            {
+                for (int i = 0; i < listeners.length; i++)
+                    dispatchers[i] = eventDispatchers.get(listeners[i]);
+            }
+        }
+
+        for (int i = 0; i < listeners.length; i++)
+        {
+            if (dispatchers[i] != null)
+                dispatchers[i].dispatch(event);
+            else
+                MclEventDispatcher.deliverNow(listeners[i], event);
         }
-        return listeners;
     }
 
     /**
@@ -2911,26 +3004,7 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl property change event: "
                      + event);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            if (event instanceof MetaContactMovedEvent)
-            {
-                listener.metaContactMoved( (MetaContactMovedEvent) event);
-            }
-            else if (event instanceof MetaContactRenamedEvent)
-            {
-                listener.metaContactRenamed( (MetaContactRenamedEvent) event);
-            }
-            else if (event instanceof MetaContactModifiedEvent)
-            {
-                listener.metaContactModified( (MetaContactModifiedEvent) event);
-            }
-            else if (event instanceof MetaContactAvatarUpdateEvent)
-            {
-                listener.metaContactAvatarUpdated(
-                    (MetaContactAvatarUpdateEvent) event);
-            }
-        }
+        dispatchEvent(event);
     }
 
     /**
@@ -2963,25 +3037,7 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl property change event: "
                      + event);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_ADDED))
-            {
-                listener.protoContactAdded(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MOVED))
-            {
-                listener.protoContactMoved(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_REMOVED))
-            {
-                listener.protoContactRemoved(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MODIFIED))
-            {
-                listener.protoContactModified(event);
-            }
-        }
+        dispatchEvent(event);
     }
 
     /**
@@ -3217,34 +3273,7 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl event: "
                      + evt);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            switch (eventID)
-            {
-                case MetaContactGroupEvent.META_CONTACT_GROUP_ADDED:
-                    listener.metaContactGroupAdded(evt);
-                    break;
-                case MetaContactGroupEvent.META_CONTACT_GROUP_REMOVED:
-                    listener.metaContactGroupRemoved(evt);
-                    break;
-                case MetaContactGroupEvent.CHILD_CONTACTS_REORDERED:
-                    listener.childContactsReordered(evt);
-                    break;
-                case MetaContactGroupEvent
-                    .META_CONTACT_GROUP_RENAMED:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_RENAMED_IN_META_GROUP:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_REMOVED_FROM_META_GROUP:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_ADDED_TO_META_GROUP:
-                    listener.metaContactGroupModified(evt);
-                    break;
-                default:
-                    logger.error("Unknown event type (" + eventID
-                                 + ") for event: " + evt);
-            }
-        }
+        dispatchEvent(evt);
     }
 
     /**
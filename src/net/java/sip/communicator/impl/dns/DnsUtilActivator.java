@@ -242,6 +242,9 @@ public class DnsUtilActivator
             logger.info(sb.toString());
         }
 
+        // the answers of the former servers may no longer be valid
+        NetworkUtils.clearDefaultDNSCache();
+
         // now reset an eventually present custom resolver
         if(Lookup.getDefaultResolver() instanceof CustomResolver)
         {
@@ -106,6 +106,21 @@ public class ChatConversationPanel
      */
     HTMLDocument document;
 
+    /**
+     * The transcript of the conversation, which keeps only a window of its
+     * pages in {@link #document}. Not used when rendering a history
+     * conversation, which is shown whole.
+     */
+    private final ChatTranscript transcript;
+
+    /**
+     * Indicates that a page of {@link #transcript} is being shown because
+     * {@link #chatTextPane} has been scrolled to one of its ends, and that the
+     * scroll events are not to show another one until the scroll position has
+     * been restored.
+     */
+    private boolean isShowingPage = false;
+
     /**
      * The parent container.
      */
@@ -214,6 +229,7 @@ public class ChatConversationPanel
         this.rightButtonMenu = new ChatRightButtonMenu(this);
 
         this.document = (HTMLDocument) editorKit.createDefaultDocument();
+        this.transcript = new ChatTranscript(document);
 
         this.chatTextPane.setEditorKitForContentType("text/html", editorKit);
         this.chatTextPane.setEditorKit(editorKit);
@@ -322,6 +338,34 @@ public class ChatConversationPanel
 
         chatTextPane.addComponentListener(componentListener);
         getViewport().addComponentListener(componentListener);
+
+        /*
+         * Only a window of the conversation is kept in the document, so when
+         * the user scrolls to one of its ends we show the adjacent page.
+         */
+        if (!isHistory)
+        {
+            getVerticalScrollBar().addAdjustmentListener(
+                new AdjustmentListener()
+                {
+                    public void adjustmentValueChanged(AdjustmentEvent e)
+                    {
+                        if (e.getValueIsAdjusting() || isShowingPage)
+                            return;
+
+                        BoundedRangeModel model
+                            = getVerticalScrollBar().getModel();
+
+                        if ((model.getValue() == model.getMinimum())
+                                && transcript.hasEarlierPages())
+                            showAdjacentPage(true);
+                        else if ((model.getValue() + model.getExtent()
+                                    >= model.getMaximum())
+                                && transcript.hasLaterPages())
+                            showAdjacentPage(false);
+                    }
+                });
+        }
     }
 
     /**
@@ -608,6 +652,10 @@ public class ChatConversationPanel
             return;
         }
 
+        // The message which this one follows has to be in the document.
+        if (!this.isHistory)
+            showLatestMessages();
+
         Element lastMsgElement = document.getElement(
             ChatHtmlUtils.MESSAGE_TEXT_ID + previousMessageUID);
 
@@ -641,6 +689,8 @@ public class ChatConversationPanel
                 Element parentElement = lastMsgElement.getParentElement();
 
                 document.insertBeforeEnd(parentElement, newMessage);
+                if (!this.isHistory)
+                    transcript.appendToLast(newMessage);
 
                 // Need to call explicitly scrollToBottom, because for some
                 // reason the componentResized event isn't fired every time
@@ -683,6 +733,11 @@ public class ChatConversationPanel
             return;
         }
 
+        // The corrected message is among the latest ones, which have to be in
+        // the document for it to be replaced in the transcript as well.
+        if (!this.isHistory)
+            showLatestMessages();
+
         String correctedUID = chatMessage.getCorrectedMessageUID();
         Element root = document.getDefaultRootElement();
         Element correctedMsgElement
@@ -724,6 +779,12 @@ public class ChatConversationPanel
             try
             {
                 document.setOuterHTML(correctedMsgElement, newMessage);
+                if (!this.isHistory)
+                {
+                    transcript.replaceElement(
+                        ChatHtmlUtils.MESSAGE_TEXT_ID + correctedUID,
+                        newMessage);
+                }
 
                 // Need to call explicitly scrollToBottom, because for some
                 // reason the componentResized event isn't fired every time
@@ -773,11 +834,16 @@ public class ChatConversationPanel
 
             try
             {
-                document.insertBeforeEnd(
-                            // the body element
-                            root.getElement(root.getElementCount() - 1),
-                            // the message to insert
-                            message);
+                if (isHistory)
+                {
+                    document.insertBeforeEnd(
+                                // the body element
+                                root.getElement(root.getElementCount() - 1),
+                                // the message to insert
+                                message);
+                }
+                else
+                    transcript.append(message);
 
                 // Need to call explicitly scrollToBottom, because for some
                 // reason the componentResized event isn't fired every time we
@@ -812,11 +878,6 @@ public class ChatConversationPanel
      */
     private void finishMessageAdd(String message, String contentType)
     {
-        // If we're not in chat history case we need to be sure the document
-        // has not exceeded the required size (number of messages).
-        if (!isHistory)
-            ensureDocumentSize();
-
         /*
          * Replacements will be processed only if it is enabled in the
          * property.
@@ -869,8 +930,15 @@ public class ChatConversationPanel
 
                         try
                         {
+                            // The message may have been removed from the
+                            // document with its page in the meantime.
+                            if (!isHistory)
+                                transcript.replace(chatString, newMessage);
+
                             Element elem = document.getElement(messageID);
-                            document.setOuterHTML(elem, newMessage);
+
+                            if (elem != null)
+                                document.setOuterHTML(elem, newMessage);
                         }
                         catch (BadLocationException ex)
                         {
@@ -1046,33 +1114,102 @@ public class ChatConversationPanel
     }
 
     /**
-     * Ensures that the document won't become too big. When the document reaches
-     * a certain size the first message in the page is removed.
+     * Shows the latest messages of the conversation in the document if the
+     * user has scrolled away from them.
      */
-    private void ensureDocumentSize()
+    private void showLatestMessages()
     {
-        if (document.getLength() > Chat.CHAT_BUFFER_SIZE)
+        synchronized (scrollToBottomRunnable)
         {
-            String[] ids = new String[]
-                                      {ChatHtmlUtils.MESSAGE_TEXT_ID,
-                                       "statusMessage",
-                                       "systemMessage",
-                                       "actionMessage"};
-
-            Element firstMsgElement = findElement(Attribute.ID, ids);
+            try
+            {
+                transcript.showLatestPages();
+            }
+            catch (BadLocationException ex)
+            {
+                logger.error("Could not show the latest chat messages", ex);
+            }
+            catch (IOException ex)
+            {
+                logger.error("Could not show the latest chat messages", ex);
+            }
+        }
+    }
 
-            int startIndex = firstMsgElement.getStartOffset();
-            int endIndex = firstMsgElement.getEndOffset();
+    /**
+     * Shows the page of the conversation before or after the ones in the
+     * document, when the user has scrolled to the top or to the bottom of
+     * the document, and keeps the text the user is looking at in view.
+     *
+     * @param earlier <tt>true</tt> to show the page before the ones in the
+     * document, <tt>false</tt> to show the page after them
+     */
+    private void showAdjacentPage(boolean earlier)
+    {
+        synchronized (scrollToBottomRunnable)
+        {
+            Point viewPosition = getViewport().getViewPosition();
+            final Position anchor;
+            final int anchorDelta;
 
             try
             {
-                // Remove the message.
-                this.document.remove(startIndex, endIndex - startIndex);
+                int offset = chatTextPane.viewToModel(viewPosition);
+                Rectangle anchorBounds = chatTextPane.modelToView(offset);
+
+                anchor = document.createPosition(offset);
+                anchorDelta
+                    = (anchorBounds == null)
+                        ? 0
+                        : (viewPosition.y - anchorBounds.y);
+
+                if (earlier)
+                    transcript.showEarlierPage();
+                else
+                    transcript.showLaterPage();
             }
-            catch (BadLocationException e)
+            catch (BadLocationException ex)
+            {
+                logger.error("Could not show chat messages", ex);
+                return;
+            }
+            catch (IOException ex)
             {
-                logger.error("Error removing messages from chat: ", e);
+                logger.error("Could not show chat messages", ex);
+                return;
             }
+
+            /*
+             * The caret moves with the inserted and removed text and scrolls
+             * to where it is now, so restore the scroll position after it
+             * has, without showing another page meanwhile.
+             */
+            isShowingPage = true;
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        Rectangle anchorBounds
+                            = chatTextPane.modelToView(anchor.getOffset());
+
+                        if (anchorBounds != null)
+                        {
+                            getVerticalScrollBar().setValue(
+                                anchorBounds.y + anchorDelta);
+                        }
+                    }
+                    catch (BadLocationException ex)
+                    {
+                        logger.error("Could not restore chat scroll", ex);
+                    }
+                    finally
+                    {
+                        isShowingPage = false;
+                    }
+                }
+            });
         }
     }
 
@@ -1437,6 +1574,7 @@ public class ChatConversationPanel
         Constants.loadSimpleStyle(
             document.getStyleSheet(), chatTextPane.getFont());
         this.isSimpleTheme = ConfigurationUtils.isChatSimpleThemeEnabled();
+        transcript.reset(document);
     }
 
     /**
@@ -1464,6 +1602,9 @@ public class ChatConversationPanel
 
             this.document = document;
             chatTextPane.setDocument(this.document);
+
+            if (transcript.getDocument() != document)
+                transcript.reset(document);
         }
     }
 
@@ -1960,20 +2101,6 @@ public class ChatConversationPanel
         clear();
     }
 
-    /**
-     *
-     * @param attribute
-     * @param matchStrings
-     * @return
-     */
-    private Element findElement(HTML.Attribute attribute,
-                                String[] matchStrings)
-    {
-        return findFirstElement(document.getDefaultRootElement(),
-                                attribute,
-                                matchStrings);
-    }
-
     /**
      * Finds the first element with <tt>name</tt>.
      * @param name the name to search for.
@@ -1984,39 +2111,6 @@ public class ChatConversationPanel
         return findFirstElement(document.getDefaultRootElement(), name);
     }
 
-    /**
-     *
-     * @param element
-     * @param attrName
-     * @param matchStrings
-     * @return
-     */
-    private Element findFirstElement(   Element element,
-                                        HTML.Attribute attrName,
-                                        String[] matchStrings)
-    {
-        String attr = (String) element.getAttributes().getAttribute(attrName);
-
-        if(attr != null)
-            for (String matchString : matchStrings)
-                if (attr.startsWith(matchString))
-                    return element;
-
-        Element resultElement = null;
-
-        // Count how many messages we have in the document.
-        for (int i = 0; i < element.getElementCount(); i++)
-        {
-            resultElement = findFirstElement(element.getElement(i),
-                                        attrName,
-                                        matchStrings);
-            if (resultElement != null)
-                return resultElement;
-        }
-
-        return null;
-    }
-
     /**
      * Finds the first element with <tt>name</tt> among the child elements of
      * <tt>element</tt>.
@@ -0,0 +1,501 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.gui.main.chat;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+import javax.swing.text.*;
+import javax.swing.text.html.*;
+
+/**
+ * The transcript of a chat conversation, of which only a window of a few
+ * pages is kept in the <tt>HTMLDocument</tt> shown by the
+ * <tt>ChatConversationPanel</tt>.
+ * <p>
+ * The transcript keeps the HTML of the messages appended to the conversation
+ * in pages of {@link #MESSAGES_PER_PAGE} messages. At most
+ * {@link #MAX_SHOWN_PAGES} consecutive pages are in the document: when a
+ * message makes the newest page overflow, the oldest shown page is removed
+ * from the document with a single edit, so that the cost of an append does
+ * not grow with the length of the conversation. The pages which are not
+ * shown are inserted again when the user scrolls to them with
+ * {@link #showEarlierPage()} and {@link #showLaterPage()}. The transcript
+ * keeps the HTML of at most {@link #MAX_PAGES} pages; the older ones are
+ * forgotten and remain available from the history.
+ * <p>
+ * The messages which follow one another from the same sender are appended to
+ * the same unit as the message they follow, so that a page boundary never
+ * separates them. All methods are to be called on the event dispatch thread.
+ */
+class ChatTranscript
+{
+    /**
+     * The number of messages in a page.
+     */
+    static final int MESSAGES_PER_PAGE = ChatPanel.MESSAGES_PER_PAGE;
+
+    /**
+     * The maximum number of pages shown in the document at once.
+     */
+    static final int MAX_SHOWN_PAGES = 3;
+
+    /**
+     * The maximum number of pages kept in the transcript.
+     */
+    static final int MAX_PAGES = 50;
+
+    /**
+     * The start and end tags of the <tt>div</tt> elements.
+     */
+    private static final Pattern DIV_TAG
+        = Pattern.compile("<(/?)div\\b[^>]*>", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The pages of the transcript, from the oldest to the newest.
+     */
+    private final List<Page> pages = new ArrayList<Page>();
+
+    /**
+     * The document the shown pages are in.
+     */
+    private HTMLDocument document;
+
+    /**
+     * The index in {@link #pages} of the first page shown in the document.
+     */
+    private int firstShownPage = 0;
+
+    /**
+     * The number of pages shown in the document.
+     */
+    private int shownPageCount = 0;
+
+    /**
+     * Creates the transcript of the conversation shown in a document.
+     *
+     * @param document the document showing the conversation, empty
+     */
+    ChatTranscript(HTMLDocument document)
+    {
+        this.document = document;
+    }
+
+    /**
+     * Forgets all the pages of the transcript, the conversation being shown
+     * from now on in a new empty document.
+     *
+     * @param document the document showing the conversation from now on
+     */
+    void reset(HTMLDocument document)
+    {
+        this.document = document;
+        pages.clear();
+        firstShownPage = 0;
+        shownPageCount = 0;
+    }
+
+    /**
+     * Returns the document the shown pages are in.
+     *
+     * @return the document the shown pages are in
+     */
+    HTMLDocument getDocument()
+    {
+        return document;
+    }
+
+    /**
+     * Appends a message at the end of the conversation, showing the newest
+     * pages first if they are not shown, and removes the oldest shown page
+     * from the document if too many are shown.
+     *
+     * @param html the HTML of the message
+     * @throws BadLocationException if the document cannot be modified
+     * @throws IOException if the HTML cannot be parsed
+     */
+    void append(String html)
+        throws BadLocationException,
+               IOException
+    {
+        showLatestPages();
+
+        Page page = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+
+        if ((page == null) || (page.messageCount >= MESSAGES_PER_PAGE))
+        {
+            page = new Page();
+            pages.add(page);
+            shownPageCount++;
+        }
+
+        int offset = getEndOffset();
+
+        document.insertBeforeEnd(getBody(), html);
+        if (page.start == null)
+            page.start = document.createPosition(offset);
+
+        page.units.add(new StringBuilder(html));
+        page.messageCount++;
+
+        if (shownPageCount > MAX_SHOWN_PAGES)
+            hideFirstShownPage();
+        if (pages.size() > MAX_PAGES)
+        {
+            pages.remove(0);
+            firstShownPage--;
+        }
+    }
+
+    /**
+     * Records a message which the <tt>ChatConversationPanel</tt> has inserted
+     * in the document right after the last message, because it follows that
+     * message from the same sender.
+     *
+     * @param html the HTML of the message
+     */
+    void appendToLast(String html)
+    {
+        if (pages.isEmpty())
+            return;
+
+        Page page = pages.get(pages.size() - 1);
+
+        page.units.get(page.units.size() - 1).append(html);
+        page.messageCount++;
+    }
+
+    /**
+     * Replaces the HTML of a message in the transcript after it has been
+     * replaced in the document, or could not be because it is not shown.
+     *
+     * @param oldHtml the HTML of the message before the replacement
+     * @param newHtml the HTML of the message after the replacement
+     */
+    void replace(String oldHtml, String newHtml)
+    {
+        for (int p = pages.size() - 1; p >= 0; p--)
+        {
+            for (StringBuilder unit : pages.get(p).units)
+            {
+                int index = unit.indexOf(oldHtml);
+
+                if (index != -1)
+                {
+                    unit.replace(index, index + oldHtml.length(), newHtml);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the HTML of the message element with a specific id in the
+     * transcript after it has been replaced in the document, or could not be
+     * because it is not shown. The element ends with the <tt>div</tt> closing
+     * its start tag, past the ones closing the <tt>div</tt>s it contains.
+     *
+     * @param elementID the id of the element of the message
+     * @param newHtml the HTML of the message after the replacement
+     */
+    void replaceElement(String elementID, String newHtml)
+    {
+        for (int i = pages.size() - 1; i >= 0; i--)
+        {
+            for (StringBuilder unit : pages.get(i).units)
+            {
+                int start = getElementStart(unit, elementID);
+
+                if (start == -1)
+                    continue;
+
+                int end = getElementEnd(unit, start);
+
+                if (end != -1)
+                    unit.replace(start, end, newHtml);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the start tag of the <tt>div</tt> element with a
+     * specific id in the HTML of a unit.
+     *
+     * @param unit the HTML of the unit
+     * @param elementID the id of the element
+     * @return the index of the start tag of the element or <tt>-1</tt> if the
+     * unit does not contain it
+     */
+    private static int getElementStart(StringBuilder unit, String elementID)
+    {
+        for (char quote : new char[] { '\'', '"' })
+        {
+            int index = unit.indexOf("id=" + quote + elementID + quote);
+
+            if (index == -1)
+                continue;
+
+            int start = unit.lastIndexOf("<", index);
+
+            if ((start != -1)
+                    && unit.substring(start, index).toLowerCase()
+                        .startsWith("<div"))
+                return start;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index following the end tag of the <tt>div</tt> element
+     * which starts at a specific index in the HTML of a unit.
+     *
+     * @param unit the HTML of the unit
+     * @param start the index of the start tag of the element
+     * @return the index following the end tag of the element or <tt>-1</tt>
+     * if the element is not closed
+     */
+    private static int getElementEnd(StringBuilder unit, int start)
+    {
+        Matcher m = DIV_TAG.matcher(unit);
+        int depth = 0;
+
+        m.region(start, unit.length());
+        while (m.find())
+        {
+            if (m.group(1).length() == 0)
+                depth++;
+            else if (--depth == 0)
+                return m.end();
+        }
+        return -1;
+    }
+
+    /**
+     * Determines whether there are pages before the ones shown.
+     *
+     * @return <tt>true</tt> if there are pages before the ones shown
+     */
+    boolean hasEarlierPages()
+    {
+        return firstShownPage > 0;
+    }
+
+    /**
+     * Determines whether there are pages after the ones shown.
+     *
+     * @return <tt>true</tt> if there are pages after the ones shown
+     */
+    boolean hasLaterPages()
+    {
+        return firstShownPage + shownPageCount < pages.size();
+    }
+
+    /**
+     * Shows the page before the ones shown at the top of the document,
+     * removing the last shown page from the document if too many are shown.
+     *
+     * @return <tt>true</tt> if a page has been shown, <tt>false</tt> if there
+     * was none before the ones shown
+     * @throws BadLocationException if the document cannot be modified
+     * @throws IOException if the HTML cannot be parsed
+     */
+    boolean showEarlierPage()
+        throws BadLocationException,
+               IOException
+    {
+        if (!hasEarlierPages())
+            return false;
+
+        Page page = pages.get(firstShownPage - 1);
+        Page nextPage = (shownPageCount > 0) ? pages.get(firstShownPage) : null;
+        Element body = getBody();
+        int offset = body.getStartOffset();
+        int length = document.getLength();
+
+        document.insertAfterStart(body, page.getHtml());
+        page.start = document.createPosition(offset);
+        // The position of the page which was first may have stayed in front
+        // of the inserted text.
+        if (nextPage != null)
+        {
+            nextPage.start
+                = document.createPosition(
+                        offset + document.getLength() - length);
+        }
+
+        firstShownPage--;
+        shownPageCount++;
+
+        if (shownPageCount > MAX_SHOWN_PAGES)
+            hideLastShownPage();
+        return true;
+    }
+
+    /**
+     * Shows the page after the ones shown at the bottom of the document,
+     * removing the first shown page from the document if too many are shown.
+     *
+     * @return <tt>true</tt> if a page has been shown, <tt>false</tt> if there
+     * was none after the ones shown
+     * @throws BadLocationException if the document cannot be modified
+     * @throws IOException if the HTML cannot be parsed
+     */
+    boolean showLaterPage()
+        throws BadLocationException,
+               IOException
+    {
+        if (!hasLaterPages())
+            return false;
+
+        showPageAtEnd(pages.get(firstShownPage + shownPageCount));
+
+        if (shownPageCount > MAX_SHOWN_PAGES)
+            hideFirstShownPage();
+        return true;
+    }
+
+    /**
+     * Shows the newest pages if they are not shown, replacing the pages
+     * shown in the document.
+     *
+     * @throws BadLocationException if the document cannot be modified
+     * @throws IOException if the HTML cannot be parsed
+     */
+    void showLatestPages()
+        throws BadLocationException,
+               IOException
+    {
+        if (!hasLaterPages())
+            return;
+
+        while (shownPageCount > 0)
+            hideLastShownPage();
+
+        firstShownPage = Math.max(0, pages.size() - MAX_SHOWN_PAGES);
+        for (int i = firstShownPage; i < pages.size(); i++)
+            showPageAtEnd(pages.get(i));
+    }
+
+    /**
+     * Inserts a page at the end of the document.
+     *
+     * @param page the page to insert
+     * @throws BadLocationException if the document cannot be modified
+     * @throws IOException if the HTML cannot be parsed
+     */
+    private void showPageAtEnd(Page page)
+        throws BadLocationException,
+               IOException
+    {
+        int offset = getEndOffset();
+
+        document.insertBeforeEnd(getBody(), page.getHtml());
+        page.start = document.createPosition(offset);
+        shownPageCount++;
+    }
+
+    /**
+     * Removes the first shown page from the document.
+     *
+     * @throws BadLocationException if the document cannot be modified
+     */
+    private void hideFirstShownPage()
+        throws BadLocationException
+    {
+        Page page = pages.get(firstShownPage);
+        int start = page.start.getOffset();
+        int end
+            = (shownPageCount > 1)
+                ? pages.get(firstShownPage + 1).start.getOffset()
+                : getEndOffset();
+
+        document.remove(start, end - start);
+        page.start = null;
+        firstShownPage++;
+        shownPageCount--;
+    }
+
+    /**
+     * Removes the last shown page from the document.
+     *
+     * @throws BadLocationException if the document cannot be modified
+     */
+    private void hideLastShownPage()
+        throws BadLocationException
+    {
+        Page page = pages.get(firstShownPage + shownPageCount - 1);
+        int start = page.start.getOffset();
+
+        document.remove(start, getEndOffset() - start);
+        page.start = null;
+        shownPageCount--;
+    }
+
+    /**
+     * Returns the body element of the document.
+     *
+     * @return the body element of the document
+     */
+    private Element getBody()
+    {
+        Element root = document.getDefaultRootElement();
+
+        return root.getElement(root.getElementCount() - 1);
+    }
+
+    /**
+     * Returns the offset at which the HTML inserted at the end of the body
+     * starts.
+     *
+     * @return the offset at which the HTML inserted at the end of the body
+     * starts
+     */
+    private int getEndOffset()
+    {
+        return getBody().getEndOffset() - 1;
+    }
+
+    /**
+     * A page of the transcript.
+     */
+    private static class Page
+    {
+        /**
+         * The HTML of the messages of the page, by unit of messages which
+         * follow one another.
+         */
+        private final List<StringBuilder> units
+            = new ArrayList<StringBuilder>();
+
+        /**
+         * The number of messages in the page.
+         */
+        private int messageCount = 0;
+
+        /**
+         * The position in the document at which the page starts or
+         * <tt>null</tt> if it is not shown.
+         */
+        private Position start;
+
+        /**
+         * Returns the HTML of the messages of the page.
+         *
+         * @return the HTML of the messages of the page
+         */
+        String getHtml()
+        {
+            StringBuilder html = new StringBuilder();
+
+            for (StringBuilder unit : units)
+                html.append(unit);
+            return html.toString();
+        }
+    }
+}
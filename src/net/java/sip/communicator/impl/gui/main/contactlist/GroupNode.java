@@ -106,12 +106,42 @@ public class GroupNode
     }
 
     /**
-     * Creates a <tt>ContactNode</tt> for the given <tt>uiContact</tt>,
-     * adds it to this group and performs a sort at the end.
+     * Creates <tt>ContactNode</tt>s for the given <tt>uiContacts</tt> and
+     * adds them at the end of this group, notifying the tree model once for
+     * all of them.
+     * @param uiContacts the <tt>UIContactImpl</tt>s to add
+     */
+    public void addContacts(Collection<UIContactImpl> uiContacts)
+    {
+        if (uiContacts.isEmpty())
+            return;
+
+        int selectedIndex = getLeadSelectionRow();
+        int firstIndex = getChildCount();
+        int[] insertedIndexes = new int[uiContacts.size()];
+        int i = 0;
+
+        for (UIContactImpl uiContact : uiContacts)
+        {
+            ContactNode contactNode = new ContactNode(uiContact);
+            uiContact.setContactNode(contactNode);
+
+            add(contactNode);
+            insertedIndexes[i] = firstIndex + i;
+            i++;
+        }
+
+        treeModel.nodesWereInserted(this, insertedIndexes);
+
+        refreshSelection(selectedIndex, getLeadSelectionRow());
+    }
+
+    /**
+     * Creates a <tt>ContactNode</tt> for the given <tt>uiContact</tt> and
+     * inserts it in this group at the position the sort order gives it.
      * @param uiContact the <tt>UIContactImpl</tt> to add
      * @return the created <tt>ContactNode</tt>
      */
-    @SuppressWarnings("unchecked")
     public ContactNode sortedAddContact(UIContactImpl uiContact)
     {
         if (logger.isDebugEnabled())
@@ -121,17 +151,53 @@ public class GroupNode
         ContactNode contactNode = new ContactNode(uiContact);
         uiContact.setContactNode(contactNode);
 
-        add(contactNode);
+        int contactIndex = getInsertionIndex(contactNode);
 
-        // TODO: Optimize!
-        Collections.sort(children, nodeComparator);
+        insert(contactNode, contactIndex);
+        fireNodeInserted(contactIndex);
 
-        int contactIndex = getIndex(contactNode);
+        return contactNode;
+    }
 
-        if (contactIndex > -1)
-            fireNodeInserted(contactIndex);
+    /**
+     * Creates <tt>ContactNode</tt>s for the given <tt>uiContacts</tt> and
+     * inserts them in this group at the positions the sort order gives them,
+     * notifying the tree model once for all of them.
+     * @param uiContacts the <tt>UIContactImpl</tt>s to add
+     */
+    public void sortedAddContacts(Collection<UIContactImpl> uiContacts)
+    {
+        if (uiContacts.isEmpty())
+            return;
 
-        return contactNode;
+        if (logger.isDebugEnabled())
+            logger.debug("Group node sorted add " + uiContacts.size()
+                    + " contacts.");
+
+        Set<ContactNode> insertedNodes = new HashSet<ContactNode>();
+
+        for (UIContactImpl uiContact : uiContacts)
+        {
+            ContactNode contactNode = new ContactNode(uiContact);
+            uiContact.setContactNode(contactNode);
+
+            insert(contactNode, getInsertionIndex(contactNode));
+            insertedNodes.add(contactNode);
+        }
+
+        // The indexes of the new nodes are only known once all of them have
+        // been inserted.
+        int[] insertedIndexes = new int[insertedNodes.size()];
+        int childCount = getChildCount();
+        int i = 0;
+
+        for (int index = 0; index < childCount; index++)
+        {
+            if (insertedNodes.contains(getChildAt(index)))
+                insertedIndexes[i++] = index;
+        }
+
+        treeModel.nodesWereInserted(this, insertedIndexes);
     }
 
     /**
@@ -215,29 +281,52 @@ public class GroupNode
     }
 
     /**
-     * Creates a <tt>GroupNode</tt> for the given <tt>uiGroup</tt>,
-     * adds it to this group node and performs a sort at the end.
+     * Creates a <tt>GroupNode</tt> for the given <tt>uiGroup</tt> and
+     * inserts it in this group node at the position the sort order gives it.
      * @param uiGroup the <tt>UIGroupImpl</tt> to add
      * @return the created <tt>GroupNode</tt>
      */
-    @SuppressWarnings("unchecked")
     public GroupNode sortedAddContactGroup(UIGroupImpl uiGroup)
     {
         GroupNode groupNode = new GroupNode(treeModel, uiGroup);
 
         uiGroup.setGroupNode(groupNode);
 
-        add(groupNode);
+        int groupIndex = getInsertionIndex(groupNode);
 
-        // TODO: Optimize!
-        Collections.sort(children, nodeComparator);
+        insert(groupNode, groupIndex);
+        fireNodeInserted(groupIndex);
 
-        int contactIndex = getIndex(groupNode);
+        return groupNode;
+    }
 
-        if (contactIndex > -1)
-            fireNodeInserted(contactIndex);
+    /**
+     * Returns the index at which a node is to be inserted in order to keep
+     * the children of this group sorted. The index is found with a binary
+     * search and follows the children the node is equal to, as appending the
+     * node and sorting the children would have placed it.
+     *
+     * @param node the node to insert
+     * @return the index at which <tt>node</tt> is to be inserted
+     */
+    private int getInsertionIndex(ContactListNode node)
+    {
+        int low = 0;
+        int high = getChildCount();
 
-        return groupNode;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+
+            if (nodeComparator.compare(
+                        (ContactListNode) getChildAt(middle),
+                        node)
+                    > 0)
+                high = middle;
+            else
+                low = middle + 1;
+        }
+        return low;
     }
 
     /**
@@ -273,11 +362,11 @@ public class GroupNode
     }
 
     /**
-     * Sorts the children of this node.
+     * Sorts the children of this node. When a single child is out of place,
+     * as after the status of a contact has changed, only that child is moved.
      * @param treeModel the <tt>ContactListTreeModel</tt>, which should be
      * refreshed
      */
-    @SuppressWarnings("unchecked")
     public void sort(final ContactListTreeModel treeModel)
     {
         if (children != null)
@@ -289,9 +378,8 @@ public class GroupNode
                     TreePath selectionPath = getLeadSelectionPath();
                     int oldSelectionIndex = getLeadSelectionRow();
 
-                    Collections.sort(children, nodeComparator);
-
-                    fireNodesChanged();
+                    if (!sortChildren())
+                        return;
 
                     treeModel.getParentTree().setSelectionPath(selectionPath);
 
@@ -301,6 +389,92 @@ public class GroupNode
         }
     }
 
+    /**
+     * Sorts the children of this node and notifies the tree model. The sort
+     * keys of the children are read once, as reading them may have to look
+     * the child up in its source group. When the children are in order but
+     * for one, that one is moved to its place and reported as removed and
+     * inserted; otherwise all the children are sorted and reported as
+     * changed.
+     *
+     * @return <tt>true</tt> if the order of the children has changed,
+     * <tt>false</tt> if they were already sorted
+     */
+    @SuppressWarnings("unchecked")
+    private boolean sortChildren()
+    {
+        int childCount = getChildCount();
+        SortKey[] keys = new SortKey[childCount];
+
+        for (int i = 0; i < childCount; i++)
+            keys[i] = new SortKey((ContactListNode) getChildAt(i));
+
+        int outOfOrder = 0;
+
+        while ((outOfOrder < childCount - 1)
+                && (keys[outOfOrder].compareTo(keys[outOfOrder + 1]) <= 0))
+            outOfOrder++;
+
+        if (outOfOrder >= childCount - 1)
+            return false;
+
+        // Either the child before or the one after the first descent is the
+        // one which has moved, if a single one has.
+        for (int moved = outOfOrder; moved <= outOfOrder + 1; moved++)
+        {
+            if (!isSortedWithout(keys, moved))
+                continue;
+
+            int newIndex = 0;
+
+            for (int i = 0; i < childCount; i++)
+            {
+                if ((i != moved) && (keys[i].compareTo(keys[moved]) <= 0))
+                    newIndex++;
+            }
+
+            MutableTreeNode node = (MutableTreeNode) getChildAt(moved);
+
+            remove(moved);
+            fireNodeRemoved((ContactListNode) node, moved);
+            insert(node, newIndex);
+            fireNodeInserted(newIndex);
+            return true;
+        }
+
+        Arrays.sort(keys);
+
+        for (int i = 0; i < childCount; i++)
+            children.set(i, (MutableTreeNode) keys[i].node);
+
+        fireNodesChanged();
+        return true;
+    }
+
+    /**
+     * Determines whether the given sort keys are in order once one of them
+     * is left out.
+     *
+     * @param keys the sort keys
+     * @param skipped the index of the key to leave out
+     * @return <tt>true</tt> if <tt>keys</tt> without the one at
+     * <tt>skipped</tt> are in order
+     */
+    private static boolean isSortedWithout(SortKey[] keys, int skipped)
+    {
+        SortKey previous = null;
+
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (i == skipped)
+                continue;
+            if ((previous != null) && (previous.compareTo(keys[i]) > 0))
+                return false;
+            previous = keys[i];
+        }
+        return true;
+    }
+
     /**
      * Returns <tt>true</tt> if the group is collapsed or <tt>false</tt>
      * otherwise.
@@ -396,25 +570,31 @@ public class GroupNode
          */
         public int compare(ContactListNode node1, ContactListNode node2)
         {
-            // Child groups are shown after child contacts.
-            if (node1 instanceof GroupNode)
-            {
-                if (node2 instanceof ContactNode)
-                    return 1;
-            }
-            else if (node1 instanceof ContactNode)
-            {
-                if (node2 instanceof GroupNode)
-                    return -1;
-            }
+            return compare(
+                    node1 instanceof GroupNode, node1.getSourceIndex(),
+                    node2 instanceof GroupNode, node2.getSourceIndex());
+        }
 
-            int index1 = node1.getSourceIndex();
-            int index2 = node2.getSourceIndex();
+        /**
+         * Compares two nodes by the sort keys read from them.
+         * @param isGroup1 whether the first node is a <tt>GroupNode</tt>
+         * @param index1 the source index of the first node
+         * @param isGroup2 whether the second node is a <tt>GroupNode</tt>
+         * @param index2 the source index of the second node
+         * @return -1 if the first node should be positioned before the second
+         * one, 1 if the first argument should be positioned after the second
+         * one, 0 if there's no matter
+         */
+        static int compare(boolean isGroup1, int index1,
+                           boolean isGroup2, int index2)
+        {
+            // Child groups are shown after child contacts.
+            if (isGroup1 != isGroup2)
+                return isGroup1 ? 1 : -1;
 
-            // If the first index is unknown then we position it at the end.
+            // The nodes whose index is unknown are positioned at the end.
             if (index1 < 0)
-                return 1;
-            // If the second index is unknown then we position it at the end.
+                return (index2 < 0) ? 0 : 1;
             if (index2 < 0)
                 return -1;
 
@@ -424,6 +604,54 @@ public class GroupNode
         }
     }
 
+    /**
+     * A child node together with the sort keys the <tt>NodeComparator</tt>
+     * reads from it, read once.
+     */
+    private static class SortKey
+        implements Comparable<SortKey>
+    {
+        /**
+         * The child node.
+         */
+        private final ContactListNode node;
+
+        /**
+         * Whether the node is a <tt>GroupNode</tt>, shown after the contacts.
+         */
+        private final boolean isGroup;
+
+        /**
+         * The index of the node in its source.
+         */
+        private final int sourceIndex;
+
+        /**
+         * Reads the sort keys of a node.
+         *
+         * @param node the node
+         */
+        SortKey(ContactListNode node)
+        {
+            this.node = node;
+            this.isGroup = (node instanceof GroupNode);
+            this.sourceIndex = node.getSourceIndex();
+        }
+
+        /**
+         * Compares the same way the <tt>NodeComparator</tt> does.
+         *
+         * @param key the key to compare to
+         * @return a negative integer, zero or a positive integer as this key
+         * is to be sorted before, with or after <tt>key</tt>
+         */
+        public int compareTo(SortKey key)
+        {
+            return NodeComparator.compare(
+                    isGroup, sourceIndex, key.isGroup, key.sourceIndex);
+        }
+    }
+
     /**
      * Returns the current lead selection row.
      *
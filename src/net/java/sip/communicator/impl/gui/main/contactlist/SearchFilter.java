@@ -85,7 +85,8 @@ public class SearchFilter
                 .equals(TreeContactList.presenceFilter))
         {
             MetaContactQuery defaultQuery
-                = mclSource.queryMetaContactSource(filterPattern);
+                = mclSource.queryMetaContactSource(
+                    filterPattern, filterString);
 
             defaultQuery.addContactQueryListener(sourceContactList);
 
@@ -164,6 +164,27 @@ public class TreeContactList
      */
     private ContactListContainer parentCLContainer;
 
+    /**
+     * The contacts received from queries outside the event dispatch thread
+     * and waiting to be added to the list, in the order they were received.
+     */
+    private final List<PendingContact> pendingContacts
+        = new ArrayList<PendingContact>();
+
+    /**
+     * Schedules the addition of the {@link #pendingContacts} in the event
+     * dispatch thread, once for all the contacts received in the meantime.
+     */
+    private final Runnable pendingContactsScheduler
+        = LowPriorityEventQueue.createRepetitiveInvokeLater(
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        addPendingContacts();
+                    }
+                });
+
     /**
      * Creates the <tt>TreeContactList</tt>.
      *
@@ -492,6 +513,39 @@ public class TreeContactList
             return;
         }
 
+        GroupNode groupNode = getGroupNode(group, isGroupSorted);
+
+        if (groupNode == null)
+            return;
+
+        contact.setParentGroup(groupNode.getGroupDescriptor());
+
+        if (!(contact instanceof UIContactImpl))
+            return;
+
+        UIContactImpl contactImpl = (UIContactImpl) contact;
+
+        if (isContactSorted)
+            groupNode.sortedAddContact(contactImpl);
+        else
+            groupNode.addContact(contactImpl);
+
+        expandAddedGroup(groupNode);
+    }
+
+    /**
+     * Returns the node of the group the contacts of the given <tt>group</tt>
+     * are to be added to, adding it to the list if needed.
+     * @param group the <tt>UIGroup</tt> to add to or <tt>null</tt> for the
+     * root group
+     * @param isGroupSorted indicates if the group should be sorted regarding to
+     * the <tt>GroupNode</tt> policy in case it doesn't exist and should be
+     * added
+     * @return the <tt>GroupNode</tt> to add the contacts to or <tt>null</tt>
+     * if the contacts of <tt>group</tt> cannot be shown
+     */
+    private GroupNode getGroupNode(UIGroup group, boolean isGroupSorted)
+    {
         GroupNode groupNode = null;
         if (group == null ||
             (ConfigurationUtils.isFlattenGroupEnabled() &&
@@ -518,22 +572,16 @@ public class TreeContactList
                     groupNode = parentNode.addContactGroup(contactImpl);
             }
         }
+        return groupNode;
+    }
 
-        if (groupNode == null)
-            return;
-
-        contact.setParentGroup(groupNode.getGroupDescriptor());
-
-        if (!(contact instanceof UIContactImpl))
-            return;
-
-        UIContactImpl contactImpl = (UIContactImpl) contact;
-
-        if (isContactSorted)
-            groupNode.sortedAddContact(contactImpl);
-        else
-            groupNode.addContact(contactImpl);
-
+    /**
+     * Expands the given group node, to which contacts have just been added,
+     * unless the presence filter shows it collapsed.
+     * @param groupNode the <tt>GroupNode</tt> contacts have been added to
+     */
+    private void expandAddedGroup(GroupNode groupNode)
+    {
         if ((!currentFilter.equals(presenceFilter)
                 || !groupNode.isCollapsed()))
             this.expandGroup(groupNode);
@@ -541,6 +589,106 @@ public class TreeContactList
             this.expandGroup(treeModel.getRoot());
     }
 
+    /**
+     * Queues a contact received from a query outside the event dispatch
+     * thread, to be added to the list together with the other contacts
+     * received until the event dispatch thread gets to them.
+     * @param query the <tt>MetaContactQuery</tt> or <tt>ContactQuery</tt>
+     * that adds the given contact
+     * @param contact the <tt>UIContact</tt> to add
+     * @param group the <tt>UIGroup</tt> to add to
+     * @param isSorted indicates if the contact should be sorted regarding to
+     * the <tt>GroupNode</tt> policy
+     */
+    private void addPendingContact(Object query,
+                                   UIContact contact,
+                                   UIGroup group,
+                                   boolean isSorted)
+    {
+        synchronized (pendingContacts)
+        {
+            pendingContacts.add(
+                new PendingContact(query, contact, group, isSorted));
+        }
+        pendingContactsScheduler.run();
+    }
+
+    /**
+     * Adds the contacts received from queries outside the event dispatch
+     * thread since the last call. The contacts of each group are added
+     * together, so that the tree model is notified once per group rather
+     * than once per contact.
+     */
+    private void addPendingContacts()
+    {
+        PendingContact[] contacts;
+
+        synchronized (pendingContacts)
+        {
+            contacts
+                = pendingContacts.toArray(
+                        new PendingContact[pendingContacts.size()]);
+            pendingContacts.clear();
+        }
+
+        Map<GroupNode, List<UIContactImpl>> sortedContacts
+            = new LinkedHashMap<GroupNode, List<UIContactImpl>>();
+        Map<GroupNode, List<UIContactImpl>> unsortedContacts
+            = new LinkedHashMap<GroupNode, List<UIContactImpl>>();
+
+        for (PendingContact pendingContact : contacts)
+        {
+            Object query = pendingContact.query;
+
+            // If in the meantime the corresponding query was canceled or the
+            // filter has changed we don't proceed with adding.
+            if (query instanceof MetaContactQuery)
+            {
+                if (((MetaContactQuery) query).isCanceled())
+                    continue;
+            }
+            else if ((currentFilterQuery == null)
+                    || !currentFilterQuery.containsQuery(query))
+                continue;
+
+            GroupNode groupNode = getGroupNode(pendingContact.group, true);
+
+            if (groupNode == null)
+                continue;
+
+            UIContact contact = pendingContact.contact;
+
+            contact.setParentGroup(groupNode.getGroupDescriptor());
+
+            if (!(contact instanceof UIContactImpl))
+                continue;
+
+            Map<GroupNode, List<UIContactImpl>> groupContacts
+                = pendingContact.isSorted ? sortedContacts : unsortedContacts;
+            List<UIContactImpl> contactList = groupContacts.get(groupNode);
+
+            if (contactList == null)
+            {
+                contactList = new ArrayList<UIContactImpl>();
+                groupContacts.put(groupNode, contactList);
+            }
+            contactList.add((UIContactImpl) contact);
+        }
+
+        for (Map.Entry<GroupNode, List<UIContactImpl>> entry
+                : unsortedContacts.entrySet())
+        {
+            entry.getKey().addContacts(entry.getValue());
+            expandAddedGroup(entry.getKey());
+        }
+        for (Map.Entry<GroupNode, List<UIContactImpl>> entry
+                : sortedContacts.entrySet())
+        {
+            entry.getKey().sortedAddContacts(entry.getValue());
+            expandAddedGroup(entry.getKey());
+        }
+    }
+
     /**
      * Adds the given <tt>contact</tt> to this list.
      * @param query the <tt>MetaContactQuery</tt> that adds the given contact
@@ -556,13 +704,7 @@ public class TreeContactList
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
-            LowPriorityEventQueue.invokeLater(new Runnable()
-            {
-                public void run()
-                {
-                    addContact(query, contact, group, isSorted);
-                }
-            });
+            addPendingContact(query, contact, group, isSorted);
             return;
         }
 
@@ -587,13 +729,7 @@ public class TreeContactList
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
-            LowPriorityEventQueue.invokeLater(new Runnable()
-            {
-                public void run()
-                {
-                    addContact(query, contact, group, isSorted);
-                }
-            });
+            addPendingContact(query, contact, group, isSorted);
             return;
         }
 
@@ -940,6 +1076,54 @@ public class TreeContactList
         return currentFilterQuery;
     }
 
+    /**
+     * A contact received from a query and waiting to be added to the list.
+     */
+    private static class PendingContact
+    {
+        /**
+         * The <tt>MetaContactQuery</tt> or <tt>ContactQuery</tt> that adds
+         * the contact.
+         */
+        private final Object query;
+
+        /**
+         * The <tt>UIContact</tt> to add.
+         */
+        private final UIContact contact;
+
+        /**
+         * The <tt>UIGroup</tt> to add to.
+         */
+        private final UIGroup group;
+
+        /**
+         * Indicates if the contact should be sorted regarding to the
+         * <tt>GroupNode</tt> policy.
+         */
+        private final boolean isSorted;
+
+        /**
+         * Creates a <tt>PendingContact</tt>.
+         * @param query the <tt>MetaContactQuery</tt> or <tt>ContactQuery</tt>
+         * that adds the given contact
+         * @param contact the <tt>UIContact</tt> to add
+         * @param group the <tt>UIGroup</tt> to add to
+         * @param isSorted indicates if the contact should be sorted regarding
+         * to the <tt>GroupNode</tt> policy
+         */
+        PendingContact(Object query,
+                       UIContact contact,
+                       UIGroup group,
+                       boolean isSorted)
+        {
+            this.query = query;
+            this.contact = contact;
+            this.group = group;
+            this.isSorted = isSorted;
+        }
+    }
+
     /**
      * The <tt>SearchThread</tt> is meant to launch the search in a separate
      * thread.
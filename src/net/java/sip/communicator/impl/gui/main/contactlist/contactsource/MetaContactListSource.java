@@ -34,12 +34,16 @@ import net.java.sip.communicator.util.*;
  * <tt>MetaContact</tt> and an <tt>UIContact</tt> and between a
  * <tt>MetaContactGroup</tt> and an <tt>UIGroup</tt>. It is also responsible
  * for filtering of the <tt>MetaContactListService</tt> through a given pattern.
+ * <p>
+ * It receives the events of the <tt>MetaContactListService</tt> in batches,
+ * so that the protocol threads do not wait for the contact list to be
+ * updated, and sorts the reordered groups once per batch.
  *
  * @author Yana Stamcheva
  */
 public class MetaContactListSource
     implements  ContactPresenceStatusListener,
-                MetaContactListListener
+                MetaContactListBatchListener
 {
     /**
      * The data key of the MetaContactDescriptor object used to store a
@@ -85,6 +89,25 @@ public class MetaContactListSource
     private static final Logger logger
         = Logger.getLogger(MetaContactListSource.class);
 
+    /**
+     * The index used to find the meta contacts matching a filter string.
+     */
+    private final MetaContactSearchIndex searchIndex
+        = new MetaContactSearchIndex();
+
+    /**
+     * The number of batches of contact list events being delivered. Guarded
+     * by {@link #reorderedGroups}.
+     */
+    private int batchDepth = 0;
+
+    /**
+     * The groups whose children have been reordered during the current
+     * batches of events, which are sorted when the batches end.
+     */
+    private final Set<MetaContactGroup> reorderedGroups
+        = new LinkedHashSet<MetaContactGroup>();
+
     /**
      * Returns the <tt>UIContact</tt> corresponding to the given
      * <tt>MetaContact</tt>.
@@ -193,6 +216,23 @@ public class MetaContactListSource
      * query this method does
      */
     public MetaContactQuery queryMetaContactSource(final Pattern filterPattern)
+    {
+        return queryMetaContactSource(filterPattern, null);
+    }
+
+    /**
+     * Filters the <tt>MetaContactListService</tt> to match the given
+     * <tt>filterPattern</tt> and stores the result in the given
+     * <tt>treeModel</tt>. Only the meta contacts the search index returns
+     * for <tt>filterString</tt> are checked against the pattern.
+     * @param filterPattern the pattern to filter through
+     * @param filterString the string <tt>filterPattern</tt> was created
+     * from or <tt>null</tt> to check all meta contacts
+     * @return the created <tt>MetaContactQuery</tt> corresponding to the
+     * query this method does
+     */
+    public MetaContactQuery queryMetaContactSource(final Pattern filterPattern,
+                                                   final String filterString)
     {
         final MetaContactQuery query = new MetaContactQuery();
 
@@ -202,8 +242,19 @@ public class MetaContactListSource
             public void run()
             {
                 int resultCount = 0;
+                MetaContactGroup root
+                    = GuiActivator.getContactListService().getRoot();
+                Set<MetaContact> candidates = null;
+
+                if (filterString != null)
+                {
+                    searchIndex.build(root);
+                    candidates = searchIndex.getCandidates(filterString);
+                }
+
                 queryMetaContactSource( filterPattern,
-                        GuiActivator.getContactListService().getRoot(),
+                        candidates,
+                        root,
                         query,
                         resultCount);
 
@@ -234,13 +285,40 @@ public class MetaContactListSource
                                         MetaContactQuery query,
                                         int resultCount)
     {
+        queryMetaContactSource(
+            filterPattern, null, parentGroup, query, resultCount);
+    }
+
+    /**
+     * Filters the children in the given <tt>MetaContactGroup</tt> to match the
+     * given <tt>filterPattern</tt> and stores the result in the given
+     * <tt>treeModel</tt>.
+     * @param filterPattern the pattern to filter through
+     * @param candidates the only meta contacts which may match the pattern
+     * or <tt>null</tt> to check all meta contacts
+     * @param parentGroup the <tt>MetaContactGroup</tt> to filter
+     * @param query the object that tracks the query
+     * @param resultCount the initial result count we would insert directly to
+     * the contact list without firing events
+     */
+    private void queryMetaContactSource(Pattern filterPattern,
+                                        Set<MetaContact> candidates,
+                                        MetaContactGroup parentGroup,
+                                        MetaContactQuery query,
+                                        int resultCount)
+    {
+        // nothing can match, skip walking the contact list
+        if (candidates != null && candidates.isEmpty())
+            return;
+
         Iterator<MetaContact> childContacts = parentGroup.getChildContacts();
 
         while (childContacts.hasNext() && !query.isCanceled())
         {
             MetaContact metaContact = childContacts.next();
 
-            if (isMatching(filterPattern, metaContact))
+            if ((candidates == null || candidates.contains(metaContact))
+                    && isMatching(filterPattern, metaContact))
             {
                 resultCount++;
 
@@ -289,7 +367,8 @@ public class MetaContactListSource
         {
             MetaContactGroup subgroup = subgroups.next();
 
-            queryMetaContactSource(filterPattern, subgroup, query, resultCount);
+            queryMetaContactSource(
+                filterPattern, candidates, subgroup, query, resultCount);
         }
     }
 
@@ -300,7 +379,8 @@ public class MetaContactListSource
      * following is true:<br>
      * - its display name contains the filter string
      * - at least one of its child protocol contacts has a display name or an
-     * address that contains the filter string.
+     * address that contains the filter string
+     * - one of its phone numbers contains the filter string.
      * @param filterPattern the filter pattern to check for matches
      * @param metaContact the <tt>MetaContact</tt> to check
      * @return <tt>true</tt> to indicate that the given <tt>metaContact</tt> is
@@ -308,24 +388,11 @@ public class MetaContactListSource
      */
     private boolean isMatching(Pattern filterPattern, MetaContact metaContact)
     {
-        Matcher matcher = filterPattern.matcher(metaContact.getDisplayName());
-
-        if(matcher.find())
-            return true;
-
-        Iterator<Contact> contacts = metaContact.getContacts();
-        while (contacts.hasNext())
+        for (String searchString
+                : MetaContactSearchIndex.getSearchStrings(metaContact))
         {
-            Contact contact = contacts.next();
-
-            matcher = filterPattern.matcher(contact.getDisplayName());
-
-            if (matcher.find())
-                return true;
-
-            matcher = filterPattern.matcher(contact.getAddress());
-
-            if (matcher.find())
+            if (searchString != null
+                    && filterPattern.matcher(searchString).find())
                 return true;
         }
         return false;
@@ -445,6 +512,59 @@ public class MetaContactListSource
     public void childContactsReordered(MetaContactGroupEvent evt)
     {
         MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
+
+        synchronized (reorderedGroups)
+        {
+            if (batchDepth > 0)
+            {
+                reorderedGroups.add(metaGroup);
+                return;
+            }
+        }
+
+        sortGroup(metaGroup);
+    }
+
+    /**
+     * Indicates that a batch of contact list events is about to be delivered.
+     */
+    public void eventBatchStarted()
+    {
+        synchronized (reorderedGroups)
+        {
+            batchDepth++;
+        }
+    }
+
+    /**
+     * Sorts the groups which have been reordered during the batches of
+     * contact list events which have just ended.
+     */
+    public void eventBatchEnded()
+    {
+        MetaContactGroup[] groups;
+
+        synchronized (reorderedGroups)
+        {
+            if (--batchDepth > 0 || reorderedGroups.isEmpty())
+                return;
+
+            groups
+                = reorderedGroups.toArray(
+                        new MetaContactGroup[reorderedGroups.size()]);
+            reorderedGroups.clear();
+        }
+
+        for (MetaContactGroup metaGroup : groups)
+            sortGroup(metaGroup);
+    }
+
+    /**
+     * Sorts the contact list nodes of a <tt>MetaContactGroup</tt>.
+     * @param metaGroup the <tt>MetaContactGroup</tt> whose nodes to sort
+     */
+    private void sortGroup(MetaContactGroup metaGroup)
+    {
         UIGroupImpl uiGroup;
 
         ContactListTreeModel treeModel
@@ -474,6 +594,8 @@ public class MetaContactListSource
      */
     public void metaContactAdded(final MetaContactEvent evt)
     {
+        searchIndex.update(evt.getSourceMetaContact());
+
         metaContactAdded(evt.getSourceMetaContact(),
                         evt.getParentGroup());
     }
@@ -536,6 +658,8 @@ public class MetaContactListSource
     {
         final MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
+        searchIndex.updateGroup(metaGroup);
+
         UIGroup uiGroup;
 
         synchronized (metaGroup)
@@ -583,6 +707,8 @@ public class MetaContactListSource
     {
         final MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
+        searchIndex.updateGroup(metaGroup);
+
         UIGroupImpl uiGroup;
         synchronized (metaGroup)
         {
@@ -609,6 +735,8 @@ public class MetaContactListSource
     {
         MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
+        searchIndex.removeGroup(metaGroup);
+
         UIGroup uiGroup;
         synchronized (metaGroup)
         {
@@ -628,6 +756,8 @@ public class MetaContactListSource
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        searchIndex.update(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -730,6 +860,8 @@ public class MetaContactListSource
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        searchIndex.remove(metaContact);
+
         UIContact uiContact;
         synchronized (metaContact)
         {
@@ -750,6 +882,8 @@ public class MetaContactListSource
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        searchIndex.update(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -799,6 +933,8 @@ public class MetaContactListSource
     {
         final MetaContact metaContact = evt.getNewParent();
 
+        searchIndex.update(metaContact);
+
         UIContact parentUIContact;
         boolean parentUIContactCreated = false;
         synchronized (metaContact)
@@ -856,6 +992,8 @@ public class MetaContactListSource
     {
         MetaContact metaContact = evt.getNewParent();
 
+        searchIndex.update(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -882,6 +1020,9 @@ public class MetaContactListSource
         final MetaContact oldParent = evt.getOldParent();
         final MetaContact newParent = evt.getNewParent();
 
+        searchIndex.update(oldParent);
+        searchIndex.update(newParent);
+
         UIContact oldUIContact;
         synchronized (oldParent)
         {
@@ -954,6 +1095,8 @@ public class MetaContactListSource
     {
         final MetaContact oldParent = evt.getOldParent();
 
+        searchIndex.update(oldParent);
+
         UIContactImpl oldUIContact;
         synchronized (oldParent)
         {
@@ -0,0 +1,538 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * An n-gram index over the strings the contact list search field matches:
+ * the display names of the <tt>MetaContact</tt>s, the display names and
+ * addresses of their protocol contacts and their phone numbers.
+ * <p>
+ * Every string is case folded and all its substrings of one to three
+ * characters are indexed. A filter string of up to three characters is then
+ * answered by a single lookup and a longer one by intersecting the lists of
+ * its trigrams. The result is a superset of the matching meta contacts, which
+ * the caller still has to check against the filter pattern, but which is
+ * usually very small compared to the whole contact list.
+ * <p>
+ * The lists of the n-grams hold sorted integer identifiers of the meta
+ * contacts rather than the meta contacts themselves, which keeps the memory
+ * of the index small for large contact lists.
+ */
+public class MetaContactSearchIndex
+{
+    /**
+     * The names of the <tt>MetaContact</tt> details holding phone numbers.
+     */
+    public static final String[] PHONE_DETAIL_NAMES = { "mobile" };
+
+    /**
+     * The length of the longest indexed substrings.
+     */
+    private static final int GRAM_LENGTH = 3;
+
+    /**
+     * The identifiers of the indexed meta contacts.
+     */
+    private final Map<MetaContact, Integer> ids
+        = new HashMap<MetaContact, Integer>();
+
+    /**
+     * The indexed meta contacts by identifier.
+     */
+    private final Map<Integer, MetaContact> metaContacts
+        = new HashMap<Integer, MetaContact>();
+
+    /**
+     * The folded search strings of each meta contact by identifier, from
+     * which the substrings to remove are computed when the meta contact
+     * changes.
+     */
+    private final Map<Integer, String[]> strings
+        = new HashMap<Integer, String[]>();
+
+    /**
+     * The sorted identifiers of the meta contacts containing each substring.
+     */
+    private final Map<String, IdList> postings
+        = new HashMap<String, IdList>();
+
+    /**
+     * The identifier of the next indexed meta contact.
+     */
+    private int nextId = 0;
+
+    /**
+     * Indicates whether the whole contact list was indexed, otherwise the
+     * changes of the contact list are ignored until it is.
+     */
+    private boolean built = false;
+
+    /**
+     * Indexes all the meta contacts of <tt>root</tt> and its subgroups
+     * unless this was already done.
+     *
+     * @param root the root group of the contact list
+     */
+    public synchronized void build(MetaContactGroup root)
+    {
+        if (built)
+            return;
+
+        indexGroup(root);
+        built = true;
+    }
+
+    /**
+     * Indexes or reindexes a meta contact.
+     *
+     * @param metaContact the meta contact
+     */
+    public synchronized void update(MetaContact metaContact)
+    {
+        if (built)
+            index(metaContact);
+    }
+
+    /**
+     * Indexes or reindexes a meta contact.
+     *
+     * @param metaContact the meta contact
+     */
+    private void index(MetaContact metaContact)
+    {
+        List<String> searchStrings = getSearchStrings(metaContact);
+        String[] newStrings = new String[searchStrings.size()];
+        for (int i = 0; i < newStrings.length; i++)
+            newStrings[i] = fold(searchStrings.get(i));
+
+        Set<String> newGrams = getGrams(newStrings);
+        Set<String> oldGrams = null;
+
+        Integer id = ids.get(metaContact);
+        if (id == null)
+        {
+            id = nextId++;
+            ids.put(metaContact, id);
+            metaContacts.put(id, metaContact);
+        }
+        else
+        {
+            String[] oldStrings = strings.get(id);
+
+            if (Arrays.equals(oldStrings, newStrings))
+                return;
+
+            oldGrams = getGrams(oldStrings);
+            for (String gram : oldGrams)
+            {
+                if (!newGrams.contains(gram))
+                    removePosting(gram, id);
+            }
+        }
+
+        strings.put(id, newStrings);
+        for (String gram : newGrams)
+        {
+            if (oldGrams == null || !oldGrams.contains(gram))
+            {
+                IdList list = postings.get(gram);
+
+                if (list == null)
+                {
+                    list = new IdList();
+                    postings.put(gram, list);
+                }
+                list.add(id);
+            }
+        }
+    }
+
+    /**
+     * Removes a meta contact from the index.
+     *
+     * @param metaContact the meta contact
+     */
+    public synchronized void remove(MetaContact metaContact)
+    {
+        if (!built)
+            return;
+
+        Integer id = ids.remove(metaContact);
+        if (id == null)
+            return;
+
+        metaContacts.remove(id);
+        for (String gram : getGrams(strings.remove(id)))
+            removePosting(gram, id);
+    }
+
+    /**
+     * Indexes or reindexes the meta contacts of a group and its subgroups.
+     *
+     * @param group the group
+     */
+    public synchronized void updateGroup(MetaContactGroup group)
+    {
+        if (built)
+            indexGroup(group);
+    }
+
+    /**
+     * Indexes or reindexes the meta contacts of a group and its subgroups.
+     *
+     * @param group the group
+     */
+    private void indexGroup(MetaContactGroup group)
+    {
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while (contacts.hasNext())
+            index(contacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            indexGroup(subgroups.next());
+    }
+
+    /**
+     * Removes the meta contacts of a group and its subgroups.
+     *
+     * @param group the group
+     */
+    public synchronized void removeGroup(MetaContactGroup group)
+    {
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while (contacts.hasNext())
+            remove(contacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            removeGroup(subgroups.next());
+    }
+
+    /**
+     * Returns the meta contacts which may match a filter string, that is the
+     * meta contacts whose search strings contain all the substrings of up to
+     * three characters of <tt>filterString</tt>.
+     *
+     * @param filterString the filter string
+     * @return the candidate meta contacts or <tt>null</tt> if the index was
+     * not built or the filter string is empty, in which case all meta
+     * contacts are candidates
+     */
+    public synchronized Set<MetaContact> getCandidates(String filterString)
+    {
+        if (!built)
+            return null;
+
+        String folded = fold(filterString);
+        if (folded.length() == 0)
+            return null;
+
+        IdList result;
+
+        if (folded.length() <= GRAM_LENGTH)
+            result = postings.get(folded);
+        else
+        {
+            Set<String> queryGrams = new HashSet<String>();
+            for (int i = 0; i + GRAM_LENGTH <= folded.length(); i++)
+                queryGrams.add(folded.substring(i, i + GRAM_LENGTH));
+
+            List<IdList> lists = new ArrayList<IdList>(queryGrams.size());
+            for (String gram : queryGrams)
+            {
+                IdList list = postings.get(gram);
+
+                if (list == null)
+                    return Collections.emptySet();
+                lists.add(list);
+            }
+
+            // intersect starting with the shortest list
+            Collections.sort(lists, new Comparator<IdList>()
+            {
+                public int compare(IdList l1, IdList l2)
+                {
+                    return l1.size - l2.size;
+                }
+            });
+            result = lists.get(0);
+            for (int i = 1; i < lists.size() && result.size > 0; i++)
+                result = result.intersect(lists.get(i));
+        }
+
+        if (result == null)
+            return Collections.emptySet();
+
+        // a copy, as the lists change with the contact list
+        return new Candidates(Arrays.copyOf(result.ids, result.size));
+    }
+
+    /**
+     * Returns the strings of a meta contact the search field matches.
+     *
+     * @param metaContact the meta contact
+     * @return the display names, addresses and phone numbers of
+     * <tt>metaContact</tt>
+     */
+    public static List<String> getSearchStrings(MetaContact metaContact)
+    {
+        List<String> strings = new ArrayList<String>();
+
+        strings.add(metaContact.getDisplayName());
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+        {
+            Contact contact = contacts.next();
+
+            strings.add(contact.getDisplayName());
+            strings.add(contact.getAddress());
+        }
+
+        for (String name : PHONE_DETAIL_NAMES)
+        {
+            List<String> details = metaContact.getDetails(name);
+
+            if (details != null)
+                strings.addAll(details);
+        }
+        return strings;
+    }
+
+    /**
+     * Returns all the substrings of up to three characters of strings.
+     *
+     * @param strings the folded strings
+     * @return the substrings
+     */
+    private static Set<String> getGrams(String[] strings)
+    {
+        Set<String> result = new HashSet<String>();
+
+        for (String s : strings)
+        {
+            for (int i = 0; i < s.length(); i++)
+            {
+                for (int length = 1;
+                        length <= GRAM_LENGTH && i + length <= s.length();
+                        length++)
+                    result.add(s.substring(i, i + length));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Folds the case of a string the way case insensitive, unicode aware
+     * patterns compare characters.
+     *
+     * @param s the string or <tt>null</tt>
+     * @return the folded string
+     */
+    private static String fold(String s)
+    {
+        if (s == null)
+            return "";
+
+        StringBuilder folded = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++)
+        {
+            folded.append(
+                Character.toLowerCase(Character.toUpperCase(s.charAt(i))));
+        }
+        return folded.toString();
+    }
+
+    /**
+     * Removes an identifier from the list of a substring.
+     *
+     * @param gram the substring
+     * @param id the identifier
+     */
+    private void removePosting(String gram, int id)
+    {
+        IdList list = postings.get(gram);
+
+        if (list != null && list.remove(id) && list.size == 0)
+            postings.remove(gram);
+    }
+
+    /**
+     * Returns the identifier of an indexed meta contact.
+     *
+     * @param metaContact the meta contact
+     * @return the identifier or <tt>null</tt> if the meta contact is not
+     * indexed
+     */
+    private synchronized Integer getId(MetaContact metaContact)
+    {
+        return ids.get(metaContact);
+    }
+
+    /**
+     * Returns an indexed meta contact.
+     *
+     * @param id the identifier of the meta contact
+     * @return the meta contact or <tt>null</tt> if it was removed
+     */
+    private synchronized MetaContact getMetaContact(int id)
+    {
+        return metaContacts.get(id);
+    }
+
+    /**
+     * The meta contacts found for a filter string. Its identifiers are not
+     * resolved to meta contacts until needed, so that filter strings
+     * matching most of the contact list are answered as fast as the others.
+     */
+    private class Candidates
+        extends AbstractSet<MetaContact>
+    {
+        /**
+         * The sorted identifiers of the meta contacts.
+         */
+        private final int[] candidateIds;
+
+        Candidates(int[] candidateIds)
+        {
+            this.candidateIds = candidateIds;
+        }
+
+        @Override
+        public boolean contains(Object o)
+        {
+            if (!(o instanceof MetaContact))
+                return false;
+
+            Integer id = getId((MetaContact) o);
+
+            return id != null
+                && Arrays.binarySearch(candidateIds, id) >= 0;
+        }
+
+        @Override
+        public int size()
+        {
+            return candidateIds.length;
+        }
+
+        @Override
+        public Iterator<MetaContact> iterator()
+        {
+            List<MetaContact> list
+                = new ArrayList<MetaContact>(candidateIds.length);
+
+            for (int id : candidateIds)
+            {
+                MetaContact metaContact = getMetaContact(id);
+
+                if (metaContact != null)
+                    list.add(metaContact);
+            }
+            return list.iterator();
+        }
+    }
+
+    /**
+     * A sorted list of meta contact identifiers.
+     */
+    private static class IdList
+    {
+        private int[] ids = new int[2];
+
+        private int size = 0;
+
+        /**
+         * Adds an identifier, which is usually larger than all the others.
+         *
+         * @param id the identifier
+         */
+        void add(int id)
+        {
+            int index = (size == 0 || ids[size - 1] < id)
+                ? size
+                : Arrays.binarySearch(ids, 0, size, id);
+
+            if (index >= 0 && index < size)
+                return;
+            if (index < 0)
+                index = -index - 1;
+
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        /**
+         * Removes an identifier.
+         *
+         * @param id the identifier
+         * @return <tt>true</tt> if the identifier was in the list
+         */
+        boolean remove(int id)
+        {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+
+            if (index < 0)
+                return false;
+
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        /**
+         * Returns the identifiers contained in both this list and
+         * <tt>other</tt>.
+         *
+         * @param other the other list
+         * @return the intersection
+         */
+        IdList intersect(IdList other)
+        {
+            IdList result = new IdList();
+            result.ids = new int[Math.max(1, Math.min(size, other.size))];
+
+            // look the few identifiers up rather than walking a long list
+            if (size * 16 < other.size)
+            {
+                for (int k = 0; k < size; k++)
+                {
+                    if (Arrays.binarySearch(other.ids, 0, other.size, ids[k])
+                            >= 0)
+                        result.ids[result.size++] = ids[k];
+                }
+                return result;
+            }
+
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size)
+            {
+                if (ids[i] < other.ids[j])
+                    i++;
+                else if (ids[i] > other.ids[j])
+                    j++;
+                else
+                {
+                    result.ids[result.size++] = ids[i];
+                    i++;
+                    j++;
+                }
+            }
+            return result;
+        }
+    }
+}
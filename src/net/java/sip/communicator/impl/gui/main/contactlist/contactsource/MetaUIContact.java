@@ -638,16 +638,8 @@ public class MetaUIContact
      */
     private void initSearchStrings()
     {
-        searchStrings.add(metaContact.getDisplayName());
-
-        Iterator<Contact> contacts = metaContact.getContacts();
-        while (contacts.hasNext())
-        {
-            Contact contact = contacts.next();
-
-            searchStrings.add(contact.getDisplayName());
-            searchStrings.add(contact.getAddress());
-        }
+        searchStrings.addAll(
+            MetaContactSearchIndex.getSearchStrings(metaContact));
     }
 
     /**
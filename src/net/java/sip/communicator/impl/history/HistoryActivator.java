@@ -24,6 +24,11 @@ public class HistoryActivator
      */
     private ServiceRegistration serviceRegistration;
 
+    /**
+     * The registered history service.
+     */
+    private HistoryServiceImpl historyService;
+
     /**
      * Initialize and start history service
      *
@@ -32,9 +37,10 @@ public class HistoryActivator
      */
     public void start(BundleContext bundleContext) throws Exception
     {
+        historyService = new HistoryServiceImpl(bundleContext);
         serviceRegistration =
             bundleContext.registerService(HistoryService.class.getName(),
-                new HistoryServiceImpl(bundleContext), null);
+                historyService, null);
     }
 
     /**
@@ -51,5 +57,12 @@ public class HistoryActivator
             serviceRegistration.unregister();
             serviceRegistration = null;
         }
+
+        if (historyService != null)
+        {
+            // write the records queued by write-behind writers
+            historyService.stop();
+            historyService = null;
+        }
     }
 }
@@ -0,0 +1,391 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * A least recently used cache of parsed history documents shared by all the
+ * histories of a <tt>HistoryServiceImpl</tt>. The cache is bounded both by
+ * the estimated memory of the cached documents and by the number of records
+ * they hold; whichever limit is reached first evicts the least recently used
+ * documents.
+ * <p>
+ * The memory of a parsed document is estimated from the size of its file, as
+ * measuring a DOM tree is too expensive to be done on every access.
+ * <p>
+ * The keyword indexes of the histories are accounted in the same memory
+ * bound. An index is evicted by clearing it, which makes the history build
+ * it again the next time it is searched.
+ */
+public class HistoryDocumentCache
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryDocumentCache.class);
+
+    /**
+     * The ratio between the memory used by a parsed document and the size of
+     * its XML file.
+     */
+    static final int DOM_SIZE_FACTOR = 5;
+
+    /**
+     * The maximum estimated memory of the cached documents in bytes.
+     */
+    private final long maxBytes;
+
+    /**
+     * The maximum number of records in the cached documents.
+     */
+    private final long maxRecords;
+
+    /**
+     * The cached documents in access order.
+     */
+    private final LinkedHashMap<Key, Entry> entries
+        = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /**
+     * The estimated memory of the cached documents in bytes.
+     */
+    private long bytes = 0;
+
+    /**
+     * The number of records in the cached documents.
+     */
+    private long records = 0;
+
+    private long hitCount = 0;
+
+    private long missCount = 0;
+
+    private long evictionCount = 0;
+
+    /**
+     * Creates a cache with the given limits. A limit of zero disables the
+     * cache.
+     *
+     * @param maxBytes the maximum estimated memory of the cached documents
+     * @param maxRecords the maximum number of records in the cached documents
+     */
+    public HistoryDocumentCache(long maxBytes, long maxRecords)
+    {
+        this.maxBytes = maxBytes;
+        this.maxRecords = maxRecords;
+    }
+
+    /**
+     * Determines whether this cache keeps documents, i.e. whether none of
+     * its limits is zero.
+     *
+     * @return <tt>true</tt> if this cache keeps documents
+     */
+    public boolean isEnabled()
+    {
+        return (maxBytes > 0) && (maxRecords > 0);
+    }
+
+    /**
+     * Returns the cached document of the given history file.
+     *
+     * @param history the history owning the file
+     * @param filename the name of the file
+     * @return the cached document or <tt>null</tt> if it is not cached
+     */
+    public synchronized Document get(HistoryImpl history, String filename)
+    {
+        Entry entry = entries.get(new Key(history, filename));
+
+        if ((entry == null) || (entry.document == null))
+        {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return entry.document;
+    }
+
+    /**
+     * Caches the document of a history file, replacing any previously cached
+     * document of this file, and evicts the least recently used documents
+     * if the cache exceeds its limits.
+     *
+     * @param history the history owning the file
+     * @param filename the name of the file
+     * @param document the parsed document
+     * @param fileLength the size of the file
+     */
+    public synchronized void put(HistoryImpl history,
+                                 String filename,
+                                 Document document,
+                                 long fileLength)
+    {
+        Key key = new Key(history, filename);
+        Entry entry
+            = new Entry(
+                    document,
+                    fileLength * DOM_SIZE_FACTOR,
+                    document.getElementsByTagName("record").getLength());
+
+        remove(key);
+
+        if (entry.bytes > maxBytes || entry.records > maxRecords)
+            return;
+
+        entries.put(key, entry);
+        bytes += entry.bytes;
+        records += entry.records;
+
+        evictEldest();
+    }
+
+    /**
+     * Accounts the current memory of the keyword index of a history, marks
+     * it as the most recently used entry and evicts the least recently used
+     * documents and indexes if the cache exceeds its limits. An index which
+     * alone exceeds the limit is cleared.
+     *
+     * @param history the history owning the index
+     * @param index the keyword index of the history
+     */
+    public synchronized void putKeywordIndex(Object history,
+                                             HistoryKeywordIndex<?> index)
+    {
+        Key key = new Key(history, null);
+        long size = index.getSize();
+
+        remove(key);
+
+        if (size == 0)
+            return;
+        if (size > maxBytes)
+        {
+            index.evict();
+            evictionCount++;
+            return;
+        }
+
+        entries.put(key, new Entry(index, size));
+        bytes += size;
+
+        evictEldest();
+    }
+
+    /**
+     * Evicts the least recently used documents and indexes until the cache
+     * is within its limits.
+     */
+    private void evictEldest()
+    {
+        Iterator<Entry> iter = entries.values().iterator();
+        while ((bytes > maxBytes || records > maxRecords) && iter.hasNext())
+        {
+            Entry eldest = iter.next();
+
+            iter.remove();
+            bytes -= eldest.bytes;
+            records -= eldest.records;
+            evictionCount++;
+
+            if (eldest.index != null)
+                eldest.index.evict();
+        }
+
+        if (logger.isTraceEnabled())
+            logger.trace("History document cache: " + this);
+    }
+
+    /**
+     * Removes the cached document of a history file.
+     *
+     * @param history the history owning the file
+     * @param filename the name of the file
+     */
+    public synchronized void remove(HistoryImpl history, String filename)
+    {
+        remove(new Key(history, filename));
+    }
+
+    /**
+     * Removes the cached document for <tt>key</tt>.
+     *
+     * @param key the key of the document
+     */
+    private void remove(Key key)
+    {
+        Entry entry = entries.remove(key);
+
+        if (entry != null)
+        {
+            bytes -= entry.bytes;
+            records -= entry.records;
+        }
+    }
+
+    /**
+     * Returns the number of lookups which found a cached document.
+     *
+     * @return the number of cache hits
+     */
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups which did not find a cached document.
+     *
+     * @return the number of cache misses
+     */
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of documents evicted to keep the cache within its
+     * limits.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the estimated memory of the cached documents and keyword
+     * indexes in bytes.
+     *
+     * @return the estimated memory of the cached documents and indexes
+     */
+    public synchronized long getSize()
+    {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of records in the cached documents.
+     *
+     * @return the number of cached records
+     */
+    public synchronized long getRecordCount()
+    {
+        return records;
+    }
+
+    /**
+     * Returns the number of cached documents.
+     *
+     * @return the number of cached documents
+     */
+    public synchronized int getDocumentCount()
+    {
+        int count = 0;
+
+        for (Entry entry : entries.values())
+        {
+            if (entry.document != null)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns a description of the state of this cache.
+     *
+     * @return a description of the state of this cache
+     */
+    @Override
+    public synchronized String toString()
+    {
+        int documents = getDocumentCount();
+
+        return "documents=" + documents
+            + " indexes=" + (entries.size() - documents)
+            + " bytes=" + bytes + "/" + maxBytes
+            + " records=" + records + "/" + maxRecords
+            + " hits=" + hitCount
+            + " misses=" + missCount
+            + " evictions=" + evictionCount;
+    }
+
+    /**
+     * Identifies a file of a history or, without a file name, the keyword
+     * index of a history.
+     */
+    private static class Key
+    {
+        private final Object history;
+
+        private final String filename;
+
+        private Key(Object history, String filename)
+        {
+            this.history = history;
+            this.filename = filename;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+
+            Key other = (Key) obj;
+            return history == other.history
+                && ((filename == null)
+                        ? (other.filename == null)
+                        : filename.equals(other.filename));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(history) * 31
+                + ((filename == null) ? 0 : filename.hashCode());
+        }
+    }
+
+    /**
+     * A cached document or keyword index and its weight.
+     */
+    private static class Entry
+    {
+        private final Document document;
+
+        private final HistoryKeywordIndex<?> index;
+
+        private final long bytes;
+
+        private final long records;
+
+        private Entry(Document document, long bytes, long records)
+        {
+            this.document = document;
+            this.index = null;
+            this.bytes = bytes;
+            this.records = records;
+        }
+
+        private Entry(HistoryKeywordIndex<?> index, long bytes)
+        {
+            this.document = null;
+            this.index = index;
+            this.bytes = bytes;
+            this.records = 0;
+        }
+    }
+}
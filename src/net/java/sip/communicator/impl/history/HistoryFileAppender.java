@@ -0,0 +1,308 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.transform.*;
+import javax.xml.transform.dom.*;
+import javax.xml.transform.stream.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Appends records to a history XML file in place. The new record elements
+ * are written over the closing tag of the root element, followed by a new
+ * closing tag, and the start tag of the root element is rewritten in place
+ * with the updated header attributes. Writing a batch of records therefore
+ * costs the size of the batch instead of a rewrite of the whole document.
+ * <p>
+ * When the file does not have the expected layout, for example because the
+ * new start tag is longer than the one on disk, nothing is written and the
+ * caller has to rewrite the whole document.
+ * <p>
+ * The records and the header are copied from the document with
+ * <tt>serialize</tt> and <tt>getHeader</tt> while the lock of the document
+ * is held, and only these copies are written to the file.
+ */
+public class HistoryFileAppender
+{
+    /**
+     * The closing tag of the root element of history documents.
+     */
+    private static final String ROOT_END_TAG = "</history>";
+
+    /**
+     * The number of bytes at the start of a file searched for the start tag
+     * of the root element.
+     */
+    private static final int HEAD_LENGTH = 1024;
+
+    /**
+     * The number of bytes at the end of a file searched for the closing tag
+     * of the root element.
+     */
+    private static final int TAIL_LENGTH = 256;
+
+    /**
+     * The indentation of the records, as written by <tt>XMLUtils</tt>.
+     */
+    private static final String INDENT = "    ";
+
+    /**
+     * The encoding of the markup searched in the files. The markup is ASCII,
+     * so offsets in strings decoded this way are byte offsets.
+     */
+    private static final String MARKUP_ENCODING = "ISO-8859-1";
+
+    /**
+     * The transformer used to serialize records by the current thread.
+     */
+    private static final ThreadLocal<Transformer> transformer
+        = new ThreadLocal<Transformer>()
+        {
+            @Override
+            protected Transformer initialValue()
+            {
+                try
+                {
+                    TransformerFactory factory
+                        = TransformerFactory.newInstance();
+                    try
+                    {
+                        factory.setAttribute("indent-number", 4);
+                    }
+                    catch (IllegalArgumentException e)
+                    {
+                        // not supported by this implementation
+                    }
+
+                    Transformer t = factory.newTransformer();
+                    t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+                    t.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+                    t.setOutputProperty(OutputKeys.INDENT, "yes");
+                    return t;
+                }
+                catch (TransformerConfigurationException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
+    /**
+     * Appends records to a history file and updates its header.
+     *
+     * @param file the file of the document
+     * @param header the attributes of the root element of the document,
+     * which already contains the records, as returned by <tt>getHeader</tt>
+     * @param fragment the records to append, as returned by
+     * <tt>serialize</tt>
+     * @param sync whether to force the changes to the storage device
+     * @return <tt>true</tt> if the records were appended or <tt>false</tt>
+     * if the file has to be rewritten instead
+     * @throws IOException if writing fails
+     */
+    static boolean append(File file,
+                          SortedMap<String, String> header,
+                          byte[] fragment,
+                          boolean sync)
+        throws IOException
+    {
+        if (!file.isFile())
+            return false;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try
+        {
+            long length = raf.length();
+
+            String head = read(raf, 0, (int) Math.min(length, HEAD_LENGTH));
+            int tagStart = head.indexOf("<history");
+            int tagEnd = (tagStart == -1) ? -1 : head.indexOf('>', tagStart);
+            if (tagEnd == -1 || head.charAt(tagEnd - 1) == '/')
+                return false;
+
+            byte[] startTag = createStartTag(header, tagEnd + 1 - tagStart);
+            if (startTag == null)
+                return false;
+
+            int tailLength = (int) Math.min(length, TAIL_LENGTH);
+            String tail = read(raf, length - tailLength, tailLength);
+            int endTag = tail.lastIndexOf(ROOT_END_TAG);
+            if (endTag == -1
+                    || tail.substring(endTag + ROOT_END_TAG.length())
+                            .trim().length() != 0)
+                return false;
+
+            long endTagOffset = length - tailLength + endTag;
+            if (endTagOffset <= tagEnd)
+                return false;
+
+            // the records first, so that a torn write leaves a header which
+            // undercounts rather than overcounts
+            raf.seek(endTagOffset);
+            raf.write(fragment);
+            raf.write((ROOT_END_TAG + "\n").getBytes(MARKUP_ENCODING));
+            raf.setLength(raf.getFilePointer());
+
+            raf.seek(tagStart);
+            raf.write(startTag);
+
+            if (sync)
+                raf.getFD().sync();
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Forces the content of a file to the storage device.
+     *
+     * @param file the file
+     * @throws IOException if syncing fails
+     */
+    static void sync(File file)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try
+        {
+            raf.getFD().sync();
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Serializes record elements, each on its own lines. Must be called with
+     * the lock of their document held.
+     *
+     * @param records the record elements
+     * @return the UTF-8 encoded records
+     * @throws IOException if serializing fails
+     */
+    static byte[] serialize(List<Element> records)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Transformer t = transformer.get();
+
+        for (Element record : records)
+        {
+            ByteArrayOutputStream recordOut = new ByteArrayOutputStream();
+            try
+            {
+                t.transform(new DOMSource(record), new StreamResult(recordOut));
+            }
+            catch (TransformerException e)
+            {
+                IOException ioe = new IOException("Could not write record");
+
+                ioe.initCause(e);
+                throw ioe;
+            }
+
+            byte[] bytes = recordOut.toByteArray();
+            out.write(INDENT.getBytes(MARKUP_ENCODING));
+            out.write(bytes);
+            // some implementations end the element with a new line
+            if (bytes.length == 0 || bytes[bytes.length - 1] != '\n')
+                out.write('\n');
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Copies the attributes of a root element. Must be called with the lock
+     * of its document held.
+     *
+     * @param root the root element
+     * @return the attributes sorted by name
+     */
+    static SortedMap<String, String> getHeader(Element root)
+    {
+        NamedNodeMap attributes = root.getAttributes();
+        SortedMap<String, String> header = new TreeMap<String, String>();
+
+        for (int i = 0; i < attributes.getLength(); i++)
+        {
+            Node attribute = attributes.item(i);
+            header.put(attribute.getNodeName(), attribute.getNodeValue());
+        }
+        return header;
+    }
+
+    /**
+     * Creates the start tag of a root element, padded with spaces to the
+     * length of the start tag it replaces.
+     *
+     * @param header the attributes of the root element
+     * @param length the length of the replaced start tag
+     * @return the start tag or <tt>null</tt> if it does not fit
+     * @throws IOException if encoding fails
+     */
+    private static byte[] createStartTag(SortedMap<String, String> header,
+                                         int length)
+        throws IOException
+    {
+        StringBuilder tag = new StringBuilder("<history");
+        for (Map.Entry<String, String> attribute : header.entrySet())
+        {
+            String value = attribute.getValue();
+
+            for (int i = 0; i < value.length(); i++)
+            {
+                char c = value.charAt(i);
+
+                // the header holds numbers, anything else needs escaping
+                if (c > 0x7e || c == '"' || c == '&' || c == '<')
+                    return null;
+            }
+
+            tag.append(' ').append(attribute.getKey())
+                .append("=\"").append(value).append('"');
+        }
+
+        if (tag.length() + 1 > length)
+            return null;
+        while (tag.length() + 1 < length)
+            tag.append(' ');
+        tag.append('>');
+
+        return tag.toString().getBytes(MARKUP_ENCODING);
+    }
+
+    /**
+     * Reads a part of a file as markup.
+     *
+     * @param raf the file
+     * @param offset the offset of the part
+     * @param length the length of the part
+     * @return the part
+     * @throws IOException if reading fails
+     */
+    private static String read(RandomAccessFile raf, long offset, int length)
+        throws IOException
+    {
+        byte[] bytes = new byte[length];
+
+        raf.seek(offset);
+        raf.readFully(bytes);
+        return new String(bytes, MARKUP_ENCODING);
+    }
+}
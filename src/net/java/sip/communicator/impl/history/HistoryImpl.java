@@ -48,9 +48,21 @@ public class HistoryImpl
 
     private HistoryWriter writer;
 
+    /**
+     * The documents of this history by file name. A document is kept here
+     * as a <tt>File</tt> once it is written and its parsed form is kept in
+     * the <tt>HistoryDocumentCache</tt> shared by all histories. Documents
+     * which were created but not written yet are kept as a
+     * <tt>Document</tt>.
+     */
     private SortedMap<String, Object> historyDocuments
         = new TreeMap<String, Object>();
 
+    /**
+     * The index of the keywords found in the records of this history.
+     */
+    private final HistoryKeywordIndex<RecordLocation> keywordIndex;
+
     /**
      * Creates an instance of <tt>HistoryImpl</tt> by specifying the history
      * identifier, the directory, the <tt>HistoryRecordStructure</tt> to use
@@ -80,6 +92,9 @@ public class HistoryImpl
             this.historyRecordStructure = historyRecordStructure;
             this.reader = null;
             this.writer = null;
+            this.keywordIndex
+                = new HistoryKeywordIndex<RecordLocation>(
+                        historyServiceImpl.getDocumentCache(), this);
 
             this.reloadDocumentList();
         } finally {
@@ -150,7 +165,7 @@ public class HistoryImpl
         return interactiveReader;
     }
 
-    public HistoryWriter getWriter()
+    public synchronized HistoryWriter getWriter()
     {
         if (writer == null)
             writer = new HistoryWriterImpl(this);
@@ -162,6 +177,16 @@ public class HistoryImpl
         return this.historyServiceImpl;
     }
 
+    /**
+     * Returns the index of the keywords found in the records of this history.
+     *
+     * @return the keyword index of this history
+     */
+    HistoryKeywordIndex<RecordLocation> getKeywordIndex()
+    {
+        return keywordIndex;
+    }
+
     void reloadDocumentList()
     {
         synchronized (this.historyDocuments)
@@ -221,20 +246,55 @@ public class HistoryImpl
             }
 
             Object obj = this.historyDocuments.get(filename);
+            Document doc = (obj instanceof Document)
+                ? (Document) obj
+                : getDocumentCache().get(this, filename);
 
-            if (obj instanceof Document)
+            if (doc != null)
+                writeFile(filename, doc);
+        }
+    }
+
+    protected void writeFile(String filename, Document doc)
+        throws InvalidParameterException, IOException
+    {
+        File file = new File(this.directory, filename);
+
+        synchronized (this.historyDocuments)
+        {
+            if (!this.historyDocuments.containsKey(filename))
             {
-                Document doc = (Document) obj;
+                throw new InvalidParameterException("The requested "
+                        + "filename does not exist in the document list.");
+            }
 
-                synchronized (doc)
-                {
-                    XMLUtils.writeXML(doc, file);
-                }
+            synchronized (doc)
+            {
+                XMLUtils.writeXML(doc, file);
             }
+
+            // the document is on disk now, it can be evicted and reparsed
+            this.historyDocuments.put(filename, file);
+            getDocumentCache().put(this, filename, doc, file.length());
         }
     }
 
-    protected void writeFile(String filename, Document doc)
+    /**
+     * Writes records which were added to a document. The records are
+     * appended to the file of the document if possible, otherwise the whole
+     * document is rewritten.
+     *
+     * @param filename the name of the file
+     * @param doc the document
+     * @param records the record elements added since the document was last
+     * written
+     * @param sync whether to force the file to the storage device
+     * @throws InvalidParameterException if the file is not a document of
+     * this history
+     * @throws IOException if writing fails
+     */
+    void writeRecords(String filename, Document doc, List<Element> records,
+                      boolean sync)
         throws InvalidParameterException, IOException
     {
         File file = new File(this.directory, filename);
@@ -247,13 +307,126 @@ public class HistoryImpl
                         + "filename does not exist in the document list.");
             }
 
+            byte[] fragment;
+            SortedMap<String, String> header;
+
+            // only the copies are written, without holding the document
             synchronized (doc)
             {
-                XMLUtils.writeXML(doc, file);
+                fragment = HistoryFileAppender.serialize(records);
+                header = HistoryFileAppender.getHeader(
+                    doc.getDocumentElement());
+            }
+
+            if (!HistoryFileAppender.append(file, header, fragment, sync))
+            {
+                synchronized (doc)
+                {
+                    XMLUtils.writeXML(doc, file);
+                }
+                if (sync)
+                    HistoryFileAppender.sync(file);
             }
+
+            this.historyDocuments.put(filename, file);
+            getDocumentCache().put(this, filename, doc, file.length());
+        }
+    }
+
+    /**
+     * Keeps a document which has changes that are not written yet, so that
+     * readers use it instead of parsing its outdated file.
+     *
+     * @param filename the name of the file
+     * @param doc the changed document
+     */
+    void setUnsavedDocument(String filename, Document doc)
+    {
+        synchronized (this.historyDocuments)
+        {
+            this.historyDocuments.put(filename, doc);
+        }
+    }
+
+    /**
+     * Writes the records queued by the writer of this history.
+     *
+     * @throws IOException if writing fails
+     */
+    void flush()
+        throws IOException
+    {
+        HistoryWriterImpl writer;
+
+        synchronized (this)
+        {
+            writer = (HistoryWriterImpl) this.writer;
+        }
+
+        if (writer != null)
+            writer.flush();
+    }
+
+    /**
+     * Drops the records queued by the writer of this history, which is
+     * about to be deleted.
+     */
+    void discardPendingRecords()
+    {
+        HistoryWriterImpl writer;
+
+        synchronized (this)
+        {
+            writer = (HistoryWriterImpl) this.writer;
+        }
+
+        if (writer != null)
+            writer.discardPendingRecords();
+    }
+
+    /**
+     * Returns the cache of parsed documents shared by all histories.
+     *
+     * @return the cache of parsed documents
+     */
+    private HistoryDocumentCache getDocumentCache()
+    {
+        return this.historyServiceImpl.getDocumentCache();
+    }
+
+    /**
+     * Returns the document of a file if it is available without parsing,
+     * that is if it was not written yet or if it is cached.
+     *
+     * @param filename the name of the file
+     * @return the document or <tt>null</tt> if the file has to be read
+     */
+    Document getLoadedDocument(String filename)
+    {
+        synchronized (this.historyDocuments)
+        {
+            Object obj = this.historyDocuments.get(filename);
+
+            if (obj instanceof Document)
+                return (Document) obj;
+            else if (obj instanceof File)
+                return getDocumentCache().get(this, filename);
+            else
+                return null;
         }
     }
 
+    /**
+     * Returns the file in which a document of this history is stored.
+     *
+     * @param filename the name of the file
+     * @return the file
+     */
+    File getFile(String filename)
+    {
+        return new File(this.directory, filename);
+    }
+
     protected Iterator<String> getFileList()
     {
         return this.historyDocuments.keySet().iterator();
@@ -280,26 +453,18 @@ public class HistoryImpl
             {
                 File file = (File) obj;
 
-                try {
-                    retVal = this.historyServiceImpl.parse(file);
-                } catch (Exception e)
-                {
-//                    throw new RuntimeException("Error occured while "
-//                            + "parsing XML document.", e);
-//                    log.error("Error occured while parsing XML document.", e);
-                    log.error("Error occured while parsing XML document.", e);
+                retVal = getDocumentCache().get(this, filename);
+                if (retVal != null)
+                    return retVal;
 
-                    // will try to fix the xml file
-                    retVal = getFixedDocument(file);
+                retVal = parseFile(file);
 
-                    // if is not fixed return
-                    if(retVal == null)
-                        return null;
-                }
+                // if is not fixed return
+                if(retVal == null)
+                    return null;
 
-                // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
+                // Cache the loaded document for reuse
+                getDocumentCache().put(this, filename, retVal, file.length());
             } else {
                 // TODO: Assert: Assert.fail("Internal error - the data type " +
                 // "should be either Document or File.");
@@ -309,6 +474,60 @@ public class HistoryImpl
         return retVal;
     }
 
+    /**
+     * Returns the document of a file without keeping it in the cache of
+     * parsed documents shared by all histories, for documents which are read
+     * only once such as the ones migrated to a <tt>SegmentHistoryImpl</tt>.
+     *
+     * @param filename the name of the file
+     * @return the document or <tt>null</tt> if the file cannot be parsed nor
+     * fixed
+     * @throws InvalidParameterException if the file is not a document of
+     * this history
+     */
+    Document getUncachedDocumentForFile(String filename)
+        throws InvalidParameterException
+    {
+        Object obj;
+
+        synchronized (this.historyDocuments)
+        {
+            obj = this.historyDocuments.get(filename);
+        }
+
+        if (obj instanceof Document)
+            return (Document) obj;
+        else if (obj instanceof File)
+            return parseFile((File) obj);
+        else
+        {
+            throw new InvalidParameterException("The requested "
+                    + "filename does not exist in the document list.");
+        }
+    }
+
+    /**
+     * Parses a file of this history, fixing it if it is corrupted.
+     *
+     * @param file the file to parse
+     * @return the document or <tt>null</tt> if the file cannot be parsed nor
+     * fixed
+     */
+    private Document parseFile(File file)
+    {
+        try
+        {
+            return this.historyServiceImpl.parse(file);
+        }
+        catch (Exception e)
+        {
+            log.error("Error occured while parsing XML document.", e);
+
+            // will try to fix the xml file
+            return getFixedDocument(file);
+        }
+    }
+
     /**
      * Methods trying to fix histry xml files if corrupted
      */
@@ -362,6 +581,9 @@ public class HistoryImpl
             log.trace("File fixed will write to disk!");
             XMLUtils.writeXML(result, file);
 
+            // records may have been dropped, so their positions changed
+            keywordIndex.clear();
+
             return result;
         }
         catch (Exception ex)
@@ -426,4 +648,50 @@ public class HistoryImpl
 
         return true;
     }
+
+    /**
+     * Locates a record by the name of the document it is stored in and its
+     * position among the <tt>record</tt> elements of this document.
+     */
+    static class RecordLocation
+    {
+        /**
+         * The name of the document.
+         */
+        final String filename;
+
+        /**
+         * The position of the record in the document.
+         */
+        final int position;
+
+        /**
+         * Creates the location of a record.
+         *
+         * @param filename the name of the document
+         * @param position the position of the record in the document
+         */
+        RecordLocation(String filename, int position)
+        {
+            this.filename = filename;
+            this.position = position;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof RecordLocation))
+                return false;
+
+            RecordLocation other = (RecordLocation) obj;
+            return position == other.position
+                && filename.equals(other.filename);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return filename.hashCode() * 31 + position;
+        }
+    }
 }
@@ -0,0 +1,664 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+/**
+ * An in-memory inverted index of the trigrams found in the values of history
+ * record fields. Keyword searches are substring searches, so a record can
+ * only match a keyword if it contains every trigram of this keyword. The
+ * index returns these candidate records which are then checked against the
+ * real keyword semantics (including case sensitivity).
+ * <p>
+ * Trigrams are case folded, which makes the candidates a superset of the
+ * matches of both case sensitive and case insensitive searches. Keywords
+ * shorter than a trigram cannot be answered by the index. Records without a
+ * value for the searched field are always candidates, as keyword searches
+ * do not filter them out.
+ * <p>
+ * A field is indexed the first time it is searched. Its index is built by
+ * the reader with {@link #beginField(String)},
+ * {@link #add(Object, String, String)} and {@link #endField(String)};
+ * afterwards the writer keeps it up to date by adding every new record and
+ * by moving an updated record to the postings of its new values.
+ * <p>
+ * The estimated memory of the index is accounted in the
+ * <tt>HistoryDocumentCache</tt> of the history service, which clears the
+ * index when it has not been used recently and the cache is full. The index
+ * is then built again the next time it is searched.
+ *
+ * @param <K> the type of the keys locating records in the history
+ */
+public class HistoryKeywordIndex<K>
+{
+    /**
+     * The number of characters of an indexed gram.
+     */
+    static final int GRAM_LENGTH = 3;
+
+    /**
+     * The estimated memory in bytes used by an indexed record besides its
+     * postings.
+     */
+    private static final int KEY_BYTES = 64;
+
+    /**
+     * The estimated memory in bytes used by an indexed trigram besides its
+     * postings.
+     */
+    private static final int GRAM_BYTES = 112;
+
+    /**
+     * The estimated memory in bytes used by an id in postings.
+     */
+    private static final int POSTING_BYTES = 4;
+
+    /**
+     * The cache in which the memory of this index is accounted or
+     * <tt>null</tt> if it is not accounted.
+     */
+    private final HistoryDocumentCache cache;
+
+    /**
+     * The history this index belongs to.
+     */
+    private final Object history;
+
+    /**
+     * The keys of the indexed records. Postings refer to records by their
+     * position in this list.
+     */
+    private final List<K> keys = new ArrayList<K>();
+
+    /**
+     * The positions of the indexed records in {@link #keys}, by key.
+     */
+    private final Map<K, Integer> ids = new HashMap<K, Integer>();
+
+    /**
+     * The indexes of the fields, by field name.
+     */
+    private final Map<String, FieldIndex> fields
+        = new HashMap<String, FieldIndex>();
+
+    /**
+     * The estimated memory of this index in bytes.
+     */
+    private long bytes = 0;
+
+    /**
+     * Creates the keyword index of a history.
+     *
+     * @param cache the cache in which the memory of the index is accounted
+     * or <tt>null</tt> if it is not to be accounted
+     * @param history the history the index belongs to
+     */
+    public HistoryKeywordIndex(HistoryDocumentCache cache, Object history)
+    {
+        this.cache = cache;
+        this.history = history;
+    }
+
+    /**
+     * Checks whether the index can help searching for <tt>keywords</tt>,
+     * i.e. whether at least one of them is long enough to contain a trigram.
+     *
+     * @param keywords the keywords to search for
+     * @return <tt>true</tt> if the index can answer a search for
+     * <tt>keywords</tt>
+     */
+    public static boolean canAnswer(String[] keywords)
+    {
+        if (keywords == null)
+            return false;
+
+        for (String keyword : keywords)
+        {
+            if (keyword != null && keyword.length() >= GRAM_LENGTH)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the index of <tt>field</tt> was built or is being
+     * built.
+     *
+     * @param field the name of the field
+     * @return <tt>true</tt> if <tt>field</tt> is indexed
+     */
+    public synchronized boolean isIndexed(String field)
+    {
+        return fields.containsKey(field);
+    }
+
+    /**
+     * Starts indexing <tt>field</tt>. Records added from now on are indexed
+     * for this field, but searches are not answered until
+     * {@link #endField(String)} is called.
+     *
+     * @param field the name of the field
+     */
+    public synchronized void beginField(String field)
+    {
+        if (!fields.containsKey(field))
+            fields.put(field, new FieldIndex());
+    }
+
+    /**
+     * Marks the index of <tt>field</tt> as complete.
+     *
+     * @param field the name of the field
+     */
+    public void endField(String field)
+    {
+        synchronized (this)
+        {
+            FieldIndex index = fields.get(field);
+
+            if (index != null)
+                index.complete = true;
+        }
+        account();
+    }
+
+    /**
+     * Drops the whole index, for example when records were renumbered or
+     * when the cache evicts it.
+     */
+    public void clear()
+    {
+        evict();
+        account();
+    }
+
+    /**
+     * Drops the whole index without accounting it, for the cache which
+     * evicts it.
+     */
+    synchronized void evict()
+    {
+        keys.clear();
+        ids.clear();
+        fields.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Returns the estimated memory of this index in bytes.
+     *
+     * @return the estimated memory of this index in bytes
+     */
+    public synchronized long getSize()
+    {
+        return bytes;
+    }
+
+    /**
+     * Indexes the values of the indexed fields of a record.
+     *
+     * @param key the key locating the record
+     * @param propertyNames the names of the properties of the record
+     * @param propertyValues the values of the properties of the record
+     */
+    public void add(K key, String[] propertyNames, String[] propertyValues)
+    {
+        synchronized (this)
+        {
+            if (fields.isEmpty())
+                return;
+
+            int id = getId(key);
+
+            for (Map.Entry<String, FieldIndex> e : fields.entrySet())
+            {
+                add(e.getValue(), id,
+                    getValue(e.getKey(), propertyNames, propertyValues));
+            }
+        }
+        account();
+    }
+
+    /**
+     * Indexes the value of a single field of a record. Does nothing if the
+     * field is not indexed.
+     *
+     * @param key the key locating the record
+     * @param field the name of the field
+     * @param value the value of the field or <tt>null</tt> if the record
+     * has no value for it
+     */
+    public synchronized void add(K key, String field, String value)
+    {
+        FieldIndex index = fields.get(field);
+
+        if (index == null)
+            return;
+
+        add(index, getId(key), value);
+    }
+
+    /**
+     * Moves an updated record from the postings of its old values to the
+     * postings of its new values in the fields which changed. The fields
+     * which are in neither <tt>oldNames</tt> nor <tt>newNames</tt> are left
+     * unchanged.
+     *
+     * @param key the key locating the record before the update
+     * @param newKey the key locating the record after the update
+     * @param oldNames the names of the properties before the update
+     * @param oldValues the values of the properties before the update
+     * @param newNames the names of the properties after the update
+     * @param newValues the values of the properties after the update
+     */
+    public void update(K key,
+                       K newKey,
+                       String[] oldNames,
+                       String[] oldValues,
+                       String[] newNames,
+                       String[] newValues)
+    {
+        synchronized (this)
+        {
+            if (fields.isEmpty())
+                return;
+
+            Integer id = ids.remove(key);
+
+            if (id == null)
+            {
+                // not indexed yet, it is when the index is built
+                return;
+            }
+
+            keys.set(id, newKey);
+            ids.put(newKey, id);
+
+            for (Map.Entry<String, FieldIndex> e : fields.entrySet())
+            {
+                String field = e.getKey();
+                String oldValue = getValue(field, oldNames, oldValues);
+                String newValue = getValue(field, newNames, newValues);
+
+                if ((oldValue == null)
+                        ? (newValue == null)
+                        : oldValue.equals(newValue))
+                    continue;
+
+                bytes += e.getValue().remove(id, oldValue);
+                add(e.getValue(), id, newValue);
+            }
+        }
+        account();
+    }
+
+    /**
+     * Returns the keys of the records which may contain all
+     * <tt>keywords</tt> in <tt>field</tt>, in the order they were added.
+     *
+     * @param field the name of the field to search in
+     * @param keywords the keywords to search for
+     * @return the keys of the candidate records or <tt>null</tt> if the
+     * index cannot answer this search
+     */
+    public List<K> find(String field, String[] keywords)
+    {
+        List<K> candidates = find0(field, keywords);
+
+        // marks the index as recently used
+        if (candidates != null)
+            account();
+        return candidates;
+    }
+
+    /**
+     * Implements {@link #find(String, String[])}.
+     *
+     * @param field the name of the field to search in
+     * @param keywords the keywords to search for
+     * @return the keys of the candidate records or <tt>null</tt> if the
+     * index cannot answer this search
+     */
+    private synchronized List<K> find0(String field, String[] keywords)
+    {
+        FieldIndex index = fields.get(field);
+
+        if (index == null || !index.complete || !canAnswer(keywords))
+            return null;
+
+        Set<Long> grams = new HashSet<Long>();
+        for (String keyword : keywords)
+        {
+            if (keyword != null)
+                grams.addAll(grams(keyword));
+        }
+
+        Postings result = null;
+        for (Long gram : grams)
+        {
+            Postings postings = index.postings.get(gram);
+
+            if (postings == null)
+            {
+                result = new Postings(1);
+                break;
+            }
+
+            result = (result == null) ? postings : result.intersect(postings);
+        }
+        result = result.union(index.missing);
+
+        Set<K> candidates = new LinkedHashSet<K>();
+        for (int i = 0; i < result.size; i++)
+            candidates.add(keys.get(result.ids[i]));
+
+        return new ArrayList<K>(candidates);
+    }
+
+    /**
+     * Returns the position in {@link #keys} of a record, giving it one if it
+     * has none, so that a record indexed in several fields has one id.
+     *
+     * @param key the key locating the record
+     * @return the position of the record
+     */
+    private int getId(K key)
+    {
+        Integer id = ids.get(key);
+
+        if (id == null)
+        {
+            id = keys.size();
+            keys.add(key);
+            ids.put(key, id);
+            bytes += KEY_BYTES;
+        }
+        return id;
+    }
+
+    /**
+     * Indexes the value of a field of a record and accounts the memory used
+     * by the new postings.
+     *
+     * @param index the index of the field
+     * @param id the id of the record
+     * @param value the value of the field or <tt>null</tt>
+     */
+    private void add(FieldIndex index, int id, String value)
+    {
+        bytes += index.add(id, value);
+    }
+
+    /**
+     * Accounts the current memory of this index in the cache, which may
+     * clear this or other indexes. Must not be called with the lock of this
+     * index held as the cache locks the indexes it clears.
+     */
+    private void account()
+    {
+        if (cache != null)
+            cache.putKeywordIndex(history, this);
+    }
+
+    /**
+     * Returns the value of a property.
+     *
+     * @param name the name of the property
+     * @param propertyNames the names of the properties
+     * @param propertyValues the values of the properties
+     * @return the value of the property or <tt>null</tt> if there is none
+     */
+    private static String getValue(String name,
+                                   String[] propertyNames,
+                                   String[] propertyValues)
+    {
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (name.equals(propertyNames[i]))
+                return propertyValues[i];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the distinct case folded trigrams of <tt>value</tt>, each
+     * packed in a <tt>long</tt>.
+     *
+     * @param value the value to split
+     * @return the trigrams of <tt>value</tt>
+     */
+    static Set<Long> grams(String value)
+    {
+        Set<Long> grams = new HashSet<Long>();
+
+        for (int i = 0; i + GRAM_LENGTH <= value.length(); i++)
+        {
+            long gram = 0;
+            for (int j = 0; j < GRAM_LENGTH; j++)
+            {
+                gram = (gram << 16)
+                    | Character.toLowerCase(value.charAt(i + j));
+            }
+            grams.add(gram);
+        }
+
+        return grams;
+    }
+
+    /**
+     * The index of a single field.
+     */
+    private static class FieldIndex
+    {
+        /**
+         * The postings of every trigram found in the field.
+         */
+        private final Map<Long, Postings> postings
+            = new HashMap<Long, Postings>();
+
+        /**
+         * The records without a value for the field.
+         */
+        private final Postings missing = new Postings(4);
+
+        /**
+         * Whether all records of the history were indexed.
+         */
+        private boolean complete = false;
+
+        /**
+         * Adds the record with the given id to the postings of the trigrams
+         * of <tt>value</tt>.
+         *
+         * @param id the id of the record
+         * @param value the value of the field or <tt>null</tt>
+         * @return the estimated memory in bytes added to the index
+         */
+        private long add(int id, String value)
+        {
+            if (value == null || value.length() == 0)
+                return missing.add(id);
+
+            long added = 0;
+
+            for (Long gram : grams(value))
+            {
+                Postings p = postings.get(gram);
+
+                if (p == null)
+                {
+                    p = new Postings(4);
+                    postings.put(gram, p);
+                    added += GRAM_BYTES + p.ids.length * POSTING_BYTES;
+                }
+                added += p.add(id);
+            }
+            return added;
+        }
+
+        /**
+         * Removes the record with the given id from the postings of the
+         * trigrams of <tt>value</tt>.
+         *
+         * @param id the id of the record
+         * @param value the value of the field or <tt>null</tt>
+         * @return the estimated memory in bytes added to the index, negative
+         * when postings are dropped
+         */
+        private long remove(int id, String value)
+        {
+            if (value == null || value.length() == 0)
+            {
+                missing.remove(id);
+                return 0;
+            }
+
+            long added = 0;
+
+            for (Long gram : grams(value))
+            {
+                Postings p = postings.get(gram);
+
+                if (p != null && p.remove(id) && p.size == 0)
+                {
+                    postings.remove(gram);
+                    added -= GRAM_BYTES + p.ids.length * POSTING_BYTES;
+                }
+            }
+            return added;
+        }
+    }
+
+    /**
+     * A sorted list of record ids.
+     */
+    private static class Postings
+    {
+        private int[] ids;
+
+        private int size = 0;
+
+        private Postings(int capacity)
+        {
+            ids = new int[capacity];
+        }
+
+        /**
+         * Adds an id. Ids are usually added in increasing order, in which
+         * case they are appended.
+         *
+         * @param id the id to add
+         * @return the estimated memory in bytes added to the postings
+         */
+        private long add(int id)
+        {
+            int pos = size;
+
+            if (size > 0 && ids[size - 1] >= id)
+            {
+                pos = Arrays.binarySearch(ids, 0, size, id);
+                if (pos >= 0)
+                    return 0;
+                pos = -pos - 1;
+            }
+
+            long added = 0;
+
+            if (size == ids.length)
+            {
+                ids = Arrays.copyOf(ids, size * 2);
+                added = size * POSTING_BYTES;
+            }
+            System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+            ids[pos] = id;
+            size++;
+            return added;
+        }
+
+        /**
+         * Removes an id.
+         *
+         * @param id the id to remove
+         * @return <tt>true</tt> if the id was in the postings
+         */
+        private boolean remove(int id)
+        {
+            int pos = Arrays.binarySearch(ids, 0, size, id);
+
+            if (pos < 0)
+                return false;
+
+            System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+            size--;
+            return true;
+        }
+
+        /**
+         * Returns the ids found in both this and <tt>other</tt>.
+         *
+         * @param other the postings to intersect with
+         * @return the intersection
+         */
+        private Postings intersect(Postings other)
+        {
+            Postings result
+                = new Postings(Math.max(1, Math.min(size, other.size)));
+
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size)
+            {
+                if (ids[i] < other.ids[j])
+                    i++;
+                else if (ids[i] > other.ids[j])
+                    j++;
+                else
+                {
+                    result.add(ids[i]);
+                    i++;
+                    j++;
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * Returns the ids found in this or <tt>other</tt>.
+         *
+         * @param other the postings to merge with
+         * @return the union
+         */
+        private Postings union(Postings other)
+        {
+            if (other.size == 0)
+                return this;
+
+            Postings result = new Postings(size + other.size);
+
+            int i = 0;
+            int j = 0;
+            while (i < size || j < other.size)
+            {
+                if (j == other.size
+                        || (i < size && ids[i] < other.ids[j]))
+                    result.add(ids[i++]);
+                else if (i == size || ids[i] > other.ids[j])
+                    result.add(other.ids[j++]);
+                else
+                {
+                    result.add(ids[i]);
+                    i++;
+                    j++;
+                }
+            }
+
+            return result;
+        }
+    }
+}
@@ -9,6 +9,7 @@ package net.java.sip.communicator.impl.history;
 import static
     net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
 
+import java.io.*;
 import java.text.*;
 import java.util.*;
 import java.util.regex.*;
@@ -16,7 +17,9 @@ import java.util.regex.*;
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
 
+import org.jitsi.util.xml.XMLUtils;
 import org.w3c.dom.*;
 
 /**
@@ -27,6 +30,12 @@ import org.w3c.dom.*;
 public class HistoryReaderImpl
     implements HistoryReader
 {
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryReaderImpl.class);
+
     private HistoryImpl historyImpl;
     private Vector<HistorySearchProgressListener> progressListeners
         = new Vector<HistorySearchProgressListener>();
@@ -166,91 +175,14 @@ public class HistoryReaderImpl
         int leftCount = count;
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
-            {
-                currentFile--;
-                continue;
-            }
-
-            // will get nodes and construct a List of nodes
-            // so we can easyly get sublist of it
-            List<Node> nodes = new ArrayList<Node>();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
-            {
-                nodes.add(nodesList.item(i));
-            }
-
-            List<Node> lNodes = null;
-
-            if (nodes.size() > leftCount)
-            {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
-                leftCount = 0;
-            }
-            else
-            {
-                lNodes = nodes;
-                leftCount -= nodes.size();
-            }
+            List<HistoryRecord> records = readRecords(
+                filelist.get(currentFile), null, null,
+                leftCount, Integer.MAX_VALUE, false);
 
-            Iterator<Node> i = lNodes.iterator();
-            while (i.hasNext())
-            {
-                Node node = i.next();
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue == null)
-                            continue;
-
-                        nameVals.add(propertyNode.getNodeName());
-                        nameVals.add(nodeValue.getNodeValue());
-                    }
-                }
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-            }
+            result.addAll(records);
+            leftCount -= records.size();
 
             currentFile--;
         }
@@ -336,82 +268,14 @@ public class HistoryReaderImpl
         int leftCount = count;
         int currentFile = 0;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile < filelist.size())
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
-            {
-                currentFile++;
-                continue;
-            }
-
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
-            {
-                node = nodes.item(i);
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
+            // broken records are skipped
+            List<HistoryRecord> records = readRecords(
+                filelist.get(currentFile), date, null, -1, leftCount, true);
 
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
-            }
+            result.addAll(records);
+            leftCount -= records.size();
 
             currentFile++;
         }
@@ -533,6 +397,16 @@ public class HistoryReaderImpl
             = filterFilesByDate(this.historyImpl.getFileList(),
                                 startDate, endDate);
 
+        List<HistoryImpl.RecordLocation> candidates
+            = findCandidates(keywords, field);
+        if (candidates != null)
+        {
+            findInCandidates(filelist, candidates, startDate, endDate,
+                keywords, field, caseSensitive, result);
+
+            return new OrderedQueryResultSet<HistoryRecord>(result);
+        }
+
         double currentProgress
             = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
         double fileProgressStep
@@ -544,14 +418,135 @@ public class HistoryReaderImpl
                     / filelist.size();
 
         // start progress - minimum value
+        fireProgressStateChanged(startDate, endDate,
+            keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
+
+        for (String filename : filelist)
+        {
+            List<HistoryRecord> records = readRecords(filename,
+                startDate, endDate, -1, Integer.MAX_VALUE, false);
+
+            for (HistoryRecord record : records)
+            {
+                if (SegmentHistoryReaderImpl.matchRecord(
+                        record, keywords, field, caseSensitive))
+                    result.add(record);
+            }
+
+            currentProgress += fileProgressStep;
+            fireProgressStateChanged(
+                startDate, endDate, keywords, (int)currentProgress);
+        }
+
+        // if maximum value is not reached fire an event
+        if((int)currentProgress
+                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                                     HistorySearchProgressListener.
+                                     PROGRESS_MAXIMUM_VALUE);
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Returns the locations of the records which may contain all
+     * <tt>keywords</tt> in <tt>field</tt> according to the keyword index of
+     * the history. The index of <tt>field</tt> is built the first time it is
+     * searched.
+     *
+     * @param keywords the keywords to search for
+     * @param field the field to search in
+     * @return the locations of the candidate records or <tt>null</tt> if
+     * the index cannot be used and all records have to be scanned
+     */
+    private List<HistoryImpl.RecordLocation> findCandidates(
+        String[] keywords, String field)
+    {
+        if (field == null || !HistoryKeywordIndex.canAnswer(keywords))
+            return null;
+
+        HistoryKeywordIndex<HistoryImpl.RecordLocation> index
+            = this.historyImpl.getKeywordIndex();
+
+        if (!index.isIndexed(field))
+        {
+            // records written while we scan are indexed by the writer
+            index.beginField(field);
+
+            Vector<String> filelist
+                = filterFilesByDate(this.historyImpl.getFileList(), null, null);
+            for (String filename : filelist)
+            {
+                Document doc = this.historyImpl.getDocumentForFile(filename);
+
+                if(doc == null)
+                    continue;
+
+                NodeList nodes = doc.getElementsByTagName("record");
+                for (int i = 0; i < nodes.getLength(); i++)
+                {
+                    String value = null;
+                    Element fieldNode
+                        = XMLUtils.findChild((Element) nodes.item(i), field);
+                    if (fieldNode != null && fieldNode.getFirstChild() != null)
+                        value = fieldNode.getFirstChild().getNodeValue();
+
+                    index.add(
+                        new HistoryImpl.RecordLocation(filename, i),
+                        field,
+                        value);
+                }
+            }
+
+            index.endField(field);
+        }
+
+        return index.find(field, keywords);
+    }
+
+    /**
+     * Adds to <tt>result</tt> the records at the given locations which are
+     * in the given period and match the keywords.
+     *
+     * @param filelist the documents which may contain records in the period
+     * @param candidates the locations of the candidate records
+     * @param startDate start of the interval in which we search
+     * @param endDate end of the interval in which we search
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @param result the set to add the found records to
+     */
+    private void findInCandidates(
+        Vector<String> filelist, List<HistoryImpl.RecordLocation> candidates,
+        Date startDate, Date endDate,
+        String[] keywords, String field, boolean caseSensitive,
+        Set<HistoryRecord> result)
+    {
+        Map<String, List<Integer>> positions
+            = new HashMap<String, List<Integer>>();
+        for (HistoryImpl.RecordLocation location : candidates)
+        {
+            List<Integer> filePositions = positions.get(location.filename);
+            if (filePositions == null)
+            {
+                filePositions = new ArrayList<Integer>();
+                positions.put(location.filename, filePositions);
+            }
+            filePositions.add(location.position);
+        }
+
         fireProgressStateChanged(startDate, endDate,
             keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
 
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        Iterator<String> fileIterator = filelist.iterator();
-        while (fileIterator.hasNext())
+        for (String filename : filelist)
         {
-            String filename = fileIterator.next();
+            List<Integer> filePositions = positions.get(filename);
+            if (filePositions == null)
+                continue;
 
             Document doc = this.historyImpl.getDocumentForFile(filename);
 
@@ -559,16 +554,12 @@ public class HistoryReaderImpl
                 continue;
 
             NodeList nodes = doc.getElementsByTagName("record");
-
-            double nodesProgressStep = fileProgressStep;
-
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
-
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            for (int position : filePositions)
             {
-                node = nodes.item(i);
+                if (position >= nodes.getLength())
+                    continue;
+
+                Node node = nodes.item(position);
 
                 Date timestamp;
                 String ts = node.getAttributes().getNamedItem("timestamp")
@@ -584,34 +575,134 @@ public class HistoryReaderImpl
 
                 if(isInPeriod(timestamp, startDate, endDate))
                 {
-                    NodeList propertyNodes = node.getChildNodes();
-
                     HistoryRecord record =
-                        filterByKeyword(propertyNodes, timestamp,
+                        filterByKeyword(node.getChildNodes(), timestamp,
                                         keywords, field, caseSensitive);
 
                     if(record != null)
-                    {
                         result.add(record);
-                    }
                 }
+            }
+        }
+
+        fireProgressStateChanged(startDate, endDate, keywords,
+            HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+    }
 
-                currentProgress += nodesProgressStep;
-                fireProgressStateChanged(
-                    startDate, endDate, keywords, (int)currentProgress);
+    /**
+     * Reads the records of a document which are in the given period. The
+     * document is streamed from its file unless it is already parsed. If
+     * streaming fails, the document is parsed as a DOM so that a corrupted
+     * file is fixed as before.
+     *
+     * @param filename the name of the document
+     * @param startDate start of the period or <tt>null</tt>
+     * @param endDate end of the period or <tt>null</tt>
+     * @param last the number of records at the end of the document to read,
+     * regardless of the period, or -1 to read from its start
+     * @param limit the maximum number of records to read
+     * @param skipBrokenRecords whether to skip records having a property
+     * without value
+     * @return the records in document order
+     */
+    private List<HistoryRecord> readRecords(String filename,
+                                            Date startDate,
+                                            Date endDate,
+                                            int last,
+                                            int limit,
+                                            boolean skipBrokenRecords)
+    {
+        Document doc = this.historyImpl.getLoadedDocument(filename);
+
+        if (doc == null)
+        {
+            File file = this.historyImpl.getFile(filename);
+            try
+            {
+                StreamingHistoryReader.Result streamed
+                    = (last >= 0)
+                        ? StreamingHistoryReader.readLast(file, last)
+                        : StreamingHistoryReader.read(file,
+                            startDate, endDate, 0, limit, skipBrokenRecords);
+
+                return streamed.records;
             }
+            catch (Exception e)
+            {
+                logger.warn("Could not stream history file " + file, e);
+            }
+
+            doc = this.historyImpl.getDocumentForFile(filename);
+            if (doc == null)
+                return new ArrayList<HistoryRecord>();
         }
 
-        // if maximum value is not reached fire an event
-        if((int)currentProgress
-                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        NodeList nodes = doc.getElementsByTagName("record");
+        int length = nodes.getLength();
+        int from = (last >= 0) ? Math.max(0, length - last) : 0;
+        for (int i = from; i < length && records.size() < limit; i++)
         {
-            fireProgressStateChanged(startDate, endDate, keywords,
-                                     HistorySearchProgressListener.
-                                     PROGRESS_MAXIMUM_VALUE);
+            Element node = (Element) nodes.item(i);
+            Date timestamp = StreamingHistoryReader.parseTimestamp(
+                node.getAttribute("timestamp"));
+
+            if (last < 0 && !isInPeriod(timestamp, startDate, endDate))
+                continue;
+
+            HistoryRecord record = toRecord(
+                node.getChildNodes(), timestamp, skipBrokenRecords);
+
+            if (record != null)
+                records.add(record);
         }
 
-        return new OrderedQueryResultSet<HistoryRecord>(result);
+        return records;
+    }
+
+    /**
+     * Returns the <tt>HistoryRecord</tt> corresponding to the given nodes.
+     *
+     * @param propertyNodes the child nodes of a record element
+     * @param timestamp the timestamp of the record
+     * @param skipBrokenRecords whether to return <tt>null</tt> if a property
+     * has no value
+     * @return the record or <tt>null</tt> if it is broken
+     */
+    private static HistoryRecord toRecord(NodeList propertyNodes,
+                                          Date timestamp,
+                                          boolean skipBrokenRecords)
+    {
+        ArrayList<String> nameVals = new ArrayList<String>();
+
+        int len = propertyNodes.getLength();
+        for (int j = 0; j < len; j++)
+        {
+            Node propertyNode = propertyNodes.item(j);
+            if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+            {
+                // Get nested TEXT node's value
+                Node nodeValue = propertyNode.getFirstChild();
+
+                if(nodeValue != null)
+                {
+                    nameVals.add(propertyNode.getNodeName());
+                    nameVals.add(nodeValue.getNodeValue());
+                }
+                else if(skipBrokenRecords)
+                    return null;
+            }
+        }
+
+        String[] propertyNames = new String[nameVals.size() / 2];
+        String[] propertyValues = new String[propertyNames.length];
+        for (int j = 0; j < propertyNames.length; j++)
+        {
+            propertyNames[j] = nameVals.get(j * 2);
+            propertyValues[j] = nameVals.get(j * 2 + 1);
+        }
+
+        return new HistoryRecord(propertyNames, propertyValues, timestamp);
     }
 
     /**
@@ -949,7 +1040,7 @@ public class HistoryReaderImpl
      * Used to compare HistoryRecords
      * ant to be ordered in TreeSet
      */
-    private static class HistoryRecordComparator
+    static class HistoryRecordComparator
         implements Comparator<HistoryRecord>
     {
         public int compare(HistoryRecord h1, HistoryRecord h2)
@@ -0,0 +1,743 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * An append-only binary store for history records. Records are appended to a
+ * segment file and for every record a fixed size entry holding its timestamp
+ * and its offset in the segment is appended to an index file. The index is
+ * kept in memory sorted by timestamp so that range queries and "last N"
+ * queries only touch the records they return.
+ * <p>
+ * The segment file has the following layout:
+ * <pre>
+ * header : int magic, int version
+ * record : int length, long timestamp, byte flags, int propertyCount,
+ *          (UTF name, int valueLength, byte[] UTF-8 value) * propertyCount
+ * </pre>
+ * Updating a record appends its new version to the segment and rewrites
+ * the offset of its index entry in place, so the segment is never rewritten.
+ * Such versions are flagged so that an interrupted update is not mistaken
+ * for a new record when the index is recovered.
+ * <p>
+ * Files are opened only for the duration of an operation, which keeps the
+ * number of open descriptors independent of the number of histories.
+ */
+public class HistorySegmentStore
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistorySegmentStore.class);
+
+    /**
+     * The default base name of the segment and index files.
+     */
+    public static final String DEFAULT_BASE_NAME = "records";
+
+    /**
+     * The extension of the segment file.
+     */
+    public static final String SEGMENT_EXTENSION = ".seg";
+
+    /**
+     * The extension of the index file.
+     */
+    public static final String INDEX_EXTENSION = ".idx";
+
+    /**
+     * The magic number at the beginning of every segment file ("JHS1").
+     */
+    private static final int SEGMENT_MAGIC = 0x4A485331;
+
+    /**
+     * The version of the segment format.
+     */
+    private static final int SEGMENT_VERSION = 1;
+
+    /**
+     * The size of the segment file header.
+     */
+    private static final int SEGMENT_HEADER_SIZE = 8;
+
+    /**
+     * The size of an entry in the index file: a timestamp and an offset.
+     */
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    /**
+     * The flag marking a record which is a new version of an indexed one.
+     */
+    private static final byte FLAG_REPLACEMENT = 0x01;
+
+    /**
+     * The segment file.
+     */
+    private final File segmentFile;
+
+    /**
+     * The index file.
+     */
+    private final File indexFile;
+
+    /**
+     * The timestamps of the records sorted in ascending order.
+     */
+    private long[] timestamps = new long[16];
+
+    /**
+     * The offsets in the segment file of the records in the order of
+     * <tt>timestamps</tt>.
+     */
+    private long[] offsets = new long[16];
+
+    /**
+     * The positions of the entries in the index file in the order of
+     * <tt>timestamps</tt>.
+     */
+    private int[] slots = new int[16];
+
+    /**
+     * The number of records in this store.
+     */
+    private int size = 0;
+
+    /**
+     * The number of entries in the index file.
+     */
+    private int indexEntries = 0;
+
+    /**
+     * The length of the segment file.
+     */
+    private long segmentLength = 0;
+
+    /**
+     * Creates a store which keeps its files in <tt>directory</tt> using the
+     * default base name.
+     *
+     * @param directory the directory of the store
+     * @throws IOException if the store cannot be opened or recovered
+     */
+    public HistorySegmentStore(File directory)
+        throws IOException
+    {
+        this(directory, DEFAULT_BASE_NAME);
+    }
+
+    /**
+     * Creates a store which keeps its files in <tt>directory</tt> using
+     * <tt>baseName</tt> for the names of the segment and index files.
+     *
+     * @param directory the directory of the store
+     * @param baseName the base name of the files of the store
+     * @throws IOException if the store cannot be opened or recovered
+     */
+    public HistorySegmentStore(File directory, String baseName)
+        throws IOException
+    {
+        this.segmentFile = new File(directory, baseName + SEGMENT_EXTENSION);
+        this.indexFile = new File(directory, baseName + INDEX_EXTENSION);
+
+        load();
+    }
+
+    /**
+     * Checks whether a store with the default base name exists in
+     * <tt>directory</tt>.
+     *
+     * @param directory the directory to check
+     * @return <tt>true</tt> if there is a segment file in the directory
+     */
+    public static boolean exists(File directory)
+    {
+        return new File(directory, DEFAULT_BASE_NAME + SEGMENT_EXTENSION)
+            .exists();
+    }
+
+    /**
+     * Returns the segment file of this store.
+     *
+     * @return the segment file of this store
+     */
+    public File getSegmentFile()
+    {
+        return segmentFile;
+    }
+
+    /**
+     * Returns the index file of this store.
+     *
+     * @return the index file of this store
+     */
+    public File getIndexFile()
+    {
+        return indexFile;
+    }
+
+    /**
+     * Returns the number of records in this store.
+     *
+     * @return the number of records in this store
+     */
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * Appends a record to this store.
+     *
+     * @param timestamp the timestamp of the record
+     * @param propertyNames the names of the properties of the record
+     * @param propertyValues the values of the properties of the record
+     * @return the offset of the record
+     * @throws IOException if writing fails
+     */
+    public synchronized long append(long timestamp,
+                                    String[] propertyNames,
+                                    String[] propertyValues)
+        throws IOException
+    {
+        byte[] data
+            = encode(timestamp, (byte) 0, propertyNames, propertyValues);
+
+        long offset = writeSegment(data);
+        writeIndexEntry(indexEntries, timestamp, offset);
+
+        insert(timestamp, offset, indexEntries);
+        indexEntries++;
+
+        return offset;
+    }
+
+    /**
+     * Replaces the record stored at <tt>offset</tt> with a new version. The
+     * new version is appended and keeps the position of the old one in the
+     * timestamp order. The record is looked up in the in-memory index among
+     * the records with its timestamp.
+     *
+     * @param timestamp the timestamp of the record to replace
+     * @param offset the offset of the record to replace
+     * @param propertyNames the names of the properties of the new version
+     * @param propertyValues the values of the properties of the new version
+     * @return the offset of the new version or <tt>-1</tt> if no record with
+     * <tt>timestamp</tt> was stored at <tt>offset</tt>
+     * @throws IOException if writing fails
+     */
+    public synchronized long replace(long timestamp,
+                                     long offset,
+                                     String[] propertyNames,
+                                     String[] propertyValues)
+        throws IOException
+    {
+        int end = upperBound(timestamp);
+
+        for (int i = lowerBound(timestamp); i < end; i++)
+        {
+            if (offsets[i] != offset)
+                continue;
+
+            byte[] data
+                = encode(timestamps[i], FLAG_REPLACEMENT,
+                         propertyNames, propertyValues);
+            long newOffset = writeSegment(data);
+
+            writeIndexEntry(slots[i], timestamps[i], newOffset);
+            offsets[i] = newOffset;
+            return newOffset;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the offsets of the records with a timestamp in
+     * [<tt>startTime</tt>, <tt>endTime</tt>) in ascending timestamp order.
+     *
+     * @param startTime the start of the period, inclusive
+     * @param endTime the end of the period, exclusive
+     * @return the offsets of the matching records
+     */
+    public synchronized long[] findOffsets(long startTime, long endTime)
+    {
+        int from = lowerBound(startTime);
+        int to = lowerBound(endTime);
+
+        return copyOffsets(from, Math.max(from, to));
+    }
+
+    /**
+     * Returns the offsets of at most <tt>count</tt> records with a timestamp
+     * equal to or after <tt>startTime</tt>, the oldest ones first.
+     *
+     * @param startTime the start of the period, inclusive
+     * @param count the maximum number of records
+     * @return the offsets of the matching records
+     */
+    public synchronized long[] findFirstOffsets(long startTime, int count)
+    {
+        int from = lowerBound(startTime);
+        int to = from + Math.max(0, Math.min(count, size - from));
+
+        return copyOffsets(from, to);
+    }
+
+    /**
+     * Returns the offsets of at most <tt>count</tt> records with a timestamp
+     * before <tt>endTime</tt>, the newest ones, in ascending order.
+     *
+     * @param endTime the end of the period, exclusive
+     * @param count the maximum number of records
+     * @return the offsets of the matching records
+     */
+    public synchronized long[] findLastOffsets(long endTime, int count)
+    {
+        int to = lowerBound(endTime);
+
+        return copyOffsets(Math.max(0, to - Math.max(0, count)), to);
+    }
+
+    /**
+     * Reads the records stored at the given offsets.
+     *
+     * @param recordOffsets the offsets of the records to read
+     * @return the records in the order of <tt>recordOffsets</tt>
+     * @throws IOException if reading fails
+     */
+    public List<HistoryRecord> read(long[] recordOffsets)
+        throws IOException
+    {
+        List<HistoryRecord> result
+            = new ArrayList<HistoryRecord>(recordOffsets.length);
+
+        if (recordOffsets.length == 0)
+            return result;
+
+        RandomAccessFile raf = new RandomAccessFile(segmentFile, "r");
+        try
+        {
+            for (long offset : recordOffsets)
+            {
+                result.add(readRecord(raf, offset));
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads the record stored at <tt>offset</tt>.
+     *
+     * @param offset the offset of the record
+     * @return the record
+     * @throws IOException if reading fails
+     */
+    public HistoryRecord read(long offset)
+        throws IOException
+    {
+        return read(new long[]{offset}).get(0);
+    }
+
+    /**
+     * Loads the index in memory and recovers from an interrupted write by
+     * indexing complete records missing from the index and truncating a
+     * partially written one.
+     *
+     * @throws IOException if the store cannot be read
+     */
+    private void load()
+        throws IOException
+    {
+        if (!segmentFile.exists() || segmentFile.length() == 0)
+        {
+            RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+            try
+            {
+                raf.setLength(0);
+                raf.writeInt(SEGMENT_MAGIC);
+                raf.writeInt(SEGMENT_VERSION);
+                segmentLength = raf.length();
+            }
+            finally
+            {
+                raf.close();
+            }
+
+            new FileOutputStream(indexFile).close();
+            return;
+        }
+
+        RandomAccessFile segment = new RandomAccessFile(segmentFile, "rw");
+        try
+        {
+            if (segment.length() < SEGMENT_HEADER_SIZE
+                    || segment.readInt() != SEGMENT_MAGIC
+                    || segment.readInt() != SEGMENT_VERSION)
+            {
+                throw new IOException(
+                    "Not a history segment file: " + segmentFile);
+            }
+            segmentLength = segment.length();
+
+            long indexedEnd = loadIndex(segment);
+
+            recover(segment, indexedEnd);
+        }
+        finally
+        {
+            segment.close();
+        }
+    }
+
+    /**
+     * Reads the index file, dropping entries which point outside the
+     * segment.
+     *
+     * @param segment the opened segment file
+     * @return the end of the last indexed record in the segment
+     * @throws IOException if reading fails
+     */
+    private long loadIndex(RandomAccessFile segment)
+        throws IOException
+    {
+        long indexedEnd = SEGMENT_HEADER_SIZE;
+
+        if (!indexFile.exists())
+            return indexedEnd;
+
+        DataInputStream in
+            = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)));
+        int entries = (int) (indexFile.length() / INDEX_ENTRY_SIZE);
+        try
+        {
+            for (int i = 0; i < entries; i++)
+            {
+                long timestamp = in.readLong();
+                long offset = in.readLong();
+
+                if (offset < SEGMENT_HEADER_SIZE
+                        || offset + 4 > segmentLength)
+                {
+                    entries = i;
+                    break;
+                }
+
+                segment.seek(offset);
+                long end = offset + 4 + segment.readInt();
+                if (end > segmentLength)
+                {
+                    entries = i;
+                    break;
+                }
+
+                insert(timestamp, offset, i);
+                indexedEnd = Math.max(indexedEnd, end);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        indexEntries = entries;
+        if (indexFile.length() != (long) entries * INDEX_ENTRY_SIZE)
+        {
+            RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+            try
+            {
+                raf.setLength((long) entries * INDEX_ENTRY_SIZE);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+
+        return indexedEnd;
+    }
+
+    /**
+     * Indexes the complete records following <tt>indexedEnd</tt> and
+     * truncates the segment at the first incomplete one. New versions of
+     * records whose index entry was not updated are dropped.
+     *
+     * @param segment the opened segment file
+     * @param indexedEnd the end of the last indexed record
+     * @throws IOException if reading or writing fails
+     */
+    private void recover(RandomAccessFile segment, long indexedEnd)
+        throws IOException
+    {
+        long offset = indexedEnd;
+        while (offset + 4 + 9 <= segmentLength)
+        {
+            segment.seek(offset);
+            int length = segment.readInt();
+            if (length < 9 || offset + 4 + length > segmentLength)
+                break;
+
+            long timestamp = segment.readLong();
+            byte flags = segment.readByte();
+
+            if ((flags & FLAG_REPLACEMENT) == 0)
+            {
+                writeIndexEntry(indexEntries, timestamp, offset);
+                insert(timestamp, offset, indexEntries);
+                indexEntries++;
+            }
+
+            offset += 4 + length;
+        }
+
+        if (offset < segmentLength)
+        {
+            logger.warn("Truncating incomplete history record in "
+                + segmentFile + " at " + offset);
+            segment.setLength(offset);
+            segmentLength = offset;
+        }
+    }
+
+    /**
+     * Appends <tt>data</tt> to the segment file.
+     *
+     * @param data the encoded record
+     * @return the offset of the record
+     * @throws IOException if writing fails
+     */
+    private long writeSegment(byte[] data)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+        try
+        {
+            long offset = segmentLength;
+
+            raf.seek(offset);
+            raf.write(data);
+            segmentLength = offset + data.length;
+
+            return offset;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes an entry of the index file.
+     *
+     * @param slot the position of the entry
+     * @param timestamp the timestamp of the record
+     * @param offset the offset of the record
+     * @throws IOException if writing fails
+     */
+    private void writeIndexEntry(int slot, long timestamp, long offset)
+        throws IOException
+    {
+        byte[] entry = new byte[INDEX_ENTRY_SIZE];
+        for (int i = 0; i < 8; i++)
+        {
+            entry[i] = (byte) (timestamp >>> (56 - 8 * i));
+            entry[8 + i] = (byte) (offset >>> (56 - 8 * i));
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        try
+        {
+            raf.seek((long) slot * INDEX_ENTRY_SIZE);
+            raf.write(entry);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Inserts an entry in the in-memory index keeping it sorted by
+     * timestamp. Records with equal timestamps keep their insertion order.
+     *
+     * @param timestamp the timestamp of the record
+     * @param offset the offset of the record
+     * @param slot the position of the entry in the index file
+     */
+    private void insert(long timestamp, long offset, int slot)
+    {
+        if (size == timestamps.length)
+        {
+            int capacity = size * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            slots = Arrays.copyOf(slots, capacity);
+        }
+
+        // records are almost always appended in chronological order
+        int pos = size;
+        if (size > 0 && timestamps[size - 1] > timestamp)
+        {
+            pos = upperBound(timestamp);
+            System.arraycopy(timestamps, pos, timestamps, pos + 1, size - pos);
+            System.arraycopy(offsets, pos, offsets, pos + 1, size - pos);
+            System.arraycopy(slots, pos, slots, pos + 1, size - pos);
+        }
+
+        timestamps[pos] = timestamp;
+        offsets[pos] = offset;
+        slots[pos] = slot;
+        size++;
+    }
+
+    /**
+     * Returns the position of the first record with a timestamp equal to or
+     * after <tt>timestamp</tt>.
+     *
+     * @param timestamp the timestamp to search for
+     * @return the position of the first record not before <tt>timestamp</tt>
+     */
+    private int lowerBound(long timestamp)
+    {
+        int low = 0;
+        int high = size;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < timestamp)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the position of the first record with a timestamp after
+     * <tt>timestamp</tt>.
+     *
+     * @param timestamp the timestamp to search for
+     * @return the position of the first record after <tt>timestamp</tt>
+     */
+    private int upperBound(long timestamp)
+    {
+        int low = 0;
+        int high = size;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] <= timestamp)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Copies the offsets in [<tt>from</tt>, <tt>to</tt>).
+     *
+     * @param from the first position, inclusive
+     * @param to the last position, exclusive
+     * @return the offsets
+     */
+    private long[] copyOffsets(int from, int to)
+    {
+        return Arrays.copyOfRange(offsets, from, to);
+    }
+
+    /**
+     * Encodes a record including its length prefix.
+     *
+     * @param timestamp the timestamp of the record
+     * @param flags the flags of the record
+     * @param propertyNames the names of the properties
+     * @param propertyValues the values of the properties
+     * @return the encoded record
+     * @throws IOException if encoding fails
+     */
+    private static byte[] encode(long timestamp,
+                                 byte flags,
+                                 String[] propertyNames,
+                                 String[] propertyValues)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(0);
+        out.writeLong(timestamp);
+        out.writeByte(flags);
+        out.writeInt(propertyNames.length);
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            out.writeUTF(propertyNames[i]);
+
+            byte[] value = propertyValues[i].getBytes("UTF-8");
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        out.flush();
+
+        byte[] data = bytes.toByteArray();
+        int length = data.length - 4;
+        data[0] = (byte) (length >>> 24);
+        data[1] = (byte) (length >>> 16);
+        data[2] = (byte) (length >>> 8);
+        data[3] = (byte) length;
+
+        return data;
+    }
+
+    /**
+     * Reads and decodes the record stored at <tt>offset</tt>.
+     *
+     * @param raf the opened segment file
+     * @param offset the offset of the record
+     * @return the decoded record
+     * @throws IOException if reading fails
+     */
+    private static HistoryRecord readRecord(RandomAccessFile raf, long offset)
+        throws IOException
+    {
+        raf.seek(offset);
+        byte[] data = new byte[raf.readInt()];
+        raf.readFully(data);
+
+        DataInputStream in
+            = new DataInputStream(new ByteArrayInputStream(data));
+        long timestamp = in.readLong();
+        in.readByte();
+        int count = in.readInt();
+
+        String[] propertyNames = new String[count];
+        String[] propertyValues = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            propertyNames[i] = in.readUTF();
+
+            byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            propertyValues[i] = new String(value, "UTF-8");
+        }
+
+        return new HistoryRecord(
+                propertyNames, propertyValues, new Date(timestamp));
+    }
+}
@@ -39,6 +39,72 @@ public class HistoryServiceImpl
      */
     public static final String DATA_FILE = "dbstruct.dat";
 
+    /**
+     * The name of the property which selects how history records are
+     * stored, either {@link #STORAGE_TYPE_XML} or
+     * {@link #STORAGE_TYPE_SEGMENT}. It is read when a history is opened
+     * and, like {@link #WRITE_BEHIND_PROPERTY}, it can be set for a single
+     * history or a group of histories by appending the components of their
+     * identifier.
+     */
+    public static final String STORAGE_TYPE_PROPERTY
+        = "net.java.sip.communicator.impl.history.STORAGE_TYPE";
+
+    /**
+     * Stores history records in XML documents. This is the default.
+     */
+    public static final String STORAGE_TYPE_XML = "xml";
+
+    /**
+     * Stores history records in an indexed append-only binary segment.
+     * Existing XML documents are migrated when a history is first opened.
+     */
+    public static final String STORAGE_TYPE_SEGMENT = "segment";
+
+    /**
+     * The name of the property which enables queuing the records added to
+     * a history and writing them in batches. Like all the properties
+     * configuring the writing of histories, it can be set for a single
+     * history or a group of histories by appending the components of their
+     * identifier, e.g. <tt>WRITE_BEHIND.messages</tt>.
+     */
+    public static final String WRITE_BEHIND_PROPERTY
+        = "net.java.sip.communicator.impl.history.WRITE_BEHIND";
+
+    /**
+     * The name of the property which sets the maximum time in milliseconds
+     * a queued record waits before it is written.
+     */
+    public static final String WRITE_BEHIND_DELAY_PROPERTY
+        = "net.java.sip.communicator.impl.history.WRITE_BEHIND_DELAY";
+
+    /**
+     * The name of the property which sets the number of queued records
+     * which causes them to be written at once.
+     */
+    public static final String WRITE_BEHIND_MAX_RECORDS_PROPERTY
+        = "net.java.sip.communicator.impl.history.WRITE_BEHIND_MAX_RECORDS";
+
+    /**
+     * The name of the property which selects when the files of a history
+     * are forced to the storage device, either {@link #SYNC_POLICY_NONE} or
+     * {@link #SYNC_POLICY_WRITE}.
+     */
+    public static final String SYNC_POLICY_PROPERTY
+        = "net.java.sip.communicator.impl.history.SYNC_POLICY";
+
+    /**
+     * Leaves it to the operating system to write files to the storage
+     * device. This is the default.
+     */
+    public static final String SYNC_POLICY_NONE = "none";
+
+    /**
+     * Forces the file of a history to the storage device each time records
+     * are written to it.
+     */
+    public static final String SYNC_POLICY_WRITE = "write";
+
     /**
      * The logger for this class.
      */
@@ -51,9 +117,31 @@ public class HistoryServiceImpl
 
     private final FileAccessService fileAccessService;
 
+    private final ConfigurationService configService;
+
+    /**
+     * The timer which writes the records queued by write-behind writers.
+     */
+    private Timer writeBehindTimer;
+
     private final DocumentBuilder builder;
 
-    private final boolean cacheEnabled;
+    /**
+     * The default value of {@link #CACHE_MAX_BYTES_PROPERTY}.
+     */
+    private static final long DEFAULT_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The default value of {@link #CACHE_MAX_BYTES_PROPERTY} when
+     * {@link #CACHE_ENABLED_PROPERTY} is set.
+     */
+    private static final long DEFAULT_ENABLED_CACHE_MAX_BYTES
+        = 64 * 1024 * 1024;
+
+    /**
+     * The cache of parsed documents shared by all histories.
+     */
+    private final HistoryDocumentCache documentCache;
 
     /**
      *  Characters and their replacement in created folder names
@@ -83,9 +171,17 @@ public class HistoryServiceImpl
     {
         this.builder =
             DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        this.cacheEnabled =
-            getConfigurationService(bundleContext).getBoolean(
-                CACHE_ENABLED_PROPERTY, false);
+        this.configService = getConfigurationService(bundleContext);
+
+        this.documentCache =
+            new HistoryDocumentCache(
+                configService.getLong(
+                    CACHE_MAX_BYTES_PROPERTY,
+                    configService.getBoolean(CACHE_ENABLED_PROPERTY, false)
+                        ? DEFAULT_ENABLED_CACHE_MAX_BYTES
+                        : DEFAULT_CACHE_MAX_BYTES),
+                configService.getLong(
+                    CACHE_MAX_RECORDS_PROPERTY, Long.MAX_VALUE));
         this.fileAccessService = getFileAccessService(bundleContext);
     }
 
@@ -173,8 +269,7 @@ public class HistoryServiceImpl
                         "There is already a history with the specified ID.");
             } else {
                 File dir = this.createHistoryDirectories(id);
-                HistoryImpl history = new HistoryImpl(id, dir, recordStructure,
-                        this);
+                History history = createHistoryImpl(id, dir, recordStructure);
 
                 File dbDatFile = new File(dir, HistoryServiceImpl.DATA_FILE);
                 DBStructSerializer dbss = new DBStructSerializer(this);
@@ -188,6 +283,27 @@ public class HistoryServiceImpl
         return retVal;
     }
 
+    /**
+     * Creates the <tt>History</tt> stored in <tt>directory</tt> using the
+     * configured storage type.
+     *
+     * @param id the identifier of the history
+     * @param directory the directory of the history
+     * @param recordStructure the structure of the records of the history
+     * @return the history
+     */
+    History createHistoryImpl(HistoryID id, File directory,
+                              HistoryRecordStructure recordStructure)
+    {
+        if (STORAGE_TYPE_SEGMENT.equalsIgnoreCase(
+                getHistoryProperty(id, STORAGE_TYPE_PROPERTY)))
+        {
+            return new SegmentHistoryImpl(id, directory, recordStructure, this);
+        }
+        else
+            return new HistoryImpl(id, directory, recordStructure, this);
+    }
+
     protected FileAccessService getFileAccessService()
     {
         return this.fileAccessService;
@@ -288,10 +404,104 @@ public class HistoryServiceImpl
     /**
      * Returns whether caching of readed documents is enabled or desibled.
      * @return boolean
+     * @deprecated documents are cached in the bounded cache returned by
+     * {@link #getDocumentCache()}, which is enabled unless one of its limits
+     * is set to zero
      */
+    @Deprecated
     protected boolean isCacheEnabled()
     {
-        return cacheEnabled;
+        return documentCache.isEnabled();
+    }
+
+    /**
+     * Returns the cache of parsed documents shared by all histories, which
+     * also exposes hit, miss and eviction counters.
+     * @return the cache of parsed documents
+     */
+    public HistoryDocumentCache getDocumentCache()
+    {
+        return documentCache;
+    }
+
+    /**
+     * Returns the value of a property configuring a history. The value set
+     * for the longest prefix of the identifier of the history wins, so that
+     * for the history <tt>messages/alice/bob</tt> the property
+     * <tt>NAME.messages.alice</tt> overrides <tt>NAME.messages</tt> which
+     * overrides <tt>NAME</tt>.
+     *
+     * @param id the identifier of the history
+     * @param propertyName the name of the property
+     * @return the value of the property or <tt>null</tt> if it is not set
+     */
+    String getHistoryProperty(HistoryID id, String propertyName)
+    {
+        String[] ids = id.getID();
+
+        for (int i = ids.length; i > 0; i--)
+        {
+            StringBuilder name = new StringBuilder(propertyName);
+            for (int j = 0; j < i; j++)
+                name.append('.').append(ids[j]);
+
+            String value = configService.getString(name.toString());
+            if (value != null)
+                return value;
+        }
+
+        return configService.getString(propertyName);
+    }
+
+    /**
+     * Returns the timer which writes the records queued by write-behind
+     * writers.
+     *
+     * @return the write-behind timer
+     */
+    synchronized Timer getWriteBehindTimer()
+    {
+        if (writeBehindTimer == null)
+            writeBehindTimer = new Timer("HistoryWriteBehind", true);
+        return writeBehindTimer;
+    }
+
+    /**
+     * Writes the records queued by the writers of all histories and stops
+     * the write-behind timer.
+     */
+    void stop()
+    {
+        List<History> all;
+        synchronized (this.histories)
+        {
+            all = new ArrayList<History>(this.histories.values());
+        }
+
+        for (History history : all)
+        {
+            if (history instanceof HistoryImpl)
+            {
+                try
+                {
+                    ((HistoryImpl) history).flush();
+                }
+                catch (IOException e)
+                {
+                    logger.error("Could not write history " + history.getID(),
+                        e);
+                }
+            }
+        }
+
+        synchronized (this)
+        {
+            if (writeBehindTimer != null)
+            {
+                writeBehindTimer.cancel();
+                writeBehindTimer = null;
+            }
+        }
     }
 
     /**
@@ -303,6 +513,18 @@ public class HistoryServiceImpl
     public void purgeLocallyStoredHistory(HistoryID id)
         throws IOException
     {
+        // queued records must not recreate the deleted files
+        String[] ids = id.getID();
+        synchronized (this.histories)
+        {
+            for (History history : this.histories.values())
+            {
+                if (history instanceof HistoryImpl
+                        && isSubHistory(ids, history.getID()))
+                    ((HistoryImpl) history).discardPendingRecords();
+            }
+        }
+
         // get the history directory corresponding the given id
         File dir = this.createHistoryDirectories(id);
         if (logger.isTraceEnabled())
@@ -314,7 +536,6 @@ public class HistoryServiceImpl
         {
             // well this can be global delete, so lets remove all matching
             // sub-histories
-            String[] ids = id.getID();
 
             Iterator<Map.Entry<HistoryID, History>>
                 iter = histories.entrySet().iterator();
@@ -431,6 +652,10 @@ public class HistoryServiceImpl
         if(!isHistoryCreated(oldId))// || !isHistoryExisting(newId))
             return;
 
+        History oldHistory = histories.get(oldId);
+        if (oldHistory instanceof HistoryImpl)
+            ((HistoryImpl) oldHistory).flush();
+
         File oldDir = this.createHistoryDirectories(oldId);
         File newDir = getDirForHistory(newId);
 
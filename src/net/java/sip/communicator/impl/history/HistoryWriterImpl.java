@@ -16,22 +16,47 @@ import java.util.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
 
 import org.jitsi.util.xml.XMLUtils;
 import org.w3c.dom.*;
 
 /**
+ * Writes the records of a <tt>HistoryImpl</tt> to XML documents. New
+ * records are appended to the file of the current document. In write-behind
+ * mode records are queued in the document and written in batches when
+ * enough are queued, when the oldest one has waited long enough or when the
+ * history service stops. Queued records are visible to readers as the
+ * changed document replaces its file until it is written.
+ *
  * @author Alexander Pelov
  */
 public class HistoryWriterImpl
     implements HistoryWriter
 {
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryWriterImpl.class);
+
     /**
      * Maximum records per file.
      */
     public static final int MAX_RECORDS_PER_FILE = 150;
 
-    private static final String CDATA_SUFFIX = "_CDATA";
+    /**
+     * The default maximum time in milliseconds a queued record waits before
+     * it is written.
+     */
+    private static final long DEFAULT_WRITE_BEHIND_DELAY = 1000;
+
+    /**
+     * The default number of queued records which are written at once.
+     */
+    private static final int DEFAULT_WRITE_BEHIND_MAX_RECORDS = 50;
+
+    static final String CDATA_SUFFIX = "_CDATA";
 
     private Object docCreateLock = new Object();
 
@@ -47,6 +72,54 @@ public class HistoryWriterImpl
 
     private int currentDocElements = -1;
 
+    /**
+     * The number of <tt>record</tt> elements in <tt>currentDoc</tt>, which
+     * is the position of the next record added to it.
+     */
+    private int currentDocRecords = 0;
+
+    /**
+     * The records added to <tt>pendingDoc</tt> which are not written yet.
+     * Guarded by <tt>docWriteLock</tt>.
+     */
+    private final List<Element> pendingRecords = new ArrayList<Element>();
+
+    /**
+     * The document the pending records were added to.
+     */
+    private Document pendingDoc;
+
+    /**
+     * The name of the file of <tt>pendingDoc</tt>.
+     */
+    private String pendingFile;
+
+    /**
+     * The task which writes the pending records when they waited long
+     * enough.
+     */
+    private TimerTask flushTask;
+
+    /**
+     * Whether records are queued and written in batches.
+     */
+    private final boolean writeBehind;
+
+    /**
+     * The maximum time in milliseconds a queued record waits.
+     */
+    private final long writeBehindDelay;
+
+    /**
+     * The number of queued records which are written at once.
+     */
+    private final int writeBehindMaxRecords;
+
+    /**
+     * Whether files are forced to the storage device when written.
+     */
+    private final boolean sync;
+
     protected HistoryWriterImpl(HistoryImpl historyImpl)
     {
         this.historyImpl = historyImpl;
@@ -54,6 +127,23 @@ public class HistoryWriterImpl
         HistoryRecordStructure struct = this.historyImpl
                 .getHistoryRecordsStructure();
         this.structPropertyNames = struct.getPropertyNames();
+
+        HistoryServiceImpl service = historyImpl.getHistoryServiceImpl();
+        HistoryID id = historyImpl.getID();
+
+        this.writeBehind = Boolean.parseBoolean(service.getHistoryProperty(
+            id, HistoryServiceImpl.WRITE_BEHIND_PROPERTY));
+        this.writeBehindDelay = parseLong(
+            service.getHistoryProperty(
+                id, HistoryServiceImpl.WRITE_BEHIND_DELAY_PROPERTY),
+            DEFAULT_WRITE_BEHIND_DELAY);
+        this.writeBehindMaxRecords = (int) parseLong(
+            service.getHistoryProperty(
+                id, HistoryServiceImpl.WRITE_BEHIND_MAX_RECORDS_PROPERTY),
+            DEFAULT_WRITE_BEHIND_MAX_RECORDS);
+        this.sync = HistoryServiceImpl.SYNC_POLICY_WRITE.equalsIgnoreCase(
+            service.getHistoryProperty(
+                id, HistoryServiceImpl.SYNC_POLICY_PROPERTY));
     }
 
     public void addRecord(HistoryRecord record)
@@ -80,7 +170,8 @@ public class HistoryWriterImpl
     /**
      * Adds new record to the current history document
      * when the record property name ends with _CDATA this is removed from the
-     * property name and a CDATA text node is created to store the text value
+     * property name and a CDATA text node is created to store the text value.
+     * The stored values are then added to the keyword index of the history.
      *
      * @param propertyNames String[]
      * @param propertyValues String[]
@@ -93,6 +184,11 @@ public class HistoryWriterImpl
                            Date date)
         throws InvalidParameterException, IOException
     {
+        String[] indexedNames = new String[propertyNames.length];
+        String[] indexedValues = new String[propertyNames.length];
+        HistoryImpl.RecordLocation location;
+        int pendingCount;
+
         // Synchronized to assure that two concurrent threads can insert records
         // safely.
         synchronized (this.docCreateLock)
@@ -100,71 +196,234 @@ public class HistoryWriterImpl
             if (this.currentDoc == null
                     || this.currentDocElements > MAX_RECORDS_PER_FILE)
             {
+                // the queued records belong to the previous document
+                flush();
+
                 this.createNewDoc(date, this.currentDoc == null);
             }
+
+            // the record is added and queued at once, so that a flush
+            // never sees it in the header but not in the queue
+            synchronized (this.docWriteLock)
+            {
+                Element elem;
+                synchronized (this.currentDoc)
+                {
+                    Node root = this.currentDoc.getFirstChild();
+                    synchronized (root)
+                    {
+                        location = new HistoryImpl.RecordLocation(
+                            this.currentFile, this.currentDocRecords);
+
+                        elem = createRecordElement(propertyNames,
+                            propertyValues, date, indexedNames, indexedValues);
+
+                        root.appendChild(elem);
+                        this.currentDocElements++;
+                        this.currentDocRecords++;
+
+                        StreamingHistoryReader.updateHeader(
+                            (Element) root, date);
+                    }
+                }
+
+                // queue the record, readers see it in the unsaved document
+                this.pendingRecords.add(elem);
+                this.pendingDoc = this.currentDoc;
+                this.pendingFile = this.currentFile;
+                pendingCount = this.pendingRecords.size();
+
+                this.historyImpl.setUnsavedDocument(
+                    this.currentFile, this.currentDoc);
+            }
         }
 
-        synchronized (this.currentDoc)
+        this.historyImpl.getKeywordIndex().add(
+            location, indexedNames, indexedValues);
+
+        // write changes
+        if (!this.writeBehind || pendingCount >= this.writeBehindMaxRecords)
+            flush();
+        else
+            scheduleFlush();
+    }
+
+    /**
+     * Creates the element of a record in the current document. Must be
+     * called with the lock of the current document held.
+     *
+     * @param propertyNames the names of the properties of the record
+     * @param propertyValues the values of the properties of the record
+     * @param date the timestamp of the record
+     * @param indexedNames receives the names of the stored properties
+     * @param indexedValues receives the stored values of the properties
+     * @return the record element, not yet added to the document
+     */
+    private Element createRecordElement(String[] propertyNames,
+                                        String[] propertyValues,
+                                        Date date,
+                                        String[] indexedNames,
+                                        String[] indexedValues)
+    {
+        Element elem = this.currentDoc.createElement("record");
+        SimpleDateFormat sdf
+            = new SimpleDateFormat(DATE_FORMAT);
+        elem.setAttribute("timestamp", sdf.format(date));
+
+        for (int i = 0; i < propertyNames.length; i++)
         {
-            Node root = this.currentDoc.getFirstChild();
-            synchronized (root)
-            {
-                Element elem = this.currentDoc.createElement("record");
-                SimpleDateFormat sdf
-                    = new SimpleDateFormat(DATE_FORMAT);
-                elem.setAttribute("timestamp", sdf.format(date));
+            String propertyName = propertyNames[i];
 
-                for (int i = 0; i < propertyNames.length; i++)
+            if(propertyName.endsWith(CDATA_SUFFIX))
+            {
+                if (propertyValues[i] != null)
                 {
-                    String propertyName = propertyNames[i];
+                    propertyName = propertyName.replaceFirst(CDATA_SUFFIX, "");
 
-                    if(propertyName.endsWith(CDATA_SUFFIX))
-                    {
-                        if (propertyValues[i] != null)
-                        {
-                            propertyName = propertyName.replaceFirst(CDATA_SUFFIX, "");
+                    Element propertyElement = this.currentDoc
+                        .createElement(propertyName);
 
-                            Element propertyElement = this.currentDoc
-                                .createElement(propertyName);
+                    Text value = this.currentDoc.createCDATASection(
+                        propertyValues[i].replaceAll("\0", " "));
+                    propertyElement.appendChild(value);
 
-                            Text value = this.currentDoc
-                                .createCDATASection(propertyValues[i].replaceAll("\0", " "));
-                            propertyElement.appendChild(value);
+                    elem.appendChild(propertyElement);
 
-                            elem.appendChild(propertyElement);
-                        }
-                    }
-                    else
-                    {
-                        if (propertyValues[i] != null)
-                        {
-                            Element propertyElement = this.currentDoc
-                                .createElement(propertyName);
+                    indexedNames[i] = propertyName;
+                    indexedValues[i] = value.getData();
+                }
+            }
+            else
+            {
+                if (propertyValues[i] != null)
+                {
+                    Element propertyElement = this.currentDoc
+                        .createElement(propertyName);
 
-                            Text value = this.currentDoc
-                                .createTextNode(propertyValues[i].replaceAll("\0", " "));
-                            propertyElement.appendChild(value);
+                    Text value = this.currentDoc.createTextNode(
+                        propertyValues[i].replaceAll("\0", " "));
+                    propertyElement.appendChild(value);
 
-                            elem.appendChild(propertyElement);
-                        }
-                    }
+                    elem.appendChild(propertyElement);
+
+                    indexedNames[i] = propertyName;
+                    indexedValues[i] = value.getData();
                 }
+            }
+        }
+
+        return elem;
+    }
 
-                root.appendChild(elem);
-                this.currentDocElements++;
+    /**
+     * Writes the queued records to the file of their document.
+     *
+     * @throws IOException if writing fails, the records stay queued
+     */
+    void flush()
+        throws IOException
+    {
+        synchronized (this.docWriteLock)
+        {
+            if (this.flushTask != null)
+            {
+                this.flushTask.cancel();
+                this.flushTask = null;
             }
+
+            if (this.pendingRecords.isEmpty())
+                return;
+
+            this.historyImpl.writeRecords(this.pendingFile, this.pendingDoc,
+                this.pendingRecords, this.sync);
+
+            clearPendingRecords();
         }
+    }
 
-        // write changes
+    /**
+     * Drops the queued records without writing them.
+     */
+    void discardPendingRecords()
+    {
         synchronized (this.docWriteLock)
         {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
-            else
-                this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+            if (this.flushTask != null)
+            {
+                this.flushTask.cancel();
+                this.flushTask = null;
+            }
+
+            clearPendingRecords();
         }
     }
 
+    /**
+     * Forgets the queued records. Must be called with
+     * <tt>docWriteLock</tt> held.
+     */
+    private void clearPendingRecords()
+    {
+        this.pendingRecords.clear();
+        this.pendingDoc = null;
+        this.pendingFile = null;
+    }
+
+    /**
+     * Schedules writing the queued records after the write-behind delay
+     * unless it is already scheduled.
+     */
+    private void scheduleFlush()
+    {
+        synchronized (this.docWriteLock)
+        {
+            if (this.flushTask != null || this.pendingRecords.isEmpty())
+                return;
+
+            this.flushTask = new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        flush();
+                    }
+                    catch (IOException e)
+                    {
+                        logger.error("Could not write history records", e);
+                    }
+                }
+            };
+            this.historyImpl.getHistoryServiceImpl().getWriteBehindTimer()
+                .schedule(this.flushTask, this.writeBehindDelay);
+        }
+    }
+
+    /**
+     * Parses the value of a numeric property.
+     *
+     * @param value the value or <tt>null</tt>
+     * @param defaultValue the value to use if <tt>value</tt> is not set or
+     * invalid
+     * @return the parsed value
+     */
+    private static long parseLong(String value, long defaultValue)
+    {
+        if (value != null)
+        {
+            try
+            {
+                return Long.parseLong(value.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                logger.warn("Invalid history property value " + value);
+            }
+        }
+        return defaultValue;
+    }
+
     /**
      * If no file is currently loaded loads the last opened file. If it does not
      * exists or if the current file was set - create a new file.
@@ -191,6 +450,14 @@ public class HistoryWriterImpl
                 this.currentDoc = this.historyImpl.getDocumentForFile(file);
                 this.currentFile = file;
                 loaded = true;
+
+                // a header not updated before an interruption is recomputed
+                // with the next record
+                if (this.currentDoc != null)
+                {
+                    this.currentDoc.getDocumentElement().removeAttribute(
+                        StreamingHistoryReader.RECORDS_ATTRIBUTE);
+                }
             }
 
             // if something happened and file was not loaded
@@ -214,6 +481,8 @@ public class HistoryWriterImpl
 
         this.currentDocElements = this.currentDoc.getFirstChild()
                 .getChildNodes().getLength();
+        this.currentDocRecords
+            = this.currentDoc.getElementsByTagName("record").getLength();
     }
 
     /**
@@ -240,52 +509,70 @@ public class HistoryWriterImpl
             if(doc == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
+            // the queued records may be copied by a flush meanwhile
             boolean changed = false;
-
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            synchronized (doc)
             {
-                node = nodes.item(i);
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                Element idNode = XMLUtils.findChild((Element)node, idProperty);
-                if(idNode == null)
-                    continue;
+                Node node;
+                for (int i = 0; i < nodes.getLength(); i++)
+                {
+                    node = nodes.item(i);
 
-                Node nestedNode = idNode.getFirstChild();
-                if(nestedNode == null)
-                    continue;
+                    Element idNode
+                        = XMLUtils.findChild((Element)node, idProperty);
+                    if(idNode == null)
+                        continue;
 
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
+                    Node nestedNode = idNode.getFirstChild();
+                    if(nestedNode == null)
+                        continue;
 
-                if(!nodeValue.equals(idValue))
-                    continue;
+                    // Get nested TEXT node's value
+                    String nodeValue = nestedNode.getNodeValue();
 
-                Element changedNode =
-                    XMLUtils.findChild((Element)node, property);
+                    if(!nodeValue.equals(idValue))
+                        continue;
 
-                if(changedNode != null)
-                {
-                    Node changedNestedNode = changedNode.getFirstChild();
+                    Element changedNode =
+                        XMLUtils.findChild((Element)node, property);
+                    String oldValue = null;
+                    String storedValue;
 
-                    changedNestedNode.setNodeValue(newValue);
-                }
-                else
-                {
-                    Element propertyElement = this.currentDoc
-                        .createElement(property);
+                    if(changedNode != null)
+                    {
+                        Node changedNestedNode = changedNode.getFirstChild();
 
-                    Text value = this.currentDoc
-                        .createTextNode(newValue.replaceAll("\0", " "));
-                    propertyElement.appendChild(value);
+                        oldValue = changedNestedNode.getNodeValue();
+                        changedNestedNode.setNodeValue(newValue);
+                        storedValue = newValue;
+                    }
+                    else
+                    {
+                        Element propertyElement = this.currentDoc
+                            .createElement(property);
 
-                    node.appendChild(propertyElement);
-                }
+                        Text value = this.currentDoc
+                            .createTextNode(newValue.replaceAll("\0", " "));
+                        propertyElement.appendChild(value);
 
-                changed = true;
-                break;
+                        node.appendChild(propertyElement);
+                        storedValue = value.getData();
+                    }
+
+                    HistoryImpl.RecordLocation location
+                        = new HistoryImpl.RecordLocation(filename, i);
+                    String[] propertyNames = new String[] { property };
+
+                    this.historyImpl.getKeywordIndex().update(
+                        location, location,
+                        propertyNames, new String[] { oldValue },
+                        propertyNames, new String[] { storedValue });
+
+                    changed = true;
+                    break;
+                }
             }
 
             if(changed)
@@ -294,6 +581,10 @@ public class HistoryWriterImpl
                 synchronized (this.docWriteLock)
                 {
                     this.historyImpl.writeFile(filename, doc);
+
+                    // the queued records were written with the document
+                    if (filename.equals(this.pendingFile))
+                        clearPendingRecords();
                 }
 
                 // this prevents that the current writer, which holds
@@ -0,0 +1,283 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * A <tt>History</tt> which keeps its records in a
+ * <tt>HistorySegmentStore</tt> instead of a directory of XML documents.
+ * The store is opened the first time the history is read or written. If at
+ * that time the history directory contains XML documents but no store, the
+ * documents are migrated into a new store and renamed with a
+ * <tt>.migrated</tt> suffix so that the migration happens only once.
+ */
+public class SegmentHistoryImpl
+    implements History
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SegmentHistoryImpl.class);
+
+    /**
+     * The suffix appended to XML documents which were migrated.
+     */
+    public static final String MIGRATED_SUFFIX = ".migrated";
+
+    /**
+     * The base name of the store files while a migration is in progress.
+     */
+    private static final String MIGRATION_BASE_NAME = "records.migrating";
+
+    private final HistoryID id;
+
+    private HistoryRecordStructure historyRecordStructure;
+
+    private final HistoryServiceImpl historyServiceImpl;
+
+    private final File directory;
+
+    private HistorySegmentStore store;
+
+    /**
+     * The index of the keywords found in the records of this history, keyed
+     * by the offsets of the records in the store.
+     */
+    private final HistoryKeywordIndex<Long> keywordIndex;
+
+    private HistoryReader reader;
+
+    private InteractiveHistoryReader interactiveReader;
+
+    private HistoryWriter writer;
+
+    /**
+     * Creates an instance of <tt>SegmentHistoryImpl</tt> by specifying the
+     * history identifier, the directory, the <tt>HistoryRecordStructure</tt>
+     * to use and the parent <tt>HistoryServiceImpl</tt>.
+     * @param id the identifier
+     * @param directory the directory
+     * @param historyRecordStructure the structure
+     * @param historyServiceImpl the parent history service
+     */
+    protected SegmentHistoryImpl(HistoryID id, File directory,
+            HistoryRecordStructure historyRecordStructure,
+            HistoryServiceImpl historyServiceImpl)
+    {
+        this.id = id;
+        this.directory = directory;
+        this.historyRecordStructure = historyRecordStructure;
+        this.historyServiceImpl = historyServiceImpl;
+        this.keywordIndex
+            = new HistoryKeywordIndex<Long>(
+                    historyServiceImpl.getDocumentCache(), this);
+    }
+
+    /**
+     * Returns the identifier of this history.
+     * @return the identifier of this history
+     */
+    public HistoryID getID()
+    {
+        return id;
+    }
+
+    /**
+     * Returns the current <tt>HistoryRecordStructure</tt>.
+     * @return the current <tt>HistoryRecordStructure</tt>
+     */
+    public HistoryRecordStructure getHistoryRecordsStructure()
+    {
+        return historyRecordStructure;
+    }
+
+    /**
+     * Sets the given <tt>structure</tt> to be the new history records
+     * structure used in this history implementation.
+     * @param structure the new <tt>HistoryRecordStructure</tt> to use
+     */
+    public void setHistoryRecordsStructure(HistoryRecordStructure structure)
+    {
+        this.historyRecordStructure = structure;
+
+        try
+        {
+            File dbDatFile = new File(directory, HistoryServiceImpl.DATA_FILE);
+            DBStructSerializer dbss
+                = new DBStructSerializer(historyServiceImpl);
+            dbss.writeHistory(dbDatFile, this);
+        }
+        catch (IOException e)
+        {
+            logger.debug("Could not create new history structure");
+        }
+    }
+
+    public synchronized HistoryReader getReader()
+    {
+        if (reader == null)
+            reader = new SegmentHistoryReaderImpl(this);
+        return reader;
+    }
+
+    public synchronized InteractiveHistoryReader getInteractiveReader()
+    {
+        if (interactiveReader == null)
+            interactiveReader = new SegmentInteractiveHistoryReaderImpl(this);
+        return interactiveReader;
+    }
+
+    public synchronized HistoryWriter getWriter()
+    {
+        if (writer == null)
+            writer = new SegmentHistoryWriterImpl(this);
+        return writer;
+    }
+
+    /**
+     * Returns the index of the keywords found in the records of this history.
+     *
+     * @return the keyword index of this history
+     */
+    HistoryKeywordIndex<Long> getKeywordIndex()
+    {
+        return keywordIndex;
+    }
+
+    /**
+     * Returns the store of this history, opening it and migrating the XML
+     * documents of this history into it if necessary.
+     *
+     * @return the store of this history
+     * @throws IOException if the store cannot be opened or created
+     */
+    synchronized HistorySegmentStore getStore()
+        throws IOException
+    {
+        if (store == null)
+        {
+            if (!HistorySegmentStore.exists(directory))
+                migrateXmlDocuments();
+
+            store = new HistorySegmentStore(directory);
+        }
+        return store;
+    }
+
+    /**
+     * Copies the records of the XML documents in the directory of this
+     * history into a new store. The store is written under a temporary name
+     * and renamed when complete, so that an interrupted migration is started
+     * over the next time the history is opened.
+     *
+     * @throws IOException if the migration fails
+     */
+    private void migrateXmlDocuments()
+        throws IOException
+    {
+        HistoryImpl xmlHistory
+            = new HistoryImpl(id, directory, historyRecordStructure,
+                              historyServiceImpl);
+
+        List<String> files = new ArrayList<String>();
+        Iterator<String> fileIter = xmlHistory.getFileList();
+        while (fileIter.hasNext())
+            files.add(fileIter.next());
+
+        if (files.isEmpty())
+            return;
+
+        Collections.sort(files);
+
+        if (logger.isInfoEnabled())
+            logger.info("Migrating " + files.size()
+                + " history documents in " + directory);
+
+        File tmpSegment = new File(directory,
+            MIGRATION_BASE_NAME + HistorySegmentStore.SEGMENT_EXTENSION);
+        File tmpIndex = new File(directory,
+            MIGRATION_BASE_NAME + HistorySegmentStore.INDEX_EXTENSION);
+        tmpSegment.delete();
+        tmpIndex.delete();
+
+        HistorySegmentStore tmpStore
+            = new HistorySegmentStore(directory, MIGRATION_BASE_NAME);
+
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        for (String filename : files)
+        {
+            // the documents are read once, they would only evict the
+            // documents of the other histories from the shared cache
+            Document doc = xmlHistory.getUncachedDocumentForFile(filename);
+
+            if (doc == null)
+                continue;
+
+            NodeList nodes = doc.getElementsByTagName("record");
+            for (int i = 0; i < nodes.getLength(); i++)
+            {
+                Node node = nodes.item(i);
+
+                Date timestamp;
+                String ts = node.getAttributes().getNamedItem("timestamp")
+                    .getNodeValue();
+                try
+                {
+                    timestamp = sdf.parse(ts);
+                }
+                catch (ParseException e)
+                {
+                    timestamp = new Date(Long.parseLong(ts));
+                }
+
+                HistoryRecord record
+                    = HistoryReaderImpl.filterByKeyword(
+                            node.getChildNodes(), timestamp, null, null, false);
+
+                tmpStore.append(timestamp.getTime(),
+                                record.getPropertyNames(),
+                                record.getPropertyValues());
+            }
+        }
+
+        File index = new File(directory,
+            HistorySegmentStore.DEFAULT_BASE_NAME
+                + HistorySegmentStore.INDEX_EXTENSION);
+        File segment = new File(directory,
+            HistorySegmentStore.DEFAULT_BASE_NAME
+                + HistorySegmentStore.SEGMENT_EXTENSION);
+
+        // the segment is renamed last as its presence marks the migration
+        // as done
+        index.delete();
+        if (!tmpIndex.renameTo(index) || !tmpSegment.renameTo(segment))
+        {
+            throw new IOException(
+                "Could not complete the migration of history " + directory);
+        }
+
+        for (String filename : files)
+        {
+            File file = new File(directory, filename);
+            if (!file.renameTo(new File(directory, filename + MIGRATED_SUFFIX)))
+                logger.warn("Could not rename migrated history file " + file);
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryReader</tt> of a <tt>SegmentHistoryImpl</tt>. Date
+ * restrictions are resolved with the timestamp index of the store, so only
+ * the records in the requested period are read from disk.
+ */
+public class SegmentHistoryReaderImpl
+    implements HistoryReader
+{
+    /**
+     * The number of records read from the store at once.
+     */
+    static final int READ_BATCH_SIZE = HistoryWriterImpl.MAX_RECORDS_PER_FILE;
+
+    private final SegmentHistoryImpl historyImpl;
+
+    private final Vector<HistorySearchProgressListener> progressListeners
+        = new Vector<HistorySearchProgressListener>();
+
+    /**
+     * Creates the reader of <tt>historyImpl</tt>.
+     *
+     * @param historyImpl the history to read from
+     */
+    protected SegmentHistoryReaderImpl(SegmentHistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByStartDate(
+                                                                Date startDate)
+        throws RuntimeException
+    {
+        return find(startDate, null, null, null, false);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByEndDate(
+                                                                Date endDate)
+        throws RuntimeException
+    {
+        return find(null, endDate, null, null, false);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByPeriod(
+                                                            Date startDate,
+                                                            Date endDate)
+        throws RuntimeException
+    {
+        return find(startDate, endDate, null, null, false);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByKeyword(
+                                                            String keyword,
+                                                            String field)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByKeyword(
+                                                        String keyword,
+                                                        String field,
+                                                        boolean caseSensitive)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field, caseSensitive);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByKeywords(
+                                                            String[] keywords,
+                                                            String field)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, false);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByKeywords(
+                                                        String[] keywords,
+                                                        String field,
+                                                        boolean caseSensitive)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, caseSensitive);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByPeriod(
+                                                            Date startDate,
+                                                            Date endDate,
+                                                            String[] keywords,
+                                                            String field)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, false);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByPeriod(
+                                                        Date startDate,
+                                                        Date endDate,
+                                                        String[] keywords,
+                                                        String field,
+                                                        boolean caseSensitive)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, caseSensitive);
+    }
+
+    /**
+     * Returns the last <tt>count</tt> messages.
+     *
+     * @param count int
+     * @return QueryResultSet
+     * @throws RuntimeException
+     */
+    public synchronized QueryResultSet<HistoryRecord> findLast(int count)
+        throws RuntimeException
+    {
+        return findLastRecordsBefore(null, count);
+    }
+
+    /**
+     * Returns the supplied number of recent messages after the given date
+     *
+     * @param date messages after date
+     * @param count messages count
+     * @return QueryResultSet the found records
+     * @throws RuntimeException
+     */
+    public QueryResultSet<HistoryRecord> findFirstRecordsAfter(Date date,
+                                                               int count)
+        throws RuntimeException
+    {
+        try
+        {
+            HistorySegmentStore store = historyImpl.getStore();
+
+            return toResultSet(store.read(
+                store.findFirstOffsets(toStartTime(date), count)));
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not read history", e);
+        }
+    }
+
+    /**
+     * Returns the supplied number of recent messages before the given date
+     *
+     * @param date messages before date
+     * @param count messages count
+     * @return QueryResultSet the found records
+     * @throws RuntimeException
+     */
+    public QueryResultSet<HistoryRecord> findLastRecordsBefore(Date date,
+                                                               int count)
+        throws RuntimeException
+    {
+        try
+        {
+            HistorySegmentStore store = historyImpl.getStore();
+
+            return toResultSet(store.read(
+                store.findLastOffsets(toEndTime(date), count)));
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not read history", e);
+        }
+    }
+
+    /**
+     * Returns the exact number of records in the history.
+     *
+     * @return the number of records in the history
+     * @throws UnsupportedOperationException
+     */
+    public int countRecords()
+        throws UnsupportedOperationException
+    {
+        try
+        {
+            return historyImpl.getStore().size();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not read history", e);
+        }
+    }
+
+    private QueryResultSet<HistoryRecord> find(
+        Date startDate, Date endDate,
+        String[] keywords, String field, boolean caseSensitive)
+    {
+        List<HistoryRecord> result = new ArrayList<HistoryRecord>();
+
+        fireProgressStateChanged(startDate, endDate,
+            keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
+
+        try
+        {
+            HistorySegmentStore store = historyImpl.getStore();
+            long[] offsets = findCandidates(store, keywords, field);
+            boolean candidates = (offsets != null);
+
+            if (!candidates)
+            {
+                offsets = store.findOffsets(
+                        toStartTime(startDate), toEndTime(endDate));
+            }
+
+            int lastProgress
+                = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
+            for (int from = 0; from < offsets.length; from += READ_BATCH_SIZE)
+            {
+                int to = Math.min(offsets.length, from + READ_BATCH_SIZE);
+                for (HistoryRecord record
+                        : store.read(Arrays.copyOfRange(offsets, from, to)))
+                {
+                    if (candidates
+                            && !HistoryReaderImpl.isInPeriod(
+                                    record.getTimestamp(), startDate, endDate))
+                        continue;
+
+                    if (matchRecord(record, keywords, field, caseSensitive))
+                        result.add(record);
+                }
+
+                int progress = (int) ((long) to
+                    * HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                    / offsets.length);
+                if (progress != lastProgress)
+                {
+                    fireProgressStateChanged(
+                        startDate, endDate, keywords, progress);
+                    lastProgress = progress;
+                }
+            }
+
+            if (lastProgress
+                    < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+            {
+                fireProgressStateChanged(startDate, endDate, keywords,
+                    HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not read history", e);
+        }
+
+        return toResultSet(result);
+    }
+
+    /**
+     * Returns the offsets of the records which may contain all
+     * <tt>keywords</tt> in <tt>field</tt> according to the keyword index of
+     * the history. The index of <tt>field</tt> is built the first time it is
+     * searched.
+     *
+     * @param store the store of the history
+     * @param keywords the keywords to search for
+     * @param field the field to search in
+     * @return the offsets of the candidate records or <tt>null</tt> if the
+     * index cannot be used and all records have to be scanned
+     * @throws IOException if reading the store fails
+     */
+    private long[] findCandidates(HistorySegmentStore store,
+                                  String[] keywords,
+                                  String field)
+        throws IOException
+    {
+        if (field == null || !HistoryKeywordIndex.canAnswer(keywords))
+            return null;
+
+        HistoryKeywordIndex<Long> index = historyImpl.getKeywordIndex();
+
+        if (!index.isIndexed(field))
+        {
+            // records written while we scan are indexed by the writer
+            index.beginField(field);
+
+            long[] offsets = store.findOffsets(Long.MIN_VALUE, Long.MAX_VALUE);
+            for (int from = 0; from < offsets.length; from += READ_BATCH_SIZE)
+            {
+                long[] batch = Arrays.copyOfRange(offsets, from,
+                    Math.min(offsets.length, from + READ_BATCH_SIZE));
+                List<HistoryRecord> records = store.read(batch);
+
+                for (int i = 0; i < batch.length; i++)
+                {
+                    HistoryRecord record = records.get(i);
+                    String value = null;
+                    String[] names = record.getPropertyNames();
+                    for (int j = 0; j < names.length; j++)
+                    {
+                        if (field.equals(names[j]))
+                        {
+                            value = record.getPropertyValues()[j];
+                            break;
+                        }
+                    }
+
+                    index.add(batch[i], field, value);
+                }
+            }
+
+            index.endField(field);
+        }
+
+        List<Long> candidates = index.find(field, keywords);
+        if (candidates == null)
+            return null;
+
+        long[] offsets = new long[candidates.size()];
+        for (int i = 0; i < offsets.length; i++)
+            offsets[i] = candidates.get(i);
+        return offsets;
+    }
+
+    /**
+     * Checks whether the value of <tt>field</tt> in <tt>record</tt> contains
+     * all <tt>keywords</tt>. Records without this field match, as they do
+     * when reading XML documents.
+     *
+     * @param record the record to check
+     * @param keywords the keywords to search for or <tt>null</tt>
+     * @param field the field to search in or <tt>null</tt>
+     * @param caseSensitive is keywords search case sensitive
+     * @return <tt>true</tt> if the record matches
+     */
+    static boolean matchRecord(HistoryRecord record,
+                               String[] keywords,
+                               String field,
+                               boolean caseSensitive)
+    {
+        if (keywords == null || field == null)
+            return true;
+
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (field.equals(names[i])
+                && !HistoryReaderImpl.matchKeyword(
+                        values[i], keywords, caseSensitive))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the inclusive start of a period.
+     *
+     * @param startDate the start date or <tt>null</tt>
+     * @return the start time
+     */
+    static long toStartTime(Date startDate)
+    {
+        return (startDate == null) ? Long.MIN_VALUE : startDate.getTime();
+    }
+
+    /**
+     * Returns the exclusive end of a period.
+     *
+     * @param endDate the end date or <tt>null</tt>
+     * @return the end time
+     */
+    static long toEndTime(Date endDate)
+    {
+        return (endDate == null) ? Long.MAX_VALUE : endDate.getTime();
+    }
+
+    /**
+     * Wraps records in a result set ordered by timestamp in which, as in the
+     * result sets of <tt>HistoryReaderImpl</tt>, records with the same
+     * timestamp are returned once.
+     *
+     * @param records the records
+     * @return the result set
+     */
+    private static QueryResultSet<HistoryRecord> toResultSet(
+        List<HistoryRecord> records)
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(
+                    new HistoryReaderImpl.HistoryRecordComparator());
+
+        result.addAll(records);
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    private void fireProgressStateChanged(Date startDate, Date endDate,
+                         String[] keywords, int progress)
+    {
+        ProgressEvent event =
+            new ProgressEvent(this, startDate, endDate, keywords, progress);
+
+        synchronized(progressListeners)
+        {
+            for (HistorySearchProgressListener l : progressListeners)
+                l.progressChanged(event);
+        }
+    }
+
+    /**
+     * Adding progress listener for monitoring progress of search process
+     *
+     * @param listener HistorySearchProgressListener
+     */
+    public void addSearchProgressListener(HistorySearchProgressListener
+                                          listener)
+    {
+        synchronized(progressListeners)
+        {
+            progressListeners.add(listener);
+        }
+    }
+
+    /**
+     * Removing progress listener
+     *
+     * @param listener HistorySearchProgressListener
+     */
+    public void removeSearchProgressListener(HistorySearchProgressListener
+                                             listener)
+    {
+        synchronized(progressListeners)
+        {
+            progressListeners.remove(listener);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryWriter</tt> of a <tt>SegmentHistoryImpl</tt>. Records are
+ * normalized the same way <tt>HistoryWriterImpl</tt> stores them in XML, so
+ * both backends return identical records.
+ */
+public class SegmentHistoryWriterImpl
+    implements HistoryWriter
+{
+    /**
+     * The number of records read at once while searching for the record to
+     * update.
+     */
+    private static final int UPDATE_BATCH_SIZE
+        = HistoryWriterImpl.MAX_RECORDS_PER_FILE;
+
+    private final SegmentHistoryImpl historyImpl;
+
+    private final String[] structPropertyNames;
+
+    /**
+     * Creates the writer of <tt>historyImpl</tt>.
+     *
+     * @param historyImpl the history to write to
+     */
+    protected SegmentHistoryWriterImpl(SegmentHistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+        this.structPropertyNames
+            = historyImpl.getHistoryRecordsStructure().getPropertyNames();
+    }
+
+    public void addRecord(HistoryRecord record)
+        throws IOException
+    {
+        addRecord(record.getPropertyNames(), record.getPropertyValues(),
+                record.getTimestamp());
+    }
+
+    public void addRecord(String[] propertyValues)
+        throws IOException
+    {
+        addRecord(structPropertyNames, propertyValues, new Date());
+    }
+
+    public void addRecord(String[] propertyValues, Date timestamp)
+        throws IOException
+    {
+        addRecord(structPropertyNames, propertyValues, timestamp);
+    }
+
+    /**
+     * Appends a record to the store. Properties without value are skipped,
+     * the _CDATA suffix is removed from property names and null characters
+     * are replaced as done when storing in XML.
+     *
+     * @param propertyNames the names of the properties
+     * @param propertyValues the values of the properties
+     * @param date the timestamp of the record
+     * @throws IOException if writing fails
+     */
+    private void addRecord(String[] propertyNames,
+                           String[] propertyValues,
+                           Date date)
+        throws IOException
+    {
+        List<String> names = new ArrayList<String>(propertyNames.length);
+        List<String> values = new ArrayList<String>(propertyNames.length);
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] == null)
+                continue;
+
+            String propertyName = propertyNames[i];
+            if (propertyName.endsWith(HistoryWriterImpl.CDATA_SUFFIX))
+            {
+                propertyName = propertyName.replaceFirst(
+                    HistoryWriterImpl.CDATA_SUFFIX, "");
+            }
+
+            names.add(propertyName);
+            values.add(propertyValues[i].replaceAll("\0", " "));
+        }
+
+        String[] storedNames = names.toArray(new String[names.size()]);
+        String[] storedValues = values.toArray(new String[values.size()]);
+
+        long offset = historyImpl.getStore().append(
+                date.getTime(), storedNames, storedValues);
+
+        historyImpl.getKeywordIndex().add(offset, storedNames, storedValues);
+    }
+
+    /**
+     * Updates a record by searching for record with idProperty which have
+     * idValue and updating/creating the property with newValue.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property.
+     */
+    public void updateRecord(String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException
+    {
+        HistorySegmentStore store = historyImpl.getStore();
+        long[] offsets = store.findOffsets(Long.MIN_VALUE, Long.MAX_VALUE);
+
+        for (int from = 0; from < offsets.length; from += UPDATE_BATCH_SIZE)
+        {
+            long[] batch = Arrays.copyOfRange(offsets, from,
+                Math.min(offsets.length, from + UPDATE_BATCH_SIZE));
+            List<HistoryRecord> records = store.read(batch);
+
+            for (int i = 0; i < batch.length; i++)
+            {
+                HistoryRecord record = records.get(i);
+                String[] names = record.getPropertyNames();
+                String[] values = record.getPropertyValues();
+
+                int idIndex = Arrays.asList(names).indexOf(idProperty);
+                if (idIndex == -1 || !values[idIndex].equals(idValue))
+                    continue;
+
+                String[] oldNames = names;
+                String[] oldValues = values.clone();
+
+                int propertyIndex = Arrays.asList(names).indexOf(property);
+                if (propertyIndex != -1)
+                {
+                    values[propertyIndex] = newValue;
+                }
+                else
+                {
+                    names = Arrays.copyOf(names, names.length + 1);
+                    values = Arrays.copyOf(values, values.length + 1);
+                    names[names.length - 1] = property;
+                    values[values.length - 1] = newValue.replaceAll("\0", " ");
+                }
+
+                long newOffset
+                    = store.replace(record.getTimestamp().getTime(), batch[i],
+                                    names, values);
+
+                // the index refers to the replaced version by its offset
+                if (newOffset != -1)
+                {
+                    historyImpl.getKeywordIndex().update(batch[i], newOffset,
+                        oldNames, oldValues, names, values);
+                }
+                return;
+            }
+        }
+    }
+}
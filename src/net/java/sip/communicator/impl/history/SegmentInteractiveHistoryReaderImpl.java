@@ -0,0 +1,133 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * The <tt>InteractiveHistoryReader</tt> of a <tt>SegmentHistoryImpl</tt>.
+ * Like <tt>InteractiveHistoryReaderImpl</tt> it reports the newest matching
+ * records first and can be canceled at any time.
+ */
+public class SegmentInteractiveHistoryReaderImpl
+    implements InteractiveHistoryReader
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SegmentInteractiveHistoryReaderImpl.class);
+
+    /**
+     * The <tt>SegmentHistoryImpl</tt> where this reader is registered.
+     */
+    private final SegmentHistoryImpl history;
+
+    /**
+     * Creates an instance of <tt>SegmentInteractiveHistoryReaderImpl</tt>.
+     * @param history the corresponding <tt>SegmentHistoryImpl</tt> to read
+     * from
+     */
+    public SegmentInteractiveHistoryReaderImpl(SegmentHistoryImpl history)
+    {
+        this.history = history;
+    }
+
+    public HistoryQuery findByKeyword(  String keyword,
+                                        String field,
+                                        int recordCount)
+    {
+        return findByKeywords(new String[]{keyword}, field, recordCount);
+    }
+
+    public HistoryQuery findByKeywords( final String[] keywords,
+                                        final String field,
+                                        final int recordCount)
+    {
+        StringBuilder queryString = new StringBuilder();
+        for (String s : keywords)
+        {
+            queryString.append(' ');
+            queryString.append(s);
+        }
+
+        final HistoryQueryImpl query
+            = new HistoryQueryImpl(queryString.toString());
+
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                find(keywords, field, recordCount, query);
+            }
+        }.start();
+
+        return query;
+    }
+
+    /**
+     * Reads the records from the newest to the oldest and adds the matching
+     * ones to <tt>query</tt>.
+     *
+     * @param keywords an array of keywords to search for
+     * @param field the field, where to search the keywords
+     * @param resultCount the desired number of results
+     * @param query the query tracking the results
+     */
+    private void find(  String[] keywords,
+                        String field,
+                        int resultCount,
+                        HistoryQueryImpl query)
+    {
+        try
+        {
+            HistorySegmentStore store = history.getStore();
+            long[] offsets
+                = store.findOffsets(Long.MIN_VALUE, Long.MAX_VALUE);
+
+            int to = offsets.length;
+            while (to > 0 && resultCount > 0 && !query.isCanceled())
+            {
+                int from = Math.max(0,
+                    to - SegmentHistoryReaderImpl.READ_BATCH_SIZE);
+                List<HistoryRecord> records
+                    = store.read(Arrays.copyOfRange(offsets, from, to));
+
+                for (int i = records.size() - 1;
+                        i >= 0 && resultCount > 0 && !query.isCanceled();
+                        i--)
+                {
+                    HistoryRecord record = records.get(i);
+                    if (SegmentHistoryReaderImpl.matchRecord(
+                            record, keywords, field, false))
+                    {
+                        query.addHistoryRecord(record);
+                        resultCount--;
+                    }
+                }
+
+                to = from;
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not read history", e);
+        }
+
+        if (query.isCanceled())
+            query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
+        else
+            query.setStatus(HistoryQueryStatusEvent.QUERY_COMPLETED);
+    }
+}
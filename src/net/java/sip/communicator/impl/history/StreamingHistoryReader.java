@@ -0,0 +1,481 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Reads the records of a history XML file with a pull parser instead of
+ * building its DOM. Records are created only for the elements which are
+ * actually returned and parsing stops as soon as enough records were
+ * collected.
+ * <p>
+ * The root element of a history file written by <tt>HistoryWriterImpl</tt>
+ * carries a header with the minimum and maximum timestamps of its records
+ * and their number. The header allows skipping whole files whose records are
+ * outside of a period without reading past their first element, and skipping
+ * the first records of a file without creating them. Files written before
+ * the header existed are simply read completely.
+ */
+public class StreamingHistoryReader
+{
+    /**
+     * The attribute of the root element holding the smallest timestamp of
+     * the records of the file, in milliseconds.
+     */
+    static final String MIN_TIMESTAMP_ATTRIBUTE = "minTimestamp";
+
+    /**
+     * The attribute of the root element holding the largest timestamp of
+     * the records of the file, in milliseconds.
+     */
+    static final String MAX_TIMESTAMP_ATTRIBUTE = "maxTimestamp";
+
+    /**
+     * The attribute of the root element holding the number of records of
+     * the file.
+     */
+    static final String RECORDS_ATTRIBUTE = "records";
+
+    /**
+     * The pull parser factory of the current thread.
+     */
+    private static final ThreadLocal<XMLInputFactory> inputFactory
+        = new ThreadLocal<XMLInputFactory>()
+        {
+            @Override
+            protected XMLInputFactory initialValue()
+            {
+                XMLInputFactory factory = XMLInputFactory.newInstance();
+
+                factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+                factory.setProperty(
+                    XMLInputFactory.SUPPORT_DTD, false);
+                return factory;
+            }
+        };
+
+    /**
+     * The format of the timestamps of the records, per thread as
+     * <tt>SimpleDateFormat</tt> is not thread safe.
+     */
+    private static final ThreadLocal<SimpleDateFormat> dateFormat
+        = new ThreadLocal<SimpleDateFormat>()
+        {
+            @Override
+            protected SimpleDateFormat initialValue()
+            {
+                return new SimpleDateFormat(DATE_FORMAT);
+            }
+        };
+
+    /**
+     * The header of a history file.
+     */
+    static class Header
+    {
+        /**
+         * The smallest timestamp of the records of the file.
+         */
+        final long minTimestamp;
+
+        /**
+         * The largest timestamp of the records of the file.
+         */
+        final long maxTimestamp;
+
+        /**
+         * The number of records of the file.
+         */
+        final int records;
+
+        Header(long minTimestamp, long maxTimestamp, int records)
+        {
+            this.minTimestamp = minTimestamp;
+            this.maxTimestamp = maxTimestamp;
+            this.records = records;
+        }
+
+        /**
+         * Checks whether the file may contain records in
+         * [<tt>startDate</tt>, <tt>endDate</tt>).
+         *
+         * @param startDate the start of the period or <tt>null</tt>
+         * @param endDate the end of the period or <tt>null</tt>
+         * @return <tt>false</tt> if no record of the file is in the period
+         */
+        boolean overlaps(Date startDate, Date endDate)
+        {
+            return records > 0
+                && (startDate == null || maxTimestamp >= startDate.getTime())
+                && (endDate == null || minTimestamp < endDate.getTime());
+        }
+    }
+
+    /**
+     * The result of reading a file.
+     */
+    static class Result
+    {
+        /**
+         * The header of the file or <tt>null</tt> if it has none.
+         */
+        Header header;
+
+        /**
+         * The records which were read, in the order of the file.
+         */
+        final List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+        /**
+         * The number of record elements which were read or skipped.
+         */
+        int elements;
+    }
+
+    /**
+     * Reads the header of a history file.
+     *
+     * @param file the file
+     * @return the header or <tt>null</tt> if the file has none
+     * @throws IOException if reading fails
+     * @throws XMLStreamException if the file is not well-formed
+     */
+    static Header readHeader(File file)
+        throws IOException,
+               XMLStreamException
+    {
+        return read(file, null, null, 0, 0, false).header;
+    }
+
+    /**
+     * Reads the records of a history file which are in
+     * [<tt>startDate</tt>, <tt>endDate</tt>). Reading stops after the
+     * header if the header shows that no record is in the period.
+     *
+     * @param file the file
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param skip the number of records to skip before reading
+     * @param limit the maximum number of records to read
+     * @param skipBrokenRecords whether to skip records having a property
+     * without value
+     * @return the header of the file and the records which were read
+     * @throws IOException if reading fails
+     * @throws XMLStreamException if the file is not well-formed
+     */
+    static Result read(File file,
+                       Date startDate,
+                       Date endDate,
+                       int skip,
+                       int limit,
+                       boolean skipBrokenRecords)
+        throws IOException,
+               XMLStreamException
+    {
+        return read(file, startDate, endDate, skip, -1, limit,
+                    skipBrokenRecords);
+    }
+
+    /**
+     * Reads the last <tt>count</tt> records of a history file. If the file
+     * has a header, the records before them are skipped without being
+     * created. The number of records in the header is checked against the
+     * file while streaming it, and if they disagree the file is read again
+     * skipping according to the actual number of records.
+     *
+     * @param file the file
+     * @param count the number of records to read
+     * @return the header of the file and the records which were read
+     * @throws IOException if reading fails
+     * @throws XMLStreamException if the file is not well-formed
+     */
+    static Result readLast(File file, int count)
+        throws IOException,
+               XMLStreamException
+    {
+        Result result
+            = read(file, null, null, 0, count, Integer.MAX_VALUE, false);
+
+        if (result.header != null && result.header.records != result.elements)
+        {
+            // the header is stale, e.g. after an interrupted append
+            Header header = result.header;
+
+            result = read(file, null, null,
+                          Math.max(0, result.elements - count),
+                          Integer.MAX_VALUE, false);
+            result.header = header;
+        }
+
+        // without a header all records were read
+        int size = result.records.size();
+        if (size > count)
+            result.records.subList(0, size - count).clear();
+        return result;
+    }
+
+    /**
+     * Reads the records of a history file.
+     *
+     * @param file the file
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param skip the number of records to skip before reading
+     * @param last the number of records at the end of the file to read
+     * according to the header or -1 to use <tt>skip</tt>
+     * @param limit the maximum number of records to read
+     * @param skipBrokenRecords whether to skip records having a property
+     * without value
+     * @return the header of the file and the records which were read
+     * @throws IOException if reading fails
+     * @throws XMLStreamException if the file is not well-formed
+     */
+    private static Result read(File file,
+                               Date startDate,
+                               Date endDate,
+                               int skip,
+                               int last,
+                               int limit,
+                               boolean skipBrokenRecords)
+        throws IOException,
+               XMLStreamException
+    {
+        Result result = new Result();
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        XMLStreamReader reader
+            = inputFactory.get().createXMLStreamReader(in);
+
+        try
+        {
+            if (reader.nextTag() != XMLStreamConstants.START_ELEMENT)
+                return result;
+
+            result.header = readHeader(reader);
+            // without a period the count of the header is not trusted
+            if (limit <= 0
+                    || ((startDate != null || endDate != null)
+                        && result.header != null
+                        && !result.header.overlaps(startDate, endDate)))
+                return result;
+
+            if (last >= 0 && result.header != null)
+                skip = Math.max(0, result.header.records - last);
+
+            while (result.records.size() < limit
+                    && reader.nextTag() == XMLStreamConstants.START_ELEMENT)
+            {
+                if (result.elements++ < skip)
+                {
+                    skipElement(reader);
+                    continue;
+                }
+
+                HistoryRecord record
+                    = readRecord(reader, skipBrokenRecords);
+
+                if (record != null
+                        && HistoryReaderImpl.isInPeriod(
+                                record.getTimestamp(), startDate, endDate))
+                    result.records.add(record);
+            }
+        }
+        finally
+        {
+            reader.close();
+            in.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Updates the header of a history document after a record was added.
+     * If the document has no header yet, it is computed from all its
+     * records.
+     *
+     * @param root the root element of the document
+     * @param timestamp the timestamp of the added record
+     */
+    static void updateHeader(Element root, Date timestamp)
+    {
+        long ts = timestamp.getTime();
+
+        if (root.hasAttribute(RECORDS_ATTRIBUTE))
+        {
+            try
+            {
+                long min = Math.min(ts,
+                    Long.parseLong(root.getAttribute(MIN_TIMESTAMP_ATTRIBUTE)));
+                long max = Math.max(ts,
+                    Long.parseLong(root.getAttribute(MAX_TIMESTAMP_ATTRIBUTE)));
+                int records
+                    = Integer.parseInt(root.getAttribute(RECORDS_ATTRIBUTE));
+
+                setHeader(root, min, max, records + 1);
+                return;
+            }
+            catch (NumberFormatException e)
+            {
+                // recompute it below
+            }
+        }
+
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        NodeList nodes = root.getElementsByTagName("record");
+        for (int i = 0; i < nodes.getLength(); i++)
+        {
+            long recordTs = parseTimestamp(
+                ((Element) nodes.item(i)).getAttribute("timestamp"))
+                    .getTime();
+
+            min = Math.min(min, recordTs);
+            max = Math.max(max, recordTs);
+        }
+
+        // the added record is already part of the document
+        setHeader(root, min, max, nodes.getLength());
+    }
+
+    /**
+     * Sets the header attributes of a root element.
+     *
+     * @param root the root element
+     * @param min the smallest timestamp
+     * @param max the largest timestamp
+     * @param records the number of records
+     */
+    private static void setHeader(Element root, long min, long max,
+                                  int records)
+    {
+        root.setAttribute(MIN_TIMESTAMP_ATTRIBUTE, Long.toString(min));
+        root.setAttribute(MAX_TIMESTAMP_ATTRIBUTE, Long.toString(max));
+        root.setAttribute(RECORDS_ATTRIBUTE, Integer.toString(records));
+    }
+
+    /**
+     * Parses the timestamp of a record.
+     *
+     * @param ts the value of the timestamp attribute
+     * @return the timestamp
+     */
+    static Date parseTimestamp(String ts)
+    {
+        try
+        {
+            return dateFormat.get().parse(ts);
+        }
+        catch (ParseException e)
+        {
+            return new Date(Long.parseLong(ts));
+        }
+    }
+
+    /**
+     * Reads the header from the attributes of the root element.
+     *
+     * @param reader the reader positioned on the root element
+     * @return the header or <tt>null</tt> if there is none
+     */
+    private static Header readHeader(XMLStreamReader reader)
+    {
+        String min = reader.getAttributeValue(null, MIN_TIMESTAMP_ATTRIBUTE);
+        String max = reader.getAttributeValue(null, MAX_TIMESTAMP_ATTRIBUTE);
+        String records = reader.getAttributeValue(null, RECORDS_ATTRIBUTE);
+
+        if (min == null || max == null || records == null)
+            return null;
+
+        try
+        {
+            return new Header(Long.parseLong(min),
+                              Long.parseLong(max),
+                              Integer.parseInt(records));
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a record element.
+     *
+     * @param reader the reader positioned on the record element
+     * @param skipBrokenRecords whether to return <tt>null</tt> for a record
+     * having a property without value
+     * @return the record or <tt>null</tt> if it is broken
+     * @throws XMLStreamException if the file is not well-formed
+     */
+    private static HistoryRecord readRecord(XMLStreamReader reader,
+                                            boolean skipBrokenRecords)
+        throws XMLStreamException
+    {
+        Date timestamp
+            = parseTimestamp(reader.getAttributeValue(null, "timestamp"));
+
+        List<String> names = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        boolean broken = false;
+
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT)
+        {
+            String name = reader.getLocalName();
+            String value = reader.getElementText();
+
+            if (value.length() == 0)
+            {
+                broken = true;
+                continue;
+            }
+
+            names.add(name);
+            values.add(value);
+        }
+
+        if (broken && skipBrokenRecords)
+            return null;
+
+        return new HistoryRecord(names.toArray(new String[names.size()]),
+                                 values.toArray(new String[values.size()]),
+                                 timestamp);
+    }
+
+    /**
+     * Skips the element the reader is positioned on, including its
+     * children.
+     *
+     * @param reader the reader positioned on a start element
+     * @throws XMLStreamException if the file is not well-formed
+     */
+    private static void skipElement(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        int depth = 1;
+        while (depth > 0)
+        {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+}
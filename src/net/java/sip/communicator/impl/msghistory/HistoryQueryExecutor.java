@@ -0,0 +1,512 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.msghistory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.HistorySearchProgressListener;
+import net.java.sip.communicator.service.msghistory.event.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Runs a query on the history readers of all the contacts of a meta contact
+ * at once and merges their results. The readers are queried on a bounded
+ * pool of threads and their sorted results are merged with a k-way merge,
+ * keeping the first of equal events as the <tt>TreeSet</tt>s used before.
+ * <p>
+ * The progress of the readers is combined, weighted by their number of
+ * records, and reported to the <tt>MessageHistorySearchProgressListener</tt>s
+ * of the query. A query whose calling thread is interrupted is cancelled:
+ * the <tt>HistorySearchProgressListener</tt> the executor adds to each
+ * reader aborts the search of the reader the next time it reports progress.
+ */
+public class HistoryQueryExecutor
+{
+    /**
+     * The maximum number of readers queried at once.
+     */
+    private static final int MAX_THREADS
+        = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The time in seconds after which idle threads of the pool end.
+     */
+    private static final long KEEP_ALIVE_TIME = 60;
+
+    /**
+     * A query run on the history reader of a contact.
+     */
+    public interface Query
+    {
+        /**
+         * Runs the query on the history reader of a contact.
+         *
+         * @param contact the contact
+         * @param reader the history reader of <tt>contact</tt>
+         * @return the found events
+         */
+        Collection<EventObject> find(Contact contact, HistoryReader reader);
+    }
+
+    /**
+     * The pool running the queries of the readers, created when first
+     * needed.
+     */
+    private ThreadPoolExecutor pool;
+
+    /**
+     * Runs a query on several history readers and merges their results.
+     *
+     * @param readers the history readers by contact
+     * @param query the query
+     * @param comparator the order of the events
+     * @param listeners the listeners to report the progress to
+     * @param source the source of the progress events
+     * @return the found events in the order of <tt>comparator</tt>
+     */
+    public List<EventObject> execute(
+            Map<Contact, HistoryReader> readers,
+            Query query,
+            Comparator<EventObject> comparator,
+            Collection<MessageHistorySearchProgressListener> listeners,
+            Object source)
+    {
+        List<Map.Entry<Contact, HistoryReader>> entries
+            = new ArrayList<Map.Entry<Contact, HistoryReader>>(
+                    readers.entrySet());
+        Progress progress
+            = listeners.isEmpty()
+                ? null
+                : new Progress(entries, listeners, source);
+
+        List<List<EventObject>> results;
+        if (entries.size() == 1)
+        {
+            results = new ArrayList<List<EventObject>>();
+            results.add(run(entries.get(0), 0, query, comparator, progress));
+        }
+        else
+            results = runAll(entries, query, comparator, progress);
+
+        if (progress != null)
+            progress.complete();
+
+        return merge(results, comparator);
+    }
+
+    /**
+     * Runs a query on the pool for each reader and waits for the results.
+     * If the calling thread is interrupted, the queries are cancelled and
+     * the results of the completed ones are returned.
+     *
+     * @param entries the history readers by contact
+     * @param query the query
+     * @param comparator the order of the events
+     * @param progress the progress of the query or <tt>null</tt>
+     * @return the sorted results of the readers
+     */
+    private List<List<EventObject>> runAll(
+            List<Map.Entry<Contact, HistoryReader>> entries,
+            final Query query,
+            final Comparator<EventObject> comparator,
+            final Progress progress)
+    {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        List<Future<List<EventObject>>> futures
+            = new ArrayList<Future<List<EventObject>>>(entries.size());
+        ExecutorService pool = getPool();
+
+        for (int i = 0; i < entries.size(); i++)
+        {
+            final Map.Entry<Contact, HistoryReader> entry = entries.get(i);
+            final int index = i;
+
+            futures.add(pool.submit(new Callable<List<EventObject>>()
+            {
+                public List<EventObject> call()
+                {
+                    HistorySearchProgressListener canceller
+                        = new Canceller(cancelled);
+                    HistoryReader reader = entry.getValue();
+
+                    reader.addSearchProgressListener(canceller);
+                    try
+                    {
+                        return run(entry, index, query, comparator, progress);
+                    }
+                    finally
+                    {
+                        reader.removeSearchProgressListener(canceller);
+                    }
+                }
+            }));
+        }
+
+        List<List<EventObject>> results
+            = new ArrayList<List<EventObject>>(entries.size());
+        try
+        {
+            for (Future<List<EventObject>> future : futures)
+            {
+                try
+                {
+                    results.add(future.get());
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+
+                    if (cause instanceof CancellationException)
+                        continue;
+
+                    cancel(futures, cancelled);
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    throw new RuntimeException(cause);
+                }
+                catch (CancellationException e)
+                {
+                    // cancelled before it started
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            cancel(futures, cancelled);
+            Thread.currentThread().interrupt();
+        }
+
+        return results;
+    }
+
+    /**
+     * Runs a query on a reader.
+     *
+     * @param entry the contact and its history reader
+     * @param index the index of the reader in the progress of the query
+     * @param query the query
+     * @param comparator the order of the events
+     * @param progress the progress of the query or <tt>null</tt>
+     * @return the found events, sorted
+     */
+    private static List<EventObject> run(
+            Map.Entry<Contact, HistoryReader> entry,
+            int index,
+            Query query,
+            Comparator<EventObject> comparator,
+            Progress progress)
+    {
+        HistoryReader reader = entry.getValue();
+        HistorySearchProgressListener listener = null;
+
+        if (progress != null)
+        {
+            listener = progress.getListener(index);
+            reader.addSearchProgressListener(listener);
+        }
+        try
+        {
+            List<EventObject> events = new ArrayList<EventObject>(
+                    query.find(entry.getKey(), reader));
+
+            // events may be ordered differently than their records
+            Collections.sort(events, comparator);
+            return events;
+        }
+        finally
+        {
+            if (listener != null)
+                reader.removeSearchProgressListener(listener);
+        }
+    }
+
+    /**
+     * Cancels the queries which are still running.
+     *
+     * @param futures the queries
+     * @param cancelled the flag checked by the running queries
+     */
+    private static void cancel(List<Future<List<EventObject>>> futures,
+                               AtomicBoolean cancelled)
+    {
+        cancelled.set(true);
+        for (Future<List<EventObject>> future : futures)
+            future.cancel(false);
+    }
+
+    /**
+     * Merges sorted lists of events, keeping only the first of equal
+     * events.
+     *
+     * @param results the sorted lists
+     * @param comparator the order of the events
+     * @return the merged list
+     */
+    static List<EventObject> merge(List<List<EventObject>> results,
+                                   final Comparator<EventObject> comparator)
+    {
+        int size = 0;
+        PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>(
+            Math.max(1, results.size()),
+            new Comparator<Cursor>()
+            {
+                public int compare(Cursor c1, Cursor c2)
+                {
+                    int result = comparator.compare(c1.head, c2.head);
+
+                    return (result != 0) ? result : c1.index - c2.index;
+                }
+            });
+
+        for (int i = 0; i < results.size(); i++)
+        {
+            List<EventObject> events = results.get(i);
+
+            size += events.size();
+            if (!events.isEmpty())
+                heads.add(new Cursor(events.iterator(), i));
+        }
+
+        List<EventObject> merged = new ArrayList<EventObject>(size);
+        EventObject last = null;
+        while (!heads.isEmpty())
+        {
+            Cursor cursor = heads.poll();
+
+            if (last == null || comparator.compare(last, cursor.head) != 0)
+            {
+                merged.add(cursor.head);
+                last = cursor.head;
+            }
+
+            if (cursor.next())
+                heads.add(cursor);
+        }
+        return merged;
+    }
+
+    /**
+     * Returns the pool running the queries, creating it if necessary.
+     *
+     * @return the pool
+     */
+    private synchronized ExecutorService getPool()
+    {
+        if (pool == null)
+        {
+            pool = new ThreadPoolExecutor(
+                MAX_THREADS, MAX_THREADS,
+                KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "MessageHistoryQuery");
+
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            pool.allowCoreThreadTimeOut(true);
+        }
+        return pool;
+    }
+
+    /**
+     * Stops the pool running the queries.
+     */
+    public synchronized void shutdown()
+    {
+        if (pool != null)
+        {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * The current element of a sorted list during a merge.
+     */
+    private static class Cursor
+    {
+        private final Iterator<EventObject> iterator;
+
+        private final int index;
+
+        private EventObject head;
+
+        Cursor(Iterator<EventObject> iterator, int index)
+        {
+            this.iterator = iterator;
+            this.index = index;
+            next();
+        }
+
+        boolean next()
+        {
+            if (!iterator.hasNext())
+                return false;
+            head = iterator.next();
+            return true;
+        }
+    }
+
+    /**
+     * Aborts the search of a reader once its query is cancelled. Readers
+     * report the progress of all their searches to all their listeners, so
+     * only the searches of the thread which created the listener are
+     * aborted.
+     */
+    private static class Canceller
+        implements HistorySearchProgressListener
+    {
+        private final AtomicBoolean cancelled;
+
+        private final Thread thread = Thread.currentThread();
+
+        Canceller(AtomicBoolean cancelled)
+        {
+            this.cancelled = cancelled;
+        }
+
+        public void progressChanged(
+            net.java.sip.communicator.service.history.event.ProgressEvent evt)
+        {
+            if (cancelled.get() && Thread.currentThread() == thread)
+                throw new CancellationException("History search cancelled");
+        }
+    }
+
+    /**
+     * Combines the progress of the readers of a query.
+     */
+    private static class Progress
+    {
+        private final Collection<MessageHistorySearchProgressListener>
+            listeners;
+
+        private final Object source;
+
+        /**
+         * The share of each reader in the progress of the query.
+         */
+        private final double[] weights;
+
+        /**
+         * The progress of each reader.
+         */
+        private final int[] progress;
+
+        /**
+         * The last progress reported to the listeners.
+         */
+        private int reported
+            = MessageHistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
+
+        /**
+         * The last event of a reader.
+         */
+        private net.java.sip.communicator.service.history.event.ProgressEvent
+            lastEvent;
+
+        Progress(List<Map.Entry<Contact, HistoryReader>> entries,
+                 Collection<MessageHistorySearchProgressListener> listeners,
+                 Object source)
+        {
+            this.listeners = listeners;
+            this.source = source;
+            this.weights = new double[entries.size()];
+            this.progress = new int[entries.size()];
+
+            long total = 0;
+            for (int i = 0; i < weights.length; i++)
+            {
+                weights[i] = entries.get(i).getValue().countRecords();
+                total += weights[i];
+            }
+            for (int i = 0; i < weights.length; i++)
+            {
+                weights[i] = (total == 0)
+                    ? 1.0 / weights.length
+                    : weights[i] / total;
+            }
+        }
+
+        /**
+         * Returns the listener reporting the progress of the search the
+         * current thread runs on a reader.
+         *
+         * @param index the index of the reader
+         * @return the listener
+         */
+        HistorySearchProgressListener getListener(final int index)
+        {
+            final Thread thread = Thread.currentThread();
+
+            return new HistorySearchProgressListener()
+            {
+                public void progressChanged(
+                    net.java.sip.communicator.service.history.event
+                        .ProgressEvent evt)
+                {
+                    // ignore the searches of other queries on the reader
+                    if (Thread.currentThread() == thread)
+                        update(index, evt);
+                }
+            };
+        }
+
+        /**
+         * Records the progress of a reader and reports the progress of the
+         * query if it changed.
+         *
+         * @param index the index of the reader
+         * @param evt the event of the reader
+         */
+        private synchronized void update(
+            int index,
+            net.java.sip.communicator.service.history.event.ProgressEvent evt)
+        {
+            progress[index] = evt.getProgress();
+            lastEvent = evt;
+
+            double total = 0;
+            for (int i = 0; i < progress.length; i++)
+                total += weights[i] * progress[i];
+
+            int value = Math.min((int) total,
+                MessageHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+            if (value > reported)
+                fire(value);
+        }
+
+        /**
+         * Reports the end of the query.
+         */
+        synchronized void complete()
+        {
+            if (lastEvent != null
+                    && reported < MessageHistorySearchProgressListener
+                        .PROGRESS_MAXIMUM_VALUE)
+            {
+                fire(MessageHistorySearchProgressListener
+                        .PROGRESS_MAXIMUM_VALUE);
+            }
+        }
+
+        private void fire(int value)
+        {
+            reported = value;
+            for (MessageHistorySearchProgressListener l : listeners)
+                l.progressChanged(new ProgressEvent(source, lastEvent, value));
+        }
+    }
+}
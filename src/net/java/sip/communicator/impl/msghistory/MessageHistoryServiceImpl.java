@@ -81,6 +81,12 @@ public class MessageHistoryServiceImpl
 
     private ConfigurationService configService;
 
+    /**
+     * Runs the queries on the histories of the contacts of a meta contact.
+     */
+    private final HistoryQueryExecutor queryExecutor
+        = new HistoryQueryExecutor();
+
     private MessageHistoryPropertyChangeListener msgHistoryPropListener;
 
     private static ResourceManagementService resourcesService;
@@ -103,43 +109,18 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection<EventObject> findByStartDate( MetaContact contact,
-                                                    Date startDate)
+    public Collection<EventObject> findByStartDate(MetaContact contact,
+                                                   final Date startDate)
         throws RuntimeException
     {
-        TreeSet<EventObject> result =
-            new TreeSet<EventObject>(new MessageEventComparator<EventObject>());
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        return find(contact, new RecordQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.findByStartDate(startDate);
-            while (recs.hasNext())
+            @Override
+            Iterator<HistoryRecord> findRecords(HistoryReader reader)
             {
-                result.add(
-                    convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByStartDate(startDate);
             }
-        }
-
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
-
-        return result;
-    }
-
-    private void removeHistorySearchProgressListeners(
-        Map<?, HistoryReader> readers)
-    {
-        for (HistoryReader item : readers.values())
-            removeHistorySearchProgressListeners(item);
+        });
     }
 
     /**
@@ -151,37 +132,18 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection<EventObject> findByEndDate(   MetaContact contact,
-                                                    Date endDate)
+    public Collection<EventObject> findByEndDate(MetaContact contact,
+                                                 final Date endDate)
         throws RuntimeException
     {
-        TreeSet<EventObject> result = new TreeSet<EventObject>(
-            new MessageEventComparator<EventObject>());
-
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        return find(contact, new RecordQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.findByEndDate(endDate);
-            while (recs.hasNext())
+            @Override
+            Iterator<HistoryRecord> findRecords(HistoryReader reader)
             {
-                result
-                    .add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByEndDate(endDate);
             }
-        }
-
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
-
-        return result;
+        });
     }
 
     /**
@@ -195,39 +157,18 @@ public class MessageHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<EventObject> findByPeriod(MetaContact contact,
-                                                Date startDate,
-                                                Date endDate)
+                                                final Date startDate,
+                                                final Date endDate)
         throws RuntimeException
     {
-        TreeSet<EventObject> result
-            = new TreeSet<EventObject>(new MessageEventComparator<EventObject>());
-
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        return find(contact, new RecordQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-
-            Iterator<HistoryRecord> recs
-                = reader.findByPeriod(startDate, endDate);
-            while (recs.hasNext())
+            @Override
+            Iterator<HistoryRecord> findRecords(HistoryReader reader)
             {
-                result
-                    .add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByPeriod(startDate, endDate);
             }
-        }
-
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
-
-        return result;
+        });
     }
 
     /**
@@ -291,45 +232,25 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection<EventObject> findLast(MetaContact contact, int count)
+    public Collection<EventObject> findLast(MetaContact contact,
+                                            final int count)
         throws RuntimeException
     {
-        TreeSet<EventObject> result
-            = new TreeSet<EventObject>(
-                new MessageEventComparator<EventObject>());
-
-        Iterator<Contact> iter = contact.getContacts();
-        while (iter.hasNext())
+        List<EventObject> result = find(contact, new RecordQuery()
         {
-            Contact item = iter.next();
-
-            try
-            {
-                History history = this.getHistory(null, item);
-
-                HistoryReader reader = history.getReader();
-                Iterator<HistoryRecord> recs = reader.findLast(count);
-                while (recs.hasNext())
-                {
-                    result.add(
-                        convertHistoryRecordToMessageEvent(recs.next(),
-                            item));
-
-                }
-            } catch (IOException e)
+            @Override
+            Iterator<HistoryRecord> findRecords(HistoryReader reader)
             {
-                logger.error("Could not read history", e);
+                return reader.findLast(count);
             }
-        }
+        }, false);
 
-        LinkedList<EventObject> resultAsList
-            = new LinkedList<EventObject>(result);
-        int startIndex = resultAsList.size() - count;
+        int startIndex = result.size() - count;
 
         if(startIndex < 0)
             startIndex = 0;
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        return result.subList(startIndex, result.size());
     }
 
     /**
@@ -343,43 +264,24 @@ public class MessageHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<EventObject> findFirstMessagesAfter(  MetaContact contact,
-                                                            Date date,
-                                                            int count)
+                                                            final Date date,
+                                                            final int count)
         throws RuntimeException
     {
-        TreeSet<EventObject> result = new TreeSet<EventObject>(
-            new MessageEventComparator<EventObject>());
-
-        Iterator<Contact> iter = contact.getContacts();
-        while (iter.hasNext())
+        List<EventObject> result = find(contact, new RecordQuery()
         {
-            Contact item = iter.next();
-
-            try
+            @Override
+            Iterator<HistoryRecord> findRecords(HistoryReader reader)
             {
-                History history = this.getHistory(null, item);
-
-                HistoryReader reader = history.getReader();
                 // date param of method is the one saved in receivedTimestamp
                 // the method findFirstRecordsAfter compares to the
                 // attribute timestamp. Most of the times there is 1 or 2 mills
                 // difference between the two dates. So we will request more
                 // records from the reader and than will get the needed count
                 // according to the correct field comparsion (receivedTimestamp)
-                Iterator<HistoryRecord> recs
-                    = reader.findFirstRecordsAfter(date, count + 4);
-                while (recs.hasNext())
-                {
-                    result.add(
-                        convertHistoryRecordToMessageEvent(recs.next(),
-                            item));
-
-                }
-            } catch (IOException e)
-            {
-                logger.error("Could not read history", e);
+                return reader.findFirstRecordsAfter(date, count + 4);
             }
-        }
+        }, false);
 
         // check the dates and skip the starting records which are not ok
         int startIx = 0;
@@ -405,14 +307,11 @@ public class MessageHistoryServiceImpl
                 startIx++;
         }
 
-        LinkedList<EventObject> resultAsList
-            = new LinkedList<EventObject>(result);
-
         int toIndex = startIx + count;
-        if(toIndex > resultAsList.size())
-            toIndex = resultAsList.size();
+        if(toIndex > result.size())
+            toIndex = result.size();
 
-        return resultAsList.subList(startIx, toIndex);
+        return result.subList(startIx, toIndex);
     }
 
     /**
@@ -426,46 +325,25 @@ public class MessageHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<EventObject> findLastMessagesBefore(  MetaContact contact,
-                                                            Date date,
-                                                            int count)
+                                                            final Date date,
+                                                            final int count)
         throws RuntimeException
     {
-        TreeSet<EventObject> result = new TreeSet<EventObject>(
-            new MessageEventComparator<EventObject>());
-
-        Iterator<Contact> iter = contact.getContacts();
-        while (iter.hasNext())
+        List<EventObject> result = find(contact, new RecordQuery()
         {
-            Contact item = iter.next();
-
-            try
-            {
-                History history = this.getHistory(null, item);
-
-                HistoryReader reader = history.getReader();
-                Iterator<HistoryRecord> recs
-                    = reader.findLastRecordsBefore(date, count);
-                while (recs.hasNext())
-                {
-                    result.add(
-                        convertHistoryRecordToMessageEvent(recs.next(),
-                            item));
-
-                }
-            } catch (IOException e)
+            @Override
+            Iterator<HistoryRecord> findRecords(HistoryReader reader)
             {
-                logger.error("Could not read history", e);
+                return reader.findLastRecordsBefore(date, count);
             }
-        }
+        }, false);
 
-        LinkedList<EventObject> resultAsList
-            = new LinkedList<EventObject>(result);
-        int startIndex = resultAsList.size() - count;
+        int startIndex = result.size() - count;
 
         if(startIndex < 0)
             startIndex = 0;
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        return result.subList(startIndex, result.size());
     }
 
     /**
@@ -833,6 +711,7 @@ public class MessageHistoryServiceImpl
             configService.removePropertyChangeListener(msgHistoryPropListener);
 
         stopMessageHistoryService();
+        queryExecutor.shutdown();
     }
 
     // //////////////////////////////////////////////////////////////////////////
@@ -1364,36 +1243,21 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection<EventObject> findByPeriod(MetaContact contact, Date startDate,
-                                   Date endDate, String[] keywords,
-                                   boolean caseSensitive)
+    public Collection<EventObject> findByPeriod(MetaContact contact,
+                                   final Date startDate, final Date endDate,
+                                   final String[] keywords,
+                                   final boolean caseSensitive)
         throws RuntimeException
     {
-        TreeSet<EventObject> result = new TreeSet<EventObject>(new MessageEventComparator<EventObject>());
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        return find(contact, new RecordQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.findByPeriod(startDate, endDate, keywords,
-                                                SEARCH_FIELD, caseSensitive);
-            while (recs.hasNext())
+            @Override
+            Iterator<HistoryRecord> findRecords(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByPeriod(startDate, endDate, keywords,
+                                           SEARCH_FIELD, caseSensitive);
             }
-        }
-
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
-
-        return result;
+        });
     }
 
     /**
@@ -1406,35 +1270,20 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection<EventObject> findByKeyword(MetaContact contact, String keyword,
-                                    boolean caseSensitive)
+    public Collection<EventObject> findByKeyword(MetaContact contact,
+                                    final String keyword,
+                                    final boolean caseSensitive)
         throws RuntimeException
     {
-        TreeSet<EventObject> result = new TreeSet<EventObject>(new MessageEventComparator<EventObject>());
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        return find(contact, new RecordQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.
-                findByKeyword(keyword, SEARCH_FIELD, caseSensitive);
-            while (recs.hasNext())
+            @Override
+            Iterator<HistoryRecord> findRecords(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByKeyword(
+                    keyword, SEARCH_FIELD, caseSensitive);
             }
-        }
-
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
-
-        return result;
+        });
     }
 
     /**
@@ -1447,35 +1296,20 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection<EventObject> findByKeywords(MetaContact contact, String[] keywords,
-                                     boolean caseSensitive)
+    public Collection<EventObject> findByKeywords(MetaContact contact,
+                                     final String[] keywords,
+                                     final boolean caseSensitive)
         throws RuntimeException
     {
-        TreeSet<EventObject> result = new TreeSet<EventObject>(new MessageEventComparator<EventObject>());
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        return find(contact, new RecordQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.
-                findByKeywords(keywords, SEARCH_FIELD, caseSensitive);
-            while (recs.hasNext())
+            @Override
+            Iterator<HistoryRecord> findRecords(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByKeywords(
+                    keywords, SEARCH_FIELD, caseSensitive);
             }
-        }
-
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
-
-        return result;
+        });
     }
 
     /**
@@ -1504,6 +1338,53 @@ public class MessageHistoryServiceImpl
         return readers;
     }
 
+    /**
+     * Runs a query on the histories of all the contacts in the given
+     * MetaContact and reports its progress to the registered
+     * MessageHistorySearchProgressListeners.
+     *
+     * @param contact MetaContact
+     * @param query the query run on the history of each contact
+     * @return the found events sorted by date
+     */
+    private List<EventObject> find(MetaContact contact, RecordQuery query)
+    {
+        return find(contact, query, true);
+    }
+
+    /**
+     * Runs a query on the histories of all the contacts in the given
+     * MetaContact. The histories are queried concurrently and the interrupt
+     * of the calling thread cancels the query.
+     *
+     * @param contact MetaContact
+     * @param query the query run on the history of each contact
+     * @param reportProgress whether to report the progress of the query to
+     * the registered MessageHistorySearchProgressListeners
+     * @return the found events sorted by date
+     */
+    private List<EventObject> find(MetaContact contact,
+                                   RecordQuery query,
+                                   boolean reportProgress)
+    {
+        List<MessageHistorySearchProgressListener> listeners;
+
+        synchronized(progressListeners)
+        {
+            listeners = reportProgress
+                ? new ArrayList<MessageHistorySearchProgressListener>(
+                        progressListeners.keySet())
+                : Collections.<MessageHistorySearchProgressListener>emptyList();
+        }
+
+        return queryExecutor.execute(
+            getHistoryReaders(contact),
+            query,
+            new MessageEventComparator<EventObject>(),
+            listeners,
+            this);
+    }
+
     /**
      * Total count of records for supplied history readers will read through
      *
@@ -2080,6 +1961,36 @@ public class MessageHistoryServiceImpl
         }
     }
 
+    /**
+     * A query run on the history of a contact, converting the found records
+     * to message events.
+     */
+    private abstract class RecordQuery
+        implements HistoryQueryExecutor.Query
+    {
+        public Collection<EventObject> find(Contact contact,
+                                            HistoryReader reader)
+        {
+            List<EventObject> result = new ArrayList<EventObject>();
+            Iterator<HistoryRecord> recs = findRecords(reader);
+
+            while (recs.hasNext())
+            {
+                result.add(
+                    convertHistoryRecordToMessageEvent(recs.next(), contact));
+            }
+            return result;
+        }
+
+        /**
+         * Finds the records of the query.
+         *
+         * @param reader the history reader of the contact
+         * @return the found records
+         */
+        abstract Iterator<HistoryRecord> findRecords(HistoryReader reader);
+    }
+
     /**
      * Used to compare MessageDeliveredEvent or MessageReceivedEvent
      * and to be ordered in TreeSet according their timestamp
@@ -0,0 +1,247 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.netaddr;
+
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Caches the local addresses selected by
+ * {@link NetworkAddressManagerServiceImpl#getLocalHost(InetAddress)} by
+ * destination prefix, so that most lookups neither touch the routing table
+ * nor contend for the socket the selection is done with.
+ * <p>
+ * The destinations of a /24 IPv4 or /64 IPv6 prefix share an entry. The
+ * cache is invalidated when the network configuration changes and its
+ * entries expire after {@link #ENTRY_TTL} milliseconds, in case routes change
+ * without the interfaces changing. IPv6 link-local destinations, which
+ * depend on their scope, are not cached.
+ */
+class LocalHostCache
+{
+    /**
+     * The length of the prefix of the IPv4 destinations which share an
+     * entry.
+     */
+    private static final int IPV4_PREFIX_LENGTH = 24;
+
+    /**
+     * The length of the prefix of the IPv6 destinations which share an
+     * entry.
+     */
+    private static final int IPV6_PREFIX_LENGTH = 64;
+
+    /**
+     * The time in milliseconds after which an entry expires.
+     */
+    private static final long ENTRY_TTL = 30000;
+
+    /**
+     * The local addresses by destination prefix.
+     */
+    private final ConcurrentMap<InetAddress, Entry> entries
+        = new ConcurrentHashMap<InetAddress, Entry>();
+
+    /**
+     * The number of invalidations of the cache. Entries of earlier
+     * generations are ignored, so that lookups which overlap an invalidation
+     * do not cache routes which may be stale.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * The number of lookups answered from the cache.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * The number of lookups which had to select a local address.
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * The total time in nanoseconds spent selecting local addresses.
+     */
+    private final AtomicLong missTime = new AtomicLong();
+
+    /**
+     * Returns the prefix which a destination shares an entry with.
+     *
+     * @param destination the destination
+     * @return the prefix of <tt>destination</tt> or <tt>null</tt> if the
+     * local address to use with it is not to be cached
+     */
+    static InetAddress getPrefix(InetAddress destination)
+    {
+        if ((destination == null)
+                || ((destination instanceof Inet6Address)
+                    && destination.isLinkLocalAddress()))
+            return null;
+
+        byte[] address = destination.getAddress();
+        int prefixLength
+            = (address.length == 4) ? IPV4_PREFIX_LENGTH : IPV6_PREFIX_LENGTH;
+
+        for (int i = prefixLength / 8; i < address.length; i++)
+            address[i] = 0;
+
+        try
+        {
+            return InetAddress.getByAddress(address);
+        }
+        catch (UnknownHostException uhe)
+        {
+            // cannot happen with the length of an address
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cached local address for a destination prefix.
+     *
+     * @param prefix the destination prefix
+     * @return the local address for <tt>prefix</tt> or <tt>null</tt> if
+     * there is none or it has expired
+     */
+    InetAddress get(InetAddress prefix)
+    {
+        Entry entry = entries.get(prefix);
+
+        if ((entry != null)
+                && (entry.generation == generation.get())
+                && (System.currentTimeMillis() < entry.expirationTime))
+        {
+            hitCount.incrementAndGet();
+            return entry.localHost;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the current generation of the cache, to be passed to
+     * {@link #put(InetAddress, int, InetAddress, long)} when the lookup
+     * completes.
+     *
+     * @return the current generation of the cache
+     */
+    int getGeneration()
+    {
+        return generation.get();
+    }
+
+    /**
+     * Caches the local address selected for a destination prefix.
+     *
+     * @param prefix the destination prefix
+     * @param lookupGeneration the generation of the cache when the lookup
+     * started
+     * @param localHost the selected local address or <tt>null</tt>
+     * @param lookupTime the time in nanoseconds the lookup took
+     */
+    void put(
+            InetAddress prefix,
+            int lookupGeneration,
+            InetAddress localHost,
+            long lookupTime)
+    {
+        missCount.incrementAndGet();
+        missTime.addAndGet(lookupTime);
+
+        if ((localHost != null)
+                && !localHost.isAnyLocalAddress()
+                && (lookupGeneration == generation.get()))
+        {
+            entries.put(
+                    prefix,
+                    new Entry(
+                            localHost,
+                            lookupGeneration,
+                            System.currentTimeMillis() + ENTRY_TTL));
+        }
+    }
+
+    /**
+     * Discards all cached local addresses.
+     */
+    void invalidate()
+    {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return the number of lookups answered from the cache
+     */
+    long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of lookups which had to select a local address.
+     *
+     * @return the number of lookups which had to select a local address
+     */
+    long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the average time in nanoseconds spent selecting a local
+     * address.
+     *
+     * @return the average time in nanoseconds spent selecting a local
+     * address or <tt>0</tt> if none has been selected
+     */
+    long getAverageMissTime()
+    {
+        long misses = missCount.get();
+
+        return (misses == 0) ? 0 : (missTime.get() / misses);
+    }
+
+    /**
+     * A cached local address.
+     */
+    private static class Entry
+    {
+        /**
+         * The local address.
+         */
+        final InetAddress localHost;
+
+        /**
+         * The generation of the cache the local address was selected in.
+         */
+        final int generation;
+
+        /**
+         * The time in milliseconds at which the entry expires.
+         */
+        final long expirationTime;
+
+        /**
+         * Creates a cached local address.
+         *
+         * @param localHost the local address
+         * @param generation the generation of the cache the local address
+         * was selected in
+         * @param expirationTime the time in milliseconds at which the entry
+         * expires
+         */
+        Entry(InetAddress localHost, int generation, long expirationTime)
+        {
+            this.localHost = localHost;
+            this.generation = generation;
+            this.expirationTime = expirationTime;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.netaddr;
+
+import net.java.sip.communicator.util.*;
+import net.java.sip.communicator.util.Logger;
+
+import org.jitsi.util.*;
+
+/**
+ * Waits for the changes of the network interfaces and of their addresses
+ * the Linux kernel notifies through an rtnetlink socket, so that the
+ * <tt>NetworkConfigurationWatcher</tt> does not have to poll the interfaces.
+ * <p>
+ * The native library is optional: if it cannot be loaded, {@link #open()}
+ * returns <tt>null</tt> and the interfaces are polled.
+ */
+class NetlinkMonitor
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>NetlinkMonitor</tt> class for
+     * logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(NetlinkMonitor.class);
+
+    /**
+     * The value returned by {@link #waitForChange(int)} when the network
+     * configuration has changed.
+     */
+    static final int CHANGED = 1;
+
+    /**
+     * The value returned by {@link #waitForChange(int)} when the timeout has
+     * elapsed without a change.
+     */
+    static final int TIMEOUT = 0;
+
+    /**
+     * Whether the native library has been loaded.
+     */
+    private static final boolean loaded;
+
+    static
+    {
+        boolean libraryLoaded = false;
+
+        if (OSUtils.IS_LINUX)
+        {
+            try
+            {
+                System.loadLibrary("netlinkmonitor");
+                libraryLoaded = true;
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                logger.info(
+                        "Failed to load netlinkmonitor, network interfaces"
+                            + " will be polled: " + t);
+            }
+        }
+        loaded = libraryLoaded;
+    }
+
+    /**
+     * The native handle of the rtnetlink socket.
+     */
+    private final long handle;
+
+    /**
+     * Whether the socket has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Creates a monitor of an open rtnetlink socket.
+     *
+     * @param handle the native handle of the socket
+     */
+    private NetlinkMonitor(long handle)
+    {
+        this.handle = handle;
+    }
+
+    /**
+     * Opens an rtnetlink socket subscribed to the changes of the links and
+     * of the IPv4 and IPv6 addresses.
+     *
+     * @return a monitor of the changes or <tt>null</tt> if they cannot be
+     * monitored on this system
+     */
+    static NetlinkMonitor open()
+    {
+        if (!loaded)
+            return null;
+
+        long handle;
+
+        try
+        {
+            handle = open0();
+        }
+        catch (UnsatisfiedLinkError ule)
+        {
+            logger.warn("netlinkmonitor is incompatible", ule);
+            return null;
+        }
+        if (handle == 0)
+        {
+            logger.warn("Failed to open an rtnetlink socket");
+            return null;
+        }
+        return new NetlinkMonitor(handle);
+    }
+
+    /**
+     * Waits for the network configuration to change. The notifications
+     * which are already pending are consumed, so that a burst of them is
+     * reported once. Only the thread which closes the monitor may wait.
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     * @return {@link #CHANGED} if the network configuration has changed,
+     * {@link #TIMEOUT} if the timeout has elapsed or a negative value if the
+     * socket has failed or the wait has been interrupted
+     */
+    int waitForChange(int timeout)
+    {
+        synchronized (this)
+        {
+            if (closed)
+                return -1;
+        }
+        return waitForChange0(handle, timeout);
+    }
+
+    /**
+     * Makes the current or the next {@link #waitForChange(int)} return
+     * right away.
+     */
+    synchronized void interrupt()
+    {
+        if (!closed)
+            interrupt0(handle);
+    }
+
+    /**
+     * Closes the rtnetlink socket. Called by the thread which waits for the
+     * changes once it is done.
+     */
+    synchronized void close()
+    {
+        if (!closed)
+        {
+            closed = true;
+            close0(handle);
+        }
+    }
+
+    /**
+     * Opens an rtnetlink socket subscribed to the changes of the links and
+     * of the IPv4 and IPv6 addresses.
+     *
+     * @return the native handle of the socket or <tt>0</tt> on failure
+     */
+    private static native long open0();
+
+    /**
+     * Waits for a notification of an rtnetlink socket and consumes the
+     * pending ones.
+     *
+     * @param handle the native handle of the socket
+     * @param timeout the maximum time to wait in milliseconds
+     * @return <tt>1</tt> if a notification has been received, <tt>0</tt> on
+     * timeout or <tt>-1</tt> on failure or interruption
+     */
+    private static native int waitForChange0(long handle, int timeout);
+
+    /**
+     * Interrupts the current or the next wait for a notification of an
+     * rtnetlink socket.
+     *
+     * @param handle the native handle of the socket
+     */
+    private static native void interrupt0(long handle);
+
+    /**
+     * Closes an rtnetlink socket.
+     *
+     * @param handle the native handle of the socket
+     */
+    private static native void close0(long handle);
+}
@@ -51,6 +51,18 @@ public class NetworkAddressManagerServiceImpl
      */
     DatagramSocket localHostFinderSocket = null;
 
+    /**
+     * The object used to serialize the dummy connections of
+     * {@link #localHostFinderSocket}.
+     */
+    private final Object localHostFinderSyncRoot = new Object();
+
+    /**
+     * The local addresses selected by {@link #getLocalHost(InetAddress)} by
+     * destination prefix.
+     */
+    private final LocalHostCache localHostCache = new LocalHostCache();
+
     /**
      * A random (unused)local port to use when trying to select a local host
      * address to use when sending messages to a specific destination.
@@ -95,6 +107,17 @@ public class NetworkAddressManagerServiceImpl
      {
          this.localHostFinderSocket = initRandomPortSocket();
 
+         // routes may change with the network configuration
+         addNetworkConfigurationChangeListener(
+                 new NetworkConfigurationChangeListener()
+                 {
+                     public void configurationChanged(ChangeEvent event)
+                     {
+                         if (event.getType() != ChangeEvent.DNS_CHANGE)
+                             invalidateLocalHostCache();
+                     }
+                 });
+
          // set packet logging to ice4j stack
          StunStack.setPacketLogger(new Ice4jPacketLogger());
      }
@@ -120,6 +143,8 @@ public class NetworkAddressManagerServiceImpl
     /**
      * Returns an InetAddress instance that represents the localhost, and that
      * a socket can bind upon or distribute to peers as a contact address.
+     * The addresses are cached by destination prefix until the network
+     * configuration changes.
      *
      * @param intendedDestination the destination that we'd like to use the
      * localhost address with.
@@ -127,8 +152,109 @@ public class NetworkAddressManagerServiceImpl
      * @return an InetAddress instance representing the local host, and that
      * a socket can bind upon or distribute to peers as a contact address.
      */
-    public synchronized InetAddress getLocalHost(
-            InetAddress intendedDestination)
+    public InetAddress getLocalHost(InetAddress intendedDestination)
+    {
+        InetAddress prefix = LocalHostCache.getPrefix(intendedDestination);
+
+        if (prefix == null)
+            return selectLocalHost(intendedDestination);
+
+        InetAddress localHost = localHostCache.get(prefix);
+
+        if (localHost != null)
+        {
+            if (logger.isTraceEnabled())
+            {
+                logger.trace(
+                        "Returning the cached localhost address '"
+                            + localHost
+                            + "' for intended destination '"
+                            + intendedDestination
+                            + "'");
+            }
+            return localHost;
+        }
+
+        int generation = localHostCache.getGeneration();
+        long startTime = System.nanoTime();
+
+        localHost = selectLocalHost(intendedDestination);
+        localHostCache.put(
+                prefix,
+                generation,
+                localHost,
+                System.nanoTime() - startTime);
+        return localHost;
+    }
+
+    /**
+     * Returns the number of calls to {@link #getLocalHost(InetAddress)}
+     * answered from the cache of local addresses.
+     *
+     * @return the number of calls to <tt>getLocalHost</tt> answered from the
+     * cache
+     */
+    public long getLocalHostCacheHitCount()
+    {
+        return localHostCache.getHitCount();
+    }
+
+    /**
+     * Returns the number of calls to {@link #getLocalHost(InetAddress)}
+     * which had to select a local address.
+     *
+     * @return the number of calls to <tt>getLocalHost</tt> which had to
+     * select a local address
+     */
+    public long getLocalHostCacheMissCount()
+    {
+        return localHostCache.getMissCount();
+    }
+
+    /**
+     * Returns the average time in nanoseconds
+     * {@link #getLocalHost(InetAddress)} took to select a local address when
+     * it was not cached.
+     *
+     * @return the average time in nanoseconds spent selecting a local
+     * address
+     */
+    public long getAverageLocalHostSelectionTime()
+    {
+        return localHostCache.getAverageMissTime();
+    }
+
+    /**
+     * Discards the cached local addresses, as the routes to the destinations
+     * may have changed.
+     */
+    private void invalidateLocalHostCache()
+    {
+        if (logger.isDebugEnabled())
+        {
+            long hits = localHostCache.getHitCount();
+            long misses = localHostCache.getMissCount();
+
+            logger.debug(
+                    "Invalidating the localhost cache: " + hits + " hits, "
+                        + misses + " misses, "
+                        + (localHostCache.getAverageMissTime() / 1000)
+                        + " us per selection");
+        }
+        localHostCache.invalidate();
+    }
+
+    /**
+     * Selects the local address to use with a destination, as the operating
+     * system would route packets to it.
+     *
+     * @param intendedDestination the destination that we'd like to use the
+     * localhost address with.
+     *
+     * @return an InetAddress instance representing the local host, and that
+     * a socket can bind upon or distribute to peers as a contact address.
+     */
+    private InetAddress selectLocalHost(InetAddress intendedDestination)
     {
         InetAddress localHost = null;
 
@@ -181,10 +307,13 @@ public class NetworkAddressManagerServiceImpl
             //no point in making sure that the localHostFinderSocket is
             //initialized.
             //better let it through a NullPointerException.
-            localHostFinderSocket.connect(intendedDestination,
-                                          RANDOM_ADDR_DISC_PORT);
-            localHost = localHostFinderSocket.getLocalAddress();
-            localHostFinderSocket.disconnect();
+            synchronized (localHostFinderSyncRoot)
+            {
+                localHostFinderSocket.connect(intendedDestination,
+                                              RANDOM_ADDR_DISC_PORT);
+                localHost = localHostFinderSocket.getLocalAddress();
+                localHostFinderSocket.disconnect();
+            }
         }
 
         //windows socket implementations return the any address so we need to
@@ -18,7 +18,9 @@ import org.osgi.framework.*;
 
 /**
  * Periodically checks the current network interfaces to track changes
- * and fire events on those changes.
+ * and fire events on those changes. On Linux the interfaces are checked when
+ * the kernel notifies that they have changed, if the
+ * <tt>NetlinkMonitor</tt> is available.
  *
  * @author Damian Minkov
  */
@@ -44,6 +46,13 @@ public class NetworkConfigurationWatcher
      */
     private static final int CHECK_INTERVAL = 3000; // 3 sec.
 
+    /**
+     * The maximum time to wait for a notification of the
+     * <tt>NetlinkMonitor</tt>, after which we check whether the system has
+     * been in standby.
+     */
+    private static final int NETLINK_WAIT_TIMEOUT = 30000; // 30 sec.
+
     /**
      * Whether thread checking for network notifications is running.
      */
@@ -61,6 +70,12 @@ public class NetworkConfigurationWatcher
     private NetworkEventDispatcher eventDispatcher =
             new NetworkEventDispatcher();
 
+    /**
+     * The monitor of the rtnetlink notifications the thread checking for
+     * network changes waits on, if any.
+     */
+    private volatile NetlinkMonitor netlinkMonitor = null;
+
     /**
      * Inits configuration watcher.
      */
@@ -254,6 +269,11 @@ public class NetworkConfigurationWatcher
                 isRunning = false;
                 notifyAll();
             }
+
+            NetlinkMonitor netlinkMonitor = this.netlinkMonitor;
+
+            if(netlinkMonitor != null)
+                netlinkMonitor.interrupt();
         }
 
         if(eventDispatcher != null)
@@ -525,9 +545,100 @@ public class NetworkConfigurationWatcher
     }
 
     /**
-     * Main loop of this thread.
+     * Main loop of this thread. Waits for the rtnetlink notifications if
+     * possible and polls the network interfaces otherwise.
      */
     public void run()
+    {
+        NetlinkMonitor netlinkMonitor = NetlinkMonitor.open();
+
+        if(netlinkMonitor != null)
+        {
+            this.netlinkMonitor = netlinkMonitor;
+            try
+            {
+                waitForNetworkChanges(netlinkMonitor);
+            }
+            finally
+            {
+                this.netlinkMonitor = null;
+                netlinkMonitor.close();
+            }
+
+            if(isRunning)
+            {
+                logger.warn("Failed to wait for rtnetlink notifications, "
+                    + "polling network interfaces");
+            }
+        }
+
+        pollNetworkInterfaces();
+    }
+
+    /**
+     * Checks the network interfaces each time the <tt>NetlinkMonitor</tt>
+     * notifies that they have changed, until this watcher is stopped or the
+     * monitor fails.
+     *
+     * @param netlinkMonitor the monitor of the rtnetlink notifications
+     */
+    private void waitForNetworkChanges(NetlinkMonitor netlinkMonitor)
+    {
+        long last = System.currentTimeMillis();
+
+        while(isRunning)
+        {
+            int result = netlinkMonitor.waitForChange(NETLINK_WAIT_TIMEOUT);
+
+            if(!isRunning || result < 0)
+                return;
+
+            long curr = System.currentTimeMillis();
+
+            // the wait does not count the time the system is suspended, so if
+            // much more time has passed than we waited for, we consider it
+            // as a check after standby
+            if(curr - last > NETLINK_WAIT_TIMEOUT + 4*CHECK_INTERVAL)
+            {
+                // oo standby lets fire down to all interfaces
+                // so they can reconnect
+                downAllInterfaces();
+
+                // give time to interfaces
+                synchronized(this)
+                {
+                    try{
+                        wait(CHECK_INTERVAL);
+                    }
+                    catch (Exception e){}
+                }
+
+                if(!isRunning)
+                    return;
+                result = NetlinkMonitor.CHANGED;
+            }
+
+            if(result == NetlinkMonitor.CHANGED)
+            {
+                try
+                {
+                    checkNetworkInterfaces(true, 0, false);
+                }
+                catch (SocketException e)
+                {
+                    logger.error("Error checking network interfaces", e);
+                }
+            }
+
+            last = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Checks the network interfaces every {@link #CHECK_INTERVAL}
+     * milliseconds until this watcher is stopped.
+     */
+    private void pollNetworkInterfaces()
     {
         long last = 0;
         boolean isAfterStandby = false;
@@ -7,7 +7,9 @@
 package net.java.sip.communicator.impl.packetlogging;
 
 import java.io.*;
-import java.util.*;
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 import net.java.sip.communicator.util.*;
 
@@ -16,6 +18,13 @@ import org.jitsi.service.packetlogging.*;
 /**
  * Packet Logging Service implementation dumping logs in
  * pcap(tcpdump/wireshark) format file.
+ * <p>
+ * The logged packets are copied into a lock-free ring buffer and saved by a
+ * single thread, which gathers them into large writes. When the saving thread
+ * cannot keep up, the packets which do not fit in the ring are dropped and
+ * counted. The pcapng format, enabled with
+ * {@link #PACKET_LOGGING_PCAPNG_PROPERTY_NAME}, logs each protocol as an
+ * interface of its own and records the dropped packets in the files.
  *
  * @author Damian Minkov
  */
@@ -29,9 +38,46 @@ public class PacketLoggingServiceImpl
             = Logger.getLogger(PacketLoggingServiceImpl.class);
 
     /**
-     * The OutputStream we are currently writing to.
+     * The name of the property which enables the pcapng format rather than
+     * pcap.
      */
-    private FileOutputStream outputStream = null;
+    public static final String PACKET_LOGGING_PCAPNG_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_PCAPNG";
+
+    /**
+     * The number of packets the ring buffer holds.
+     */
+    private static final int RING_CAPACITY = 2048;
+
+    /**
+     * The interval in milliseconds at which dropped packets are reported in
+     * the log.
+     */
+    private static final long DROP_REPORT_INTERVAL = 10000;
+
+    /**
+     * The packets waiting to be saved.
+     */
+    private final PacketRingBuffer ring = new PacketRingBuffer(RING_CAPACITY);
+
+    /**
+     * The number of packets logged by each protocol, by ordinal.
+     */
+    private final AtomicLongArray loggedCounts
+        = new AtomicLongArray(ProtocolName.values().length);
+
+    /**
+     * The number of packets dropped because the ring buffer was full, by
+     * ordinal of their protocol.
+     */
+    private final AtomicLongArray droppedCounts
+        = new AtomicLongArray(ProtocolName.values().length);
+
+    /**
+     * The writer of the current file, created by the saving thread when the
+     * first packet is saved.
+     */
+    private PcapWriter writer = null;
 
     /**
      * The thread that queues packets and saves them to file.
@@ -44,7 +90,7 @@ public class PacketLoggingServiceImpl
     private PacketLoggingConfiguration packetLoggingConfiguration = null;
 
     /**
-     * The fake ethernet header we use as template.
+     * The fake ethernet header we use for IPv4 packets.
      */
     private final static byte[] fakeEthernetHeader =
         new byte[]{
@@ -54,6 +100,17 @@ public class PacketLoggingServiceImpl
                 (byte)0x08, (byte)0x00
         };
 
+    /**
+     * The fake ethernet header we use for IPv6 packets.
+     */
+    private final static byte[] fakeEthernet6Header =
+        new byte[]{
+                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+                (byte)0x86, (byte)0xdd
+        };
+
     /**
      * The fake ipv4 header we use as template.
      */
@@ -118,25 +175,35 @@ public class PacketLoggingServiceImpl
             };
 
     /**
-     * Using this object to lock and protectd the two counters
-     * used for tcp seq and ack numbers.
+     * The ipv4 header of the packet being saved.
      */
-    private Object tcpCounterLock = new Object();
+    private final byte[] ipHeader = new byte[ipHeaderTemplate.length];
 
     /**
-     * The seq that the sender will send.
+     * The ipv6 header of the packet being saved.
      */
-    private long srcCount = 1;
+    private final byte[] ip6Header = new byte[ip6HeaderTemplate.length];
 
     /**
-     * This is the ack number send from the sender.
+     * The udp header of the packet being saved.
      */
-    private long dstCount = 1;
+    private final byte[] udpHeader = new byte[udpHeaderTemplate.length];
+
+    /**
+     * The tcp header of the packet being saved.
+     */
+    private final byte[] tcpHeader = new byte[tcpHeaderTemplate.length];
 
     /**
-     * A counter watching how much has been written to the file.
+     * The seq that the sender will send. Only used by the saving thread.
      */
-    private long written = 0;
+    private long srcCount = 1;
+
+    /**
+     * This is the ack number send from the sender. Only used by the saving
+     * thread.
+     */
+    private long dstCount = 1;
 
     /**
      * All the files we can use for writing.
@@ -160,6 +227,7 @@ public class PacketLoggingServiceImpl
         throws Exception
     {
         int fileCount = getConfiguration().getLogfileCount();
+        String extension = writer.isPcapng() ? ".pcapng" : ".pcap";
 
         files = new File[fileCount];
         for(int i = 0; i < fileCount; i++)
@@ -170,7 +238,7 @@ public class PacketLoggingServiceImpl
                             + File.separator
                             + "jitsi"
                             + i
-                            + ".pcap");
+                            + extension);
         }
     }
 
@@ -182,11 +250,7 @@ public class PacketLoggingServiceImpl
     private void rotateFiles()
         throws IOException
     {
-        if(outputStream != null)
-        {
-            outputStream.flush();
-            outputStream.close();
-        }
+        closeFile();
 
         for (int i = getConfiguration().getLogfileCount() - 2; i >= 0; i--)
         {
@@ -201,80 +265,96 @@ public class PacketLoggingServiceImpl
             }
         }
 
-        outputStream = new FileOutputStream(files[0]);
-        written = 0;
-        createGlobalHeader();
+        writer.open(files[0]);
     }
 
     /**
-     * Stops the packet logging.
+     * Closes the current file, recording the statistics of the interfaces in
+     * the pcapng format.
+     * @throws IOException
      */
-    public void stop()
+    private void closeFile()
+        throws IOException
     {
-        saverThread.stopRunning();
+        if(!writer.isOpen())
+            return;
 
-        if(outputStream != null)
+        try
         {
-            try
-            {
-                outputStream.flush();
-                outputStream.close();
-            }
-            catch(IOException e)
-            {
-                e.printStackTrace();
-            }
-            finally
+            long now = System.currentTimeMillis();
+
+            for(ProtocolName protocol : ProtocolName.values())
             {
-                outputStream = null;
+                int i = protocol.ordinal();
+
+                writer.writeInterfaceStatistics(
+                    i, now, loggedCounts.get(i), droppedCounts.get(i));
             }
         }
+        finally
+        {
+            writer.close();
+        }
     }
 
     /**
-     * Creates pcap file global header.
-     * @throws IOException
+     * Stops the packet logging. The packets already logged are saved before
+     * the file is closed.
+     */
+    public void stop()
+    {
+        saverThread.stopRunning();
+
+        try
+        {
+            saverThread.join(1000);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        long dropped = getDroppedPacketCount();
+
+        if(dropped > 0)
+            logger.warn("Dropped " + dropped + " of "
+                + (getLoggedPacketCount() + dropped) + " packets to log");
+    }
+
+    /**
+     * Returns the number of packets which have been queued for saving.
+     *
+     * @return the number of packets which have been queued for saving
+     */
+    public long getLoggedPacketCount()
+    {
+        return sum(loggedCounts);
+    }
+
+    /**
+     * Returns the number of packets which have not been logged because the
+     * saving thread could not keep up with them.
+     *
+     * @return the number of dropped packets
+     */
+    public long getDroppedPacketCount()
+    {
+        return sum(droppedCounts);
+    }
+
+    /**
+     * Returns the sum of counters.
+     *
+     * @param counts the counters
+     * @return the sum of <tt>counts</tt>
      */
-    private void createGlobalHeader()
-            throws IOException
+    private static long sum(AtomicLongArray counts)
     {
-        /* magic number(swapped) */
-        outputStream.write(0xd4);
-        outputStream.write(0xc3);
-        outputStream.write(0xb2);
-        outputStream.write(0xa1);
-
-        /* major version number */
-        outputStream.write(0x02);
-        outputStream.write(0x00);
-
-        /* minor version number */
-        outputStream.write(0x04);
-        outputStream.write(0x00);
-
-        /* GMT to local correction */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* accuracy of timestamps */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* max length of captured packets, in octets */
-        outputStream.write(0xff);
-        outputStream.write(0xff);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* data link type(ethernet) */
-        outputStream.write(0x01);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        long sum = 0;
+
+        for(int i = 0; i < counts.length(); i++)
+            sum += counts.get(i);
+        return sum;
     }
 
     /**
@@ -376,17 +456,25 @@ public class PacketLoggingServiceImpl
             int packetOffset,
             int packetLength)
     {
-        saverThread.queuePacket(
-            new Packet(protocol,
-                       sourceAddress,
-                       sourcePort,
-                       destinationAddress,
-                       destinationPort,
-                       transport,
-                       sender,
-                       packetContent,
-                       packetOffset,
-                       packetLength));
+        if(ring.offer(
+                protocol,
+                sourceAddress,
+                sourcePort,
+                destinationAddress,
+                destinationPort,
+                transport,
+                sender,
+                packetContent,
+                packetOffset,
+                packetLength))
+        {
+            loggedCounts.incrementAndGet(protocol.ordinal());
+            saverThread.packetQueued();
+        }
+        else
+        {
+            droppedCounts.incrementAndGet(protocol.ordinal());
+        }
     }
 
     /**
@@ -403,26 +491,26 @@ public class PacketLoggingServiceImpl
     }
 
     /**
-     * Dump the packet to the output file stream.
+     * Dump the packet to the output file.
      *
      * @param packet the packet ot save.
      * @throws Exception when error occurs saving to file stream or when
      *  rotating files.
      */
-    private void savePacket(Packet packet)
+    private void savePacket(PacketRingBuffer.Slot packet)
         throws Exception
     {
         // if one of the addresses is ipv4 we are using ipv4,
         // local udp addresses come as 0.0.0.0.0....0.0.0 when
         // ipv6 is enabled in the underlying os
-        boolean isIPv4 = packet.sourceAddress.length == 4
-                || packet.destinationAddress.length == 4;
+        boolean isIPv4 = packet.sourceAddressLength == 4
+                || packet.destinationAddressLength == 4;
 
         byte[] ipHeader;
 
         if(isIPv4)
         {
-            ipHeader = new byte[ipHeaderTemplate.length];
+            ipHeader = this.ipHeader;
             System.arraycopy(
                     ipHeaderTemplate, 0, ipHeader, 0, ipHeader.length);
             System.arraycopy(packet.sourceAddress,
@@ -438,7 +526,7 @@ public class PacketLoggingServiceImpl
         }
         else
         {
-            ipHeader = new byte[ip6HeaderTemplate.length];
+            ipHeader = ip6Header;
             System.arraycopy(
                     ip6HeaderTemplate, 0, ipHeader, 0, ipHeader.length);
             System.arraycopy(packet.sourceAddress,
@@ -458,64 +546,53 @@ public class PacketLoggingServiceImpl
         short len;
         if(packet.transport == TransportName.UDP)
         {
-            byte[] udpHeader = new byte[udpHeaderTemplate.length];
             transportHeader = udpHeader;
             System.arraycopy(udpHeaderTemplate, 0,
                     udpHeader, 0, udpHeader.length);
 
             writeShort(packet.sourcePort, udpHeader, 0);
             writeShort(packet.destinationPort, udpHeader, 2);
-            len = (short)(packet.packetLength + udpHeader.length);
+            len = (short)(packet.length + udpHeader.length);
             writeShort(len, udpHeader, 4);
         }
         else
         {
-            transportHeader = new byte[tcpHeaderTemplate.length];
+            transportHeader = tcpHeader;
             System.arraycopy(tcpHeaderTemplate, 0, transportHeader,
                    0, transportHeader.length);
 
             writeShort(packet.sourcePort, transportHeader, 0);
             writeShort(packet.destinationPort, transportHeader, 2);
 
-            len = (short)(packet.packetLength + transportHeader.length);
+            len = (short)(packet.length + transportHeader.length);
 
+            long seqnum;
+            long acknum;
             if(packet.sender)
             {
-                long seqnum;
-                long acknum;
-                synchronized(tcpCounterLock)
-                {
-                    seqnum = srcCount;
-                    srcCount += packet.packetLength;
-                    acknum = dstCount;
-                }
-
-                intToBytes((int)(seqnum & 0xffffffff),
-                       transportHeader, 4);
-                intToBytes((int)(acknum & 0xffffffff),
-                       transportHeader, 8);
+                seqnum = srcCount;
+                srcCount += packet.length;
+                acknum = dstCount;
             }
             else
             {
-                long seqnum;
-                long acknum;
-                synchronized(tcpCounterLock)
-                {
-                    seqnum = dstCount;
-                    dstCount += packet.packetLength;
-                    acknum = srcCount;
-                }
-
-                intToBytes((int)(seqnum & 0xffffffff),
-                       transportHeader, 4);
-                intToBytes((int)(acknum & 0xffffffff),
-                       transportHeader, 8);
+                seqnum = dstCount;
+                dstCount += packet.length;
+                acknum = srcCount;
             }
+
+            intToBytes((int)(seqnum & 0xffffffff),
+                   transportHeader, 4);
+            intToBytes((int)(acknum & 0xffffffff),
+                   transportHeader, 8);
         }
 
         // now set ip header total length
+        byte[] ethernetHeader;
         if(isIPv4)
         {
+            ethernetHeader = fakeEthernetHeader;
+
             short ipTotalLen = (short)(len + ipHeader.length);
             writeShort(ipTotalLen, ipHeader, 2);
 
@@ -530,6 +607,8 @@ public class PacketLoggingServiceImpl
         }
         else
         {
+            ethernetHeader = fakeEthernet6Header;
+
             writeShort(len, ipHeader, 4);
 
             if(packet.transport == TransportName.UDP)
@@ -538,58 +617,32 @@ public class PacketLoggingServiceImpl
                 ipHeader[6] = (byte)0x06;
         }
 
-        long current = System.currentTimeMillis();
-        int tsSec = (int)(current/1000);
-        int tsUsec = (int)((current%1000) * 1000);
-        int feakHeaderLen = fakeEthernetHeader.length +
+        int feakHeaderLen = ethernetHeader.length +
                 ipHeader.length + transportHeader.length;
-        int inclLen = packet.packetLength + feakHeaderLen;
-        int origLen = inclLen;
+        int inclLen = packet.length + feakHeaderLen;
 
-        synchronized(this)
+        // open files only if needed
+        if(!writer.isOpen())
+        {
+            getFileNames();
+            rotateFiles();// this one opens the file for write
+        }
+        else
         {
-            // open files only if needed
-            if(outputStream == null)
-            {
-                getFileNames();
-                rotateFiles();// this one opens the file for write
-            }
-
             long limit = getConfiguration().getLimit();
 
-            if((limit > 0) && (written > limit))
+            if((limit > 0) && (writer.getWrittenBytes() > limit))
                 rotateFiles();
-
-            addInt(tsSec);
-            addInt(tsUsec);
-            addInt(inclLen);
-            addInt(origLen);
-
-            outputStream.write(fakeEthernetHeader);
-            outputStream.write(ipHeader);
-            outputStream.write(transportHeader);
-            outputStream.write(
-                    packet.packetContent,
-                    packet.packetOffset,
-                    packet.packetLength);
-            outputStream.flush();
-
-            written += inclLen + 16;
         }
-    }
 
-    /**
-     * Writes int to the file. Used for packet headers.
-     * @param d the value to write.
-     * @throws IOException
-     */
-    private void addInt(int d)
-        throws IOException
-    {
-        outputStream.write ((d & 0xff));
-        outputStream.write(((d & 0xff00) >> 8));
-        outputStream.write(((d & 0xff0000) >> 16));
-        outputStream.write(((d & 0xff000000) >> 24));
+        ByteBuffer record = writer.beginRecord(
+                packet.protocol.ordinal(), packet.timestamp, inclLen);
+
+        record.put(ethernetHeader);
+        record.put(ipHeader);
+        record.put(transportHeader);
+        record.put(packet.content, 0, packet.length);
+        writer.endRecord(inclLen);
     }
 
     /**
@@ -648,146 +701,61 @@ public class PacketLoggingServiceImpl
     }
 
     /**
-     * The data we receive and that we will dump in a file.
+     * Dumps packet in separate thread so we don't block
+     * our calling thread.
      */
-    private static class Packet
+    private class SaverThread
+        extends Thread
     {
         /**
-         * The protocol logging this packet.
-         */
-        ProtocolName protocol;
-
-        /**
-         * The source address of the packet.
-         */
-        byte[] sourceAddress;
-
-        /**
-         * The source port of the packet.
-         */
-        int sourcePort;
-
-        /**
-         * The destination address of the packet.
-         */
-        byte[] destinationAddress;
-
-        /**
-         * The destination port of the packet.
-         */
-        int destinationPort;
-
-        /**
-         * Is the packet a udp one.
-         */
-        TransportName transport;
-
-        /**
-         * Are we sending the packet, or false if we are receiving.
+         * start/stop indicator.
          */
-        boolean sender;
+        private volatile boolean stopped = false;
 
         /**
-         * Array containing packet content.
+         * Whether this thread waits for packets to be queued.
          */
-        byte[] packetContent;
+        private volatile boolean waiting = false;
 
         /**
-         * The offset in the packetContent where packet content is.
+         * The number of dropped packets last reported in the log.
          */
-        int packetOffset;
+        private long reportedDropCount = 0;
 
         /**
-         * The length of the packet content.
+         * The time in milliseconds the dropped packets were last reported.
          */
-        int packetLength;
+        private long lastDropReportTime = 0;
 
         /**
-         * Creates a packet with the needed data.
-         * @param protocol the source protocol that logs this packet.
-         * @param sourceAddress The source address of the packet.
-         * @param sourcePort The source port of the packet.
-         * @param destinationAddress The destination address of the packet.
-         * @param destinationPort The destination port of the packet.
-         * @param transport the transport this packet uses.
-         * @param sender Are we sending the packet,
-         *  or false if we are receiving.
-         * @param packetContent Array containing packet content.
-         * @param packetOffset The offset in the packetContent
-         *  where packet content is.
-         * @param packetLength The length of the packet content.
+         * Creates the thread saving the packets.
          */
-        private Packet(ProtocolName protocol,
-                       byte[] sourceAddress,
-                       int sourcePort,
-                       byte[] destinationAddress,
-                       int destinationPort,
-                       TransportName transport,
-                       boolean sender,
-                       byte[] packetContent,
-                       int packetOffset,
-                       int packetLength)
+        SaverThread()
         {
-            this.protocol = protocol;
-            this.sourceAddress = sourceAddress;
-            this.sourcePort = sourcePort;
-            this.destinationAddress = destinationAddress;
-            this.destinationPort = destinationPort;
-            this.transport = transport;
-            this.sender = sender;
-            this.packetContent = packetContent;
-            this.packetOffset = packetOffset;
-            this.packetLength = packetLength;
+            super("PacketLoggingService");
+            setDaemon(true);
         }
-    }
-
-    /**
-     * Dumps packet in separate thread so we don't block
-     * our calling thread.
-     */
-    private class SaverThread
-        extends Thread
-    {
-        /**
-         * start/stop indicator.
-         */
-        private boolean stopped = true;
 
         /**
-         * List of packets queued to be written in the file.
-         */
-        private final List<Packet> pktsToSave = new ArrayList<Packet>();
-
-        /**
-         * Sends instant messages in separate thread so we don't block
-         * our calling thread.
+         * Saves the queued packets, gathering them in large writes, until
+         * stopped.
          */
         @Override
         public void run()
         {
-            stopped = false;
-            while(!stopped)
+            writer
+                = new PcapWriter(
+                        PacketLoggingActivator.getConfigurationService()
+                            .getBoolean(
+                                    PACKET_LOGGING_PCAPNG_PROPERTY_NAME,
+                                    false),
+                        getInterfaceNames());
+
+            while(true)
             {
-                Packet pktToSave;
-
-                synchronized(this)
-                {
-                    if(pktsToSave.isEmpty())
-                    {
-                        try
-                        {
-                            wait();
-                        }
-                        catch (InterruptedException iex)
-                        {
-                        }
-                        continue;
-                    }
-
-                    pktToSave = pktsToSave.remove(0);
-                }
+                PacketRingBuffer.Slot pktToSave;
 
-                if(pktToSave != null)
+                while((pktToSave = ring.peek()) != null)
                 {
                     try
                     {
@@ -804,27 +772,107 @@ public class PacketLoggingServiceImpl
                         else
                             logger.error("Error writing packet to file", t);
                     }
+                    finally
+                    {
+                        ring.release();
+                    }
                 }
+
+                flush();
+                reportDrops();
+
+                if(stopped)
+                    break;
+
+                waiting = true;
+                if(ring.isEmpty() && !stopped)
+                    LockSupport.park(this);
+                waiting = false;
+            }
+
+            try
+            {
+                if(writer.isOpen())
+                    closeFile();
+            }
+            catch(IOException e)
+            {
+                logger.error("Error closing packet log file", e);
+            }
+        }
+
+        /**
+         * Writes the gathered packets into the file.
+         */
+        private void flush()
+        {
+            if(!writer.isOpen())
+                return;
+
+            try
+            {
+                writer.flush();
+            }
+            catch(IOException e)
+            {
+                logger.error("Error writing packets to file", e);
+            }
+        }
+
+        /**
+         * Reports in the log the packets which have been dropped, at most
+         * every {@link #DROP_REPORT_INTERVAL} milliseconds.
+         */
+        private void reportDrops()
+        {
+            long dropCount = getDroppedPacketCount();
+
+            if(dropCount == reportedDropCount)
+                return;
+
+            long now = System.currentTimeMillis();
+
+            if(now - lastDropReportTime >= DROP_REPORT_INTERVAL)
+            {
+                logger.warn("Dropped " + (dropCount - reportedDropCount)
+                    + " packets to log, the log file cannot keep up");
+                reportedDropCount = dropCount;
+                lastDropReportTime = now;
             }
         }
 
         /**
          * Interrupts this sender so that it would no longer send messages.
          */
-        public synchronized void stopRunning()
+        public void stopRunning()
         {
             stopped = true;
-            notifyAll();
+            LockSupport.unpark(this);
         }
 
         /**
-         * Schedule new packet for save.
-         * @param packet new packet to save.
+         * Wakes this thread up if it waits for packets, after a packet has
+         * been queued.
          */
-        public synchronized void queuePacket(Packet packet)
+        public void packetQueued()
         {
-            pktsToSave.add(packet);
-            notifyAll();
+            if(waiting)
+                LockSupport.unpark(this);
         }
     }
+
+    /**
+     * Returns the names of the pcapng interfaces, one for every protocol.
+     *
+     * @return the names of the interfaces by ordinal of their protocol
+     */
+    private static String[] getInterfaceNames()
+    {
+        ProtocolName[] protocols = ProtocolName.values();
+        String[] interfaceNames = new String[protocols.length];
+
+        for(int i = 0; i < protocols.length; i++)
+            interfaceNames[i] = protocols[i].name().toLowerCase();
+        return interfaceNames;
+    }
 }
@@ -0,0 +1,276 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.packetlogging.PacketLoggingService.*;
+
+/**
+ * A bounded ring of preallocated packet slots which the threads logging
+ * packets fill without locking and the thread saving them drains. The
+ * content of the packets is copied into buffers the slots keep, so that
+ * logging does not allocate once the slots have grown to the size of the
+ * packets and the callers may reuse their buffers.
+ * <p>
+ * Each slot has a sequence number telling whether it may be filled or read
+ * at a position of the ring: producers claim a position with a CAS, fill its
+ * slot and publish it by advancing its sequence, and the single consumer
+ * reads the slots in order and hands them back the same way. When the ring is
+ * full, the packet is not logged.
+ */
+class PacketRingBuffer
+{
+    /**
+     * The initial size of the content buffers of the slots, which fits most
+     * packets.
+     */
+    private static final int INITIAL_CONTENT_SIZE = 1500;
+
+    /**
+     * The slots of the ring.
+     */
+    private final Slot[] slots;
+
+    /**
+     * The sequence numbers of the slots: a slot may be filled at the position
+     * equal to its sequence and read at the position preceding it.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The mask giving the index of the slot of a position.
+     */
+    private final int mask;
+
+    /**
+     * The next position to fill.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The next position to read, only accessed by the consumer.
+     */
+    private long head = 0;
+
+    /**
+     * Creates a ring.
+     *
+     * @param capacity the number of slots, a power of two
+     */
+    PacketRingBuffer(int capacity)
+    {
+        if (Integer.bitCount(capacity) != 1)
+        {
+            throw new IllegalArgumentException(
+                    "capacity is not a power of two: " + capacity);
+        }
+
+        slots = new Slot[capacity];
+        sequences = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+        for (int i = 0; i < capacity; i++)
+        {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Copies a packet into the ring. May be called by any thread.
+     *
+     * @param protocol the protocol logging the packet
+     * @param sourceAddress the source address of the packet
+     * @param sourcePort the source port of the packet
+     * @param destinationAddress the destination address of the packet
+     * @param destinationPort the destination port of the packet
+     * @param transport the transport of the packet
+     * @param sender whether we are the sender of the packet
+     * @param content the buffer holding the content of the packet
+     * @param offset the offset of the content in <tt>content</tt>
+     * @param length the length of the content
+     * @return <tt>true</tt> if the packet has been queued, <tt>false</tt> if
+     * the ring is full
+     */
+    boolean offer(
+            ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            byte[] content,
+            int offset,
+            int length)
+    {
+        long position = tail.get();
+        int index;
+
+        while (true)
+        {
+            index = (int) position & mask;
+
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            }
+            else if (difference < 0)
+            {
+                // the consumer has not read the slot a lap ago
+                return false;
+            }
+            else
+            {
+                position = tail.get();
+            }
+        }
+
+        Slot slot = slots[index];
+
+        slot.timestamp = System.currentTimeMillis();
+        slot.protocol = protocol;
+        slot.sourceAddressLength
+            = copyAddress(sourceAddress, slot.sourceAddress);
+        slot.sourcePort = sourcePort;
+        slot.destinationAddressLength
+            = copyAddress(destinationAddress, slot.destinationAddress);
+        slot.destinationPort = destinationPort;
+        slot.transport = transport;
+        slot.sender = sender;
+        if ((slot.content == null) || (slot.content.length < length))
+            slot.content = new byte[Math.max(length, INITIAL_CONTENT_SIZE)];
+        System.arraycopy(content, offset, slot.content, 0, length);
+        slot.length = length;
+
+        // publishes the slot, the volatile write orders it before the check
+        // whether the consumer waits
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Copies an IPv4 or IPv6 address into the address buffer of a slot.
+     *
+     * @param address the address
+     * @param buffer the address buffer of the slot
+     * @return the length of the address
+     */
+    private static int copyAddress(byte[] address, byte[] buffer)
+    {
+        int length = Math.min(address.length, buffer.length);
+
+        System.arraycopy(address, 0, buffer, 0, length);
+        return length;
+    }
+
+    /**
+     * Returns the next packet to save. May only be called by the consumer,
+     * which has to call {@link #release()} once it has saved the packet.
+     *
+     * @return the slot of the next packet or <tt>null</tt> if the ring is
+     * empty
+     */
+    Slot peek()
+    {
+        int index = (int) head & mask;
+
+        return (sequences.get(index) == head + 1) ? slots[index] : null;
+    }
+
+    /**
+     * Hands the slot returned by {@link #peek()} back to the producers.
+     */
+    void release()
+    {
+        int index = (int) head & mask;
+
+        sequences.lazySet(index, head + slots.length);
+        head++;
+    }
+
+    /**
+     * Determines whether the ring has no packet to save. May only be called by
+     * the consumer.
+     *
+     * @return <tt>true</tt> if the ring is empty
+     */
+    boolean isEmpty()
+    {
+        return peek() == null;
+    }
+
+    /**
+     * A packet of the ring.
+     */
+    static class Slot
+    {
+        /**
+         * The time in milliseconds at which the packet was logged.
+         */
+        long timestamp;
+
+        /**
+         * The protocol logging the packet.
+         */
+        ProtocolName protocol;
+
+        /**
+         * The buffer of the source address of the packet.
+         */
+        final byte[] sourceAddress = new byte[16];
+
+        /**
+         * The length of the source address, 4 or 16.
+         */
+        int sourceAddressLength;
+
+        /**
+         * The source port of the packet.
+         */
+        int sourcePort;
+
+        /**
+         * The buffer of the destination address of the packet.
+         */
+        final byte[] destinationAddress = new byte[16];
+
+        /**
+         * The length of the destination address, 4 or 16.
+         */
+        int destinationAddressLength;
+
+        /**
+         * The destination port of the packet.
+         */
+        int destinationPort;
+
+        /**
+         * The transport of the packet.
+         */
+        TransportName transport;
+
+        /**
+         * Whether we are the sender of the packet.
+         */
+        boolean sender;
+
+        /**
+         * The buffer of the content of the packet.
+         */
+        byte[] content;
+
+        /**
+         * The length of the content of the packet.
+         */
+        int length;
+    }
+}
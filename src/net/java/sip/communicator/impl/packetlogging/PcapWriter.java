@@ -0,0 +1,424 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Writes packet records in the pcap or in the pcapng format. The records are
+ * gathered in a buffer which is written with a single <tt>FileChannel</tt>
+ * write when it is full or {@link #flush()}ed.
+ * <p>
+ * In the pcapng format every interface gets an Interface Description Block
+ * naming it, and an Interface Statistics Block recording how many packets it
+ * logged and dropped is written when the file is closed. The pcap format has
+ * a single interface and no statistics.
+ */
+class PcapWriter
+{
+    /**
+     * The link type of the records, i.e. ethernet.
+     */
+    private static final int LINKTYPE_ETHERNET = 1;
+
+    /**
+     * The maximum length of the captured packets.
+     */
+    private static final int SNAP_LENGTH = 65535;
+
+    /**
+     * The size of the buffer in which the records are gathered.
+     */
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    /**
+     * The type of the pcapng Section Header Block.
+     */
+    private static final int SECTION_HEADER_BLOCK = 0x0A0D0D0A;
+
+    /**
+     * The type of the pcapng Interface Description Block.
+     */
+    private static final int INTERFACE_DESCRIPTION_BLOCK = 1;
+
+    /**
+     * The type of the pcapng Interface Statistics Block.
+     */
+    private static final int INTERFACE_STATISTICS_BLOCK = 5;
+
+    /**
+     * The type of the pcapng Enhanced Packet Block.
+     */
+    private static final int ENHANCED_PACKET_BLOCK = 6;
+
+    /**
+     * The code of the if_name option of an Interface Description Block.
+     */
+    private static final short IF_NAME = 2;
+
+    /**
+     * The code of the isb_ifrecv option of an Interface Statistics Block.
+     */
+    private static final short ISB_IFRECV = 4;
+
+    /**
+     * The code of the isb_ifdrop option of an Interface Statistics Block.
+     */
+    private static final short ISB_IFDROP = 5;
+
+    /**
+     * Whether the records are written in the pcapng format.
+     */
+    private final boolean pcapng;
+
+    /**
+     * The names of the interfaces by interface id.
+     */
+    private final String[] interfaceNames;
+
+    /**
+     * The channel of the file being written or <tt>null</tt>.
+     */
+    private FileChannel channel;
+
+    /**
+     * The buffer in which the records are gathered.
+     */
+    private ByteBuffer batch
+        = ByteBuffer.allocate(BATCH_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * The number of bytes written into the current file, including the ones
+     * gathered in {@link #batch}.
+     */
+    private long written;
+
+    /**
+     * The size of the record being written.
+     */
+    private int recordSize;
+
+    /**
+     * Creates a writer.
+     *
+     * @param pcapng <tt>true</tt> to write the pcapng format, <tt>false</tt>
+     * for pcap
+     * @param interfaceNames the names of the interfaces by interface id
+     */
+    PcapWriter(boolean pcapng, String[] interfaceNames)
+    {
+        this.pcapng = pcapng;
+        this.interfaceNames = interfaceNames;
+    }
+
+    /**
+     * Determines whether the writer writes the pcapng format.
+     *
+     * @return <tt>true</tt> if the writer writes the pcapng format
+     */
+    boolean isPcapng()
+    {
+        return pcapng;
+    }
+
+    /**
+     * Opens a file and writes its header.
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be opened or written
+     */
+    void open(File file)
+        throws IOException
+    {
+        channel = new FileOutputStream(file).getChannel();
+        batch.clear();
+        written = 0;
+
+        if (pcapng)
+        {
+            writeSectionHeader();
+            for (String interfaceName : interfaceNames)
+                writeInterfaceDescription(interfaceName);
+        }
+        else
+        {
+            reserve(24);
+            batch.putInt(0xa1b2c3d4); // magic number
+            batch.putShort((short) 2); // major version number
+            batch.putShort((short) 4); // minor version number
+            batch.putInt(0); // GMT to local correction
+            batch.putInt(0); // accuracy of timestamps
+            batch.putInt(SNAP_LENGTH); // max length of captured packets
+            batch.putInt(LINKTYPE_ETHERNET); // data link type
+            written += 24;
+        }
+    }
+
+    /**
+     * Determines whether a file is open.
+     *
+     * @return <tt>true</tt> if a file is open
+     */
+    boolean isOpen()
+    {
+        return channel != null;
+    }
+
+    /**
+     * Returns the number of bytes written into the current file.
+     *
+     * @return the number of bytes written into the current file
+     */
+    long getWrittenBytes()
+    {
+        return written;
+    }
+
+    /**
+     * Writes the pcapng Section Header Block.
+     *
+     * @throws IOException if the gathered records cannot be written
+     */
+    private void writeSectionHeader()
+        throws IOException
+    {
+        int blockLength = 28;
+
+        reserve(blockLength);
+        batch.putInt(SECTION_HEADER_BLOCK);
+        batch.putInt(blockLength);
+        batch.putInt(0x1A2B3C4D); // byte-order magic
+        batch.putShort((short) 1); // major version
+        batch.putShort((short) 0); // minor version
+        batch.putLong(-1); // unspecified section length
+        batch.putInt(blockLength);
+        written += blockLength;
+    }
+
+    /**
+     * Writes a pcapng Interface Description Block.
+     *
+     * @param interfaceName the name of the interface
+     * @throws IOException if the gathered records cannot be written
+     */
+    private void writeInterfaceDescription(String interfaceName)
+        throws IOException
+    {
+        byte[] name;
+
+        try
+        {
+            name = interfaceName.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            // UTF-8 is always supported
+            name = interfaceName.getBytes();
+        }
+
+        int blockLength = 20 + 4 + pad(name.length) + 4;
+
+        reserve(blockLength);
+        batch.putInt(INTERFACE_DESCRIPTION_BLOCK);
+        batch.putInt(blockLength);
+        batch.putShort((short) LINKTYPE_ETHERNET);
+        batch.putShort((short) 0); // reserved
+        batch.putInt(SNAP_LENGTH);
+        batch.putShort(IF_NAME);
+        batch.putShort((short) name.length);
+        batch.put(name);
+        putPadding(name.length);
+        batch.putInt(0); // opt_endofopt
+        batch.putInt(blockLength);
+        written += blockLength;
+    }
+
+    /**
+     * Writes a pcapng Interface Statistics Block. Ignored in the pcap format.
+     *
+     * @param interfaceId the id of the interface
+     * @param timestamp the time in milliseconds of the statistics
+     * @param received the number of packets the interface has logged
+     * @param dropped the number of packets the interface has dropped
+     * @throws IOException if the gathered records cannot be written
+     */
+    void writeInterfaceStatistics(
+            int interfaceId,
+            long timestamp,
+            long received,
+            long dropped)
+        throws IOException
+    {
+        if (!pcapng)
+            return;
+
+        int blockLength = 52;
+        long microseconds = timestamp * 1000;
+
+        reserve(blockLength);
+        batch.putInt(INTERFACE_STATISTICS_BLOCK);
+        batch.putInt(blockLength);
+        batch.putInt(interfaceId);
+        batch.putInt((int) (microseconds >>> 32));
+        batch.putInt((int) microseconds);
+        batch.putShort(ISB_IFRECV);
+        batch.putShort((short) 8);
+        batch.putLong(received);
+        batch.putShort(ISB_IFDROP);
+        batch.putShort((short) 8);
+        batch.putLong(dropped);
+        batch.putInt(0); // opt_endofopt
+        batch.putInt(blockLength);
+        written += blockLength;
+    }
+
+    /**
+     * Starts a packet record. The caller puts the captured bytes into the
+     * returned buffer and then calls {@link #endRecord(int)}.
+     *
+     * @param interfaceId the id of the interface of the packet, ignored in
+     * the pcap format
+     * @param timestamp the time in milliseconds the packet was captured at
+     * @param capturedLength the number of bytes of the packet
+     * @return the buffer to put the bytes of the packet into
+     * @throws IOException if the gathered records cannot be written to make
+     * room for the packet
+     */
+    ByteBuffer beginRecord(int interfaceId, long timestamp, int capturedLength)
+        throws IOException
+    {
+        recordSize
+            = pcapng ? (28 + pad(capturedLength) + 4) : (16 + capturedLength);
+        reserve(recordSize);
+
+        if (pcapng)
+        {
+            long microseconds = timestamp * 1000;
+
+            batch.putInt(ENHANCED_PACKET_BLOCK);
+            batch.putInt(recordSize);
+            batch.putInt(interfaceId);
+            batch.putInt((int) (microseconds >>> 32));
+            batch.putInt((int) microseconds);
+            batch.putInt(capturedLength);
+            batch.putInt(capturedLength);
+        }
+        else
+        {
+            batch.putInt((int) (timestamp / 1000));
+            batch.putInt((int) ((timestamp % 1000) * 1000));
+            batch.putInt(capturedLength);
+            batch.putInt(capturedLength);
+        }
+        return batch;
+    }
+
+    /**
+     * Ends the packet record started by
+     * {@link #beginRecord(int, long, int)}.
+     *
+     * @param capturedLength the number of bytes of the packet
+     */
+    void endRecord(int capturedLength)
+    {
+        if (pcapng)
+        {
+            putPadding(capturedLength);
+            batch.putInt(recordSize);
+        }
+        written += recordSize;
+    }
+
+    /**
+     * Writes the gathered records into the file.
+     *
+     * @throws IOException if the records cannot be written
+     */
+    void flush()
+        throws IOException
+    {
+        batch.flip();
+        try
+        {
+            while (batch.hasRemaining())
+                channel.write(batch);
+        }
+        finally
+        {
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes the gathered records and closes the file.
+     *
+     * @throws IOException if the records cannot be written or the file
+     * cannot be closed
+     */
+    void close()
+        throws IOException
+    {
+        if (channel == null)
+            return;
+
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Makes room in {@link #batch} for a block, writing the gathered records
+     * if needed and growing it if the block is larger than a batch.
+     *
+     * @param blockLength the length of the block
+     * @throws IOException if the gathered records cannot be written
+     */
+    private void reserve(int blockLength)
+        throws IOException
+    {
+        if (batch.remaining() < blockLength)
+        {
+            flush();
+            if (batch.capacity() < blockLength)
+            {
+                batch
+                    = ByteBuffer.allocate(blockLength)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    /**
+     * Puts the zero bytes padding a field of pcapng to 32 bits.
+     *
+     * @param length the length of the field
+     */
+    private void putPadding(int length)
+    {
+        for (int i = pad(length) - length; i > 0; i--)
+            batch.put((byte) 0);
+    }
+
+    /**
+     * Returns a length padded to 32 bits.
+     *
+     * @param length the length
+     * @return <tt>length</tt> rounded up to a multiple of 4
+     */
+    private static int pad(int length)
+    {
+        return (length + 3) & ~3;
+    }
+}
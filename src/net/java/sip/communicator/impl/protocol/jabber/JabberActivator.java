@@ -8,6 +8,7 @@ package net.java.sip.communicator.impl.protocol.jabber;
 
 import java.util.*;
 
+import net.java.sip.communicator.impl.protocol.jabber.extensions.caps.*;
 import net.java.sip.communicator.service.credentialsstorage.*;
 import net.java.sip.communicator.service.googlecontacts.*;
 import net.java.sip.communicator.service.gui.*;
@@ -18,6 +19,7 @@ import net.java.sip.communicator.service.resources.*;
 import net.java.sip.communicator.util.*;
 
 import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.packetlogging.*;
 import org.jitsi.service.resources.*;
@@ -50,6 +52,11 @@ public class JabberActivator
      */
     private static ConfigurationService configurationService = null;
 
+    /**
+     * File access service.
+     */
+    private static FileAccessService fileAccessService = null;
+
     /**
      * Media service.
      */
@@ -165,6 +172,26 @@ public class JabberActivator
         return configurationService;
     }
 
+    /**
+     * Returns a reference to a FileAccessService implementation currently
+     * registered in the bundle context or null if no such implementation was
+     * found.
+     *
+     * @return FileAccessService a currently valid implementation of the
+     * file access service.
+     */
+    public static FileAccessService getFileAccessService()
+    {
+        if (fileAccessService == null)
+        {
+            fileAccessService
+                = ServiceUtils.getService(
+                        bundleContext,
+                        FileAccessService.class);
+        }
+        return fileAccessService;
+    }
+
     /**
      * Returns a reference to the bundle context that we were started with.
      * @return a reference to the BundleContext instance that we were started
@@ -224,6 +251,8 @@ public class JabberActivator
         jabberProviderFactory.stop();
         jabberPpFactoryServReg.unregister();
 
+        EntityCapsManager.storeDiscoverInfos();
+
         if (uriHandlerImpl != null)
         {
             uriHandlerImpl.dispose();
@@ -231,6 +260,7 @@ public class JabberActivator
         }
 
         configurationService = null;
+        fileAccessService = null;
         mediaService = null;
         networkAddressManagerService = null;
         credentialsService = null;
@@ -0,0 +1,137 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import java.io.*;
+import java.net.*;
+
+import javax.net.*;
+
+/**
+ * A <tt>SocketFactory</tt> which hands a socket connected in advance, i.e. by
+ * <tt>HappyEyeballs</tt>, over to the first XMPP connection to its address.
+ * The other sockets are created and connected as usual.
+ */
+class PreconnectedSocketFactory
+    extends SocketFactory
+{
+    /**
+     * The socket connected in advance or <tt>null</tt> once it has been
+     * handed over or closed.
+     */
+    private Socket socket;
+
+    /**
+     * Creates a factory which hands a socket connected in advance over.
+     *
+     * @param socket the connected socket
+     */
+    PreconnectedSocketFactory(Socket socket)
+    {
+        this.socket = socket;
+    }
+
+    /**
+     * Returns the socket connected in advance if it is connected to the
+     * specified host and port, or else a new socket connected to them.
+     *
+     * @param host the IP address to connect to
+     * @param port the port to connect to
+     * @return a socket connected to <tt>host</tt> and <tt>port</tt>
+     * @throws IOException if the connection fails
+     */
+    @Override
+    public Socket createSocket(String host, int port)
+        throws IOException
+    {
+        synchronized (this)
+        {
+            if ((socket != null)
+                    && (socket.getPort() == port)
+                    && socket.getInetAddress().getHostAddress().equals(host))
+            {
+                Socket preconnectedSocket = socket;
+
+                socket = null;
+                return preconnectedSocket;
+            }
+        }
+        return new Socket(host, port);
+    }
+
+    /**
+     * Creates a socket connected to the specified host and port.
+     *
+     * @param host the host to connect to
+     * @param port the port to connect to
+     * @param localHost the local address to bind to
+     * @param localPort the local port to bind to
+     * @return a socket connected to <tt>host</tt> and <tt>port</tt>
+     * @throws IOException if the connection fails
+     */
+    @Override
+    public Socket createSocket(
+            String host, int port,
+            InetAddress localHost, int localPort)
+        throws IOException
+    {
+        return new Socket(host, port, localHost, localPort);
+    }
+
+    /**
+     * Creates a socket connected to the specified address and port.
+     *
+     * @param host the address to connect to
+     * @param port the port to connect to
+     * @return a socket connected to <tt>host</tt> and <tt>port</tt>
+     * @throws IOException if the connection fails
+     */
+    @Override
+    public Socket createSocket(InetAddress host, int port)
+        throws IOException
+    {
+        return createSocket(host.getHostAddress(), port);
+    }
+
+    /**
+     * Creates a socket connected to the specified address and port.
+     *
+     * @param address the address to connect to
+     * @param port the port to connect to
+     * @param localAddress the local address to bind to
+     * @param localPort the local port to bind to
+     * @return a socket connected to <tt>address</tt> and <tt>port</tt>
+     * @throws IOException if the connection fails
+     */
+    @Override
+    public Socket createSocket(
+            InetAddress address, int port,
+            InetAddress localAddress, int localPort)
+        throws IOException
+    {
+        return new Socket(address, port, localAddress, localPort);
+    }
+
+    /**
+     * Closes the socket connected in advance unless it has been handed over.
+     */
+    synchronized void close()
+    {
+        if (socket != null)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException ioe)
+            {
+                // the socket has not been used
+            }
+            socket = null;
+        }
+    }
+}
@@ -6,6 +6,7 @@
  */
 package net.java.sip.communicator.impl.protocol.jabber;
 
+import java.io.*;
 import java.math.*;
 import java.net.*;
 import java.security.*;
@@ -343,6 +344,12 @@ public class ProtocolProviderServiceJabberImpl
      */
     private org.jivesoftware.smack.proxy.ProxyInfo proxy;
 
+    /**
+     * The factory which hands the socket connected by {@link #preconnect(
+     * InetSocketAddress[])} over to the XMPP connection or <tt>null</tt>.
+     */
+    private PreconnectedSocketFactory preconnectedSocketFactory;
+
     /**
      * Our provider manager instances.
      */
@@ -755,23 +762,31 @@ public class ProtocolProviderServiceJabberImpl
             }
             else
             {
-                for (InetSocketAddress isa : addrs)
+                addrs = preconnect(addrs);
+                try
                 {
-                    try
-                    {
-                        state = connectAndLogin(isa, serviceName,
-                            loginStrategy);
-                        if(state == ConnectState.ABORT_CONNECTING
-                            || state == ConnectState.STOP_TRYING)
-                            return;
-                    }
-                    catch(XMPPException ex)
+                    for (InetSocketAddress isa : addrs)
                     {
-                        disconnectAndCleanConnection();
-                        if(isAuthenticationFailed(ex))
-                            throw ex;
+                        try
+                        {
+                            state = connectAndLogin(isa, serviceName,
+                                loginStrategy);
+                            if(state == ConnectState.ABORT_CONNECTING
+                                || state == ConnectState.STOP_TRYING)
+                                return;
+                        }
+                        catch(XMPPException ex)
+                        {
+                            disconnectAndCleanConnection();
+                            if(isAuthenticationFailed(ex))
+                                throw ex;
+                        }
                     }
                 }
+                finally
+                {
+                    closePreconnectedSocket();
+                }
             }
         }
     }
@@ -865,39 +880,47 @@ public class ProtocolProviderServiceJabberImpl
                     continue;
                 }
 
-                for (InetSocketAddress isa : addrs)
+                addrs = preconnect(addrs);
+                try
                 {
-                    try
+                    for (InetSocketAddress isa : addrs)
                     {
-                        // if failover mechanism is enabled, use it,
-                        // default is not enabled.
-                        if(JabberActivator.getConfigurationService()
-                            .getBoolean(FailoverConnectionMonitor
-                                                .REVERSE_FAILOVER_ENABLED_PROP,
-                                false
-                            ))
+                        try
                         {
-                            FailoverConnectionMonitor.getInstance(this)
-                                .setCurrent(serviceName,
-                                            srv.getTarget());
+                            // if failover mechanism is enabled, use it,
+                            // default is not enabled.
+                            if(JabberActivator.getConfigurationService()
+                                .getBoolean(FailoverConnectionMonitor
+                                                .REVERSE_FAILOVER_ENABLED_PROP,
+                                    false
+                                ))
+                            {
+                                FailoverConnectionMonitor.getInstance(this)
+                                    .setCurrent(serviceName,
+                                                srv.getTarget());
+                            }
+
+                            ConnectState state = connectAndLogin(
+                                isa, serviceName, loginStrategy);
+                            return state;
                         }
+                        catch(XMPPException ex)
+                        {
+                            logger.error("Error connecting to " + isa
+                                + " for domain:" + domain
+                                + " serviceName:" + serviceName, ex);
 
-                        ConnectState state = connectAndLogin(
-                            isa, serviceName, loginStrategy);
-                        return state;
-                    }
-                    catch(XMPPException ex)
-                    {
-                        logger.error("Error connecting to " + isa
-                            + " for domain:" + domain
-                            + " serviceName:" + serviceName, ex);
-
-                        disconnectAndCleanConnection();
+                            disconnectAndCleanConnection();
 
-                        if(isAuthenticationFailed(ex))
-                            throw ex;
+                            if(isAuthenticationFailed(ex))
+                                throw ex;
+                        }
                     }
                 }
+                finally
+                {
+                    closePreconnectedSocket();
+                }
             }
         }
         else
@@ -907,6 +930,73 @@ public class ProtocolProviderServiceJabberImpl
         return ConnectState.CONTINUE_TRYING;
     }
 
+    /**
+     * Connects to the first of the addresses of a server which accepts the
+     * connection, racing the connection attempts as RFC 6555 describes, so
+     * that an unreachable address such as one of a broken IPv6 path does not
+     * delay the login by a whole connection timeout. The connected socket is
+     * handed over to the XMPP connection to its address. Nothing is raced when
+     * connecting through a proxy.
+     *
+     * @param addrs the addresses of the server
+     * @return the addresses to log in through, starting with the connected
+     * one, or none if no address accepted the connection
+     */
+    private InetSocketAddress[] preconnect(InetSocketAddress[] addrs)
+    {
+        closePreconnectedSocket();
+
+        if(proxy != null || addrs.length < 2)
+            return addrs;
+
+        Socket socket;
+
+        try
+        {
+            socket = HappyEyeballs.connect(addrs, 0);
+        }
+        catch(IOException ex)
+        {
+            logger.error("Failed to connect to any of "
+                + Arrays.toString(addrs), ex);
+
+            // the same event as when the connection to a single address fails
+            eventDuringLogin = new RegistrationStateChangeEvent(
+                ProtocolProviderServiceJabberImpl.this,
+                getRegistrationState(),
+                RegistrationState.CONNECTION_FAILED,
+                RegistrationStateChangeEvent.REASON_SERVER_NOT_FOUND,
+                null);
+            return new InetSocketAddress[0];
+        }
+
+        preconnectedSocketFactory = new PreconnectedSocketFactory(socket);
+
+        List<InetSocketAddress> sortedAddrs
+            = new ArrayList<InetSocketAddress>(addrs.length);
+
+        sortedAddrs.add((InetSocketAddress) socket.getRemoteSocketAddress());
+        for(InetSocketAddress isa : addrs)
+        {
+            if(!isa.equals(sortedAddrs.get(0)))
+                sortedAddrs.add(isa);
+        }
+        return sortedAddrs.toArray(new InetSocketAddress[addrs.length]);
+    }
+
+    /**
+     * Closes the socket connected by {@link #preconnect(InetSocketAddress[])}
+     * unless it has been handed over to an XMPP connection.
+     */
+    private void closePreconnectedSocket()
+    {
+        if(preconnectedSocketFactory != null)
+        {
+            preconnectedSocketFactory.close();
+            preconnectedSocketFactory = null;
+        }
+    }
+
     /**
      * Tries to login to the XMPP server with the supplied user ID. If the
      * protocol is Google Talk, the user ID including the service name is used.
@@ -1120,6 +1210,9 @@ public class ProtocolProviderServiceJabberImpl
                 serviceName, proxy
         );
 
+        if(preconnectedSocketFactory != null)
+            confConn.setSocketFactory(preconnectedSocketFactory);
+
         confConn.setReconnectionAllowed(false);
         boolean tlsRequired = loginStrategy.isTlsRequired();
 
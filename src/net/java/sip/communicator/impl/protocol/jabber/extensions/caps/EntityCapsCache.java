@@ -0,0 +1,384 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions.caps;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * Persists the <tt>DiscoverInfo</tt>s known to the <tt>EntityCapsManager</tt>
+ * across application instances in a file of their own rather than in the
+ * <tt>ConfigurationService</tt>.
+ * <p>
+ * The ver of a <tt>Caps</tt> value is the hash of the entity capabilities, so
+ * the <tt>DiscoverInfo</tt>s are stored by hash (algorithm) and ver: the
+ * clients of the same entity capabilities share one entry whatever the node
+ * they advertise. The legacy <tt>Caps</tt> values without a hash are stored
+ * by node and ver.
+ * <p>
+ * The cache is loaded on the first lookup, holds at most
+ * {@link #MAX_ENTRIES} entries, evicting the least recently used ones, and is
+ * written a few seconds after it has changed.
+ */
+class EntityCapsCache
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>EntityCapsCache</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(EntityCapsCache.class);
+
+    /**
+     * The prefix of the <tt>ConfigurationService</tt> properties which
+     * persisted the <tt>DiscoverInfo</tt>s before this cache. They are moved
+     * into the cache when it is first loaded.
+     */
+    private static final String CAPS_PROPERTY_NAME_PREFIX
+        = "net.java.sip.communicator.impl.protocol.jabber.extensions.caps."
+            + "EntityCapsManager.CAPS.";
+
+    /**
+     * The name of the file the cache is stored in.
+     */
+    private static final String CACHE_FILE_NAME = "entitycaps.cache";
+
+    /**
+     * The version of the format of the cache file.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The maximum number of entries of the cache.
+     */
+    static final int MAX_ENTRIES = 1000;
+
+    /**
+     * The delay in milliseconds between a change of the cache and its
+     * writing, so that the many changes of a login are written at once.
+     */
+    private static final long WRITE_DELAY = 5000;
+
+    /**
+     * The XML of the <tt>DiscoverInfo</tt>s by key, in the order of their
+     * last access.
+     */
+    private final Map<String, String> entries
+        = new LinkedHashMap<String, String>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, String> eldest)
+            {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    /**
+     * Whether the cache has been loaded.
+     */
+    private boolean loaded = false;
+
+    /**
+     * The file the cache is stored in or <tt>null</tt> if it cannot be
+     * stored.
+     */
+    private File file;
+
+    /**
+     * The failsafe transaction used to write {@link #file}.
+     */
+    private FailSafeTransaction transaction;
+
+    /**
+     * The timer which writes the cache after it has changed or
+     * <tt>null</tt> if no write is pending.
+     */
+    private Timer writeTimer;
+
+    /**
+     * Returns the key of a <tt>Caps</tt> value in the cache.
+     *
+     * @param caps the <tt>Caps</tt> value
+     * @return the key of <tt>caps</tt>
+     */
+    private static String getKey(EntityCapsManager.Caps caps)
+    {
+        return
+            (caps.hash.length() == 0)
+                ? ('#' + caps.node + '#' + caps.ver)
+                : (caps.hash + '#' + caps.ver);
+    }
+
+    /**
+     * Returns the XML of the <tt>DiscoverInfo</tt> associated with a
+     * <tt>Caps</tt> value.
+     *
+     * @param caps the <tt>Caps</tt> value
+     * @return the XML of the <tt>DiscoverInfo</tt> associated with
+     * <tt>caps</tt> or <tt>null</tt> if there is none
+     */
+    synchronized String get(EntityCapsManager.Caps caps)
+    {
+        load();
+        return entries.get(getKey(caps));
+    }
+
+    /**
+     * Associates the XML of a <tt>DiscoverInfo</tt> with a <tt>Caps</tt>
+     * value.
+     *
+     * @param caps the <tt>Caps</tt> value
+     * @param xml the XML of the <tt>DiscoverInfo</tt> of <tt>caps</tt>
+     */
+    synchronized void put(EntityCapsManager.Caps caps, String xml)
+    {
+        load();
+        if (!xml.equals(entries.put(getKey(caps), xml)))
+            scheduleWrite();
+    }
+
+    /**
+     * Removes the <tt>DiscoverInfo</tt> associated with a <tt>Caps</tt>
+     * value.
+     *
+     * @param caps the <tt>Caps</tt> value
+     */
+    synchronized void remove(EntityCapsManager.Caps caps)
+    {
+        load();
+        if (entries.remove(getKey(caps)) != null)
+            scheduleWrite();
+    }
+
+    /**
+     * Writes the cache right away if it has changed since it was last
+     * written.
+     */
+    synchronized void flush()
+    {
+        if (writeTimer != null)
+        {
+            writeTimer.cancel();
+            writeTimer = null;
+            write();
+        }
+    }
+
+    /**
+     * Loads the cache from its file, and from the
+     * <tt>ConfigurationService</tt> properties of former versions, unless it
+     * has already been loaded.
+     */
+    private void load()
+    {
+        if (loaded)
+            return;
+        loaded = true;
+
+        FileAccessService fileAccessService
+            = JabberActivator.getFileAccessService();
+
+        if (fileAccessService != null)
+        {
+            try
+            {
+                file
+                    = fileAccessService.getPrivatePersistentFile(
+                            CACHE_FILE_NAME);
+                transaction
+                    = fileAccessService.createFailSafeTransaction(file);
+                transaction.restoreFile();
+            }
+            catch (Exception e)
+            {
+                logger.error("Failed to open the entity caps cache", e);
+                file = null;
+                transaction = null;
+            }
+        }
+
+        if ((file != null) && file.exists())
+        {
+            try
+            {
+                read();
+            }
+            catch (IOException ioe)
+            {
+                logger.warn("Discarding the entity caps cache", ioe);
+                entries.clear();
+            }
+        }
+
+        importProperties();
+    }
+
+    /**
+     * Moves the <tt>DiscoverInfo</tt>s persisted as
+     * <tt>ConfigurationService</tt> properties by former versions into the
+     * cache.
+     */
+    private void importProperties()
+    {
+        ConfigurationService configurationService
+            = JabberActivator.getConfigurationService();
+
+        if (configurationService == null)
+            return;
+
+        List<String> propertyNames
+            = configurationService.getPropertyNamesByPrefix(
+                    CAPS_PROPERTY_NAME_PREFIX,
+                    false);
+
+        if (propertyNames.isEmpty())
+            return;
+
+        for (String propertyName : propertyNames)
+        {
+            // node#hash#ver
+            String nodeHashVer
+                = propertyName.substring(CAPS_PROPERTY_NAME_PREFIX.length());
+            int verIndex = nodeHashVer.lastIndexOf('#');
+            int hashIndex
+                = (verIndex > 0) ? nodeHashVer.lastIndexOf('#', verIndex - 1)
+                    : -1;
+            String xml = configurationService.getString(propertyName);
+
+            if ((hashIndex > 0) && (xml != null) && (xml.length() != 0))
+            {
+                EntityCapsManager.Caps caps
+                    = new EntityCapsManager.Caps(
+                            nodeHashVer.substring(0, hashIndex),
+                            nodeHashVer.substring(hashIndex + 1, verIndex),
+                            nodeHashVer.substring(verIndex + 1),
+                            null);
+
+                entries.put(getKey(caps), xml);
+            }
+            configurationService.removeProperty(propertyName);
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Reads the cache from {@link #file}.
+     *
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    private void read()
+        throws IOException
+    {
+        DataInputStream in
+            = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+
+        try
+        {
+            if (in.readInt() != FORMAT_VERSION)
+                return;
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++)
+            {
+                String key = in.readUTF();
+                byte[] xml = new byte[in.readInt()];
+
+                in.readFully(xml);
+                entries.put(key, new String(xml, "UTF-8"));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Schedules the writing of the cache unless it is already scheduled.
+     */
+    private void scheduleWrite()
+    {
+        if ((file == null) || (writeTimer != null))
+            return;
+
+        writeTimer = new Timer("EntityCapsCache", true);
+        writeTimer.schedule(
+                new TimerTask()
+                {
+                    @Override
+                    public void run()
+                    {
+                        synchronized (EntityCapsCache.this)
+                        {
+                            if (writeTimer != null)
+                            {
+                                writeTimer.cancel();
+                                writeTimer = null;
+                                write();
+                            }
+                        }
+                    }
+                },
+                WRITE_DELAY);
+    }
+
+    /**
+     * Writes the cache into {@link #file}, from the least to the most
+     * recently used entry. Failures are logged, as the cache only saves
+     * discovery requests.
+     */
+    private void write()
+    {
+        try
+        {
+            transaction.beginTransaction();
+
+            DataOutputStream out
+                = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(file)));
+
+            try
+            {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, String> entry : entries.entrySet())
+                {
+                    byte[] xml = entry.getValue().getBytes("UTF-8");
+
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(xml.length);
+                    out.write(xml);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            transaction.commit();
+        }
+        catch (IOException ioe)
+        {
+            logger.error("Failed to store the entity caps cache", ioe);
+        }
+        catch (IllegalStateException ise)
+        {
+            logger.error("The entity caps cache file is missing", ise);
+        }
+    }
+}
@@ -16,7 +16,6 @@ import net.java.sip.communicator.impl.protocol.jabber.*;
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.util.*;
 
-import org.jitsi.service.configuration.*;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.filter.*;
 import org.jivesoftware.smack.packet.*;
@@ -45,14 +44,6 @@ public class EntityCapsManager
     private static final Logger logger
         = Logger.getLogger(EntityCapsManager.class);
 
-    /**
-     * The prefix of the <tt>ConfigurationService</tt> properties which persist
-     * {@link #caps2discoverInfo}.
-     */
-    private static final String CAPS_PROPERTY_NAME_PREFIX
-        = "net.java.sip.communicator.impl.protocol.jabber.extensions.caps."
-            + "EntityCapsManager.CAPS.";
-
     /**
      * An empty array of <tt>UserCapsNodeListener</tt> elements explicitly
      * defined in order to reduce unnecessary allocations.
@@ -78,6 +69,12 @@ public class EntityCapsManager
     private static final Map<Caps, DiscoverInfo> caps2discoverInfo
         = new ConcurrentHashMap<Caps, DiscoverInfo>();
 
+    /**
+     * The cache which persists {@link #caps2discoverInfo} across application
+     * instances.
+     */
+    private static final EntityCapsCache capsCache = new EntityCapsCache();
+
     /**
      * Map of Full JID -&gt; DiscoverInfo/null. In case of c2s connection the
      * key is formed as user@server/resource (resource is required) In case of
@@ -149,29 +146,18 @@ public class EntityCapsManager
                 String xml = info.getChildElementXML();
 
                 if ((xml != null) && (xml.length() != 0))
-                {
-                    JabberActivator
-                        .getConfigurationService()
-                            .setProperty(getCapsPropertyName(caps), xml);
-                }
+                    capsCache.put(caps, xml);
             }
         }
     }
 
     /**
-     * Gets the name of the property in the <tt>ConfigurationService</tt> which
-     * is or is to be associated with a specific <tt>Caps</tt> value.
-     *
-     * @param caps the <tt>Caps</tt> value for which the associated
-     * <tt>ConfigurationService</tt> property name is to be returned
-     * @return the name of the property in the <tt>ConfigurationService</tt>
-     * which is or is to be associated with a specific <tt>Caps</tt> value
+     * Writes the <tt>DiscoverInfo</tt>s which have not been persisted yet.
+     * Called when the Jabber provider is stopped.
      */
-    private static String getCapsPropertyName(Caps caps)
+    public static void storeDiscoverInfos()
     {
-        return
-            CAPS_PROPERTY_NAME_PREFIX
-                + caps.node + '#' + caps.hash + '#' + caps.ver;
+        capsCache.flush();
     }
 
     /**
@@ -419,10 +405,7 @@ public class EntityCapsManager
              */
             if (discoverInfo == null)
             {
-                ConfigurationService configurationService
-                    = JabberActivator.getConfigurationService();
-                String capsPropertyName = getCapsPropertyName(caps);
-                String xml = configurationService.getString(capsPropertyName);
+                String xml = capsCache.get(caps);
 
                 if ((xml != null) && (xml.length() != 0))
                 {
@@ -468,6 +451,11 @@ public class EntityCapsManager
 
                             if (discoverInfo != null)
                             {
+                                /*
+                                 * The cache shares the DiscoverInfo of a ver
+                                 * among the nodes which advertise it.
+                                 */
+                                discoverInfo.setNode(caps.getNodeVer());
                                 if (caps.isValid(discoverInfo))
                                     caps2discoverInfo.put(caps, discoverInfo);
                                 else
@@ -484,8 +472,7 @@ public class EntityCapsManager
                                      * Delete the invalid information in order
                                      * to not try to validate it again.
                                      */
-                                    configurationService.removeProperty(
-                                            capsPropertyName);
+                                    capsCache.remove(caps);
                                 }
                             }
                         }
@@ -444,6 +444,31 @@ public class EventPackageSubscriber
         }
         req.setHeader(accept);
 
+        // RFC 4662: resource lists
+        if (subscription.isResourceList())
+        {
+            try
+            {
+                req.addHeader(
+                    headerFactory.createAcceptHeader(
+                            "application",
+                            "rlmi+xml"));
+                req.addHeader(
+                    headerFactory.createAcceptHeader("multipart", "related"));
+                req.setHeader(
+                    headerFactory.createSupportedHeader("eventlist"));
+            }
+            catch (ParseException e)
+            {
+                logger.error("wrong resource list header", e);
+                throw new OperationFailedException(
+                        "An unexpected error occurred while"
+                        + "constructing the resource list headers",
+                        OperationFailedException.INTERNAL_ERROR,
+                        e);
+            }
+        }
+
         // Expires
         ExpiresHeader expHeader;
         try
@@ -566,7 +591,13 @@ public class EventPackageSubscriber
         ContentTypeHeader ctheader
             = (ContentTypeHeader) request.getHeader(ContentTypeHeader.NAME);
         if ((ctheader != null)
-                && !ctheader.getContentSubType().equalsIgnoreCase(contentSubType))
+                && !ctheader.getContentSubType().equalsIgnoreCase(contentSubType)
+                && !((subscription != null)
+                        && subscription.isResourceList()
+                        && "multipart".equalsIgnoreCase(
+                                ctheader.getContentType())
+                        && "related".equalsIgnoreCase(
+                                ctheader.getContentSubType())))
         {
             // send a 415 response (rfc3261)
             Response response;
@@ -1169,6 +1200,22 @@ public class EventPackageSubscriber
             super(toAddress, eventId);
         }
 
+        /**
+         * Determines whether this <tt>Subscription</tt> is to a resource list
+         * as defined in RFC 4662 "A Session Initiation Protocol (SIP) Event
+         * Notification Extension for Resource Lists". The SUBSCRIBE requests
+         * of such a subscription announce the support of the eventlist
+         * extension and its NOTIFY requests may carry multipart/related
+         * bodies. Returns <tt>false</tt> by default.
+         *
+         * @return <tt>true</tt> if this <tt>Subscription</tt> is to a
+         * resource list; otherwise, <tt>false</tt>
+         */
+        protected boolean isResourceList()
+        {
+            return false;
+        }
+
         /**
          * Notifies this <tt>Subscription</tt> that an active NOTIFY
          * <tt>Request</tt> has been received and it may process the
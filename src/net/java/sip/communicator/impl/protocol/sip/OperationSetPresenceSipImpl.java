@@ -6,6 +6,7 @@
  */
 package net.java.sip.communicator.impl.protocol.sip;
 
+import java.io.*;
 import java.net.URI;
 import java.text.*;
 import java.util.*;
@@ -14,6 +15,7 @@ import javax.sip.*;
 import javax.sip.address.*;
 import javax.sip.header.*;
 import javax.sip.message.*;
+import javax.xml.stream.*;
 
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
@@ -116,6 +118,33 @@ public class OperationSetPresenceSipImpl
      */
     private PollOfflineContactsTask pollingTask = null;
 
+    /**
+     * The URI of the resource list (RFC 4662) holding our contacts or
+     * <tt>null</tt> if none is configured and every contact is subscribed to
+     * on its own.
+     */
+    private final String resourceListUri;
+
+    /**
+     * Whether we subscribe to the resource list, which is no longer the case
+     * for the current registration once the server turned out not to support
+     * resource lists.
+     */
+    private boolean resourceListSupported = false;
+
+    /**
+     * Whether the subscription to the resource list is active.
+     */
+    private boolean resourceListActive = false;
+
+    /**
+     * The contacts whose presence is notified through the resource list and
+     * which thus don't need subscriptions of their own. Also the lock of
+     * <tt>resourceListSupported</tt> and <tt>resourceListActive</tt>.
+     */
+    private final Set<ContactSipImpl> resourceListContacts
+        = new HashSet<ContactSipImpl>();
+
     /**
      * If we should be totally silenced, just doing local operations
      */
@@ -142,54 +171,6 @@ public class OperationSetPresenceSipImpl
      */
     private static final String WATCHERINFO_XML = "watcherinfo+xml";
 
-    // pidf elements and attributes
-    private static final String PRESENCE_ELEMENT= "presence";
-    private static final String NS_ELEMENT      = "xmlns";
-    private static final String PIDF_NS_VALUE   = "urn:ietf:params:xml:ns:pidf";
-    private static final String ENTITY_ATTRIBUTE= "entity";
-    private static final String TUPLE_ELEMENT   = "tuple";
-    private static final String ID_ATTRIBUTE    = "id";
-    private static final String STATUS_ELEMENT  = "status";
-    private static final String ONLINE_STATUS   = "open";
-    private static final String OFFLINE_STATUS  = "closed";
-    private static final String BASIC_ELEMENT   = "basic";
-    private static final String CONTACT_ELEMENT = "contact";
-    private static final String NOTE_ELEMENT    = "note";
-    private static final String PRIORITY_ATTRIBUTE  = "priority";
-
-    // rpid elements and attributes
-    private static final String RPID_NS_ELEMENT = "xmlns:rpid";
-    private static final String RPID_NS_VALUE   =
-                                            "urn:ietf:params:xml:ns:pidf:rpid";
-    private static final String DM_NS_ELEMENT   = "xmlns:dm";
-    private static final String DM_NS_VALUE     =
-                                    "urn:ietf:params:xml:ns:pidf:data-model";
-    private static final String PERSON_ELEMENT  = "person";
-    private static final String NS_PERSON_ELT   = "dm:person";
-    private static final String ACTIVITY_ELEMENT= "activities";
-    private static final String NS_ACTIVITY_ELT = "rpid:activities";
-    private static final String AWAY_ELEMENT    = "away";
-    private static final String NS_AWAY_ELT     = "rpid:away";
-    private static final String BUSY_ELEMENT    = "busy";
-    private static final String NS_BUSY_ELT     = "rpid:busy";
-    private static final String OTP_ELEMENT     = "on-the-phone";
-    private static final String NS_OTP_ELT      = "rpid:on-the-phone";
-    private static final String STATUS_ICON_ELEMENT = "status-icon";
-    private static final String NS_STATUS_ICON_ELT  = "rpid:status-icon";
-
-    // namespace wildcard
-    private static final String ANY_NS          = "*";
-
-    private static final String WATCHERINFO_NS_VALUE
-            = "urn:ietf:params:xml:ns:watcherinfo";
-    private static final String WATCHERINFO_ELEMENT= "watcherinfo";
-    private static final String STATE_ATTRIBUTE = "state";
-    private static final String VERSION_ATTRIBUTE = "version";
-    private static final String WATCHERLIST_ELEMENT= "watcher-list";
-    private static final String RESOURCE_ATTRIBUTE = "resource";
-    private static final String PACKAGE_ATTRIBUTE = "package";
-    private static final String WATCHER_ELEMENT= "watcher";
-
     /**
      * The <code>EventPackageNotifier</code> which provides the ability of this
      * instance to act as a notifier for the presence event package.
@@ -372,6 +353,17 @@ public class OperationSetPresenceSipImpl
 
         this.sipStatusEnum = parentProvider.getSipStatusEnum();
         this.presenceStatus = sipStatusEnum.getStatus(SipStatusEnum.OFFLINE);
+
+        String resourceListUri
+            = provider.getAccountID().getAccountPropertyString(
+                    SipAccountID.RESOURCE_LIST_URI);
+
+        this.resourceListUri
+            = (presenceEnabled
+                    && (resourceListUri != null)
+                    && (resourceListUri.length() != 0))
+                ? resourceListUri
+                : null;
     }
 
     /**
@@ -1975,100 +1967,44 @@ public class OperationSetPresenceSipImpl
      */
      public byte[] getPidfPresenceStatus(ContactSipImpl contact)
      {
-         Document doc = this.createDocument();
-
-         if (doc == null)
-             return null;
-
-         String contactUri = contact.getSipAddress().getURI().toString();
-
-         // <presence>
-         Element presence = doc.createElement(PRESENCE_ELEMENT);
-         presence.setAttribute(NS_ELEMENT, PIDF_NS_VALUE);
-         presence.setAttribute(RPID_NS_ELEMENT, RPID_NS_VALUE);
-         presence.setAttribute(DM_NS_ELEMENT, DM_NS_VALUE);
-         presence.setAttribute(ENTITY_ATTRIBUTE, contactUri);
-         doc.appendChild(presence);
-
-         // <person>
-         Element person = doc.createElement(NS_PERSON_ELT);
-         person.setAttribute(ID_ATTRIBUTE, PERSON_ID);
-         presence.appendChild(person);
+         PresenceStatus status = contact.getPresenceStatus();
 
-         // <activities>
-         Element activities = doc.createElement(NS_ACTIVITY_ELT);
-         person.appendChild(activities);
+         // the correct activity
+         String activity = null;
+         if (status.equals(sipStatusEnum.getStatus(SipStatusEnum.AWAY)))
+             activity = PidfDocument.AWAY_ELEMENT;
+         else if (status.equals(sipStatusEnum.getStatus(SipStatusEnum.BUSY)))
+             activity = PidfDocument.BUSY_ELEMENT;
+         else if (status.equals(
+                 sipStatusEnum.getStatus(SipStatusEnum.ON_THE_PHONE)))
+             activity = PidfDocument.OTP_ELEMENT;
 
          // <status-icon>
          URI imageUri = ssContactList.getImageUri();
-         if(imageUri != null)
-         {
-             Element statusIcon = doc.createElement(NS_STATUS_ICON_ELT);
-             statusIcon.setTextContent(imageUri.toString());
-             person.appendChild(statusIcon);
-         }
 
-         // the correct activity
-         if (contact.getPresenceStatus()
-                         .equals(sipStatusEnum.getStatus(SipStatusEnum.AWAY)))
-         {
-             Element away = doc.createElement(NS_AWAY_ELT);
-             activities.appendChild(away);
-         }
-         else if (contact.getPresenceStatus()
-                         .equals(sipStatusEnum.getStatus(SipStatusEnum.BUSY)))
-         {
-             Element busy = doc.createElement(NS_BUSY_ELT);
-             activities.appendChild(busy);
-         }
-         else if (contact.getPresenceStatus()
-                 .equals(sipStatusEnum.getStatus(SipStatusEnum.ON_THE_PHONE)))
-         {
-             Element otp = doc.createElement(NS_OTP_ELT);
-             activities.appendChild(otp);
-         }
+         // <note> we write our real status here, this status SHOULD not be
+         // used for automatic parsing but some (bad) IM clients do this...
+         // we don't use xml:lang here because it's not really relevant
+         String res
+             = PidfDocument.write(
+                     contact.getSipAddress().getURI().toString(),
+                     PERSON_ID,
+                     activity,
+                     (imageUri == null) ? null : imageUri.toString(),
+                     TUPLE_ID,
+                     !status.equals(
+                             sipStatusEnum.getStatus(SipStatusEnum.OFFLINE)),
+                     status.getStatusName());
 
-         // <tuple>
-         Element tuple = doc.createElement(TUPLE_ELEMENT);
-         tuple.setAttribute(ID_ATTRIBUTE, TUPLE_ID);
-         presence.appendChild(tuple);
-
-         // <status>
-         Element status = doc.createElement(STATUS_ELEMENT);
-         tuple.appendChild(status);
-
-         // <basic>
-         Element basic = doc.createElement(BASIC_ELEMENT);
-         if (contact.getPresenceStatus()
-                     .equals(sipStatusEnum.getStatus(SipStatusEnum.OFFLINE)))
+         try
          {
-             basic.appendChild(doc.createTextNode(OFFLINE_STATUS));
+             return res.getBytes("UTF-8");
          }
-         else
+         catch (UnsupportedEncodingException ex)
          {
-             basic.appendChild(doc.createTextNode(ONLINE_STATUS));
+             // UTF-8 is always supported
+             return res.getBytes();
          }
-         status.appendChild(basic);
-
-         // <contact>
-         Element contactUriEl = doc.createElement(CONTACT_ELEMENT);
-         Node cValue = doc.createTextNode(contactUri);
-         contactUriEl.appendChild(cValue);
-         tuple.appendChild(contactUriEl);
-
-         // <note> we write our real status here, this status SHOULD not be
-         // used for automatic parsing but some (bad) IM clients do this...
-         // we don't use xml:lang here because it's not really relevant
-         Element noteNodeEl = doc.createElement(NOTE_ELEMENT);
-         noteNodeEl.appendChild(doc.createTextNode(contact.getPresenceStatus()
-                 .getStatusName()));
-         tuple.appendChild(noteNodeEl);
-
-         String res = convertDocument(doc);
-         if (res == null)
-             return null;
-
-         return res.getBytes();
      }
 
      /**
@@ -2084,149 +2020,63 @@ public class OperationSetPresenceSipImpl
       */
      public void setPidfPresenceStatus(String presenceDoc)
      {
-         Document doc = convertDocument(presenceDoc);
-
-         if (doc == null)
-             return;
+         PidfDocument pidf;
 
-         if (logger.isDebugEnabled())
-             logger.debug("parsing:\n" + presenceDoc);
-
-         // <presence>
-         NodeList presList = doc.getElementsByTagNameNS(PIDF_NS_VALUE,
-                 PRESENCE_ELEMENT);
-
-         if (presList.getLength() == 0)
+         try
          {
-             presList = doc.getElementsByTagNameNS(ANY_NS, PRESENCE_ELEMENT);
-
-             if (presList.getLength() == 0)
-             {
-                 logger.error("no presence element in this document");
-                 return;
-             }
+             pidf = PidfDocument.parse(presenceDoc);
          }
-         if (presList.getLength() > 1)
+         catch (XMLStreamException ex)
          {
-             logger.warn("more than one presence element in this document");
+             logger.error("Can't parse the presence document", ex);
+             return;
          }
-         Node presNode = presList.item(0);
-         if (presNode.getNodeType() != Node.ELEMENT_NODE)
+
+         if (pidf == null)
          {
-             logger.error("the presence node is not an element");
+             logger.error("no presence element in this document");
              return;
          }
-         Element presence = (Element) presNode;
 
-         // RPID area
+         if (logger.isDebugEnabled())
+             logger.debug("parsing:\n" + presenceDoc);
 
-         // due to a lot of changes in the past years to this functionality,
-         // the namespace used by servers and clients are often wrong so we just
-         // ignore namespaces here
+         // RPID area
 
          PresenceStatus personStatus = null;
-         URI personStatusIcon = null;
-         NodeList personList = presence.getElementsByTagNameNS(ANY_NS,
-                 PERSON_ELEMENT);
+         String activity = pidf.getActivity();
+
+         if (PidfDocument.AWAY_ELEMENT.equals(activity))
+             personStatus = sipStatusEnum.getStatus(SipStatusEnum.AWAY);
+         else if (PidfDocument.BUSY_ELEMENT.equals(activity))
+             personStatus = sipStatusEnum.getStatus(SipStatusEnum.BUSY);
+         else if (PidfDocument.OTP_ELEMENT.equals(activity))
+             personStatus = sipStatusEnum.getStatus(SipStatusEnum.ON_THE_PHONE);
 
-         //if (personList.getLength() > 1) {
-         //    logger.error("more than one person in this document");
-         //    return;
-         //}
+         String statusIcon = pidf.getStatusIcon();
 
-         if (personList.getLength() > 0)
+         if (statusIcon != null)
          {
-             Node personNode = personList.item(0);
-             if (personNode.getNodeType() != Node.ELEMENT_NODE)
-             {
-                 logger.error("the person node is not an element");
-                 return;
-             }
-             Element person = (Element) personNode;
+             URI personStatusIcon = null;
 
-             NodeList activityList =
-                 person.getElementsByTagNameNS(ANY_NS, ACTIVITY_ELEMENT);
-             if (activityList.getLength() > 0)
+             try
              {
-                 Element activity = null;
-                 // find the first correct activity
-                 for (int i = 0; i < activityList.getLength(); i++)
-                 {
-                     Node activityNode = activityList.item(i);
-
-                     if (activityNode.getNodeType() != Node.ELEMENT_NODE)
-                         continue;
-
-                     activity = (Element) activityNode;
-
-                     NodeList statusList = activity.getChildNodes();
-                     for (int j = 0; j < statusList.getLength(); j++)
-                     {
-                         Node statusNode = statusList.item(j);
-                         if (statusNode.getNodeType() == Node.ELEMENT_NODE)
-                         {
-                             String statusname = statusNode.getLocalName();
-                             if (statusname.equals(AWAY_ELEMENT))
-                             {
-                                 personStatus = sipStatusEnum
-                                     .getStatus(SipStatusEnum.AWAY);
-                                 break;
-                             }
-                             else if (statusname.equals(BUSY_ELEMENT))
-                             {
-                                 personStatus = sipStatusEnum
-                                     .getStatus(SipStatusEnum.BUSY);
-                                 break;
-                             }
-                             else if (statusname.equals(OTP_ELEMENT))
-                             {
-                                 personStatus = sipStatusEnum
-                                     .getStatus(SipStatusEnum.ON_THE_PHONE);
-                                 break;
-                             }
-                         }
-                     }
-                     if (personStatus != null)
-                         break;
-                 }
+                 personStatusIcon = URI.create(statusIcon);
              }
-             NodeList statusIconList = person.getElementsByTagNameNS(ANY_NS,
-                     STATUS_ICON_ELEMENT);
-             if (statusIconList.getLength() > 0)
+             catch (IllegalArgumentException ex)
              {
-                 Element statusIcon;
-                 Node statusIconNode = statusIconList.item(0);
-                 if (statusIconNode.getNodeType() == Node.ELEMENT_NODE)
-                 {
-                     statusIcon = (Element) statusIconNode;
-                     String content = getTextContent(statusIcon);
-                     if (content != null && content.trim().length() != 0)
-                     {
-                         try
-                         {
-                             personStatusIcon = URI.create(content);
-                         }
-                         catch (IllegalArgumentException ex)
-                         {
-                             logger.error("Person's status icon uri: " +
-                                     content + " is invalid");
-                         }
-                     }
-                 }
+                 logger.error("Person's status icon uri: " +
+                         statusIcon + " is invalid");
              }
-         }
 
-          if(personStatusIcon != null)
-          {
-              String contactID =
-                  XMLUtils.getAttribute(presNode, ENTITY_ATTRIBUTE);
-
-              if (contactID.startsWith("pres:"))
-              {
-                  contactID = contactID.substring("pres:".length());
-              }
-              Contact contact = resolveContactID(contactID);
-              updateContactIcon((ContactSipImpl) contact, personStatusIcon);
+             if (personStatusIcon != null)
+             {
+                 ContactSipImpl contact
+                     = resolveContactID(getPresContactID(pidf.getEntity()));
+
+                 if (contact != null)
+                     updateContactIcon(contact, personStatusIcon);
+             }
          }
 
          // Vector containing the list of status to set for each contact in
@@ -2235,34 +2085,17 @@ public class OperationSetPresenceSipImpl
          List<Object[]> newPresenceStates = new Vector<Object[]>(3, 2);
 
          // <tuple>
-         NodeList tupleList = getPidfChilds(presence, TUPLE_ELEMENT);
-         for (int i = 0; i < tupleList.getLength(); i++)
+         for (PidfDocument.Tuple tuple : pidf.getTuples())
          {
-             Node tupleNode = tupleList.item(i);
-
-             if (tupleNode.getNodeType() != Node.ELEMENT_NODE)
-                 continue;
-
-             Element tuple = (Element) tupleNode;
-
-             // <contact>
-             NodeList contactList = getPidfChilds(tuple, CONTACT_ELEMENT);
-
              // we use a vector here and not an unique contact to handle an
              // error case where many contacts are associated with a status
              // Vector<ContactSipImpl>
              List<Object[]> sipcontact = new Vector<Object[]>(1, 3);
              String contactID = null;
-             if (contactList.getLength() == 0)
+             if (tuple.contacts.isEmpty())
              {
                  // use the entity attribute of the presence node
-                 contactID = XMLUtils.getAttribute(
-                         presNode, ENTITY_ATTRIBUTE);
-                 // also accept entity URIs starting with pres: instead of sip:
-                 if (contactID.startsWith("pres:"))
-                 {
-                     contactID = contactID.substring("pres:".length());
-                 }
+                 contactID = getPresContactID(pidf.getEntity());
                  Contact tmpContact = resolveContactID(contactID);
 
                  if (tmpContact != null)
@@ -2273,22 +2106,9 @@ public class OperationSetPresenceSipImpl
              else
              {
                  // this is normally not permitted by RFC3863
-                 for (int j = 0; j < contactList.getLength(); j++)
+                 for (PidfDocument.Contact contact : tuple.contacts)
                  {
-                     Node contactNode = contactList.item(j);
-
-                     if (contactNode.getNodeType() != Node.ELEMENT_NODE)
-                         continue;
-
-                     Element contact = (Element) contactNode;
-
-                     contactID = getTextContent(contact);
-                     // also accept entity URIs starting with pres: instead
-                     // of sip:
-                     if (contactID.startsWith("pres:"))
-                     {
-                         contactID = contactID.substring("pres:".length());
-                     }
+                     contactID = getPresContactID(contact.uri);
                      Contact tmpContact = resolveContactID(contactID);
                      if (tmpContact == null)
                          continue;
@@ -2298,7 +2118,7 @@ public class OperationSetPresenceSipImpl
                      Object tab[] = new Object[2];
 
                      // search if the contact has a priority
-                     String prioStr = contact.getAttribute(PRIORITY_ATTRIBUTE);
+                     String prioStr = contact.priority;
                      Float prio = null;
                      try
                      {
@@ -2369,82 +2189,20 @@ public class OperationSetPresenceSipImpl
                  continue;
              }
 
-             // <status>
-             NodeList statusList = getPidfChilds(tuple, STATUS_ELEMENT);
-
-             // in case of many status, just consider the last one
-             // this is normally not permitted by RFC3863
-             int index = statusList.getLength() - 1;
-             Node statusNode = null;
-             do
-             {
-                 Node temp = statusList.item(index);
-                 if (temp.getNodeType() == Node.ELEMENT_NODE)
-                 {
-                     statusNode = temp;
-                     break;
-                 }
-                 index--;
-             }
-             while (index >= 0);
-
-             Element basic = null;
-
-             if (statusNode == null)
-             {
-                 if (logger.isDebugEnabled())
-                     logger.debug("no valid status in this tuple");
-             }
-             else
-             {
-                 Element status = (Element) statusNode;
-
-                 // <basic>
-                 NodeList basicList = getPidfChilds(status, BASIC_ELEMENT);
+             // <status> and <basic>: in case of many, the last ones have
+             // been kept. This is normally not permitted by RFC3863
+             String basic = tuple.basic;
 
-                 // in case of many basic, just consider the last one
-                 // this is normally not permitted by RFC3863
-                 index = basicList.getLength() - 1;
-                 Node basicNode = null;
-                 do
-                 {
-                     Node temp = basicList.item(index);
-                     if (temp.getNodeType() == Node.ELEMENT_NODE)
-                     {
-                         basicNode = temp;
-                         break;
-                     }
-                     index--;
-                 }
-                 while (index >= 0);
-
-                 if (basicNode == null)
-                 {
-                     if (logger.isDebugEnabled())
-                         logger.debug("no valid <basic> in this status");
-                 }
-                 else
-                 {
-                     basic = (Element) basicNode;
-                 }
-             }
+             if (basic == null && logger.isDebugEnabled())
+                 logger.debug("no valid <basic> in this tuple");
 
              // search for a <note> that can define a more precise
              // status this is not recommended by RFC3863 but some im
              // clients use this.
-             NodeList noteList = getPidfChilds(tuple, NOTE_ELEMENT);
-
              boolean changed = false;
-             for (int k = 0; k < noteList.getLength() && !changed; k++)
+             for (int k = 0; k < tuple.notes.size() && !changed; k++)
              {
-                 Node noteNode = noteList.item(k);
-
-                 if (noteNode.getNodeType() != Node.ELEMENT_NODE)
-                     continue;
-
-                 Element note = (Element) noteNode;
-
-                 String state = getTextContent(note);
+                 String state = tuple.notes.get(k);
 
                  Iterator<PresenceStatus> states
                      = sipStatusEnum.getSupportedStatusSet();
@@ -2465,7 +2223,7 @@ public class OperationSetPresenceSipImpl
 
              if (changed == false && basic != null)
              {
-                 if (getTextContent(basic).equalsIgnoreCase(ONLINE_STATUS))
+                 if (basic.equalsIgnoreCase(PidfDocument.ONLINE_STATUS))
                  {
                      // if its online(open) we use the person status
                      // if any, otherwise just mark as online
@@ -2484,8 +2242,7 @@ public class OperationSetPresenceSipImpl
                                  newPresenceStates);
                      }
                  }
-                 else if (getTextContent(basic).equalsIgnoreCase(
-                         OFFLINE_STATUS))
+                 else if (basic.equalsIgnoreCase(PidfDocument.OFFLINE_STATUS))
                  {
                      // if its offline we ignore person status
                      newPresenceStates = setStatusForContacts(
@@ -2516,6 +2273,21 @@ public class OperationSetPresenceSipImpl
          }
      }
 
+     /**
+      * Returns the contact ID of an entity or contact URI of a PIDF document,
+      * which may start with pres: instead of sip:.
+      *
+      * @param uri the URI from the PIDF document
+      * @return the contact ID of <tt>uri</tt>
+      */
+     private static String getPresContactID(String uri)
+     {
+         // also accept entity URIs starting with pres: instead of sip:
+         if (uri.startsWith("pres:"))
+             return uri.substring("pres:".length());
+         return uri;
+     }
+
     /**
      * Parses watchers info document rfc3858.
      * @param watcherInfoDoc the doc.
@@ -2531,51 +2303,36 @@ public class OperationSetPresenceSipImpl
             return;
         }
 
-        Document doc = convertDocument(watcherInfoDoc);
-
-         if (doc == null)
-             return;
-
-         if (logger.isDebugEnabled())
-             logger.debug("parsing:\n" + watcherInfoDoc);
+        WatcherInfoDocument watcherInfo;
 
-        // <watcherinfo>
-        NodeList watchList = doc.getElementsByTagNameNS(
-                WATCHERINFO_NS_VALUE, WATCHERINFO_ELEMENT);
-        if (watchList.getLength() == 0)
+        try
         {
-            watchList = doc.getElementsByTagNameNS(
-                     ANY_NS, WATCHERINFO_ELEMENT);
-
-            if (watchList.getLength() == 0)
-            {
-                logger.error("no watcherinfo element in this document");
-                return;
-            }
+            watcherInfo = WatcherInfoDocument.parse(watcherInfoDoc);
         }
-        if (watchList.getLength() > 1)
+        catch (XMLStreamException ex)
         {
-            logger.warn("more than one watcherinfo element in this document");
+            logger.error("Can't parse the watcherinfo document", ex);
+            return;
         }
-        Node watcherInfoNode = watchList.item(0);
-        if (watcherInfoNode.getNodeType() != Node.ELEMENT_NODE)
+
+        if (watcherInfo == null)
         {
-            logger.error("the watcherinfo node is not an element");
+            logger.error("no watcherinfo element in this document");
             return;
         }
 
-        Element watcherInfo = (Element)watcherInfoNode;
+        if (logger.isDebugEnabled())
+            logger.debug("parsing:\n" + watcherInfoDoc);
 
         // we don't take in account whether the state is full or partial.
         if(logger.isDebugEnabled())
             logger.debug("Watcherinfo is with state: "
-                    + watcherInfo.getAttribute(STATE_ATTRIBUTE));
+                    + watcherInfo.getState());
 
         int currentVersion = -1;
         try
         {
-            currentVersion =
-                Integer.parseInt(watcherInfo.getAttribute(VERSION_ATTRIBUTE));
+            currentVersion = Integer.parseInt(watcherInfo.getVersion());
         }
         catch(Throwable t)
         {
@@ -2591,38 +2348,27 @@ public class OperationSetPresenceSipImpl
             subscriber.version = currentVersion;
 
         // we need watcher list only for our resource
-        Element wlist = XMLUtils.locateElement(
-                watcherInfo, WATCHERLIST_ELEMENT, RESOURCE_ATTRIBUTE,
-                parentProvider.getRegistrarConnection()
-                    .getAddressOfRecord().getURI().toString());
+        WatcherInfoDocument.WatcherList wlist
+            = watcherInfo.getWatcherList(
+                    parentProvider.getRegistrarConnection()
+                        .getAddressOfRecord().getURI().toString());
 
         if(wlist == null ||
-            !wlist.getAttribute(PACKAGE_ATTRIBUTE).equals(PRESENCE_ELEMENT))
+            !PidfDocument.PRESENCE_ELEMENT.equals(wlist.eventPackage))
         {
             logger.error("Watcher list for us is missing in this document!");
             return;
         }
 
-        NodeList watcherList = wlist.getElementsByTagNameNS(ANY_NS,
-                 WATCHER_ELEMENT);
-        for(int i = 0; i < watcherList.getLength(); i++)
+        for (WatcherInfoDocument.Watcher watcher : wlist.watchers)
         {
-            Node watcherNode = watcherList.item(i);
-            if (watcherNode.getNodeType() != Node.ELEMENT_NODE)
-            {
-                logger.error("the watcher node is not an element");
-                return;
-            }
-
-            Element watcher = (Element)watcherNode;
-
-            String status = watcher.getAttribute(STATUS_ELEMENT);
-            String contactID = getTextContent(watcher);
+            String status = watcher.status;
+            String contactID = watcher.uri;
 
             //String event - subscribe, approved, deactivated, probation,
             //rejected, timeout, giveup, noresource
 
-            if(status == null || contactID == null)
+            if(status == null || contactID.length() == 0)
             {
                 logger.warn("Status or contactID missing for watcher!");
                 continue;
@@ -2706,52 +2452,6 @@ public class OperationSetPresenceSipImpl
                 newImage);
     }
 
-     /**
-      * Secured call to XMLUtils.getText (no null returned but an empty string)
-      *
-      * @param node the node with which call <tt>XMLUtils.getText()</tt>
-      *
-      * @return the string contained in the node or an empty string if there is
-      * no text information in the node.
-      */
-     private String getTextContent(Element node)
-     {
-         String res = XMLUtils.getText(node);
-
-         if (res == null)
-         {
-             logger.warn("no text for element '" + node.getNodeName() + "'");
-             return "";
-         }
-
-         return res;
-     }
-
-     /**
-      * Gets the list of the descendant of an element in the pidf namespace.
-      * If the list is empty, we try to get this list in any namespace.
-      * This method is useful for being able to read pidf document without any
-      * namespace or with a wrong namespace.
-      *
-      * @param element the base element concerned.
-      * @param childName the name of the descendants to match on.
-      *
-      * @return The list of all the descendant node.
-      */
-     private NodeList getPidfChilds(Element element, String childName)
-     {
-         NodeList res;
-
-         res = element.getElementsByTagNameNS(PIDF_NS_VALUE, childName);
-
-         if (res.getLength() == 0)
-         {
-             res = element.getElementsByTagNameNS(ANY_NS, childName);
-         }
-
-         return res;
-     }
-
      /**
       * Associate the provided presence state to the contacts considering the
       * current presence states and priorities.
@@ -2851,7 +2551,8 @@ public class OperationSetPresenceSipImpl
      {
          if (this.presenceEnabled == false
              || !contact.isResolvable()
-             || !contact.isPersistent())
+             || !contact.isPersistent()
+             || isNotifiedByResourceList(contact))
              return;
 
          // Attempt to subscribe.
@@ -2909,6 +2610,22 @@ public class OperationSetPresenceSipImpl
                         "for watcher info.", ex);
             }
         }
+
+        if (resourceListUri != null)
+        {
+            try
+            {
+                subscriber.unsubscribe(
+                    parentProvider.parseAddressString(resourceListUri),
+                    false);
+            }
+            catch (Throwable ex)
+            {
+                logger.error("Failed to send the unsubscription " +
+                        "for the resource list.", ex);
+            }
+            resetResourceList(false);
+        }
     }
 
     /**
@@ -3029,6 +2746,9 @@ public class OperationSetPresenceSipImpl
          @Override
         public void run()
          {
+             // the contacts notified through the resource list are skipped
+             pollResourceList();
+
              // send a subscription for every contact
              Iterator<Contact> rootContactsIter
                 = getServerStoredContactListRoot().contacts();
@@ -3151,11 +2871,19 @@ public class OperationSetPresenceSipImpl
                 return;
             }
 
-            // Subcribe to each contact in the list
-            for (ContactSipImpl contact : ssContactList
-                    .getAllContacts(ssContactList.getRootGroup()))
+            // Subscribe to the resource list or else to each contact in the
+            // list
+            synchronized (resourceListContacts)
             {
-                forcePollContact(contact);
+                resourceListSupported = (resourceListUri != null);
+            }
+            if (!pollResourceList())
+            {
+                for (ContactSipImpl contact : ssContactList
+                        .getAllContacts(ssContactList.getRootGroup()))
+                {
+                    forcePollContact(contact);
+                }
             }
 
             // create the new polling task
@@ -3223,6 +2951,23 @@ public class OperationSetPresenceSipImpl
                         , oldContactStatus);
             }
 
+            if (resourceListUri != null)
+            {
+                try
+                {
+                    subscriber.removeSubscription(
+                        parentProvider.parseAddressString(resourceListUri));
+                }
+                catch (ParseException ex)
+                {
+                    if (logger.isDebugEnabled())
+                        logger.debug(
+                                "Failed to remove the resource list "
+                                    + "subscription", ex);
+                }
+                resetResourceList(false);
+            }
+
             if(this.useDistantPA)
             {
                 try
@@ -3253,6 +2998,190 @@ public class OperationSetPresenceSipImpl
         }
     }
 
+    /**
+     * Subscribes to the resource list unless there is no resource list to
+     * subscribe to, the server doesn't support resource lists or we are
+     * already subscribed.
+     *
+     * @return <tt>true</tt> if the presence of the contacts is to be
+     * notified through the resource list; <tt>false</tt> if the contacts
+     * have to be subscribed to on their own
+     */
+    private boolean pollResourceList()
+    {
+        synchronized (resourceListContacts)
+        {
+            if (!resourceListSupported)
+                return false;
+        }
+
+        try
+        {
+            subscriber.poll(
+                new ResourceListSubscription(
+                        parentProvider.parseAddressString(resourceListUri)));
+            return true;
+        }
+        catch (ParseException ex)
+        {
+            logger.error("Invalid resource list URI " + resourceListUri, ex);
+            resetResourceList(true);
+        }
+        catch (OperationFailedException ex)
+        {
+            logger.error("Failed to subscribe to the resource list", ex);
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether the presence of a specific contact is notified
+     * through the resource list, in which case it doesn't need a
+     * subscription of its own.
+     *
+     * @param contact the contact
+     * @return <tt>true</tt> if the presence of <tt>contact</tt> is notified
+     * through the resource list
+     */
+    private boolean isNotifiedByResourceList(ContactSipImpl contact)
+    {
+        synchronized (resourceListContacts)
+        {
+            return resourceListActive && resourceListContacts.contains(contact);
+        }
+    }
+
+    /**
+     * Forgets the state of the subscription to the resource list, which
+     * makes the contacts to be subscribed to on their own until we subscribe
+     * to the resource list again.
+     *
+     * @param unsupported <tt>true</tt> if the server doesn't support the
+     * resource list and we are not to subscribe to it again for the current
+     * registration
+     */
+    private void resetResourceList(boolean unsupported)
+    {
+        synchronized (resourceListContacts)
+        {
+            resourceListActive = false;
+            resourceListContacts.clear();
+            if (unsupported)
+                resourceListSupported = false;
+        }
+    }
+
+    /**
+     * Falls back to subscribing to each contact on its own because the
+     * subscription to the resource list failed or was terminated.
+     *
+     * @param unsupported <tt>true</tt> if the server doesn't support the
+     * resource list and we are not to subscribe to it again for the current
+     * registration
+     */
+    private void fallBackFromResourceList(boolean unsupported)
+    {
+        if (logger.isInfoEnabled())
+            logger.info(
+                    "Subscribing to each contact instead of the resource list "
+                        + resourceListUri);
+
+        resetResourceList(unsupported);
+        for (ContactSipImpl contact : ssContactList
+                .getAllContacts(ssContactList.getRootGroup()))
+        {
+            forcePollContact(contact);
+        }
+    }
+
+    /**
+     * Drops the subscriptions of their own of the contacts whose presence is
+     * notified through the resource list and subscribes to the other ones.
+     */
+    private void updateContactSubscriptions()
+    {
+        for (ContactSipImpl contact : ssContactList
+                .getAllContacts(ssContactList.getRootGroup()))
+        {
+            if (!isNotifiedByResourceList(contact))
+            {
+                forcePollContact(contact);
+                continue;
+            }
+
+            try
+            {
+                subscriber.unsubscribe(getAddress(contact), false);
+            }
+            catch (OperationFailedException ex)
+            {
+                logger.warn(
+                        "Failed to unsubscribe from contact " + contact, ex);
+            }
+        }
+    }
+
+    /**
+     * Updates the presence of the contacts from a notification of the
+     * resource list.
+     *
+     * @param notification the notification of the resource list
+     */
+    private void processResourceListNotification(
+            ResourceListNotification notification)
+    {
+        List<ContactSipImpl> notified = new ArrayList<ContactSipImpl>();
+        List<ContactSipImpl> terminated = new ArrayList<ContactSipImpl>();
+
+        for (ResourceListNotification.Resource resource
+                : notification.getResources())
+        {
+            if (resource.getBody() != null)
+                setPidfPresenceStatus(resource.getBody());
+
+            ContactSipImpl contact = resolveContactID(resource.getUri());
+
+            if (contact == null)
+                continue;
+
+            if (ResourceListNotification.TERMINATED.equals(
+                    resource.getState()))
+            {
+                // the server no longer notifies the presence of the contact
+                terminateSubscription(contact);
+                terminated.add(contact);
+            }
+            else
+            {
+                notified.add(contact);
+                if (ResourceListNotification.ACTIVE.equals(
+                            resource.getState())
+                        && !contact.isResolved())
+                    finalizeSubscription(contact);
+            }
+        }
+
+        boolean updateContactSubscriptions;
+
+        synchronized (resourceListContacts)
+        {
+            if (!resourceListSupported)
+                return;
+
+            if (notification.isFullState())
+                resourceListContacts.clear();
+            resourceListContacts.removeAll(terminated);
+            resourceListContacts.addAll(notified);
+
+            updateContactSubscriptions
+                = resourceListActive
+                    && (notification.isFullState() || !terminated.isEmpty());
+        }
+
+        if (updateContactSubscriptions)
+            updateContactSubscriptions();
+    }
+
     /**
      * Gets the identifying address of a specific <code>ContactSipImpl</code> in
      * the form of a <code>Address</code> value.
@@ -3610,6 +3539,200 @@ public class OperationSetPresenceSipImpl
         }
     }
 
+    /**
+     * Represents a subscription to the presence event package of a resource
+     * list as defined in RFC 4662, which notifies the presence of the
+     * contacts in the list.
+     */
+    private class ResourceListSubscription
+        extends EventPackageSubscriber.Subscription
+    {
+        /**
+         * The version of the last RLMI document received through this
+         * subscription.
+         */
+        private int version = -1;
+
+        /**
+         * Initializes a new <tt>ResourceListSubscription</tt> to a specific
+         * resource list.
+         *
+         * @param toAddress the address of the resource list
+         */
+        public ResourceListSubscription(Address toAddress)
+        {
+            super(toAddress);
+        }
+
+        /**
+         * Returns <tt>true</tt> as this is a subscription to a resource list.
+         *
+         * @return <tt>true</tt>
+         */
+        @Override
+        protected boolean isResourceList()
+        {
+            return true;
+        }
+
+        /**
+         * Decodes the multipart/related body of the notification into the
+         * presence of each contact of the list.
+         *
+         * @param requestEvent the event containing the NOTIFY request
+         * @param rawContent the body of the NOTIFY request
+         */
+        @Override
+        protected void processActiveRequest(
+            RequestEvent requestEvent,
+            byte[] rawContent)
+        {
+            if (rawContent == null)
+                return;
+
+            ContentTypeHeader ctheader
+                = (ContentTypeHeader) requestEvent.getRequest()
+                        .getHeader(ContentTypeHeader.NAME);
+
+            if ((ctheader == null)
+                    || !"multipart".equalsIgnoreCase(ctheader.getContentType()))
+            {
+                // the list is handled as a single presentity
+                setPidfPresenceStatus(new String(rawContent));
+                return;
+            }
+
+            StringBuilder contentType
+                = new StringBuilder(ctheader.getContentType())
+                    .append('/').append(ctheader.getContentSubType());
+            Iterator<?> paramNames = ctheader.getParameterNames();
+
+            while (paramNames.hasNext())
+            {
+                String name = (String) paramNames.next();
+
+                contentType.append(';').append(name).append('=')
+                    .append(ctheader.getParameter(name));
+            }
+
+            ResourceListNotification notification
+                = ResourceListNotification.parse(
+                        contentType.toString(),
+                        rawContent);
+
+            if (notification == null)
+                return;
+
+            int version = notification.getVersion();
+
+            if (version != -1)
+            {
+                // the notifications may arrive out of order
+                if (version <= this.version)
+                {
+                    if (logger.isDebugEnabled())
+                        logger.debug("Ignoring resource list version "
+                                + version);
+                    return;
+                }
+                this.version = version;
+            }
+
+            processResourceListNotification(notification);
+        }
+
+        /**
+         * Falls back to subscribing to each contact when the subscription to
+         * the resource list fails.
+         *
+         * @param responseEvent the event containing the response
+         * @param statusCode the status code of the response
+         */
+        @Override
+        protected void processFailureResponse(
+            ResponseEvent responseEvent,
+            int statusCode)
+        {
+            fallBackFromResourceList(
+                (statusCode == Response.BAD_EVENT)
+                    || (statusCode == Response.BAD_EXTENSION)
+                    || (statusCode == Response.FORBIDDEN)
+                    || (statusCode == Response.NOT_FOUND)
+                    || (statusCode == Response.METHOD_NOT_ALLOWED)
+                    || (statusCode == Response.NOT_IMPLEMENTED));
+        }
+
+        /**
+         * Activates the subscription to the resource list if the server
+         * handles it as one (RFC 4662 section 5.2), which it tells by
+         * requiring the eventlist extension, and otherwise falls back to
+         * subscribing to each contact.
+         *
+         * @param responseEvent the event containing the response
+         * @param statusCode the status code of the response
+         */
+        @Override
+        protected void processSuccessResponse(
+            ResponseEvent responseEvent,
+            int statusCode)
+        {
+            ListIterator<?> requireHeaders
+                = responseEvent.getResponse().getHeaders(RequireHeader.NAME);
+
+            while ((requireHeaders != null) && requireHeaders.hasNext())
+            {
+                RequireHeader requireHeader
+                    = (RequireHeader) requireHeaders.next();
+
+                if ("eventlist".equalsIgnoreCase(requireHeader.getOptionTag()))
+                {
+                    boolean updateContactSubscriptions;
+
+                    synchronized (resourceListContacts)
+                    {
+                        updateContactSubscriptions
+                            = !resourceListActive
+                                && !resourceListContacts.isEmpty();
+                        resourceListActive = true;
+                    }
+                    if (updateContactSubscriptions)
+                        updateContactSubscriptions();
+                    return;
+                }
+            }
+
+            if (logger.isInfoEnabled())
+                logger.info(getAddress() + " is not a resource list");
+            try
+            {
+                subscriber.unsubscribe(getAddress(), false);
+            }
+            catch (OperationFailedException ex)
+            {
+                logger.warn("Failed to unsubscribe from " + getAddress(), ex);
+            }
+            fallBackFromResourceList(true);
+        }
+
+        /**
+         * Falls back to subscribing to each contact when the subscription to
+         * the resource list is terminated. The resource list will be polled
+         * again unless the server rejected it.
+         *
+         * @param requestEvent the event containing the NOTIFY request
+         * @param reasonCode the reason of the termination
+         */
+        @Override
+        protected void processTerminatedRequest(
+            RequestEvent requestEvent,
+            String reasonCode)
+        {
+            fallBackFromResourceList(
+                SubscriptionStateHeader.NO_RESOURCE.equals(reasonCode)
+                    || SubscriptionStateHeader.REJECTED.equals(reasonCode));
+        }
+    }
+
     /**
      * Represents a subscription to the presence.winfo event package.
      *
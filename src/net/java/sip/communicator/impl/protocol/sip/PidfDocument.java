@@ -0,0 +1,629 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+/**
+ * The parts of a PIDF (RFC 3863) presence document with its RPID (RFC 4480)
+ * extensions which <tt>OperationSetPresenceSipImpl</tt> interprets. Documents
+ * are decoded with a pull parser and encoded from a template rather than
+ * through a DOM, as presence documents are received and sent for every status
+ * change of every contact.
+ * <p>
+ * As the namespaces used by servers and clients are often wrong, the decoding
+ * is tolerant: elements are matched by local name in any namespace and, as
+ * with the previous DOM decoding, elements of the PIDF namespace are preferred
+ * where the PIDF schema expects them.
+ */
+class PidfDocument
+{
+    /**
+     * The namespace of PIDF documents.
+     */
+    static final String PIDF_NS_VALUE = "urn:ietf:params:xml:ns:pidf";
+
+    /**
+     * The namespace of the RPID extensions.
+     */
+    static final String RPID_NS_VALUE = "urn:ietf:params:xml:ns:pidf:rpid";
+
+    /**
+     * The namespace of the data model extensions.
+     */
+    static final String DM_NS_VALUE = "urn:ietf:params:xml:ns:pidf:data-model";
+
+    /**
+     * The basic status of an open tuple.
+     */
+    static final String ONLINE_STATUS = "open";
+
+    /**
+     * The basic status of a closed tuple.
+     */
+    static final String OFFLINE_STATUS = "closed";
+
+    // pidf elements and attributes
+    static final String PRESENCE_ELEMENT = "presence";
+    private static final String ENTITY_ATTRIBUTE = "entity";
+    private static final String TUPLE_ELEMENT = "tuple";
+    private static final String STATUS_ELEMENT = "status";
+    private static final String BASIC_ELEMENT = "basic";
+    private static final String CONTACT_ELEMENT = "contact";
+    private static final String NOTE_ELEMENT = "note";
+    private static final String PRIORITY_ATTRIBUTE = "priority";
+
+    // rpid elements
+    private static final String PERSON_ELEMENT = "person";
+    private static final String ACTIVITY_ELEMENT = "activities";
+    static final String AWAY_ELEMENT = "away";
+    static final String BUSY_ELEMENT = "busy";
+    static final String OTP_ELEMENT = "on-the-phone";
+    private static final String STATUS_ICON_ELEMENT = "status-icon";
+
+    /**
+     * The XML declaration of the encoded documents.
+     */
+    private static final String XML_DECLARATION
+        = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+
+    /**
+     * The builders of encoded documents larger than this are not kept for
+     * reuse.
+     */
+    private static final int MAX_POOLED_BUILDER_CAPACITY = 4096;
+
+    /**
+     * The pull parser factory of the current thread.
+     */
+    private static final ThreadLocal<XMLInputFactory> inputFactory
+        = new ThreadLocal<XMLInputFactory>()
+        {
+            @Override
+            protected XMLInputFactory initialValue()
+            {
+                XMLInputFactory factory = XMLInputFactory.newInstance();
+
+                factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+                factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+                return factory;
+            }
+        };
+
+    /**
+     * The builder of encoded documents of the current thread.
+     */
+    private static final ThreadLocal<StringBuilder> builder
+        = new ThreadLocal<StringBuilder>()
+        {
+            @Override
+            protected StringBuilder initialValue()
+            {
+                return new StringBuilder(1024);
+            }
+        };
+
+    /**
+     * The <tt>entity</tt> attribute of the presence element.
+     */
+    private String entity = "";
+
+    /**
+     * The local name of the first known activity of the person or
+     * <tt>null</tt>.
+     */
+    private String activity;
+
+    /**
+     * The status icon of the person or <tt>null</tt>.
+     */
+    private String statusIcon;
+
+    /**
+     * The tuples of the document.
+     */
+    private final List<Tuple> tuples = new ArrayList<Tuple>();
+
+    /**
+     * Creates a pull parser of the current thread over a document.
+     *
+     * @param document the document
+     * @return a pull parser over <tt>document</tt>
+     * @throws XMLStreamException if the parser could not be created
+     */
+    static XMLStreamReader createReader(String document)
+        throws XMLStreamException
+    {
+        return inputFactory.get().createXMLStreamReader(
+            new StringReader(document));
+    }
+
+    /**
+     * Decodes a PIDF document.
+     *
+     * @param document the PIDF document
+     * @return the decoded document or <tt>null</tt> if <tt>document</tt> has
+     * no presence element
+     * @throws XMLStreamException if <tt>document</tt> is not well formed
+     */
+    static PidfDocument parse(String document)
+        throws XMLStreamException
+    {
+        XMLStreamReader reader = createReader(document);
+
+        try
+        {
+            while (reader.hasNext())
+            {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT
+                        && PRESENCE_ELEMENT.equals(reader.getLocalName()))
+                {
+                    PidfDocument pidf = new PidfDocument();
+
+                    pidf.parsePresence(reader);
+                    return pidf;
+                }
+            }
+            return null;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Encodes our presence into a PIDF document.
+     *
+     * @param entity the URI of the presentity
+     * @param personId the id of the person element
+     * @param activity the local name of the RPID activity or <tt>null</tt>
+     * @param statusIcon the URI of the status icon or <tt>null</tt>
+     * @param tupleId the id of the tuple element
+     * @param open <tt>true</tt> if the basic status is open
+     * @param note the note of the tuple
+     * @return the PIDF document
+     */
+    static String write(
+            String entity,
+            String personId,
+            String activity,
+            String statusIcon,
+            String tupleId,
+            boolean open,
+            String note)
+    {
+        StringBuilder xml = builder.get();
+
+        xml.setLength(0);
+        xml.append(XML_DECLARATION)
+            .append("<presence xmlns=\"").append(PIDF_NS_VALUE)
+            .append("\" xmlns:dm=\"").append(DM_NS_VALUE)
+            .append("\" xmlns:rpid=\"").append(RPID_NS_VALUE)
+            .append("\" entity=\"");
+        escape(entity, xml);
+        xml.append("\"><dm:person id=\"");
+        escape(personId, xml);
+        xml.append("\">");
+
+        if (activity == null)
+            xml.append("<rpid:activities/>");
+        else
+            xml.append("<rpid:activities><rpid:").append(activity)
+                .append("/></rpid:activities>");
+
+        if (statusIcon != null)
+        {
+            xml.append("<rpid:status-icon>");
+            escape(statusIcon, xml);
+            xml.append("</rpid:status-icon>");
+        }
+
+        xml.append("</dm:person><tuple id=\"");
+        escape(tupleId, xml);
+        xml.append("\"><status><basic>")
+            .append(open ? ONLINE_STATUS : OFFLINE_STATUS)
+            .append("</basic></status><contact>");
+        escape(entity, xml);
+        xml.append("</contact><note>");
+        escape(note, xml);
+        xml.append("</note></tuple></presence>");
+
+        String result = xml.toString();
+
+        if (xml.capacity() > MAX_POOLED_BUILDER_CAPACITY)
+            builder.remove();
+        return result;
+    }
+
+    /**
+     * Returns the <tt>entity</tt> attribute of the presence element.
+     *
+     * @return the <tt>entity</tt> attribute or an empty string if there is
+     * none
+     */
+    String getEntity()
+    {
+        return entity;
+    }
+
+    /**
+     * Returns the local name of the first known activity of the person, one
+     * of {@link #AWAY_ELEMENT}, {@link #BUSY_ELEMENT} and
+     * {@link #OTP_ELEMENT}.
+     *
+     * @return the activity of the person or <tt>null</tt> if it has none
+     */
+    String getActivity()
+    {
+        return activity;
+    }
+
+    /**
+     * Returns the status icon of the person.
+     *
+     * @return the status icon or <tt>null</tt> if there is none
+     */
+    String getStatusIcon()
+    {
+        return statusIcon;
+    }
+
+    /**
+     * Returns the tuples of the document.
+     *
+     * @return the tuples
+     */
+    List<Tuple> getTuples()
+    {
+        return tuples;
+    }
+
+    /**
+     * Decodes the presence element the reader is positioned at.
+     *
+     * @param reader the reader
+     * @throws XMLStreamException if the document is not well formed
+     */
+    private void parsePresence(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        String entity = reader.getAttributeValue(null, ENTITY_ATTRIBUTE);
+
+        if (entity != null)
+            this.entity = entity;
+
+        List<Tuple> pidfTuples = new ArrayList<Tuple>();
+        boolean personParsed = false;
+        int depth = 1;
+
+        while (depth > 0)
+        {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.END_ELEMENT)
+            {
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            String name = reader.getLocalName();
+
+            if (TUPLE_ELEMENT.equals(name))
+            {
+                boolean pidfNs = PIDF_NS_VALUE.equals(reader.getNamespaceURI());
+                Tuple tuple = parseTuple(reader);
+
+                tuples.add(tuple);
+                if (pidfNs)
+                    pidfTuples.add(tuple);
+            }
+            else if (PERSON_ELEMENT.equals(name) && !personParsed)
+            {
+                parsePerson(reader);
+                personParsed = true;
+            }
+            else
+                depth++;
+        }
+
+        if (!pidfTuples.isEmpty())
+        {
+            tuples.clear();
+            tuples.addAll(pidfTuples);
+        }
+    }
+
+    /**
+     * Decodes the activity and status icon of the person element the reader
+     * is positioned at, and leaves the reader at its end.
+     *
+     * @param reader the reader
+     * @throws XMLStreamException if the document is not well formed
+     */
+    private void parsePerson(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        int depth = 1;
+        int activitiesDepth = -1;
+        boolean statusIconParsed = false;
+
+        while (depth > 0)
+        {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.END_ELEMENT)
+            {
+                if (depth == activitiesDepth)
+                    activitiesDepth = -1;
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            String name = reader.getLocalName();
+
+            if (STATUS_ICON_ELEMENT.equals(name) && !statusIconParsed)
+            {
+                String content = readText(reader);
+
+                if (content.length() != 0)
+                    statusIcon = content;
+                statusIconParsed = true;
+                continue;
+            }
+
+            depth++;
+            if (ACTIVITY_ELEMENT.equals(name) && activitiesDepth == -1)
+                activitiesDepth = depth;
+            else if (activity == null
+                    && activitiesDepth != -1
+                    && depth == activitiesDepth + 1
+                    && (AWAY_ELEMENT.equals(name)
+                            || BUSY_ELEMENT.equals(name)
+                            || OTP_ELEMENT.equals(name)))
+                activity = name;
+        }
+    }
+
+    /**
+     * Decodes the tuple element the reader is positioned at, and leaves the
+     * reader at its end.
+     *
+     * @param reader the reader
+     * @return the decoded tuple
+     * @throws XMLStreamException if the document is not well formed
+     */
+    private static Tuple parseTuple(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        Tuple tuple = new Tuple();
+        List<Contact> pidfContacts = new ArrayList<Contact>();
+        List<String> pidfNotes = new ArrayList<String>();
+        // the basic elements of the last status, whether in the PIDF
+        // namespace, and whether the last status is in the PIDF namespace
+        List<String> basics = null;
+        List<String> pidfBasics = null;
+        boolean pidfStatus = false;
+        List<String> lastPidfStatusBasics = null;
+        List<String> lastPidfStatusPidfBasics = null;
+        int statusDepth = -1;
+        int depth = 1;
+
+        while (depth > 0)
+        {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.END_ELEMENT)
+            {
+                if (depth == statusDepth)
+                    statusDepth = -1;
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            String name = reader.getLocalName();
+            boolean pidfNs = PIDF_NS_VALUE.equals(reader.getNamespaceURI());
+
+            if (CONTACT_ELEMENT.equals(name))
+            {
+                Contact contact
+                    = new Contact(
+                            reader.getAttributeValue(null, PRIORITY_ATTRIBUTE),
+                            readText(reader));
+
+                tuple.contacts.add(contact);
+                if (pidfNs)
+                    pidfContacts.add(contact);
+            }
+            else if (NOTE_ELEMENT.equals(name))
+            {
+                String note = readText(reader);
+
+                tuple.notes.add(note);
+                if (pidfNs)
+                    pidfNotes.add(note);
+            }
+            else if (BASIC_ELEMENT.equals(name) && statusDepth != -1)
+            {
+                String basic = readText(reader);
+
+                basics.add(basic);
+                if (pidfNs)
+                    pidfBasics.add(basic);
+            }
+            else
+            {
+                depth++;
+                if (STATUS_ELEMENT.equals(name) && statusDepth == -1)
+                {
+                    statusDepth = depth;
+                    basics = new ArrayList<String>();
+                    pidfBasics = new ArrayList<String>();
+                    pidfStatus = pidfNs;
+                    if (pidfNs)
+                    {
+                        lastPidfStatusBasics = basics;
+                        lastPidfStatusPidfBasics = pidfBasics;
+                    }
+                }
+            }
+        }
+
+        if (!pidfContacts.isEmpty())
+        {
+            tuple.contacts.clear();
+            tuple.contacts.addAll(pidfContacts);
+        }
+        if (!pidfNotes.isEmpty())
+        {
+            tuple.notes.clear();
+            tuple.notes.addAll(pidfNotes);
+        }
+
+        // in case of many statuses or basics, consider the last ones
+        if (lastPidfStatusBasics != null && !pidfStatus)
+        {
+            basics = lastPidfStatusBasics;
+            pidfBasics = lastPidfStatusPidfBasics;
+        }
+        if (basics != null)
+        {
+            if (!pidfBasics.isEmpty())
+                basics = pidfBasics;
+            if (!basics.isEmpty())
+                tuple.basic = basics.get(basics.size() - 1);
+        }
+        return tuple;
+    }
+
+    /**
+     * Reads the text of the element the reader is positioned at, which is its
+     * first text node like <tt>XMLUtils.getText</tt> returns, and leaves the
+     * reader at its end.
+     *
+     * @param reader the reader
+     * @return the trimmed text of the element or an empty string if it has
+     * none
+     * @throws XMLStreamException if the document is not well formed
+     */
+    static String readText(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        String text = null;
+        int depth = 1;
+
+        while (depth > 0)
+        {
+            switch (reader.next())
+            {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+                if (text == null && depth == 1)
+                    text = reader.getText();
+                break;
+            }
+        }
+        return (text == null) ? "" : text.trim();
+    }
+
+    /**
+     * Escapes the XML special characters of a string and appends it.
+     *
+     * @param s the string to escape
+     * @param xml the builder to append to
+     */
+    private static void escape(String s, StringBuilder xml)
+    {
+        for (int i = 0, length = s.length(); i < length; i++)
+        {
+            char c = s.charAt(i);
+
+            switch (c)
+            {
+            case '&':
+                xml.append("&amp;");
+                break;
+            case '<':
+                xml.append("&lt;");
+                break;
+            case '>':
+                xml.append("&gt;");
+                break;
+            case '"':
+                xml.append("&quot;");
+                break;
+            default:
+                xml.append(c);
+            }
+        }
+    }
+
+    /**
+     * A tuple of a PIDF document.
+     */
+    static class Tuple
+    {
+        /**
+         * The contacts of the tuple. RFC 3863 permits one at most.
+         */
+        final List<Contact> contacts = new ArrayList<Contact>();
+
+        /**
+         * The text of the last basic element of the last status of the tuple
+         * or <tt>null</tt> if there is none.
+         */
+        String basic;
+
+        /**
+         * The notes of the tuple.
+         */
+        final List<String> notes = new ArrayList<String>();
+    }
+
+    /**
+     * A contact element of a tuple.
+     */
+    static class Contact
+    {
+        /**
+         * The priority attribute of the contact or <tt>null</tt>.
+         */
+        final String priority;
+
+        /**
+         * The URI of the contact.
+         */
+        final String uri;
+
+        /**
+         * Creates a contact element.
+         *
+         * @param priority the priority attribute or <tt>null</tt>
+         * @param uri the URI of the contact
+         */
+        Contact(String priority, String uri)
+        {
+            this.priority = priority;
+            this.uri = uri;
+        }
+    }
+}
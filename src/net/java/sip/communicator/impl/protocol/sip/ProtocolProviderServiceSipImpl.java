@@ -2506,7 +2506,16 @@ public class ProtocolProviderServiceSipImpl
                 return true;
 
             }
-            else if(connection.getNextAddress())
+
+            // we are called on a fresh connection or because the current
+            // address has failed, the statistics bias the order in which
+            // the address families are tried
+            InetSocketAddress failedAddress = connection.getAddress();
+
+            if(failedAddress != null)
+                HappyEyeballs.recordFailure(failedAddress.getAddress());
+
+            if(connection.getNextAddress())
             {
                 sipRegistrarConnection.setTransport(connection.getTransport());
                 sipRegistrarConnection.register();
@@ -0,0 +1,267 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+import javax.sip.address.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * An index of the <tt>ProtocolProviderServiceSipImpl</tt>s which
+ * <tt>SipStackSharing</tt> dispatches incoming requests to, by the values it
+ * compares with the requests: the user ID of the account, the value of the
+ * custom parameter of its contact address and the host of its address of
+ * record. The index is immutable: <tt>SipStackSharing</tt> creates a new one
+ * whenever a provider is added, removed or changes its registration state,
+ * so that requests are dispatched with a few hash lookups and without
+ * locking.
+ * <p>
+ * Only providers connected to a registrar have a fixed address of record.
+ * The address of the others depends on the destination and is not indexed.
+ */
+class RequestDispatchIndex
+{
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RequestDispatchIndex.class);
+
+    /**
+     * The value returned when no provider matches.
+     */
+    private static final ProtocolProviderServiceSipImpl[] NO_PROVIDERS
+        = new ProtocolProviderServiceSipImpl[0];
+
+    /**
+     * All the indexed providers.
+     */
+    private final ProtocolProviderServiceSipImpl[] providers;
+
+    /**
+     * The providers by the user ID of their account.
+     */
+    private final Map<String, ProtocolProviderServiceSipImpl[]> byUser;
+
+    /**
+     * The providers by the user ID of their account and the value of the
+     * custom parameter of their contact address.
+     */
+    private final Map<String, ProtocolProviderServiceSipImpl[]> byCustomParam;
+
+    /**
+     * The providers by the user ID of their account and the host of their
+     * address of record.
+     */
+    private final Map<String, ProtocolProviderServiceSipImpl[]> byHost;
+
+    /**
+     * The providers indexed in {@link #byHost}.
+     */
+    private final Set<ProtocolProviderServiceSipImpl> hostIndexed
+        = new HashSet<ProtocolProviderServiceSipImpl>();
+
+    /**
+     * Creates an index of <tt>providers</tt>.
+     *
+     * @param providers the providers to index
+     */
+    RequestDispatchIndex(Collection<ProtocolProviderServiceSipImpl> providers)
+    {
+        this.providers
+            = providers.toArray(
+                    new ProtocolProviderServiceSipImpl[providers.size()]);
+
+        Map<String, List<ProtocolProviderServiceSipImpl>> users
+            = new HashMap<String, List<ProtocolProviderServiceSipImpl>>();
+        Map<String, List<ProtocolProviderServiceSipImpl>> customParams
+            = new HashMap<String, List<ProtocolProviderServiceSipImpl>>();
+        Map<String, List<ProtocolProviderServiceSipImpl>> hosts
+            = new HashMap<String, List<ProtocolProviderServiceSipImpl>>();
+
+        for (ProtocolProviderServiceSipImpl provider : this.providers)
+        {
+            String user = provider.getAccountID().getUserID();
+
+            add(users, user, provider);
+
+            SipRegistrarConnection registrarConnection
+                = provider.getRegistrarConnection();
+
+            if (registrarConnection == null
+                    || registrarConnection.isRegistrarless())
+                continue;
+
+            try
+            {
+                String paramValue
+                    = provider.getContactAddressCustomParamValue();
+
+                if (paramValue != null)
+                    add(customParams, getKey(user, paramValue), provider);
+
+                String host
+                    = ((SipURI) registrarConnection.getAddressOfRecord()
+                            .getURI()).getHost();
+
+                add(hosts, getKey(user, host), provider);
+                hostIndexed.add(provider);
+            }
+            catch (RuntimeException ex)
+            {
+                // the request will then be matched against the provider
+                logger.warn("Failed to index the address of record of "
+                    + provider.getAccountID(), ex);
+            }
+        }
+
+        this.byUser = toArrays(users);
+        this.byCustomParam = toArrays(customParams);
+        this.byHost = toArrays(hosts);
+    }
+
+    /**
+     * Returns all the indexed providers.
+     *
+     * @return the indexed providers
+     */
+    ProtocolProviderServiceSipImpl[] getProviders()
+    {
+        return providers;
+    }
+
+    /**
+     * Returns the providers of the accounts with a specific user ID.
+     *
+     * @param user the user ID
+     * @return the providers of the accounts with the user ID <tt>user</tt>
+     */
+    ProtocolProviderServiceSipImpl[] getByUser(String user)
+    {
+        return get(byUser, user);
+    }
+
+    /**
+     * Returns the providers of the accounts with a specific user ID and value
+     * of the custom parameter of their contact address.
+     *
+     * @param user the user ID
+     * @param paramValue the value of the custom parameter
+     * @return the matching providers
+     */
+    ProtocolProviderServiceSipImpl[] getByCustomParam(
+            String user,
+            String paramValue)
+    {
+        return get(byCustomParam, getKey(user, paramValue));
+    }
+
+    /**
+     * Returns the providers of the accounts with a specific user ID and host
+     * of their address of record.
+     *
+     * @param user the user ID
+     * @param host the host of the address of record
+     * @return the matching providers
+     */
+    ProtocolProviderServiceSipImpl[] getByHost(String user, String host)
+    {
+        return get(byHost, getKey(user, host));
+    }
+
+    /**
+     * Determines whether the address of record of a provider is indexed, in
+     * which case {@link #getByHost(String, String)} finds all the requests
+     * matching it.
+     *
+     * @param provider the provider
+     * @return <tt>true</tt> if the address of record of <tt>provider</tt> is
+     * indexed
+     */
+    boolean isHostIndexed(ProtocolProviderServiceSipImpl provider)
+    {
+        return hostIndexed.contains(provider);
+    }
+
+    /**
+     * Returns the key of a pair of values.
+     *
+     * @param user the user ID
+     * @param value the value paired with the user ID
+     * @return the key of the pair
+     */
+    private static String getKey(String user, String value)
+    {
+        return user + '\n' + value;
+    }
+
+    /**
+     * Looks up the providers of a key.
+     *
+     * @param map the map to look in
+     * @param key the key, which may be <tt>null</tt>
+     * @return the providers of the key
+     */
+    private static ProtocolProviderServiceSipImpl[] get(
+            Map<String, ProtocolProviderServiceSipImpl[]> map,
+            String key)
+    {
+        ProtocolProviderServiceSipImpl[] result
+            = (key == null) ? null : map.get(key);
+
+        return (result == null) ? NO_PROVIDERS : result;
+    }
+
+    /**
+     * Adds a provider to the providers of a key.
+     *
+     * @param map the map to add to
+     * @param key the key
+     * @param provider the provider
+     */
+    private static void add(
+            Map<String, List<ProtocolProviderServiceSipImpl>> map,
+            String key,
+            ProtocolProviderServiceSipImpl provider)
+    {
+        List<ProtocolProviderServiceSipImpl> list = map.get(key);
+
+        if (list == null)
+        {
+            list = new ArrayList<ProtocolProviderServiceSipImpl>(1);
+            map.put(key, list);
+        }
+        list.add(provider);
+    }
+
+    /**
+     * Converts the lists of providers of a map to arrays.
+     *
+     * @param map the map
+     * @return a map with the same keys and arrays of the same providers
+     */
+    private static Map<String, ProtocolProviderServiceSipImpl[]> toArrays(
+            Map<String, List<ProtocolProviderServiceSipImpl>> map)
+    {
+        Map<String, ProtocolProviderServiceSipImpl[]> result
+            = new HashMap<String, ProtocolProviderServiceSipImpl[]>(
+                    map.size() * 2);
+
+        for (Map.Entry<String, List<ProtocolProviderServiceSipImpl>> e
+                : map.entrySet())
+        {
+            List<ProtocolProviderServiceSipImpl> list = e.getValue();
+
+            result.put(
+                e.getKey(),
+                list.toArray(new ProtocolProviderServiceSipImpl[list.size()]));
+        }
+        return result;
+    }
+}
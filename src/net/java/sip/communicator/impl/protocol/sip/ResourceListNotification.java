@@ -0,0 +1,658 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.util.xml.XMLUtils;
+import org.w3c.dom.*;
+
+/**
+ * The content of a NOTIFY request of a resource list subscription as defined
+ * in RFC 4662 "A Session Initiation Protocol (SIP) Event Notification
+ * Extension for Resource Lists". The content is a multipart/related body
+ * whose root part is a Resource List Meta-Information (RLMI) document
+ * listing the resources of the list, and whose other parts are the
+ * notification bodies of these resources, referenced from the RLMI document
+ * by their Content-ID. Parts which are lists themselves are decoded
+ * recursively, so that a notification is a flat list of resources. The
+ * body of each part is decoded with the charset of its Content-Type, or
+ * UTF-8 if it has none.
+ */
+public class ResourceListNotification
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ResourceListNotification.class);
+
+    /**
+     * The content type of the bodies of resource list notifications.
+     */
+    static final String MULTIPART_RELATED = "multipart/related";
+
+    /**
+     * The content type of RLMI documents.
+     */
+    static final String RLMI_XML = "application/rlmi+xml";
+
+    /**
+     * The state of an instance of a resource whose subscription is active.
+     */
+    public static final String ACTIVE = "active";
+
+    /**
+     * The state of an instance of a resource whose subscription is
+     * terminated.
+     */
+    public static final String TERMINATED = "terminated";
+
+    private static final String LIST_ELEMENT = "list";
+    private static final String RESOURCE_ELEMENT = "resource";
+    private static final String INSTANCE_ELEMENT = "instance";
+    private static final String URI_ATTRIBUTE = "uri";
+    private static final String VERSION_ATTRIBUTE = "version";
+    private static final String FULL_STATE_ATTRIBUTE = "fullState";
+    private static final String STATE_ATTRIBUTE = "state";
+    private static final String REASON_ATTRIBUTE = "reason";
+    private static final String CID_ATTRIBUTE = "cid";
+    private static final String ANY_NS = "*";
+
+    /**
+     * The charset of the parts whose Content-Type has none.
+     */
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    /**
+     * The charset the multipart body is split in, which maps each byte to
+     * the char of the same value so that the parts may be decoded with
+     * their own charsets.
+     */
+    private static final String RAW_CHARSET = "ISO-8859-1";
+
+    /**
+     * The URI of the list.
+     */
+    private String uri;
+
+    /**
+     * The version of the RLMI document of the list.
+     */
+    private int version = -1;
+
+    /**
+     * Whether the notification contains the state of all the resources of
+     * the list, rather than of the resources which changed.
+     */
+    private boolean fullState;
+
+    /**
+     * The resources of the notification.
+     */
+    private final List<Resource> resources = new ArrayList<Resource>();
+
+    /**
+     * Decodes the content of a resource list notification.
+     *
+     * @param contentType the value of the Content-Type header of the
+     * notification
+     * @param content the content of the notification
+     * @return the decoded notification or <tt>null</tt> if <tt>content</tt>
+     * is not a valid resource list notification
+     */
+    public static ResourceListNotification parse(String contentType,
+                                                 byte[] content)
+    {
+        ResourceListNotification notification
+            = new ResourceListNotification();
+
+        if (!notification.parseList(
+                contentType,
+                decode(content, RAW_CHARSET),
+                true))
+            return null;
+        return notification;
+    }
+
+    /**
+     * Returns the URI of the list.
+     *
+     * @return the URI of the list
+     */
+    public String getUri()
+    {
+        return uri;
+    }
+
+    /**
+     * Returns the version of the RLMI document of the list, which increases
+     * with every notification of a subscription.
+     *
+     * @return the version of the RLMI document or <tt>-1</tt> if it has none
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Determines whether the notification contains the state of all the
+     * resources of the list, rather than of the resources which changed since
+     * the previous notification.
+     *
+     * @return <tt>true</tt> if the notification contains the state of all the
+     * resources
+     */
+    public boolean isFullState()
+    {
+        return fullState;
+    }
+
+    /**
+     * Returns the resources of the notification, including the resources of
+     * the lists nested in the list.
+     *
+     * @return the resources of the notification
+     */
+    public List<Resource> getResources()
+    {
+        return resources;
+    }
+
+    /**
+     * Decodes a multipart/related list body and adds its resources.
+     *
+     * @param contentType the content type of the body, with its parameters
+     * @param body the body
+     * @param root <tt>true</tt> if the body is the one of the notification
+     * and not of a nested list
+     * @return <tt>true</tt> if the body was decoded
+     */
+    private boolean parseList(String contentType, String body, boolean root)
+    {
+        String boundary = getParameter(contentType, "boundary");
+
+        if (boundary == null)
+        {
+            logger.error("no boundary in multipart content: " + contentType);
+            return false;
+        }
+
+        List<Part> parts = splitParts(body, boundary);
+
+        if (parts.isEmpty())
+        {
+            logger.error("no parts in multipart content");
+            return false;
+        }
+
+        // the root part is given by the start parameter or is the first one
+        String start = trimAngleBrackets(getParameter(contentType, "start"));
+        Part rlmiPart = parts.get(0);
+        Map<String, Part> partsByID = new HashMap<String, Part>();
+
+        for (Part part : parts)
+        {
+            if (part.id != null)
+            {
+                partsByID.put(part.id, part);
+                if (part.id.equals(start))
+                    rlmiPart = part;
+            }
+        }
+
+        if (!RLMI_XML.equalsIgnoreCase(getMediaType(rlmiPart.contentType)))
+        {
+            logger.error("the root part is not RLMI: " + rlmiPart.contentType);
+            return false;
+        }
+
+        Document doc;
+        try
+        {
+            doc = XMLUtils.createDocument(rlmiPart.decodeBody());
+        }
+        catch (Exception ex)
+        {
+            logger.error("can't parse the RLMI document", ex);
+            return false;
+        }
+
+        Element list = doc.getDocumentElement();
+
+        if (list == null || !LIST_ELEMENT.equals(list.getLocalName()))
+        {
+            logger.error("no list element in the RLMI document");
+            return false;
+        }
+
+        if (root)
+        {
+            uri = list.getAttribute(URI_ATTRIBUTE);
+            fullState
+                = Boolean.parseBoolean(
+                        list.getAttribute(FULL_STATE_ATTRIBUTE));
+            try
+            {
+                version
+                    = Integer.parseInt(list.getAttribute(VERSION_ATTRIBUTE));
+            }
+            catch (NumberFormatException ex)
+            {
+                logger.warn("invalid RLMI version", ex);
+            }
+        }
+
+        NodeList resourceList
+            = list.getElementsByTagNameNS(ANY_NS, RESOURCE_ELEMENT);
+
+        for (int i = 0; i < resourceList.getLength(); i++)
+        {
+            Element resource = (Element) resourceList.item(i);
+            String resourceUri = resource.getAttribute(URI_ATTRIBUTE);
+
+            if (resourceUri.length() == 0)
+                continue;
+
+            Element instance = getInstance(resource);
+
+            if (instance == null)
+            {
+                // no instance means the subscription is pending
+                resources.add(new Resource(resourceUri, null, null, null));
+                continue;
+            }
+
+            String state = instance.getAttribute(STATE_ATTRIBUTE);
+            String reason = instance.getAttribute(REASON_ATTRIBUTE);
+            String cid
+                = trimAngleBrackets(instance.getAttribute(CID_ATTRIBUTE));
+            Part part = partsByID.get(cid);
+
+            if (part != null
+                    && MULTIPART_RELATED.equalsIgnoreCase(
+                            getMediaType(part.contentType)))
+            {
+                // a nested list
+                parseList(part.contentType, part.body, false);
+                continue;
+            }
+
+            resources.add(
+                new Resource(
+                    resourceUri,
+                    state,
+                    (reason.length() == 0) ? null : reason,
+                    (part == null) ? null : part.decodeBody()));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the instance of a resource to take the state of, the first
+     * active one if any.
+     *
+     * @param resource the resource
+     * @return the instance of <tt>resource</tt> or <tt>null</tt> if it has
+     * none
+     */
+    private static Element getInstance(Element resource)
+    {
+        NodeList instances
+            = resource.getElementsByTagNameNS(ANY_NS, INSTANCE_ELEMENT);
+        Element first = null;
+
+        for (int i = 0; i < instances.getLength(); i++)
+        {
+            Element instance = (Element) instances.item(i);
+
+            if (ACTIVE.equals(instance.getAttribute(STATE_ATTRIBUTE)))
+                return instance;
+            if (first == null)
+                first = instance;
+        }
+        return first;
+    }
+
+    /**
+     * Splits a multipart body into its parts.
+     *
+     * @param body the multipart body
+     * @param boundary the boundary of the parts
+     * @return the parts of <tt>body</tt>
+     */
+    private static List<Part> splitParts(String body, String boundary)
+    {
+        List<Part> parts = new ArrayList<Part>();
+        String delimiter = "--" + boundary;
+        int index = body.indexOf(delimiter);
+
+        while (index != -1)
+        {
+            int partStart = index + delimiter.length();
+
+            // the close delimiter
+            if (body.startsWith("--", partStart))
+                break;
+
+            int next = body.indexOf(delimiter, partStart);
+
+            if (next == -1)
+                break;
+
+            // the line break before a delimiter belongs to the delimiter
+            int partEnd = next;
+            if (partEnd > 0 && body.charAt(partEnd - 1) == '\n')
+                partEnd--;
+            if (partEnd > 0 && body.charAt(partEnd - 1) == '\r')
+                partEnd--;
+
+            Part part = parsePart(body.substring(partStart, partEnd));
+
+            if (part != null)
+                parts.add(part);
+            index = next;
+        }
+        return parts;
+    }
+
+    /**
+     * Decodes the headers and the body of a part.
+     *
+     * @param part the part, starting with the end of the line of its
+     * delimiter
+     * @return the decoded part or <tt>null</tt> if it has no body
+     */
+    private static Part parsePart(String part)
+    {
+        // skip the rest of the delimiter line
+        int lineStart = part.indexOf('\n');
+
+        if (lineStart == -1)
+            return null;
+        lineStart++;
+
+        Part result = new Part();
+
+        while (lineStart < part.length())
+        {
+            int lineEnd = part.indexOf('\n', lineStart);
+
+            if (lineEnd == -1)
+                lineEnd = part.length();
+
+            String line = part.substring(lineStart, lineEnd).trim();
+
+            lineStart = lineEnd + 1;
+
+            // an empty line separates the headers from the body
+            if (line.length() == 0)
+            {
+                result.body
+                    = (lineStart < part.length())
+                        ? part.substring(lineStart)
+                        : "";
+                return result;
+            }
+
+            int colon = line.indexOf(':');
+
+            if (colon == -1)
+                continue;
+
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+
+            if (name.equalsIgnoreCase("Content-Type"))
+                result.contentType = value;
+            else if (name.equalsIgnoreCase("Content-ID"))
+                result.id = trimAngleBrackets(value);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the media type of a content type, without its parameters.
+     *
+     * @param contentType the content type
+     * @return the media type of <tt>contentType</tt>
+     */
+    private static String getMediaType(String contentType)
+    {
+        if (contentType == null)
+            return null;
+
+        int semicolon = contentType.indexOf(';');
+
+        return ((semicolon == -1)
+                ? contentType
+                : contentType.substring(0, semicolon)).trim();
+    }
+
+    /**
+     * Returns the value of a parameter of a content type.
+     *
+     * @param contentType the content type
+     * @param name the name of the parameter
+     * @return the value of the parameter, without quotes, or <tt>null</tt> if
+     * <tt>contentType</tt> has no such parameter
+     */
+    static String getParameter(String contentType, String name)
+    {
+        if (contentType == null)
+            return null;
+
+        String[] params = contentType.split(";");
+
+        for (int i = 1; i < params.length; i++)
+        {
+            int equals = params[i].indexOf('=');
+
+            if (equals == -1
+                    || !params[i].substring(0, equals).trim()
+                            .equalsIgnoreCase(name))
+                continue;
+
+            String value = params[i].substring(equals + 1).trim();
+
+            if (value.length() > 1
+                    && value.startsWith("\"")
+                    && value.endsWith("\""))
+                value = value.substring(1, value.length() - 1);
+            return value;
+        }
+        return null;
+    }
+
+    /**
+     * Decodes bytes with a charset, or with UTF-8 if the charset is not
+     * supported.
+     *
+     * @param bytes the bytes
+     * @param charset the name of the charset
+     * @return the decoded bytes
+     */
+    private static String decode(byte[] bytes, String charset)
+    {
+        try
+        {
+            return new String(bytes, charset);
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            logger.warn("unsupported charset " + charset + ", using "
+                + DEFAULT_CHARSET);
+        }
+
+        try
+        {
+            return new String(bytes, DEFAULT_CHARSET);
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            // UTF-8 is always supported
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Removes the angle brackets around a Content-ID and the "cid:" scheme of
+     * a reference to it.
+     *
+     * @param id the Content-ID or reference
+     * @return <tt>id</tt> without its angle brackets
+     */
+    private static String trimAngleBrackets(String id)
+    {
+        if (id == null)
+            return null;
+
+        id = id.trim();
+        if (id.startsWith("<") && id.endsWith(">"))
+            id = id.substring(1, id.length() - 1);
+        if (id.regionMatches(true, 0, "cid:", 0, 4))
+            id = id.substring(4);
+        return id;
+    }
+
+    /**
+     * A part of a multipart body.
+     */
+    private static class Part
+    {
+        /**
+         * The Content-ID of the part, without angle brackets.
+         */
+        String id;
+
+        /**
+         * The content type of the part.
+         */
+        String contentType;
+
+        /**
+         * The body of the part, one char per byte as split from the
+         * multipart body.
+         */
+        String body;
+
+        /**
+         * Decodes the body of the part with the charset of its content
+         * type, or UTF-8 if it has none.
+         *
+         * @return the decoded body
+         */
+        String decodeBody()
+        {
+            String charset = getParameter(contentType, "charset");
+            byte[] bytes;
+
+            try
+            {
+                bytes = body.getBytes(RAW_CHARSET);
+            }
+            catch (UnsupportedEncodingException ex)
+            {
+                // ISO-8859-1 is always supported
+                throw new RuntimeException(ex);
+            }
+            return decode(bytes, (charset == null) ? DEFAULT_CHARSET : charset);
+        }
+    }
+
+    /**
+     * The state of a resource of a list.
+     */
+    public static class Resource
+    {
+        /**
+         * The URI of the resource.
+         */
+        private final String uri;
+
+        /**
+         * The state of the subscription to the resource.
+         */
+        private final String state;
+
+        /**
+         * The reason of the termination of the subscription to the resource.
+         */
+        private final String reason;
+
+        /**
+         * The notification body of the resource.
+         */
+        private final String body;
+
+        /**
+         * Creates the state of a resource.
+         *
+         * @param uri the URI of the resource
+         * @param state the state of the subscription to the resource or
+         * <tt>null</tt> if it is pending
+         * @param reason the reason of the termination of the subscription or
+         * <tt>null</tt>
+         * @param body the notification body of the resource or <tt>null</tt>
+         * if the notification has none
+         */
+        Resource(String uri, String state, String reason, String body)
+        {
+            this.uri = uri;
+            this.state = state;
+            this.reason = reason;
+            this.body = body;
+        }
+
+        /**
+         * Returns the URI of the resource.
+         *
+         * @return the URI of the resource
+         */
+        public String getUri()
+        {
+            return uri;
+        }
+
+        /**
+         * Returns the state of the subscription to the resource.
+         *
+         * @return the state of the subscription or <tt>null</tt> if it is
+         * pending
+         */
+        public String getState()
+        {
+            return state;
+        }
+
+        /**
+         * Returns the reason of the termination of the subscription to the
+         * resource.
+         *
+         * @return the reason of the termination or <tt>null</tt>
+         */
+        public String getReason()
+        {
+            return reason;
+        }
+
+        /**
+         * Returns the notification body of the resource.
+         *
+         * @return the notification body or <tt>null</tt> if the notification
+         * has none
+         */
+        public String getBody()
+        {
+            return body;
+        }
+    }
+}
@@ -20,6 +20,7 @@ import javax.sip.address.*;
 import javax.sip.header.*;
 import javax.sip.message.*;
 
+import net.java.sip.communicator.impl.protocol.sip.net.*;
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
 import net.java.sip.communicator.util.*;
@@ -473,6 +474,18 @@ public class SipRegistrarConnection
                         + sipProvider.getAccountID().getDisplayName()
                         + " registered!");
 
+            // only the first registration through an address tells
+            // whether its family works
+            ProxyConnection connection = sipProvider.getConnection();
+
+            if(!getRegistrationState().equals(RegistrationState.REGISTERED)
+                && connection != null
+                && connection.getAddress() != null)
+            {
+                HappyEyeballs.recordSuccess(
+                    connection.getAddress().getAddress());
+            }
+
             setRegistrationState(
                 RegistrationState.REGISTERED
                 , RegistrationStateChangeEvent.REASON_NOT_SPECIFIED
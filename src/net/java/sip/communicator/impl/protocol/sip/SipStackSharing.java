@@ -12,6 +12,7 @@ import gov.nist.javax.sip.stack.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import javax.sip.*;
 import javax.sip.address.*;
@@ -74,12 +75,50 @@ public class SipStackSharing
 
     /**
      * The candidate recipients to choose from when dispatching messages
-     * received from one the JAIN-SIP <tt>SipProvider</tt>-s. for thread safety
-     * issues reasons, better iterate on a copy of that set using
-     * <tt>getSipListeners()</tt>.
+     * received from one the JAIN-SIP <tt>SipProvider</tt>-s. Requests are
+     * dispatched with the <tt>dispatchIndex</tt> built from this set.
      */
     private final Set<ProtocolProviderServiceSipImpl> listeners
-        = new HashSet<ProtocolProviderServiceSipImpl>();
+        = new LinkedHashSet<ProtocolProviderServiceSipImpl>();
+
+    /**
+     * The index of the <tt>listeners</tt> used to dispatch new requests,
+     * replaced whenever the <tt>listeners</tt> or their registrations change.
+     */
+    private volatile RequestDispatchIndex dispatchIndex
+        = new RequestDispatchIndex(
+                Collections.<ProtocolProviderServiceSipImpl>emptySet());
+
+    /**
+     * Updates the <tt>dispatchIndex</tt> when the registration of one of the
+     * <tt>listeners</tt> changes, as the address of record it is indexed by
+     * may change with it.
+     */
+    private final RegistrationStateChangeListener registrationListener
+        = new RegistrationStateChangeListener()
+        {
+            public void registrationStateChanged(
+                    RegistrationStateChangeEvent evt)
+            {
+                synchronized (listeners)
+                {
+                    if (listeners.contains(evt.getProvider()))
+                        updateDispatchIndex();
+                }
+            }
+        };
+
+    /**
+     * The number of requests dispatched to an arbitrary one of several
+     * accounts with the user name of the Request-URI.
+     */
+    private final AtomicLong ambiguousDispatchCount = new AtomicLong();
+
+    /**
+     * The number of requests dispatched to an arbitrary account because no
+     * account has the user name of the Request-URI.
+     */
+    private final AtomicLong unknownUserDispatchCount = new AtomicLong();
 
     /**
      * The property indicating the preferred UDP and TCP
@@ -159,7 +198,10 @@ public class SipStackSharing
         {
             if(this.listeners.size() == 0)
                 startListening();
-            this.listeners.add(listener);
+            if (this.listeners.add(listener))
+                listener.addRegistrationStateChangeListener(
+                    registrationListener);
+            updateDispatchIndex();
             if (logger.isTraceEnabled())
                 logger.trace(this.listeners.size() + " listeners now");
         }
@@ -176,7 +218,10 @@ public class SipStackSharing
     {
         synchronized(this.listeners)
         {
-            this.listeners.remove(listener);
+            if (this.listeners.remove(listener))
+                listener.removeRegistrationStateChangeListener(
+                    registrationListener);
+            updateDispatchIndex();
 
             int listenerCount = listeners.size();
             if (logger.isTraceEnabled())
@@ -187,16 +232,36 @@ public class SipStackSharing
     }
 
     /**
-     * Returns a copy of the <tt>listeners</tt> (= candidate recipients) set.
+     * Rebuilds the <tt>dispatchIndex</tt> from the <tt>listeners</tt>. Must
+     * be called while holding the lock of the <tt>listeners</tt>.
+     */
+    private void updateDispatchIndex()
+    {
+        dispatchIndex = new RequestDispatchIndex(listeners);
+    }
+
+    /**
+     * Returns the number of requests which were dispatched to an arbitrary
+     * one of several accounts with the user name of their Request-URI,
+     * because neither the custom parameter of the contact address nor the
+     * host of the To header told the accounts apart.
      *
-     * @return a copy of the <tt>listeners</tt> set.
+     * @return the number of ambiguous dispatches
      */
-    private Set<ProtocolProviderServiceSipImpl> getSipListeners()
+    public long getAmbiguousDispatchCount()
     {
-        synchronized(this.listeners)
-        {
-            return new HashSet<ProtocolProviderServiceSipImpl>(this.listeners);
-        }
+        return ambiguousDispatchCount.get();
+    }
+
+    /**
+     * Returns the number of requests which were dispatched to an arbitrary
+     * account because no account has the user name of their Request-URI.
+     *
+     * @return the number of dispatches of requests for unknown users
+     */
+    public long getUnknownUserDispatchCount()
+    {
+        return unknownUserDispatchCount.get();
     }
 
     /**
@@ -832,173 +897,207 @@ public class SipStackSharing
             return null;
         }
 
-        List<ProtocolProviderServiceSipImpl> currentListenersCopy
-            = new ArrayList<ProtocolProviderServiceSipImpl>(
-                                this.getSipListeners());
-
-        // Let's first narrow down candidate choice by comparing
-        // addresses and ports (no point in delivering to a provider with a
-        // non matching IP address  since they will reject it anyway).
-        filterByAddress(currentListenersCopy, request);
+        URI requestURI = request.getRequestURI();
 
-        if(currentListenersCopy.size() == 0)
+        if(!requestURI.isSipURI())
         {
-            logger.error("no listeners");
+            logger.error("Request-URI is not a SIP URI, dropping");
             return null;
         }
 
-        URI requestURI = request.getRequestURI();
+        RequestDispatchIndex index = this.dispatchIndex;
+        String requestUser = ((SipURI) requestURI).getUser();
 
-        if(requestURI.isSipURI())
+        // check if the Request-URI username is one of ours usernames, among
+        // the providers with a matching address and port (no point in
+        // delivering to a provider with a non matching IP address since they
+        // will reject it anyway).
+        List<ProtocolProviderServiceSipImpl> candidates
+            = filterByAddress(index.getByUser(requestUser), request);
+
+        // the perfect match
+        // every other case is approximation
+        if(candidates.size() == 1)
         {
-            String requestUser = ((SipURI) requestURI).getUser();
+            ProtocolProviderServiceSipImpl perfectMatch = candidates.get(0);
 
-            List<ProtocolProviderServiceSipImpl> candidates =
-                new ArrayList<ProtocolProviderServiceSipImpl>();
+            if (logger.isTraceEnabled())
+                logger.trace("Will dispatch to \""
+                        + perfectMatch.getAccountID() + "\"");
+            return perfectMatch;
+        }
 
-            // check if the Request-URI username is
-            // one of ours usernames
-            for(ProtocolProviderServiceSipImpl listener : currentListenersCopy)
+        // more than one account match
+        if(candidates.size() > 1)
+        {
+            // check if a custom param exists in the contact
+            // address (set for registrar accounts)
+            String hostValue = ((SipURI) requestURI).getParameter(
+                    SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
+            if (hostValue != null)
             {
-                String ourUserID = listener.getAccountID().getUserID();
-                //logger.trace(ourUserID + " *** " + requestUser);
-                if(ourUserID.equals(requestUser))
+                ProtocolProviderServiceSipImpl candidate
+                    = findCandidate(
+                        index.getByCustomParam(requestUser, hostValue),
+                        candidates);
+
+                if (candidate != null)
                 {
                     if (logger.isTraceEnabled())
-                        logger.trace("suitable candidate found: "
-                                + listener.getAccountID());
-                    candidates.add(listener);
+                        logger.trace("Will dispatch to \""
+                                + candidate.getAccountID() + "\" because "
+                                + "\" the custom param was set");
+                    return candidate;
                 }
             }
 
-            // the perfect match
-            // every other case is approximation
-            if(candidates.size() == 1)
-            {
-                ProtocolProviderServiceSipImpl perfectMatch = candidates.get(0);
+            // Past this point, our guess is not reliable. We try to find
+            // the "least worst" match based on parameters like the To field
 
-                if (logger.isTraceEnabled())
-                    logger.trace("Will dispatch to \""
-                            + perfectMatch.getAccountID() + "\"");
-                return perfectMatch;
-            }
-
-            // more than one account match
-            if(candidates.size() > 1)
+            // check if the To header field host part
+            // matches any of our SIP hosts
+            URI fromURI = ((FromHeader) request
+                    .getHeader(FromHeader.NAME)).getAddress().getURI();
+            URI toURI = ((ToHeader) request
+                    .getHeader(ToHeader.NAME)).getAddress().getURI();
+            if(fromURI.isSipURI() && toURI.isSipURI())
             {
-                // check if a custom param exists in the contact
-                // address (set for registrar accounts)
-                for (ProtocolProviderServiceSipImpl candidate : candidates)
+                String toHost = ((SipURI) toURI).getHost();
+                ProtocolProviderServiceSipImpl candidate
+                    = findCandidate(
+                        index.getByHost(requestUser, toHost),
+                        candidates);
+
+                // the address of the accounts without a registrar depends
+                // on the destination
+                for (int i = 0; candidate == null && i < candidates.size(); i++)
                 {
-                    String hostValue = ((SipURI) requestURI).getParameter(
-                            SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
-                    if (hostValue == null)
+                    if (index.isHostIndexed(candidates.get(i)))
                         continue;
-                    if (hostValue.equals(candidate
-                                .getContactAddressCustomParamValue()))
-                    {
-                        if (logger.isTraceEnabled())
-                            logger.trace("Will dispatch to \""
-                                    + candidate.getAccountID() + "\" because "
-                                    + "\" the custom param was set");
-                        return candidate;
-                    }
-                }
-
-                // Past this point, our guess is not reliable. We try to find
-                // the "least worst" match based on parameters like the To field
 
-                // check if the To header field host part
-                // matches any of our SIP hosts
-                for(ProtocolProviderServiceSipImpl candidate : candidates)
-                {
-                    URI fromURI = ((FromHeader) request
-                            .getHeader(FromHeader.NAME)).getAddress().getURI();
-                    if(fromURI.isSipURI() == false)
-                        continue;
-                    SipURI ourURI = (SipURI) candidate
+                    SipURI ourURI = (SipURI) candidates.get(i)
                         .getOurSipAddress((SipURI) fromURI).getURI();
-                    String ourHost = ourURI.getHost();
-
-                    URI toURI = ((ToHeader) request
-                            .getHeader(ToHeader.NAME)).getAddress().getURI();
-                    if(toURI.isSipURI() == false)
-                        continue;
-                    String toHost = ((SipURI) toURI).getHost();
 
-                    //logger.trace(toHost + "***" + ourHost);
-                    if(toHost.equals(ourHost))
-                    {
-                        if (logger.isTraceEnabled())
-                            logger.trace("Will dispatch to \""
-                                    + candidate.getAccountID() + "\" because "
-                                    + "host in the To: is the same as in our AOR");
-                        return candidate;
-                    }
+                    if(toHost.equals(ourURI.getHost()))
+                        candidate = candidates.get(i);
                 }
 
-                // fallback on the first candidate
-                ProtocolProviderServiceSipImpl target =
-                    candidates.iterator().next();
-                logger.info("Will randomly dispatch to \""
-                        + target.getAccountID()
-                        + "\" because there is ambiguity on the username from"
-                        + " the Request-URI");
-                if (logger.isTraceEnabled())
-                    logger.trace("\n" + request);
-                return target;
+                if (candidate != null)
+                {
+                    if (logger.isTraceEnabled())
+                        logger.trace("Will dispatch to \""
+                                + candidate.getAccountID() + "\" because "
+                                + "host in the To: is the same as in our AOR");
+                    return candidate;
+                }
             }
 
-            // fallback on any account
-            ProtocolProviderServiceSipImpl target =
-                currentListenersCopy.iterator().next();
-            if (logger.isDebugEnabled())
-                logger.debug("Will randomly dispatch to \"" + target
-                        .getAccountID()
-                        + "\" because the username in the Request-URI "
-                        + "is unknown or empty");
+            // fallback on the first candidate
+            ProtocolProviderServiceSipImpl target = candidates.get(0);
+            ambiguousDispatchCount.incrementAndGet();
+            logger.info("Will randomly dispatch to \""
+                    + target.getAccountID()
+                    + "\" because there is ambiguity on the username from"
+                    + " the Request-URI");
             if (logger.isTraceEnabled())
                 logger.trace("\n" + request);
             return target;
         }
-        else
+
+        // fallback on any account
+        ProtocolProviderServiceSipImpl target = null;
+        for (ProtocolProviderServiceSipImpl listener : index.getProviders())
         {
-            logger.error("Request-URI is not a SIP URI, dropping");
+            if (isFromSameConnection(listener, request))
+            {
+                target = listener;
+                break;
+            }
         }
-        return null;
+
+        if(target == null)
+        {
+            logger.error("no listeners");
+            return null;
+        }
+
+        unknownUserDispatchCount.incrementAndGet();
+        if (logger.isDebugEnabled())
+            logger.debug("Will randomly dispatch to \"" + target
+                    .getAccountID()
+                    + "\" because the username in the Request-URI "
+                    + "is unknown or empty");
+        if (logger.isTraceEnabled())
+            logger.trace("\n" + request);
+        return target;
     }
 
     /**
-     * Removes from the specified list of candidates providers connected to a
-     * registrar that does not match the IP address that we are receiving a
-     * request from.
+     * Returns the first of the specified providers which is also one of the
+     * candidates.
      *
-     * @param candidates the list of providers we've like to filter.
-     * @param request the request that we are currently dispatching
+     * @param providers the providers found in the dispatch index
+     * @param candidates the candidates left after filtering
+     * @return the first of <tt>providers</tt> which is one of
+     * <tt>candidates</tt> or <tt>null</tt> if there is none
      */
-    private void filterByAddress(
-                    List<ProtocolProviderServiceSipImpl> candidates,
-                    Request                              request)
+    private static ProtocolProviderServiceSipImpl findCandidate(
+                    ProtocolProviderServiceSipImpl[]     providers,
+                    List<ProtocolProviderServiceSipImpl> candidates)
     {
-        Iterator<ProtocolProviderServiceSipImpl> iterPP = candidates.iterator();
-        while (iterPP.hasNext())
+        for (ProtocolProviderServiceSipImpl provider : providers)
         {
-            ProtocolProviderServiceSipImpl candidate = iterPP.next();
+            if (candidates.contains(provider))
+                return provider;
+        }
+        return null;
+    }
 
-            if(candidate.getRegistrarConnection() == null)
-            {
-                //RegistrarLess connections are ok
-                continue;
-            }
+    /**
+     * Returns the providers among the specified ones which are not connected
+     * to a registrar that does not match the IP address that we are
+     * receiving a request from.
+     *
+     * @param providers the providers we've like to filter.
+     * @param request the request that we are currently dispatching
+     * @return the providers which may receive <tt>request</tt>
+     */
+    private List<ProtocolProviderServiceSipImpl> filterByAddress(
+                    ProtocolProviderServiceSipImpl[] providers,
+                    Request                          request)
+    {
+        List<ProtocolProviderServiceSipImpl> candidates
+            = new ArrayList<ProtocolProviderServiceSipImpl>(providers.length);
 
-            if (   !candidate.getRegistrarConnection().isRegistrarless()
-                && !candidate.getRegistrarConnection()
-                        .isRequestFromSameConnection(request))
-            {
-                iterPP.remove();
-            }
+        for (ProtocolProviderServiceSipImpl candidate : providers)
+        {
+            if (isFromSameConnection(candidate, request))
+                candidates.add(candidate);
         }
+        return candidates;
+    }
+
+    /**
+     * Determines whether a request may be dispatched to a provider, which is
+     * the case unless the provider is connected to a registrar that does not
+     * match the IP address that we are receiving the request from.
+     *
+     * @param candidate the provider
+     * @param request the request that we are currently dispatching
+     * @return <tt>true</tt> if <tt>request</tt> may be dispatched to
+     * <tt>candidate</tt>
+     */
+    private static boolean isFromSameConnection(
+                    ProtocolProviderServiceSipImpl candidate,
+                    Request                        request)
+    {
+        SipRegistrarConnection registrarConnection
+            = candidate.getRegistrarConnection();
 
+        //RegistrarLess connections are ok
+        return registrarConnection == null
+            || registrarConnection.isRegistrarless()
+            || registrarConnection.isRequestFromSameConnection(request);
     }
 
     /**
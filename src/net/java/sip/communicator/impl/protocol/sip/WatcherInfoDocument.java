@@ -0,0 +1,234 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+import javax.xml.stream.*;
+
+/**
+ * The parts of a watcher information document (RFC 3858) which
+ * <tt>OperationSetPresenceSipImpl</tt> interprets, decoded with a pull
+ * parser like the {@link PidfDocument}s.
+ */
+class WatcherInfoDocument
+{
+    // watcherinfo elements and attributes
+    private static final String WATCHERINFO_ELEMENT = "watcherinfo";
+    private static final String STATE_ATTRIBUTE = "state";
+    private static final String VERSION_ATTRIBUTE = "version";
+    private static final String WATCHERLIST_ELEMENT = "watcher-list";
+    private static final String RESOURCE_ATTRIBUTE = "resource";
+    private static final String PACKAGE_ATTRIBUTE = "package";
+    private static final String WATCHER_ELEMENT = "watcher";
+    private static final String STATUS_ATTRIBUTE = "status";
+
+    /**
+     * The <tt>state</tt> attribute of the document, full or partial.
+     */
+    private String state;
+
+    /**
+     * The <tt>version</tt> attribute of the document.
+     */
+    private String version;
+
+    /**
+     * The watcher lists of the document.
+     */
+    private final List<WatcherList> watcherLists = new ArrayList<WatcherList>();
+
+    /**
+     * Decodes a watcher information document.
+     *
+     * @param document the watcher information document
+     * @return the decoded document or <tt>null</tt> if <tt>document</tt> has
+     * no watcherinfo element
+     * @throws XMLStreamException if <tt>document</tt> is not well formed
+     */
+    static WatcherInfoDocument parse(String document)
+        throws XMLStreamException
+    {
+        XMLStreamReader reader = PidfDocument.createReader(document);
+
+        try
+        {
+            while (reader.hasNext())
+            {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT
+                        && WATCHERINFO_ELEMENT.equals(reader.getLocalName()))
+                {
+                    WatcherInfoDocument watcherInfo = new WatcherInfoDocument();
+
+                    watcherInfo.parseWatcherInfo(reader);
+                    return watcherInfo;
+                }
+            }
+            return null;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns the <tt>state</tt> attribute of the document.
+     *
+     * @return the <tt>state</tt> attribute or <tt>null</tt>
+     */
+    String getState()
+    {
+        return state;
+    }
+
+    /**
+     * Returns the <tt>version</tt> attribute of the document.
+     *
+     * @return the <tt>version</tt> attribute or <tt>null</tt>
+     */
+    String getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Returns the first watcher list of a resource.
+     *
+     * @param resource the URI of the resource
+     * @return the first watcher list of <tt>resource</tt> or <tt>null</tt>
+     * if there is none
+     */
+    WatcherList getWatcherList(String resource)
+    {
+        for (WatcherList watcherList : watcherLists)
+        {
+            if (resource.equals(watcherList.resource))
+                return watcherList;
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the watcherinfo element the reader is positioned at.
+     *
+     * @param reader the reader
+     * @throws XMLStreamException if the document is not well formed
+     */
+    private void parseWatcherInfo(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        state = reader.getAttributeValue(null, STATE_ATTRIBUTE);
+        version = reader.getAttributeValue(null, VERSION_ATTRIBUTE);
+
+        WatcherList watcherList = null;
+        int watcherListDepth = -1;
+        int depth = 1;
+
+        while (depth > 0)
+        {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.END_ELEMENT)
+            {
+                if (depth == watcherListDepth)
+                {
+                    watcherListDepth = -1;
+                    watcherList = null;
+                }
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            String name = reader.getLocalName();
+
+            if (WATCHER_ELEMENT.equals(name) && watcherList != null)
+            {
+                String status
+                    = reader.getAttributeValue(null, STATUS_ATTRIBUTE);
+
+                watcherList.watchers.add(
+                    new Watcher(status, PidfDocument.readText(reader)));
+                continue;
+            }
+
+            depth++;
+            if (WATCHERLIST_ELEMENT.equals(name) && watcherList == null)
+            {
+                watcherList
+                    = new WatcherList(
+                            reader.getAttributeValue(null, RESOURCE_ATTRIBUTE),
+                            reader.getAttributeValue(null, PACKAGE_ATTRIBUTE));
+                watcherLists.add(watcherList);
+                watcherListDepth = depth;
+            }
+        }
+    }
+
+    /**
+     * A watcher list of a watcher information document.
+     */
+    static class WatcherList
+    {
+        /**
+         * The URI of the watched resource.
+         */
+        final String resource;
+
+        /**
+         * The event package of the watcher list.
+         */
+        final String eventPackage;
+
+        /**
+         * The watchers of the resource.
+         */
+        final List<Watcher> watchers = new ArrayList<Watcher>();
+
+        /**
+         * Creates a watcher list.
+         *
+         * @param resource the URI of the watched resource
+         * @param eventPackage the event package of the watcher list
+         */
+        WatcherList(String resource, String eventPackage)
+        {
+            this.resource = resource;
+            this.eventPackage = eventPackage;
+        }
+    }
+
+    /**
+     * A watcher of a watcher list.
+     */
+    static class Watcher
+    {
+        /**
+         * The status of the subscription of the watcher.
+         */
+        final String status;
+
+        /**
+         * The URI of the watcher.
+         */
+        final String uri;
+
+        /**
+         * Creates a watcher.
+         *
+         * @param status the status of the subscription of the watcher
+         * @param uri the URI of the watcher
+         */
+        Watcher(String status, String uri)
+        {
+            this.status = status;
+            this.uri = uri;
+        }
+    }
+}
@@ -27,6 +27,7 @@ import org.apache.http.client.*;
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.*;
 import org.apache.http.impl.client.*;
+import org.apache.http.util.*;
 import org.osgi.framework.*;
 
 /**
@@ -95,6 +96,24 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     private CertificateService certificateVerification;
 
+    /**
+     * The HTTP client the requests of the current connection are executed
+     * with. It keeps its connection to the server alive between requests.
+     */
+    private DefaultHttpClient httpClient;
+
+    /**
+     * The object used to serialize the requests executed with
+     * {@link #httpClient}.
+     */
+    private final Object httpClientSyncRoot = new Object();
+
+    /**
+     * The cache of the documents of the current user or <tt>null</tt> if the
+     * client is not connected.
+     */
+    private XCapDocumentCache documentCache;
+
     /**
      * Creates an instance of this XCAP client.
      */
@@ -130,6 +149,7 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
         this.userAddress = (Address) userAddress.clone();
         this.username = username;
         this.password = password == null ? "" : password;
+        documentCache = XCapDocumentCache.load(uri, userAddress);
         connected = true;
     }
 
@@ -151,11 +171,23 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
         this.uri = null;
         this.userAddress = null;
         this.password = null;
+        documentCache = null;
         connected = false;
+
+        synchronized (httpClientSyncRoot)
+        {
+            if (httpClient != null)
+            {
+                httpClient.getConnectionManager().shutdown();
+                httpClient = null;
+            }
+        }
     }
 
     /**
-     * Gets the resource from the server.
+     * Gets the resource from the server. The resource is requested
+     * conditionally if it is cached, and the cached document is returned if
+     * the server reports it has not been modified.
      *
      * @param resourceId resource identifier.
      * @return the server response.
@@ -165,7 +197,44 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     public XCapHttpResponse get(XCapResourceId resourceId)
             throws XCapException
     {
-        return get(getResourceURI(resourceId));
+        URI resourceUri = getResourceURI(resourceId);
+        XCapDocumentCache cache = documentCache;
+
+        if (cache == null)
+            return get(resourceUri, null);
+
+        String key = resourceUri.toString();
+        XCapDocumentCache.Entry cached = cache.get(key);
+        XCapHttpResponse response
+            = get(resourceUri, (cached == null) ? null : cached.eTag);
+        int httpCode = response.getHttpCode();
+
+        if (httpCode == HttpStatus.SC_NOT_MODIFIED && cached != null)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Using the cached resource " + key);
+
+            response.setHttpCode(HttpStatus.SC_OK);
+            response.setContentType(cached.contentType);
+            response.setContent(cached.content);
+            response.setETag(cached.eTag);
+        }
+        else if (httpCode == HttpStatus.SC_OK)
+        {
+            if (response.getETag() != null && response.getContent() != null)
+            {
+                cache.put(
+                        key,
+                        response.getETag(),
+                        response.getContentType(),
+                        response.getContent());
+            }
+            else
+                cache.remove(key);
+        }
+        else if (httpCode == HttpStatus.SC_NOT_FOUND)
+            cache.remove(key);
+        return response;
     }
 
     /**
@@ -179,16 +248,29 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     protected XCapHttpResponse get(URI uri)
             throws XCapException
     {
-        DefaultHttpClient httpClient = null;
+        return get(uri, null);
+    }
+
+    /**
+     * Gets resource from the server, conditionally if an entity tag is
+     * given.
+     *
+     * @param uri the resource uri.
+     * @param eTag the entity tag of the cached resource or <tt>null</tt>.
+     * @return the server response.
+     * @throws XCapException if there is error during reading the resource's
+     *                       content.
+     */
+    private XCapHttpResponse get(URI uri, String eTag)
+            throws XCapException
+    {
         try
         {
-            httpClient = createHttpClient();
-
             HttpGet getMethod = new HttpGet(uri);
-            getMethod.setHeader("Connection", "close");
+            if (eTag != null)
+                getMethod.setHeader(HEADER_IF_NONE_MATCH, eTag);
 
-            HttpResponse response = httpClient.execute(getMethod);
-            XCapHttpResponse result = createResponse(response);
+            XCapHttpResponse result = execute(getMethod);
             if (logger.isDebugEnabled())
             {
                 byte[] contentBytes = result.getContent();
@@ -227,11 +309,6 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             showError(e, null, errorMessage);
             throw new XCapException(errorMessage, e);
         }
-        finally
-        {
-            if(httpClient != null)
-                httpClient.getConnectionManager().shutdown();
-        }
     }
 
     /**
@@ -276,14 +353,10 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     public XCapHttpResponse put(XCapResource resource)
             throws XCapException
     {
-        DefaultHttpClient httpClient = null;
         try
         {
-            httpClient = createHttpClient();
-
             URI resourceUri = getResourceURI(resource.getId());
             HttpPut putMethod = new HttpPut(resourceUri);
-            putMethod.setHeader("Connection", "close");
             StringEntity stringEntity = new StringEntity(resource.getContent());
             stringEntity.setContentType(resource.getContentType());
             stringEntity.setContentEncoding("UTF-8");
@@ -298,8 +371,9 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                 );
                 logger.debug(logMessage);
             }
-            HttpResponse response = httpClient.execute(putMethod);
-            return createResponse(response);
+            XCapHttpResponse response = execute(putMethod);
+            updateDocumentCache(resource, response);
+            return response;
         }
         catch (IOException e)
         {
@@ -308,11 +382,6 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                     resource.getId().toString());
             throw new XCapException(errorMessage, e);
         }
-        finally
-        {
-            if(httpClient != null)
-                httpClient.getConnectionManager().shutdown();
-        }
     }
 
     /**
@@ -327,14 +396,10 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             throws XCapException
     {
         assertConnected();
-        DefaultHttpClient httpClient = null;
         try
         {
-            httpClient = createHttpClient();
-
             URI resourceUri = getResourceURI(resourceId);
             HttpDelete deleteMethod = new HttpDelete(resourceUri);
-            deleteMethod.setHeader("Connection", "close");
 
             if (logger.isDebugEnabled())
             {
@@ -344,8 +409,9 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                 );
                 logger.debug(logMessage);
             }
-            HttpResponse response = httpClient.execute(deleteMethod);
-            return createResponse(response);
+            XCapHttpResponse response = execute(deleteMethod);
+            updateDocumentCache(resourceId, null, response);
+            return response;
         }
         catch (IOException e)
         {
@@ -354,11 +420,72 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                     resourceId.toString());
             throw new XCapException(errorMessage, e);
         }
-        finally
+    }
+
+    /**
+     * Updates the document cache after a resource has been put to the
+     * server.
+     *
+     * @param resource the resource put to the server.
+     * @param response the server response.
+     * @throws IOException if the content of the resource cannot be encoded.
+     */
+    private void updateDocumentCache(
+            XCapResource resource,
+            XCapHttpResponse response)
+        throws IOException
+    {
+        XCapResourceId resourceId = resource.getId();
+        String node = resourceId.getNode();
+        int httpCode = response.getHttpCode();
+
+        if ((node == null || node.length() == 0)
+                && response.getETag() != null
+                && (httpCode == HttpStatus.SC_OK
+                    || httpCode == HttpStatus.SC_CREATED))
         {
-            if(httpClient != null)
-                httpClient.getConnectionManager().shutdown();
+            updateDocumentCache(
+                    resourceId,
+                    resource.getContent().getBytes("UTF-8"),
+                    response);
+        }
+        else
+            updateDocumentCache(resourceId, null, response);
+    }
+
+    /**
+     * Updates the document cache after a resource has been modified on the
+     * server. A whole document is cached with the entity tag the server
+     * returned, otherwise the cached document is invalidated.
+     *
+     * @param resourceId the identifier of the modified resource.
+     * @param content the new document or <tt>null</tt> to invalidate it.
+     * @param response the server response.
+     */
+    private void updateDocumentCache(
+            XCapResourceId resourceId,
+            byte[] content,
+            XCapHttpResponse response)
+    {
+        XCapDocumentCache cache = documentCache;
+
+        if (cache == null)
+            return;
+
+        String documentUri
+            = getResourceURI(new XCapResourceId(resourceId.getDocument()))
+                .toString();
+
+        if (content != null)
+        {
+            cache.put(
+                    documentUri,
+                    response.getETag(),
+                    response.getContentType(),
+                    content);
         }
+        else
+            cache.remove(documentUri);
     }
 
     /**
@@ -432,6 +559,36 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             null , null, uri.getHost(), credentialsProvider);
     }
 
+    /**
+     * Executes a request with the HTTP client of the current connection,
+     * creating it if necessary. The client is discarded if the request fails,
+     * so that the next one starts with a fresh connection.
+     *
+     * @param request the request.
+     * @return the XCAP response.
+     * @throws IOException if the request fails.
+     */
+    private XCapHttpResponse execute(HttpUriRequest request)
+            throws IOException
+    {
+        synchronized (httpClientSyncRoot)
+        {
+            if (httpClient == null)
+                httpClient = createHttpClient();
+
+            try
+            {
+                return createResponse(httpClient.execute(request));
+            }
+            catch (IOException e)
+            {
+                httpClient.getConnectionManager().shutdown();
+                httpClient = null;
+                throw e;
+            }
+        }
+    }
+
     /**
      * Creates XCAP response from HTTP response.
      * If HTTP code is 200, 201 or 409 the HTTP content would be read.
@@ -458,6 +615,11 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             xcapHttpResponse.setContent(content);
             xcapHttpResponse.setETag(eTag);
         }
+        else
+        {
+            // release the connection for the next request
+            EntityUtils.consume(response.getEntity());
+        }
         xcapHttpResponse.setHttpCode(statusCode);
         return xcapHttpResponse;
     }
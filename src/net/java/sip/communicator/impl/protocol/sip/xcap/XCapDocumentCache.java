@@ -0,0 +1,370 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.sip.xcap;
+
+import java.io.*;
+import java.net.URI;
+import java.util.*;
+
+import javax.sip.address.*;
+
+import net.java.sip.communicator.impl.protocol.sip.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * A persistent cache of the XCAP documents of an account together with their
+ * entity tags. The documents are revalidated with conditional requests, so
+ * the ones which have not changed since the last connection are not
+ * downloaded again.
+ * <p>
+ * The cache of an account is stored in a single file of the
+ * <tt>xcap</tt> directory in the user home. The file also records the XCAP
+ * server the documents came from and is discarded if the account is
+ * connected to another one.
+ */
+class XCapDocumentCache
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>XCapDocumentCache</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(XCapDocumentCache.class);
+
+    /**
+     * The name of the directory in which the caches are stored.
+     */
+    private static final String CACHE_DIR_NAME = "xcap";
+
+    /**
+     * The version of the format of the cache files.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The delimiter between the document and node selectors of the
+     * URIs of XCAP resources.
+     */
+    private static final String NODE_SELECTOR_DELIMITER = "/~~";
+
+    /**
+     * The URI of the XCAP server the cached documents come from.
+     */
+    private final String serverUri;
+
+    /**
+     * The file the cache is stored in or <tt>null</tt> if it is only kept in
+     * memory.
+     */
+    private final File file;
+
+    /**
+     * The failsafe transaction used to write {@link #file}.
+     */
+    private final FailSafeTransaction transaction;
+
+    /**
+     * The cached documents by the URIs of their resources.
+     */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Creates a cache.
+     *
+     * @param serverUri the URI of the XCAP server the documents come from
+     * @param file the file the cache is stored in or <tt>null</tt>
+     * @param transaction the failsafe transaction used to write <tt>file</tt>
+     */
+    private XCapDocumentCache(
+            String serverUri,
+            File file,
+            FailSafeTransaction transaction)
+    {
+        this.serverUri = serverUri;
+        this.file = file;
+        this.transaction = transaction;
+    }
+
+    /**
+     * Loads the cache of the documents of a user on an XCAP server. If the
+     * cache cannot be stored, the returned one is only kept in memory.
+     *
+     * @param serverUri the URI of the XCAP server
+     * @param userAddress the address of the user
+     * @return the cache of the documents of <tt>userAddress</tt>
+     */
+    static XCapDocumentCache load(URI serverUri, Address userAddress)
+    {
+        String server = serverUri.toString();
+        FileAccessService fileAccessService
+            = SipActivator.getFileAccessService();
+
+        if (fileAccessService == null)
+            return new XCapDocumentCache(server, null, null);
+
+        XCapDocumentCache cache;
+
+        try
+        {
+            File dir
+                = fileAccessService.getPrivatePersistentDirectory(
+                        CACHE_DIR_NAME);
+
+            if (!dir.exists() && !dir.mkdirs())
+            {
+                throw new IOException(
+                        "Failed to create directory: "
+                            + dir.getAbsolutePath());
+            }
+
+            File file
+                = new File(
+                        dir,
+                        getFileName(userAddress.getURI().toString()));
+            FailSafeTransaction transaction
+                = fileAccessService.createFailSafeTransaction(file);
+
+            cache = new XCapDocumentCache(server, file, transaction);
+            transaction.restoreFile();
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to open the XCAP document cache", e);
+            return new XCapDocumentCache(server, null, null);
+        }
+
+        if (cache.file.exists())
+        {
+            try
+            {
+                cache.read();
+            }
+            catch (IOException e)
+            {
+                logger.warn(
+                        "Discarding the XCAP document cache "
+                            + cache.file.getName(),
+                        e);
+                cache.entries.clear();
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the name of the cache file of a user.
+     *
+     * @param userUri the URI of the user
+     * @return the name of the cache file of <tt>userUri</tt>
+     */
+    private static String getFileName(String userUri)
+    {
+        StringBuilder name = new StringBuilder(userUri.length());
+
+        for (int i = 0; i < userUri.length(); i++)
+        {
+            char c = userUri.charAt(i);
+
+            if (Character.isLetterOrDigit(c)
+                    || c == '@' || c == '.' || c == '-')
+                name.append(c);
+            else
+                name.append('_');
+        }
+        return name.append(".cache").toString();
+    }
+
+    /**
+     * Returns the cached document of a resource.
+     *
+     * @param resourceUri the URI of the resource
+     * @return the cached document of <tt>resourceUri</tt> or <tt>null</tt> if
+     * it is not cached
+     */
+    synchronized Entry get(String resourceUri)
+    {
+        return entries.get(resourceUri);
+    }
+
+    /**
+     * Caches the document of a resource and stores the cache.
+     *
+     * @param resourceUri the URI of the resource
+     * @param eTag the entity tag of the document
+     * @param contentType the content type of the document
+     * @param content the document
+     */
+    synchronized void put(
+            String resourceUri,
+            String eTag,
+            String contentType,
+            byte[] content)
+    {
+        Entry entry = entries.get(resourceUri);
+
+        if (entry != null
+                && entry.eTag.equals(eTag)
+                && Arrays.equals(entry.content, content))
+            return;
+
+        entries.put(resourceUri, new Entry(eTag, contentType, content));
+        write();
+    }
+
+    /**
+     * Removes the cached document of a resource, and the cached parts of it,
+     * and stores the cache.
+     *
+     * @param documentUri the URI of the document
+     */
+    synchronized void remove(String documentUri)
+    {
+        String nodePrefix = documentUri + NODE_SELECTOR_DELIMITER;
+        boolean removed = false;
+
+        for (Iterator<String> i = entries.keySet().iterator(); i.hasNext();)
+        {
+            String resourceUri = i.next();
+
+            if (resourceUri.equals(documentUri)
+                    || resourceUri.startsWith(nodePrefix))
+            {
+                i.remove();
+                removed = true;
+            }
+        }
+        if (removed)
+            write();
+    }
+
+    /**
+     * Reads the cached documents from {@link #file}. Documents cached from
+     * another XCAP server are ignored.
+     *
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    private void read()
+        throws IOException
+    {
+        DataInputStream in
+            = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+
+        try
+        {
+            if (in.readInt() != FORMAT_VERSION
+                    || !serverUri.equals(in.readUTF()))
+                return;
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++)
+            {
+                String resourceUri = in.readUTF();
+                String eTag = in.readUTF();
+                String contentType = in.readUTF();
+                byte[] content = new byte[in.readInt()];
+
+                in.readFully(content);
+                entries.put(
+                        resourceUri,
+                        new Entry(eTag, contentType, content));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the cached documents into {@link #file}. Failures are logged,
+     * as the cache only saves downloads.
+     */
+    private void write()
+    {
+        if (file == null)
+            return;
+
+        try
+        {
+            transaction.beginTransaction();
+
+            DataOutputStream out
+                = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(file)));
+
+            try
+            {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(serverUri);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries.entrySet())
+                {
+                    Entry entry = e.getValue();
+
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(entry.eTag);
+                    out.writeUTF(entry.contentType);
+                    out.writeInt(entry.content.length);
+                    out.write(entry.content);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            transaction.commit();
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to store the XCAP document cache", e);
+        }
+        catch (IllegalStateException e)
+        {
+            logger.error("The XCAP document cache file is missing", e);
+        }
+    }
+
+    /**
+     * A cached XCAP document.
+     */
+    static class Entry
+    {
+        /**
+         * The entity tag of the document.
+         */
+        final String eTag;
+
+        /**
+         * The content type of the document.
+         */
+        final String contentType;
+
+        /**
+         * The document.
+         */
+        final byte[] content;
+
+        /**
+         * Creates a cached document.
+         *
+         * @param eTag the entity tag of the document
+         * @param contentType the content type of the document
+         * @param content the document
+         */
+        Entry(String eTag, String contentType, byte[] content)
+        {
+            this.eTag = eTag;
+            this.contentType = (contentType == null) ? "" : contentType;
+            this.content = content;
+        }
+    }
+}
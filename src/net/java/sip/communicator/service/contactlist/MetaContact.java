@@ -85,6 +85,16 @@ public interface MetaContact
      */
     public int getContactCount();
 
+    /**
+     * Returns the number of protocol specific <tt>Contact</tt>s that this
+     * <tt>MetaContact</tt> contains and which are online. The number is kept
+     * up to date as the contacts change their status and is cheap to query.
+     *
+     * @return an int indicating the number of online protocol specific
+     * contacts merged in this <tt>MetaContact</tt>
+     */
+    public int countOnlineContacts();
+
     /**
      * Returns all protocol specific Contacts, encapsulated by this MetaContact
      * and coming from the indicated ProtocolProviderService. If none of the
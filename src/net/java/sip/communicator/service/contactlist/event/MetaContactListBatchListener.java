@@ -0,0 +1,41 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.contactlist.event;
+
+/**
+ * A <tt>MetaContactListListener</tt> which receives the events of the meta
+ * contact list asynchronously, in batches, so that the thread changing the
+ * contact list, usually a protocol thread, does not wait for it.
+ * <p>
+ * The events of each batch listener are queued in the order they are fired
+ * and delivered by a thread of its own. While they wait in the queue, an
+ * event which only tells that a meta contact, a protocol contact or the order
+ * of a group has changed replaces the previous such event of the same source,
+ * which is then not delivered. The other events are all delivered, and the
+ * events of a source are always delivered in the order they were fired. The
+ * listeners must not expect the contact list to be in the state it was in
+ * when an event was fired, only in a later one.
+ * <p>
+ * The events taken from the queue at once are delivered between calls to
+ * {@link #eventBatchStarted()} and {@link #eventBatchEnded()}, which let the
+ * listener defer the work common to the events of the batch. When the
+ * contact list delivers its events synchronously, each event is a batch of
+ * its own.
+ */
+public interface MetaContactListBatchListener
+    extends MetaContactListListener
+{
+    /**
+     * Indicates that a batch of events is about to be delivered.
+     */
+    public void eventBatchStarted();
+
+    /**
+     * Indicates that all the events of the current batch have been delivered.
+     */
+    public void eventBatchEnded();
+}
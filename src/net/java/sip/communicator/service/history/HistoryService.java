@@ -25,11 +25,27 @@ public interface HistoryService {
     /**
      * Property and values used to be set in configuration
      * Used in implementation to cache every opened history document
-     * or not to cache them and to access them on every read
+     * or not to cache them and to access them on every read.
+     * The cache is always bounded, enabling it only raises the default
+     * value of {@link #CACHE_MAX_BYTES_PROPERTY}.
      */
     public static String CACHE_ENABLED_PROPERTY =
         "net.java.sip.communicator.service.history.CACHE_ENABLED";
 
+    /**
+     * The maximum estimated memory in bytes of the history documents kept
+     * in the cache shared by all histories. Zero disables the cache.
+     */
+    public static String CACHE_MAX_BYTES_PROPERTY =
+        "net.java.sip.communicator.service.history.CACHE_MAX_BYTES";
+
+    /**
+     * The maximum number of records in the history documents kept in the
+     * cache shared by all histories. Zero disables the cache.
+     */
+    public static String CACHE_MAX_RECORDS_PROPERTY =
+        "net.java.sip.communicator.service.history.CACHE_MAX_RECORDS";
+
     /**
      * Date format used in the XML history database.
      */
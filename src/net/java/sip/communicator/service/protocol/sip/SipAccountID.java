@@ -54,6 +54,13 @@ public class SipAccountID
      */
     public static final String OPT_CLIST_PASSWORD = "OPT_CLIST_PASSWORD";
 
+    /**
+     * The name of the property under which the user may specify the URI of a
+     * resource list (RFC 4662) holding the contacts, to subscribe to their
+     * presence with a single subscription.
+     */
+    public static final String RESOURCE_LIST_URI = "RESOURCE_LIST_URI";
+
     /**
      * Default properties prefix used in jitsi-defaults.properties file
      * for SIP protocol.
@@ -0,0 +1,419 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.dns.*;
+
+import org.xbill.DNS.*;
+
+/**
+ * The process-wide cache of the answers to the DNS queries of
+ * <tt>NetworkUtils</tt>.
+ * <p>
+ * Answers are kept for the smallest TTL of their records, and the
+ * nonexistence of a name or of records of a type for
+ * {@link #NEGATIVE_TTL} milliseconds. Concurrent identical queries share a
+ * single request to the resolver, so the registrations of many accounts on
+ * the same domain cost one lookup. The answers which are used more than once
+ * are prefetched in the background shortly before they expire.
+ * <p>
+ * The queries themselves are not cached by <tt>dnsjava</tt>, otherwise an
+ * answer could outlive its TTL by being cached twice.
+ */
+class DnsAnswerCache
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>DnsAnswerCache</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(DnsAnswerCache.class);
+
+    /**
+     * The maximum number of answers of the cache.
+     */
+    private static final int MAX_ENTRIES = 512;
+
+    /**
+     * The maximum time in milliseconds an answer is cached for, whatever the
+     * TTL of its records.
+     */
+    private static final long MAX_TTL = 3600000;
+
+    /**
+     * The time in milliseconds the nonexistence of a name or of records of a
+     * type is cached for.
+     */
+    private static final long NEGATIVE_TTL = 60000;
+
+    /**
+     * The fraction of the lifetime of an answer after which it is prefetched
+     * if it is used again.
+     */
+    private static final double PREFETCH_AGE = 0.9;
+
+    /**
+     * The number of times an answer has to be used before it is prefetched.
+     */
+    private static final int PREFETCH_MIN_HITS = 2;
+
+    /**
+     * The cached answers by query, in the order of their last use.
+     */
+    private final Map<String, Answer> entries
+        = new LinkedHashMap<String, Answer>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Answer> eldest)
+            {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    /**
+     * The queries which are being sent to the resolver, including the
+     * prefetches.
+     */
+    private final Map<String, Query> queries = new HashMap<String, Query>();
+
+    /**
+     * The number of times the cache has been cleared. The answers to the
+     * queries which overlap a clearing are not cached.
+     */
+    private int generation = 0;
+
+    /**
+     * The executor of the prefetches, created on the first one.
+     */
+    private ExecutorService prefetchExecutor;
+
+    /**
+     * Returns the key of a query in the cache.
+     *
+     * @param domain the name queried
+     * @param type the type of the records queried
+     * @return the key of the query
+     */
+    private static String getKey(String domain, int type)
+    {
+        return domain.toLowerCase(Locale.ENGLISH) + '/' + type;
+    }
+
+    /**
+     * Returns the records of a type for a name, from the cache or else from
+     * the resolver.
+     *
+     * @param domain the name to query
+     * @param type the type of the records to query
+     * @param useCache <tt>false</tt> to send the query to the resolver even if
+     * its answer is cached, i.e. when testing DNS connectivity
+     * @return the records or <tt>null</tt> if there are none
+     * @throws TextParseException if <tt>domain</tt> is not a valid name
+     * @throws DnssecRuntimeException when a DNSSEC validation failure
+     * occurred
+     */
+    Record[] lookup(String domain, int type, boolean useCache)
+        throws TextParseException
+    {
+        String key = getKey(domain, type);
+        Query query;
+        boolean send;
+
+        synchronized (this)
+        {
+            if (useCache)
+            {
+                Answer answer = entries.get(key);
+
+                if (answer != null)
+                {
+                    long now = System.currentTimeMillis();
+
+                    if (now < answer.expirationTime)
+                    {
+                        if ((++answer.hitCount >= PREFETCH_MIN_HITS)
+                                && (now >= answer.prefetchTime)
+                                && !queries.containsKey(key))
+                        {
+                            prefetch(domain, type, key);
+                        }
+                        return answer.records;
+                    }
+                    entries.remove(key);
+                }
+
+                query = queries.get(key);
+                send = (query == null);
+                if (send)
+                {
+                    query = new Query(generation);
+                    queries.put(key, query);
+                }
+            }
+            else
+            {
+                // the query is not shared, its answer has to be new
+                query = new Query(generation);
+                send = true;
+            }
+        }
+
+        if (send)
+            send(domain, type, key, query);
+        return query.getRecords();
+    }
+
+    /**
+     * Discards all cached answers.
+     */
+    synchronized void clear()
+    {
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * Sends a query in the background to renew a cached answer before it
+     * expires.
+     *
+     * @param domain the name to query
+     * @param type the type of the records to query
+     * @param key the key of the query
+     */
+    private void prefetch(final String domain, final int type, final String key)
+    {
+        final Query query = new Query(generation);
+
+        if (prefetchExecutor == null)
+        {
+            prefetchExecutor
+                = Executors.newSingleThreadExecutor(
+                        new ThreadFactory()
+                        {
+                            public Thread newThread(Runnable r)
+                            {
+                                Thread t = new Thread(r, "DnsAnswerCache");
+
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+        }
+
+        queries.put(key, query);
+        prefetchExecutor.execute(
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        send(domain, type, key, query);
+                        if (query.error != null && logger.isDebugEnabled())
+                        {
+                            logger.debug(
+                                    "Failed to prefetch " + key,
+                                    query.error);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Sends a query to the resolver, caches its answer and hands it to the
+     * threads which wait for it.
+     *
+     * @param domain the name to query
+     * @param type the type of the records to query
+     * @param key the key of the query
+     * @param query the query
+     */
+    private void send(String domain, int type, String key, Query query)
+    {
+        Record[] records = null;
+        int result = Lookup.UNRECOVERABLE;
+        Throwable error = null;
+
+        try
+        {
+            Lookup lookup = NetworkUtils.createLookup(domain, type);
+
+            lookup.setCache(new Cache());
+            records = lookup.run();
+            result = lookup.getResult();
+        }
+        catch (Throwable t)
+        {
+            if (t instanceof ThreadDeath)
+                throw (ThreadDeath) t;
+            error = t;
+        }
+
+        long ttl;
+
+        switch (result)
+        {
+        case Lookup.SUCCESSFUL:
+            ttl = MAX_TTL;
+            for (Record record : records)
+                ttl = Math.min(ttl, record.getTTL() * 1000);
+            break;
+        case Lookup.HOST_NOT_FOUND:
+        case Lookup.TYPE_NOT_FOUND:
+            ttl = NEGATIVE_TTL;
+            break;
+        default:
+            ttl = 0;
+            break;
+        }
+
+        synchronized (this)
+        {
+            if ((ttl > 0) && (query.generation == generation))
+                entries.put(key, new Answer(records, ttl));
+            if (queries.get(key) == query)
+                queries.remove(key);
+        }
+        query.complete(records, error);
+    }
+
+    /**
+     * A cached answer.
+     */
+    private static class Answer
+    {
+        /**
+         * The records of the answer or <tt>null</tt> if there are none.
+         */
+        final Record[] records;
+
+        /**
+         * The time in milliseconds at which the answer expires.
+         */
+        final long expirationTime;
+
+        /**
+         * The time in milliseconds after which the answer is prefetched if it
+         * is used.
+         */
+        final long prefetchTime;
+
+        /**
+         * The number of times the answer has been used.
+         */
+        int hitCount = 0;
+
+        /**
+         * Creates a cached answer.
+         *
+         * @param records the records of the answer or <tt>null</tt>
+         * @param ttl the time in milliseconds the answer is valid for
+         */
+        Answer(Record[] records, long ttl)
+        {
+            long now = System.currentTimeMillis();
+
+            this.records = records;
+            expirationTime = now + ttl;
+            prefetchTime = now + (long) (ttl * PREFETCH_AGE);
+        }
+    }
+
+    /**
+     * A query which is being sent to the resolver and whose answer the
+     * threads which made the same query wait for.
+     */
+    private static class Query
+    {
+        /**
+         * The generation of the cache when the query was made.
+         */
+        final int generation;
+
+        /**
+         * Whether the answer has been received.
+         */
+        private boolean completed = false;
+
+        /**
+         * The records of the answer.
+         */
+        private Record[] records;
+
+        /**
+         * The failure of the query or <tt>null</tt> if it has succeeded.
+         */
+        private Throwable error;
+
+        /**
+         * Creates a query.
+         *
+         * @param generation the generation of the cache when the query is
+         * made
+         */
+        Query(int generation)
+        {
+            this.generation = generation;
+        }
+
+        /**
+         * Sets the answer to the query and wakes up the threads which wait
+         * for it.
+         *
+         * @param records the records of the answer
+         * @param error the failure of the query or <tt>null</tt>
+         */
+        synchronized void complete(Record[] records, Throwable error)
+        {
+            this.records = records;
+            this.error = error;
+            completed = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the answer to the query.
+         *
+         * @return the records of the answer or <tt>null</tt> if there are
+         * none
+         * @throws TextParseException if the name queried is not valid
+         * @throws DnssecRuntimeException when a DNSSEC validation failure
+         * occurred
+         */
+        synchronized Record[] getRecords()
+            throws TextParseException
+        {
+            boolean interrupted = false;
+
+            while (!completed)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ie)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (error instanceof TextParseException)
+                throw (TextParseException) error;
+            if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            if (error instanceof Error)
+                throw (Error) error;
+            return records;
+        }
+    }
+}
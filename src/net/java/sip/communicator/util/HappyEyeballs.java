@@ -0,0 +1,466 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Implements the Happy Eyeballs algorithm of RFC 6555 for the dual-stack
+ * hosts: the addresses of a server are tried in an order which alternates the
+ * IPv6 and IPv4 families, and connection attempts are started
+ * {@link #CONNECTION_ATTEMPT_DELAY} milliseconds apart rather than one after
+ * the other has timed out, so that a broken path of one family does not delay
+ * the connection.
+ * <p>
+ * The outcome of the connections to each family is recorded, and the family
+ * which has been the most successful lately is tried first.
+ */
+public class HappyEyeballs
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>HappyEyeballs</tt> class for
+     * logging output.
+     */
+    private static final Logger logger = Logger.getLogger(HappyEyeballs.class);
+
+    /**
+     * The time in milliseconds after which a connection attempt which has
+     * neither succeeded nor failed is raced by an attempt to the next address.
+     */
+    public static final long CONNECTION_ATTEMPT_DELAY = 250;
+
+    /**
+     * The number of outcomes of the connections to a family above which the
+     * older ones are given half their weight, so that the statistics follow
+     * the changes of the network.
+     */
+    private static final int STATISTICS_WINDOW = 32;
+
+    /**
+     * The index of the statistics of the IPv4 family.
+     */
+    private static final int IPV4 = 0;
+
+    /**
+     * The index of the statistics of the IPv6 family.
+     */
+    private static final int IPV6 = 1;
+
+    /**
+     * The number of successful connections to each family.
+     */
+    private static final double[] successCounts = new double[2];
+
+    /**
+     * The number of failed connections to each family.
+     */
+    private static final double[] failureCounts = new double[2];
+
+    /**
+     * The executor of the connection attempts and of the concurrent DNS
+     * queries.
+     */
+    private static final ExecutorService executor
+        = Executors.newCachedThreadPool(
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "HappyEyeballs");
+
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+    /**
+     * Prevents the initialization of <tt>HappyEyeballs</tt> instances.
+     */
+    private HappyEyeballs()
+    {
+    }
+
+    /**
+     * Returns the index of the statistics of the family of an address.
+     *
+     * @param address the address
+     * @return {@link #IPV6} if <tt>address</tt> is an IPv6 address,
+     * {@link #IPV4} otherwise
+     */
+    private static int getFamily(InetAddress address)
+    {
+        return (address instanceof Inet6Address) ? IPV6 : IPV4;
+    }
+
+    /**
+     * Records the successful connection to an address.
+     *
+     * @param address the address connected to
+     */
+    public static void recordSuccess(InetAddress address)
+    {
+        if (address != null)
+            record(getFamily(address), true);
+    }
+
+    /**
+     * Records the failed connection to an address.
+     *
+     * @param address the address which could not be connected to
+     */
+    public static void recordFailure(InetAddress address)
+    {
+        if (address != null)
+            record(getFamily(address), false);
+    }
+
+    /**
+     * Records the outcome of a connection to a family.
+     *
+     * @param family the index of the family
+     * @param success whether the connection has succeeded
+     */
+    private static synchronized void record(int family, boolean success)
+    {
+        if (success)
+            successCounts[family]++;
+        else
+            failureCounts[family]++;
+
+        if (successCounts[family] + failureCounts[family] > STATISTICS_WINDOW)
+        {
+            successCounts[family] /= 2;
+            failureCounts[family] /= 2;
+        }
+    }
+
+    /**
+     * Returns the rate of the successful connections to a family. A family
+     * without statistics has a rate of one half.
+     *
+     * @param family the index of the family
+     * @return the rate of the successful connections to <tt>family</tt>
+     */
+    private static double getSuccessRate(int family)
+    {
+        return
+            (successCounts[family] + 1)
+                / (successCounts[family] + failureCounts[family] + 2);
+    }
+
+    /**
+     * Determines whether the IPv6 addresses are to be tried before the IPv4
+     * ones. The family preferred by the <tt>java.net.preferIPv6Addresses</tt>
+     * property comes first unless the connections to the other one have been
+     * more successful.
+     *
+     * @return <tt>true</tt> if the IPv6 addresses are to be tried first
+     */
+    public static synchronized boolean isIPv6Preferred()
+    {
+        boolean preferIPv6
+            = Boolean.getBoolean("java.net.preferIPv6Addresses");
+        double ipv4Rate = getSuccessRate(IPV4);
+        double ipv6Rate = getSuccessRate(IPV6);
+
+        return preferIPv6 ? (ipv6Rate >= ipv4Rate) : (ipv6Rate > ipv4Rate);
+    }
+
+    /**
+     * Sorts the addresses of a server in the order they are to be tried in:
+     * the families alternate, starting with the preferred one, and the
+     * addresses of a family keep their order.
+     *
+     * @param addresses the addresses to sort
+     * @return the sorted addresses
+     */
+    public static InetSocketAddress[] sortAddresses(
+            InetSocketAddress[] addresses)
+    {
+        List<InetSocketAddress> preferred = new ArrayList<InetSocketAddress>();
+        List<InetSocketAddress> other = new ArrayList<InetSocketAddress>();
+        int preferredFamily = isIPv6Preferred() ? IPV6 : IPV4;
+
+        for (InetSocketAddress address : addresses)
+        {
+            if (getFamily(address.getAddress()) == preferredFamily)
+                preferred.add(address);
+            else
+                other.add(address);
+        }
+
+        InetSocketAddress[] sorted = new InetSocketAddress[addresses.length];
+        int i = 0;
+
+        for (int j = 0; i < sorted.length; j++)
+        {
+            if (j < preferred.size())
+                sorted[i++] = preferred.get(j);
+            if (j < other.size())
+                sorted[i++] = other.get(j);
+        }
+        return sorted;
+    }
+
+    /**
+     * Runs a task on a pooled daemon thread.
+     *
+     * @param task the task to run
+     * @return the result of <tt>task</tt>
+     */
+    static <T> Future<T> submit(Callable<T> task)
+    {
+        return executor.submit(task);
+    }
+
+    /**
+     * Connects a TCP socket to the first of the addresses of a server which
+     * accepts the connection. A connection attempt is started every
+     * {@link #CONNECTION_ATTEMPT_DELAY} milliseconds, or as soon as the
+     * previous attempts have failed, in the order of the addresses, until one
+     * succeeds. The other attempts are then cancelled.
+     *
+     * @param addresses the addresses of the server, in the order they are to
+     * be tried in
+     * @param timeout the timeout in milliseconds of each connection attempt or
+     * <tt>0</tt> for the system timeout
+     * @return a socket connected to one of <tt>addresses</tt>
+     * @throws IOException if no address accepted the connection
+     */
+    public static Socket connect(InetSocketAddress[] addresses, int timeout)
+        throws IOException
+    {
+        if (addresses.length == 0)
+            throw new ConnectException("No address to connect to");
+
+        Race race = new Race();
+        int started = 0;
+
+        try
+        {
+            synchronized (race)
+            {
+                while (race.winner == null)
+                {
+                    if ((started < addresses.length)
+                            && (race.failures == started
+                                || race.delayElapsed))
+                    {
+                        executor.execute(
+                                new Attempt(race, addresses[started], timeout));
+                        started++;
+                        race.delayElapsed = false;
+                    }
+                    else if (race.failures == addresses.length)
+                    {
+                        throw race.lastError;
+                    }
+
+                    if (started < addresses.length)
+                    {
+                        long startTime = System.currentTimeMillis();
+
+                        race.wait(CONNECTION_ATTEMPT_DELAY);
+                        if (System.currentTimeMillis() - startTime
+                                >= CONNECTION_ATTEMPT_DELAY)
+                            race.delayElapsed = true;
+                    }
+                    else if ((race.winner == null)
+                            && (race.failures < addresses.length))
+                    {
+                        race.wait();
+                    }
+                }
+
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug(
+                            "Connected to "
+                                + race.winner.getRemoteSocketAddress()
+                                + " after " + started + " attempt(s)");
+                }
+                return race.winner;
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting");
+        }
+        finally
+        {
+            race.finish();
+        }
+    }
+
+    /**
+     * The state shared by the connection attempts to the addresses of a
+     * server.
+     */
+    private static class Race
+    {
+        /**
+         * The sockets of the attempts in progress.
+         */
+        final List<Socket> sockets = new ArrayList<Socket>();
+
+        /**
+         * The connected socket of the attempt which has won the race or
+         * <tt>null</tt>.
+         */
+        Socket winner;
+
+        /**
+         * Whether the race is over, the sockets of the attempts in progress
+         * being closed.
+         */
+        boolean finished = false;
+
+        /**
+         * The number of attempts which have failed.
+         */
+        int failures = 0;
+
+        /**
+         * The failure of the last attempt which has failed.
+         */
+        IOException lastError = new ConnectException("Failed to connect");
+
+        /**
+         * Whether the last attempt has been running for
+         * {@link #CONNECTION_ATTEMPT_DELAY} milliseconds.
+         */
+        boolean delayElapsed = false;
+
+        /**
+         * Ends the race, closing the sockets of the attempts in progress.
+         */
+        synchronized void finish()
+        {
+            finished = true;
+            for (Socket socket : sockets)
+            {
+                if (socket != winner)
+                    closeQuietly(socket);
+            }
+            sockets.clear();
+        }
+    }
+
+    /**
+     * A connection attempt to one of the addresses of a server.
+     */
+    private static class Attempt
+        implements Runnable
+    {
+        /**
+         * The race the attempt takes part in.
+         */
+        private final Race race;
+
+        /**
+         * The address to connect to.
+         */
+        private final InetSocketAddress address;
+
+        /**
+         * The timeout of the attempt in milliseconds.
+         */
+        private final int timeout;
+
+        /**
+         * Creates a connection attempt.
+         *
+         * @param race the race the attempt takes part in
+         * @param address the address to connect to
+         * @param timeout the timeout of the attempt in milliseconds
+         */
+        Attempt(Race race, InetSocketAddress address, int timeout)
+        {
+            this.race = race;
+            this.address = address;
+            this.timeout = timeout;
+        }
+
+        /**
+         * Connects to {@link #address} and reports the outcome to the race.
+         */
+        public void run()
+        {
+            Socket socket = new Socket();
+
+            synchronized (race)
+            {
+                if (race.finished)
+                    return;
+                race.sockets.add(socket);
+            }
+
+            try
+            {
+                socket.connect(address, timeout);
+
+                synchronized (race)
+                {
+                    race.sockets.remove(socket);
+                    if (race.finished || (race.winner != null))
+                    {
+                        closeQuietly(socket);
+                    }
+                    else
+                    {
+                        race.winner = socket;
+                        recordSuccess(address.getAddress());
+                        race.notifyAll();
+                    }
+                }
+            }
+            catch (IOException ioe)
+            {
+                synchronized (race)
+                {
+                    race.sockets.remove(socket);
+                    // the sockets closed by the race do not count
+                    if (!race.finished)
+                    {
+                        race.failures++;
+                        race.lastError = ioe;
+                        recordFailure(address.getAddress());
+                        if (logger.isDebugEnabled())
+                        {
+                            logger.debug(
+                                    "Failed to connect to " + address + ": "
+                                        + ioe);
+                        }
+                        race.notifyAll();
+                    }
+                }
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Closes a socket, ignoring the failures.
+     *
+     * @param socket the socket to close
+     */
+    private static void closeQuietly(Socket socket)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException ioe)
+        {
+            // the socket is no longer used
+        }
+    }
+}
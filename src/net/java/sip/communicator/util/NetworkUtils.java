@@ -9,6 +9,7 @@ package net.java.sip.communicator.util;
 import java.net.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.dns.*;
 
@@ -32,6 +33,11 @@ public class NetworkUtils
      */
     private static final Logger logger = Logger.getLogger(NetworkUtils.class);
 
+    /**
+     * The answers to the DNS queries of <tt>NetworkUtils</tt>.
+     */
+    private static final DnsAnswerCache dnsAnswerCache = new DnsAnswerCache();
+
     /**
      * A string containing the "any" local address for IPv6.
      */
@@ -569,14 +575,9 @@ public class NetworkUtils
         Record[] records = null;
         try
         {
-            Lookup lookup = createLookup(domain, Type.SRV);
-            // Disables the DNS cache: i.e. useful when testing DNS
+            // Bypasses the DNS cache: i.e. useful when testing DNS
             // connectivity.
-            if(!useDNSCache)
-            {
-                lookup.setCache(new Cache());
-            }
-            records = lookup.run();
+            records = dnsAnswerCache.lookup(domain, Type.SRV, useDNSCache);
         }
         catch (TextParseException tpe)
         {
@@ -721,8 +722,7 @@ public class NetworkUtils
         Record[] records = null;
         try
         {
-            Lookup lookup = createLookup(domain, Type.NAPTR);
-            records = lookup.run();
+            records = dnsAnswerCache.lookup(domain, Type.NAPTR, true);
         }
         catch (TextParseException tpe)
         {
@@ -905,7 +905,8 @@ public class NetworkUtils
 
     /**
      * Returns array of hosts from the A and AAAA records of the specified
-     * domain. The records are ordered against the IPv4/IPv6 protocol priority
+     * domain. The A and AAAA queries are sent concurrently and the addresses
+     * are ordered as the <tt>HappyEyeballs</tt> of RFC 6555 try them.
      *
      * @param domain the name of the domain we'd like to resolve.
      * @param port the port number of the returned <tt>InetSocketAddress</tt>
@@ -938,61 +939,120 @@ public class NetworkUtils
             }
         }
 
-        List<InetSocketAddress> addresses = new LinkedList<InetSocketAddress>();
-        boolean v6lookup = Boolean.getBoolean("java.net.preferIPv6Addresses");
+        // the AAAA and A queries are sent concurrently, so that the one of a
+        // family with a broken DNS path does not delay the other
+        final String aaaaDomain = domain;
+        Future<Record[]> aaaaQuery
+            = HappyEyeballs.submit(
+                    new Callable<Record[]>()
+                    {
+                        public Record[] call()
+                            throws TextParseException
+                        {
+                            return
+                                dnsAnswerCache.lookup(
+                                        aaaaDomain,
+                                        Type.AAAA,
+                                        true);
+                        }
+                    });
+        Record[] aRecords;
+        Record[] aaaaRecords;
 
-        for(int i = 0; i < 2; i++)
+        try
         {
-            Lookup lookup;
-            try
-            {
-                lookup = createLookup(domain, v6lookup ? Type.AAAA : Type.A);
-            }
-            catch (TextParseException tpe)
+            aRecords = dnsAnswerCache.lookup(domain, Type.A, true);
+            aaaaRecords = aaaaQuery.get();
+        }
+        catch (TextParseException tpe)
+        {
+            aaaaQuery.cancel(false);
+            logger.error("Failed to parse domain <" + domain + ">", tpe);
+            throw new ParseException(tpe.getMessage(), 0);
+        }
+        catch(DnssecRuntimeException e)
+        {
+            aaaaQuery.cancel(false);
+            throw new DnssecException(e);
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            aaaaQuery.cancel(false);
+            logger.warn("Interrupted while resolving <" + domain + ">");
+            return null;
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+
+            if (cause instanceof TextParseException)
             {
-                logger.error("Failed to parse domain <" + domain + ">", tpe);
-                throw new ParseException(tpe.getMessage(), 0);
+                logger.error("Failed to parse domain <" + domain + ">", cause);
+                throw new ParseException(cause.getMessage(), 0);
             }
-            Record[] records = null;
+            if (cause instanceof DnssecRuntimeException)
+                throw new DnssecException((DnssecRuntimeException) cause);
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw (RuntimeException) cause;
+        }
+
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+
+        addRecordAddresses(domain, port, aRecords, addresses);
+        addRecordAddresses(domain, port, aaaaRecords, addresses);
+
+        InetSocketAddress[] sortedAddresses
+            = HappyEyeballs.sortAddresses(
+                    addresses.toArray(new InetSocketAddress[addresses.size()]));
+
+        if(logger.isTraceEnabled())
+            logger.trace("A or AAAA addresses: "
+                + Arrays.toString(sortedAddresses));
+        return sortedAddresses;
+    }
+
+    /**
+     * Adds the addresses of A or AAAA records to a list.
+     *
+     * @param domain the name of the domain the records were returned for
+     * @param port the port number of the <tt>InetSocketAddress</tt>es
+     * @param records the A or AAAA records or <tt>null</tt>
+     * @param addresses the list to add the addresses to
+     */
+    private static void addRecordAddresses(
+            String domain,
+            int port,
+            Record[] records,
+            List<InetSocketAddress> addresses)
+    {
+        if(records == null)
+            return;
+
+        for(Record r : records)
+        {
             try
             {
-                records = lookup.run();
-            }
-            catch(DnssecRuntimeException e)
-            {
-                throw new DnssecException(e);
+                addresses.add(
+                    new InetSocketAddress(
+                        // create a new InetAddress filled with the
+                        // domain name to avoid PTR queries
+                        InetAddress.getByAddress(
+                            domain,
+                            (r instanceof AAAARecord)
+                              ? ((AAAARecord)r).getAddress().getAddress()
+                              : ((ARecord)r).getAddress().getAddress()
+                        ),
+                        port
+                    )
+                );
             }
-            if(records != null)
+            catch (UnknownHostException e)
             {
-                for(Record r : records)
-                {
-                    try
-                    {
-                        addresses.add(
-                            new InetSocketAddress(
-                                // create a new InetAddress filled with the
-                                // domain name to avoid PTR queries
-                                InetAddress.getByAddress(
-                                    domain,
-                                    v6lookup
-                                      ? ((AAAARecord)r).getAddress().getAddress()
-                                      : ((ARecord)r).getAddress().getAddress()
-                                ),
-                                port
-                            )
-                        );
-                    }
-                    catch (UnknownHostException e)
-                    {
-                        logger.error("Invalid record returned from DNS", e);
-                    }
-                }
+                logger.error("Invalid record returned from DNS", e);
             }
-            v6lookup = !v6lookup;
         }
-        if(logger.isTraceEnabled())
-            logger.trace("A or AAAA addresses: " + addresses);
-        return addresses.toArray(new InetSocketAddress[0]);
     }
 
     /**
@@ -1032,8 +1092,7 @@ public class NetworkUtils
             //for starters we'd like to make sure that it works well enough
             //with SRV and NAPTR queries. We may then also adopt it for As
             //and AAAAs once it proves to be reliable (posted on: 2010-11-24)
-            Lookup lookup = createLookup(domain, Type.A);
-            records = lookup.run();
+            records = dnsAnswerCache.lookup(domain, Type.A, true);
         }
         catch (TextParseException tpe)
         {
@@ -1106,8 +1165,7 @@ public class NetworkUtils
             //for starters we'd like to make sure that it works well enough
             //with SRV and NAPTR queries. We may then also adopt it for As
             //and AAAAs once it proves to be reliable (posted on: 2010-11-24)
-            Lookup lookup = createLookup(domain, Type.AAAA);
-            records = lookup.run();
+            records = dnsAnswerCache.lookup(domain, Type.AAAA, true);
         }
         catch (TextParseException tpe)
         {
@@ -1261,7 +1319,7 @@ public class NetworkUtils
      *
      * @throws TextParseException if <tt>domain</tt> is not a valid domain name.
      */
-    private static Lookup createLookup(String domain, int type)
+    static Lookup createLookup(String domain, int type)
         throws TextParseException
     {
         // make domain name absolute if requested
@@ -1460,10 +1518,13 @@ public class NetworkUtils
     }
 
     /**
-     * Clears the default DNS cache.
+     * Clears the default DNS cache and the answers cached by
+     * <tt>NetworkUtils</tt>.
      */
     public static void clearDefaultDNSCache()
     {
+        dnsAnswerCache.clear();
+
         Cache defaultCache = Lookup.getDefaultCache(DClass.IN);
         defaultCache.clearCache();
     }
@@ -0,0 +1,111 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.benchmark;
+
+/**
+ * A benchmark run by the <tt>BenchmarkRunner</tt>. The runner calls
+ * {@link #setUp()} once, then repeatedly {@link #prepare()} and
+ * {@link #run()}, of which only <tt>run</tt> is measured, and finally
+ * {@link #tearDown()}.
+ * <p>
+ * The sizes of the generated data are read from system properties, so that
+ * the same benchmarks may be run against small and large histories and
+ * contact lists.
+ */
+public abstract class Benchmark
+{
+    /**
+     * The prefix of the names of the system properties configuring the
+     * benchmarks.
+     */
+    public static final String PROPERTY_PREFIX
+        = "net.java.sip.communicator.benchmark.";
+
+    /**
+     * Returns the name of this benchmark, as printed in the results.
+     *
+     * @return the name of this benchmark
+     */
+    public String getName()
+    {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * Generates the data this benchmark works on. Not measured.
+     *
+     * @throws Exception if the data could not be generated
+     */
+    public void setUp()
+        throws Exception
+    {
+    }
+
+    /**
+     * Prepares the next execution of {@link #run()}. Not measured.
+     *
+     * @throws Exception if preparing fails
+     */
+    public void prepare()
+        throws Exception
+    {
+    }
+
+    /**
+     * Executes the measured operation once.
+     *
+     * @return the result of the operation, which the runner keeps so that it
+     * is not optimized away
+     * @throws Exception if the operation fails
+     */
+    public abstract Object run()
+        throws Exception;
+
+    /**
+     * Releases the data generated by {@link #setUp()}. Not measured.
+     *
+     * @throws Exception if releasing fails
+     */
+    public void tearDown()
+        throws Exception
+    {
+    }
+
+    /**
+     * Returns the value of an integer benchmark property.
+     *
+     * @param name the name of the property without the
+     * {@link #PROPERTY_PREFIX}
+     * @param defaultValue the value to return if the property is not set
+     * @return the value of the property
+     */
+    public static int getIntProperty(String name, int defaultValue)
+    {
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+
+        if (value == null || value.trim().length() == 0)
+            return defaultValue;
+        return Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Returns the value of a boolean benchmark property.
+     *
+     * @param name the name of the property without the
+     * {@link #PROPERTY_PREFIX}
+     * @param defaultValue the value to return if the property is not set
+     * @return the value of the property
+     */
+    public static boolean getBooleanProperty(String name, boolean defaultValue)
+    {
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+
+        if (value == null || value.trim().length() == 0)
+            return defaultValue;
+        return Boolean.parseBoolean(value.trim());
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.benchmark;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import org.jitsi.impl.fileaccess.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+import org.osgi.framework.*;
+
+/**
+ * The services the benchmarked implementations get from OSGi, without
+ * starting an OSGi framework. The <tt>BundleContext</tt> only looks up the
+ * registered services and ignores everything else, the
+ * <tt>FileAccessService</tt> stores its files in a temporary directory,
+ * which {@link #dispose()} deletes, and the <tt>ConfigurationService</tt>
+ * returns the system properties, so that the benchmarked implementations
+ * may be configured on the command line.
+ */
+public class BenchmarkEnvironment
+{
+    /**
+     * The temporary home directory of the benchmark.
+     */
+    private final File homeDirectory;
+
+    /**
+     * The registered services by class name.
+     */
+    private final Map<String, Object> services = new HashMap<String, Object>();
+
+    /**
+     * The <tt>ServiceReference</tt>s of the registered services by class
+     * name.
+     */
+    private final Map<String, ServiceReference> serviceReferences
+        = new HashMap<String, ServiceReference>();
+
+    /**
+     * The <tt>BundleContext</tt> looking up the registered services.
+     */
+    private final BundleContext bundleContext;
+
+    /**
+     * Creates an environment with a new temporary home directory and the
+     * <tt>FileAccessService</tt> and <tt>ConfigurationService</tt>
+     * registered.
+     *
+     * @throws IOException if the home directory could not be created
+     */
+    public BenchmarkEnvironment()
+        throws IOException
+    {
+        homeDirectory = File.createTempFile("jitsi-benchmark", "");
+        if (!homeDirectory.delete() || !homeDirectory.mkdir())
+        {
+            throw new IOException(
+                "Failed to create " + homeDirectory.getAbsolutePath());
+        }
+
+        // read by the FileAccessService when it is created
+        System.setProperty(
+            "net.java.sip.communicator.SC_HOME_DIR_LOCATION",
+            homeDirectory.getParent());
+        System.setProperty(
+            "net.java.sip.communicator.SC_HOME_DIR_NAME",
+            homeDirectory.getName());
+
+        bundleContext
+            = (BundleContext) Proxy.newProxyInstance(
+                    getClass().getClassLoader(),
+                    new Class<?>[] { BundleContext.class },
+                    new InvocationHandler()
+                    {
+                        public Object invoke(
+                                Object proxy,
+                                Method method,
+                                Object[] args)
+                        {
+                            return invokeBundleContext(proxy, method, args);
+                        }
+                    });
+
+        registerService(FileAccessService.class, new FileAccessServiceImpl());
+        registerService(
+            ConfigurationService.class,
+            Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { ConfigurationService.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(
+                            Object proxy,
+                            Method method,
+                            Object[] args)
+                    {
+                        return invokeConfigurationService(
+                            proxy, method, args);
+                    }
+                }));
+    }
+
+    /**
+     * Returns the <tt>BundleContext</tt> looking up the registered services.
+     *
+     * @return the <tt>BundleContext</tt>
+     */
+    public BundleContext getBundleContext()
+    {
+        return bundleContext;
+    }
+
+    /**
+     * Returns the temporary home directory of this environment.
+     *
+     * @return the home directory
+     */
+    public File getHomeDirectory()
+    {
+        return homeDirectory;
+    }
+
+    /**
+     * Returns a registered service.
+     *
+     * @param serviceClass the class the service is registered as
+     * @return the service or <tt>null</tt> if it is not registered
+     */
+    public <T> T getService(Class<T> serviceClass)
+    {
+        return serviceClass.cast(services.get(serviceClass.getName()));
+    }
+
+    /**
+     * Registers a service.
+     *
+     * @param serviceClass the class to register the service as
+     * @param service the service
+     */
+    public void registerService(Class<?> serviceClass, Object service)
+    {
+        final String name = serviceClass.getName();
+
+        services.put(name, service);
+        serviceReferences.put(
+            name,
+            (ServiceReference) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { ServiceReference.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(
+                            Object proxy,
+                            Method method,
+                            Object[] args)
+                    {
+                        if (method.getName().equals("toString"))
+                            return name;
+                        return invokeObject(proxy, method, args);
+                    }
+                }));
+    }
+
+    /**
+     * Deletes the home directory of this environment.
+     */
+    public void dispose()
+    {
+        delete(homeDirectory);
+    }
+
+    /**
+     * Implements the methods of the <tt>BundleContext</tt>.
+     *
+     * @param proxy the <tt>BundleContext</tt>
+     * @param method the invoked method
+     * @param args the arguments of the method
+     * @return the result of the method
+     */
+    private Object invokeBundleContext(
+            Object proxy,
+            Method method,
+            Object[] args)
+    {
+        String name = method.getName();
+
+        if (name.equals("getServiceReference") && args[0] instanceof String)
+            return serviceReferences.get(args[0]);
+        if (name.equals("getService"))
+        {
+            for (Map.Entry<String, ServiceReference> e
+                    : serviceReferences.entrySet())
+            {
+                if (e.getValue() == args[0])
+                    return services.get(e.getKey());
+            }
+            return null;
+        }
+        return invokeObject(proxy, method, args);
+    }
+
+    /**
+     * Implements the methods of the <tt>ConfigurationService</tt> by
+     * reading the system properties.
+     *
+     * @param proxy the <tt>ConfigurationService</tt>
+     * @param method the invoked method
+     * @param args the arguments of the method
+     * @return the result of the method
+     */
+    private Object invokeConfigurationService(
+            Object proxy,
+            Method method,
+            Object[] args)
+    {
+        String name = method.getName();
+
+        if (args == null
+                || args.length == 0
+                || !(args[0] instanceof String)
+                || !(name.equals("getProperty") || name.startsWith("getString")
+                        || name.equals("getBoolean") || name.equals("getInt")
+                        || name.equals("getLong")))
+            return invokeObject(proxy, method, args);
+
+        String value = System.getProperty((String) args[0]);
+
+        if (value == null)
+            return (args.length > 1) ? args[1] : null;
+        if (name.equals("getBoolean"))
+            return Boolean.valueOf(value);
+        try
+        {
+            if (name.equals("getInt"))
+                return Integer.valueOf(value);
+            if (name.equals("getLong"))
+                return Long.valueOf(value);
+        }
+        catch (NumberFormatException ex)
+        {
+            return args[1];
+        }
+        return value;
+    }
+
+    /**
+     * Implements the methods of <tt>Object</tt> for proxies and returns the
+     * default value of the return type for any other method.
+     *
+     * @param proxy the proxy
+     * @param method the invoked method
+     * @param args the arguments of the method
+     * @return the result of the method
+     */
+    private static Object invokeObject(
+            Object proxy,
+            Method method,
+            Object[] args)
+    {
+        String name = method.getName();
+        Class<?> type = method.getReturnType();
+
+        if (name.equals("equals") && args != null && args.length == 1)
+            return proxy == args[0];
+        if (name.equals("hashCode") && args == null)
+            return System.identityHashCode(proxy);
+        if (name.equals("toString") && args == null)
+            return proxy.getClass().getName();
+
+        if (type == boolean.class)
+            return Boolean.FALSE;
+        if (type == int.class)
+            return 0;
+        if (type == long.class)
+            return 0L;
+        return null;
+    }
+
+    /**
+     * Deletes a file or a directory with all its content.
+     *
+     * @param file the file or the directory
+     */
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.benchmark;
+
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Runs benchmarks and prints their throughput and allocation rate.
+ * <p>
+ * Every benchmark is run for a number of warmup iterations, which let the
+ * JIT compile the measured code and are not reported, and then for a number
+ * of measurement iterations of a fixed duration. The throughput is the mean
+ * of the iterations, in operations per second, and the allocation rate is
+ * the number of bytes allocated by the measuring thread per operation, when
+ * the JVM is able to report it. Allocations of other threads, such as the
+ * contact list storage thread, are not included.
+ * <p>
+ * The arguments are the names of the benchmark classes to run, either fully
+ * qualified or relative to this package. Without arguments, all the
+ * benchmarks are run. The runner is configured through the following system
+ * properties, prefixed with {@link Benchmark#PROPERTY_PREFIX}:
+ * <ul>
+ * <li><tt>WARMUP_ITERATIONS</tt>, 5 by default;</li>
+ * <li><tt>MEASUREMENT_ITERATIONS</tt>, 10 by default;</li>
+ * <li><tt>ITERATION_TIME</tt>, the duration of an iteration in milliseconds,
+ * 1000 by default.</li>
+ * </ul>
+ */
+public class BenchmarkRunner
+{
+    /**
+     * The benchmarks run when none are specified.
+     */
+    private static final String[] ALL_BENCHMARKS
+        = {
+            "HistoryAddRecordBenchmark",
+            "HistoryFindByKeywordsBenchmark",
+            "HistoryFindLastBenchmark",
+            "net.java.sip.communicator.impl.contactlist.MclFindBenchmark",
+            "net.java.sip.communicator.impl.contactlist.MclLoadBenchmark",
+            "net.java.sip.communicator.impl.contactlist.MclStoreBenchmark",
+            "net.java.sip.communicator.impl.gui.main.chat"
+                + ".ChatTranscriptBenchmark",
+            "net.java.sip.communicator.impl.protocol.sip.PidfDecodeBenchmark",
+            "net.java.sip.communicator.impl.protocol.sip.PidfEncodeBenchmark",
+            "SearchFilterBenchmark"
+        };
+
+    /**
+     * The <tt>getThreadAllocatedBytes(long)</tt> method of the
+     * <tt>ThreadMXBean</tt> of the JVM, if it has one.
+     */
+    private static final Method getThreadAllocatedBytes;
+
+    static
+    {
+        Method method = null;
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        try
+        {
+            Class<?> beanClass
+                = Class.forName("com.sun.management.ThreadMXBean");
+
+            if (beanClass.isInstance(bean))
+            {
+                method = beanClass.getMethod(
+                    "getThreadAllocatedBytes", long.class);
+                // fail now rather than while measuring
+                method.invoke(bean, Thread.currentThread().getId());
+            }
+        }
+        catch (Exception ex)
+        {
+            method = null;
+        }
+        getThreadAllocatedBytes = method;
+    }
+
+    /**
+     * Keeps the results of the benchmarked operations so that they are not
+     * optimized away.
+     */
+    private static volatile Object sink;
+
+    /**
+     * The number of warmup iterations.
+     */
+    private final int warmupIterations
+        = Benchmark.getIntProperty("WARMUP_ITERATIONS", 5);
+
+    /**
+     * The number of measurement iterations.
+     */
+    private final int measurementIterations
+        = Benchmark.getIntProperty("MEASUREMENT_ITERATIONS", 10);
+
+    /**
+     * The duration of an iteration in nanoseconds.
+     */
+    private final long iterationTime
+        = Benchmark.getIntProperty("ITERATION_TIME", 1000) * 1000000L;
+
+    /**
+     * Runs the benchmarks named by the arguments.
+     *
+     * @param args the names of the benchmark classes
+     * @throws Exception if a benchmark cannot be created or fails
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        BenchmarkRunner runner = new BenchmarkRunner();
+
+        System.out.println(String.format(
+            "%-32s %14s %12s %14s",
+            "Benchmark", "ops/s", "error", "B/op"));
+
+        for (String name : (args.length == 0) ? ALL_BENCHMARKS : args)
+        {
+            if (name.indexOf('.') == -1)
+            {
+                name
+                    = BenchmarkRunner.class.getPackage().getName() + "."
+                        + name;
+            }
+
+            runner.run((Benchmark) Class.forName(name).newInstance());
+        }
+    }
+
+    /**
+     * Runs a benchmark and prints its results.
+     *
+     * @param benchmark the benchmark
+     * @throws Exception if the benchmark fails
+     */
+    public void run(Benchmark benchmark)
+        throws Exception
+    {
+        benchmark.setUp();
+        try
+        {
+            for (int i = 0; i < warmupIterations; i++)
+                runIteration(benchmark);
+
+            double[] throughputs = new double[measurementIterations];
+            long operations = 0;
+            long allocated = 0;
+
+            for (int i = 0; i < measurementIterations; i++)
+            {
+                Iteration iteration = runIteration(benchmark);
+
+                throughputs[i] = iteration.operations * 1e9 / iteration.time;
+                operations += iteration.operations;
+                allocated += iteration.allocated;
+            }
+
+            double mean = 0;
+            for (double throughput : throughputs)
+                mean += throughput;
+            mean /= throughputs.length;
+
+            double variance = 0;
+            for (double throughput : throughputs)
+                variance += (throughput - mean) * (throughput - mean);
+            double error = (throughputs.length > 1)
+                ? Math.sqrt(variance / (throughputs.length - 1))
+                : 0;
+
+            System.out.println(String.format(
+                "%-32s %14.1f %12.1f %14s",
+                benchmark.getName(),
+                mean,
+                error,
+                (getThreadAllocatedBytes == null || operations == 0)
+                    ? "n/a"
+                    : String.valueOf(allocated / operations)));
+        }
+        finally
+        {
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * Runs a benchmark for one iteration.
+     *
+     * @param benchmark the benchmark
+     * @return the measurements of the iteration
+     * @throws Exception if the benchmark fails
+     */
+    private Iteration runIteration(Benchmark benchmark)
+        throws Exception
+    {
+        Iteration iteration = new Iteration();
+
+        do
+        {
+            benchmark.prepare();
+
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+
+            sink = benchmark.run();
+
+            iteration.time += System.nanoTime() - start;
+            iteration.allocated += getAllocatedBytes() - allocatedBefore;
+            iteration.operations++;
+        }
+        while (iteration.time < iterationTime);
+
+        return iteration;
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread.
+     *
+     * @return the number of bytes allocated by the current thread or 0 if the
+     * JVM does not report it
+     */
+    private static long getAllocatedBytes()
+    {
+        if (getThreadAllocatedBytes == null)
+            return 0;
+
+        try
+        {
+            return (Long) getThreadAllocatedBytes.invoke(
+                ManagementFactory.getThreadMXBean(),
+                Thread.currentThread().getId());
+        }
+        catch (Exception ex)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * The measurements of an iteration.
+     */
+    private static class Iteration
+    {
+        /**
+         * The number of executed operations.
+         */
+        long operations;
+
+        /**
+         * The time spent in the operations in nanoseconds.
+         */
+        long time;
+
+        /**
+         * The number of bytes allocated by the operations.
+         */
+        long allocated;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.benchmark;
+
+import net.java.sip.communicator.service.history.*;
+
+/**
+ * Measures <tt>HistoryWriter.addRecord</tt> on a generated history.
+ */
+public class HistoryAddRecordBenchmark
+    extends HistoryBenchmark
+{
+    /**
+     * The writer of the history.
+     */
+    private HistoryWriter writer;
+
+    @Override
+    public void setUp()
+        throws Exception
+    {
+        super.setUp();
+        writer = history.getWriter();
+    }
+
+    @Override
+    public Object run()
+        throws Exception
+    {
+        addRecord(writer);
+        return writer;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.benchmark;
+
+import java.util.*;
+
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The base of the benchmarks of the history service, which generates a
+ * synthetic message history. The number of generated records is set with
+ * the <tt>HISTORY_RECORDS</tt> property, 10000 by default. The history
+ * service itself is configured with its own properties, for example
+ * <tt>net.java.sip.communicator.impl.history.STORAGE_TYPE</tt>.
+ */
+public abstract class HistoryBenchmark
+    extends Benchmark
+{
+    /**
+     * The keyword found in one percent of the generated messages.
+     */
+    protected static final String KEYWORD = "benchmark";
+
+    /**
+     * The field of the messages.
+     */
+    protected static final String MESSAGE_FIELD = "msg";
+
+    /**
+     * The structure of the records, the one of the message history.
+     */
+    private static final HistoryRecordStructure STRUCTURE
+        = new HistoryRecordStructure(
+                new String[]
+                {
+                    "dir", "msg_CDATA", "msgTyp", "enc", "uid", "sub",
+                    "receivedTimestamp"
+                });
+
+    /**
+     * The words of the generated messages.
+     */
+    private static final String[] WORDS
+        = {
+            "hello", "how", "are", "you", "call", "me", "later", "meeting",
+            "tomorrow", "at", "the", "office", "thanks", "see", "ok", "sure"
+        };
+
+    /**
+     * The environment of the history service.
+     */
+    private BenchmarkEnvironment environment;
+
+    /**
+     * The benchmarked history.
+     */
+    protected History history;
+
+    /**
+     * The number of records written to the history.
+     */
+    protected int recordCount;
+
+    /**
+     * Generates the history.
+     *
+     * @throws Exception if the history could not be written
+     */
+    @Override
+    public void setUp()
+        throws Exception
+    {
+        environment = new BenchmarkEnvironment();
+
+        HistoryService historyService
+            = new HistoryServiceImpl(environment.getBundleContext());
+
+        history
+            = historyService.createHistory(
+                    HistoryID.createFromRawID(
+                        new String[] { "benchmark", getName() }),
+                    STRUCTURE);
+
+        int records = getIntProperty("HISTORY_RECORDS", 10000);
+        HistoryWriter writer = history.getWriter();
+
+        for (int i = 0; i < records; i++)
+            addRecord(writer);
+    }
+
+    /**
+     * Deletes the history.
+     */
+    @Override
+    public void tearDown()
+    {
+        environment.dispose();
+    }
+
+    /**
+     * Writes the next generated record to the history. The records are a
+     * minute apart and every hundredth contains the {@link #KEYWORD}.
+     *
+     * @param writer the writer of the history
+     * @throws Exception if writing fails
+     */
+    protected void addRecord(HistoryWriter writer)
+        throws Exception
+    {
+        int i = recordCount++;
+        Random random = new Random(i);
+        StringBuilder message = new StringBuilder();
+
+        for (int j = 4 + random.nextInt(12); j > 0; j--)
+            message.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        if (i % 100 == 0)
+            message.append(KEYWORD);
+
+        Date timestamp = new Date(1000000000000L + i * 60000L);
+
+        writer.addRecord(
+            new String[]
+            {
+                (i % 2 == 0) ? "in" : "out",
+                message.toString(),
+                "text/plain",
+                "UTF-8",
+                String.valueOf(i),
+                "",
+                String.valueOf(timestamp.getTime())
+            },
+            timestamp);
+    }
+
+    /**
+     * Counts the records of a query, which reads them if the query is lazy.
+     *
+     * @param records the records of the query
+     * @return the number of records
+     */
+    protected static int count(QueryResultSet<HistoryRecord> records)
+    {
+        int count = 0;
+
+        while (records.hasNext())
+        {
+            records.nextRecord();
+            count++;
+        }
+        return count;
+    }
+}
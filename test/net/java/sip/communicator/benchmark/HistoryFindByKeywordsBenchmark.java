@@ -0,0 +1,23 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.benchmark;
+
+/**
+ * Measures <tt>HistoryReader.findByKeywords</tt> for a keyword found in one
+ * percent of the records of a generated history.
+ */
+public class HistoryFindByKeywordsBenchmark
+    extends HistoryBenchmark
+{
+    @Override
+    public Object run()
+    {
+        return count(
+            history.getReader().findByKeywords(
+                new String[] { KEYWORD }, MESSAGE_FIELD, false));
+    }
+}
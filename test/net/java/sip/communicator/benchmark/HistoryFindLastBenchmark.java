@@ -0,0 +1,27 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.benchmark;
+
+/**
+ * Measures <tt>HistoryReader.findLast</tt> on a generated history. The
+ * number of records to find is set with the <tt>FIND_LAST_COUNT</tt>
+ * property, 50 by default.
+ */
+public class HistoryFindLastBenchmark
+    extends HistoryBenchmark
+{
+    /**
+     * The number of records to find.
+     */
+    private final int count = getIntProperty("FIND_LAST_COUNT", 50);
+
+    @Override
+    public Object run()
+    {
+        return count(history.getReader().findLast(count));
+    }
+}
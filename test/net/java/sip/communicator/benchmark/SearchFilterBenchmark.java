@@ -0,0 +1,249 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.benchmark;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.regex.*;
+
+import net.java.sip.communicator.impl.gui.main.contactlist.contactsource.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Measures matching the filter strings typed in the contact list search
+ * field against a generated contact list, the way the <tt>SearchFilter</tt>
+ * queries the <tt>MetaContactListSource</tt>. Every operation matches one of
+ * a fixed set of filter strings, from a single character to a full name.
+ * <p>
+ * The number of meta contacts is set with the <tt>CONTACTS</tt> property,
+ * 1000 by default. By default the candidates are found with the
+ * <tt>MetaContactSearchIndex</tt>; setting the <tt>SEARCH_INDEX</tt> property
+ * to <tt>false</tt> matches every meta contact instead.
+ */
+public class SearchFilterBenchmark
+    extends Benchmark
+{
+    /**
+     * The matched filter strings.
+     */
+    private static final String[] FILTER_STRINGS
+        = { "a", "jo", "mar", "smith", "john sm", "+3592", "nobody" };
+
+    /**
+     * The first names of the generated meta contacts.
+     */
+    private static final String[] FIRST_NAMES
+        = {
+            "John", "Maria", "Ivan", "Anna", "Peter", "Elena", "George",
+            "Sofia", "Martin", "Emily"
+        };
+
+    /**
+     * The last names of the generated meta contacts.
+     */
+    private static final String[] LAST_NAMES
+        = {
+            "Smith", "Ivanov", "Garcia", "Muller", "Rossi", "Dubois",
+            "Jansen", "Novak", "Silva", "Kowalski"
+        };
+
+    /**
+     * Whether the candidates are found with the index.
+     */
+    private final boolean useIndex = getBooleanProperty("SEARCH_INDEX", true);
+
+    /**
+     * The generated meta contacts.
+     */
+    private final List<MetaContact> metaContacts = new ArrayList<MetaContact>();
+
+    /**
+     * The patterns of the {@link #FILTER_STRINGS}.
+     */
+    private final Pattern[] patterns = new Pattern[FILTER_STRINGS.length];
+
+    /**
+     * The index of the generated meta contacts.
+     */
+    private MetaContactSearchIndex index;
+
+    /**
+     * The number of executed operations.
+     */
+    private int operationCount;
+
+    @Override
+    public String getName()
+    {
+        return super.getName() + (useIndex ? "" : "(scan)");
+    }
+
+    /**
+     * Generates the meta contacts and indexes them.
+     */
+    @Override
+    public void setUp()
+    {
+        int contactCount = getIntProperty("CONTACTS", 1000);
+        Random random = new Random(0);
+
+        for (int i = 0; i < contactCount; i++)
+        {
+            String displayName
+                = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)] + " " + i;
+
+            metaContacts.add(
+                createMetaContact(
+                    displayName,
+                    displayName.replace(' ', '.').toLowerCase()
+                        + "@example.com",
+                    "+359" + (8000000 + random.nextInt(1000000))));
+        }
+
+        for (int i = 0; i < FILTER_STRINGS.length; i++)
+        {
+            patterns[i]
+                = Pattern.compile(
+                        Pattern.quote(FILTER_STRINGS[i]),
+                        Pattern.MULTILINE
+                            | Pattern.CASE_INSENSITIVE
+                            | Pattern.UNICODE_CASE);
+        }
+
+        if (useIndex)
+        {
+            index = new MetaContactSearchIndex();
+            index.build(createGroup(metaContacts));
+        }
+    }
+
+    @Override
+    public Object run()
+    {
+        int i = operationCount++ % FILTER_STRINGS.length;
+        Collection<MetaContact> candidates
+            = useIndex ? index.getCandidates(FILTER_STRINGS[i]) : metaContacts;
+        List<MetaContact> result = new ArrayList<MetaContact>();
+
+        for (MetaContact metaContact : candidates)
+        {
+            List<String> searchStrings
+                = MetaContactSearchIndex.getSearchStrings(metaContact);
+
+            for (String s : searchStrings)
+            {
+                if (s != null && patterns[i].matcher(s).find())
+                {
+                    result.add(metaContact);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a meta contact with a single protocol contact.
+     *
+     * @param displayName the display name of the meta contact and its
+     * protocol contact
+     * @param address the address of the protocol contact
+     * @param phone the mobile phone number of the meta contact
+     * @return the meta contact
+     */
+    private static MetaContact createMetaContact(
+            final String displayName,
+            String address,
+            String phone)
+    {
+        final Contact contact
+            = createProxy(
+                    Contact.class,
+                    "getDisplayName", displayName,
+                    "getAddress", address);
+        final List<String> phones = Collections.singletonList(phone);
+
+        return
+            createProxy(
+                MetaContact.class,
+                "getDisplayName", displayName,
+                "getDetails", phones,
+                "getContacts", new Iterable<Contact>()
+                {
+                    public Iterator<Contact> iterator()
+                    {
+                        return Collections.singletonList(contact).iterator();
+                    }
+                });
+    }
+
+    /**
+     * Creates a meta contact group holding meta contacts.
+     *
+     * @param children the meta contacts of the group
+     * @return the meta contact group
+     */
+    private static MetaContactGroup createGroup(
+            final List<MetaContact> children)
+    {
+        return
+            createProxy(
+                MetaContactGroup.class,
+                "getChildContacts", children,
+                "getSubgroups", Collections.<MetaContactGroup>emptyList());
+    }
+
+    /**
+     * Creates an implementation of an interface which returns fixed values
+     * from some of its methods. The values of methods returning an
+     * <tt>Iterator</tt> are <tt>Iterable</tt>s, of which a new
+     * <tt>Iterator</tt> is returned on every call.
+     *
+     * @param type the interface
+     * @param methodsAndValues the names of the methods followed by their
+     * values
+     * @return the implementation of the interface
+     */
+    private static <T> T createProxy(
+            Class<T> type,
+            Object... methodsAndValues)
+    {
+        final Map<String, Object> values = new HashMap<String, Object>();
+
+        for (int i = 0; i < methodsAndValues.length; i += 2)
+            values.put((String) methodsAndValues[i], methodsAndValues[i + 1]);
+
+        return type.cast(
+            Proxy.newProxyInstance(
+                SearchFilterBenchmark.class.getClassLoader(),
+                new Class<?>[] { type },
+                new InvocationHandler()
+                {
+                    public Object invoke(
+                            Object proxy,
+                            Method method,
+                            Object[] args)
+                    {
+                        String name = method.getName();
+
+                        if (name.equals("equals"))
+                            return proxy == args[0];
+                        if (name.equals("hashCode"))
+                            return System.identityHashCode(proxy);
+
+                        Object value = values.get(name);
+
+                        if (value instanceof Iterable<?>
+                                && method.getReturnType() == Iterator.class)
+                            return ((Iterable<?>) value).iterator();
+                        return value;
+                    }
+                }));
+    }
+}
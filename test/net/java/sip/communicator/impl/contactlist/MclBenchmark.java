@@ -0,0 +1,144 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+
+import net.java.sip.communicator.benchmark.*;
+
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * The base of the benchmarks of the <tt>MclStorageManager</tt>, which
+ * generates a synthetic contact list file. The number of meta contacts is set
+ * with the <tt>CONTACTS</tt> property, 1000 by default, and the number of
+ * groups they are spread over with the <tt>GROUPS</tt> property, 20 by
+ * default. The storage manager itself is configured with its own properties,
+ * for example <tt>net.java.sip.communicator.impl.contactlist.JOURNAL_ENABLED
+ * </tt>.
+ * <p>
+ * The benchmarks live in the package of the storage manager, as it is not
+ * public, and are left out of the meta contact list bundle.
+ */
+public abstract class MclBenchmark
+    extends Benchmark
+{
+    /**
+     * The account of the generated contacts.
+     */
+    private static final String ACCOUNT_ID = "Benchmark:benchmark@example.com";
+
+    /**
+     * The environment of the storage manager.
+     */
+    private BenchmarkEnvironment environment;
+
+    /**
+     * The number of generated meta contacts.
+     */
+    protected int contactCount;
+
+    /**
+     * Generates the contact list file.
+     *
+     * @throws Exception if the file could not be written
+     */
+    @Override
+    public void setUp()
+        throws Exception
+    {
+        environment = new BenchmarkEnvironment();
+        contactCount = getIntProperty("CONTACTS", 1000);
+
+        int groupCount = Math.max(1, getIntProperty("GROUPS", 20));
+        File file
+            = environment.getService(FileAccessService.class)
+                .getPrivatePersistentFile("contactlist.xml");
+        Writer out
+            = new BufferedWriter(
+                    new OutputStreamWriter(
+                        new FileOutputStream(file), "UTF-8"));
+
+        try
+        {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<sip-communicator>\n");
+            out.write("<group name=\"RootMetaContactGroup\""
+                + " uid=\"RootMetaContactGroup\">\n");
+            out.write("<proto-groups/>\n<subgroups>\n");
+
+            for (int g = 0; g < groupCount; g++)
+            {
+                out.write("<group name=\"Group " + g + "\" uid=\"group" + g
+                    + "\">\n<proto-groups>\n");
+                out.write("<proto-group uid=\"Group " + g
+                    + "\" account-id=\"" + ACCOUNT_ID + "\"/>\n");
+                out.write("</proto-groups>\n<subgroups/>\n<child-contacts>\n");
+
+                for (int i = g; i < contactCount; i += groupCount)
+                {
+                    out.write("<meta-contact uid=\"" + getMetaUID(i)
+                        + "\">\n");
+                    out.write("<display-name>Contact " + i
+                        + "</display-name>\n");
+                    out.write("<contact address=\"contact" + i
+                        + "@example.com\" account-id=\"" + ACCOUNT_ID
+                        + "\" parent-proto-group-uid=\"Group " + g + "\">\n");
+                    out.write("<persistent-data>displayName=Contact " + i
+                        + "</persistent-data>\n");
+                    out.write("</contact>\n</meta-contact>\n");
+                }
+
+                out.write("</child-contacts>\n</group>\n");
+            }
+
+            out.write("</subgroups>\n<child-contacts/>\n</group>\n");
+            out.write("</sip-communicator>\n");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Deletes the contact list file.
+     */
+    @Override
+    public void tearDown()
+    {
+        environment.dispose();
+    }
+
+    /**
+     * Returns the UID of a generated meta contact.
+     *
+     * @param index the index of the meta contact
+     * @return the UID of the meta contact
+     */
+    protected static String getMetaUID(int index)
+    {
+        return "metacontact" + index;
+    }
+
+    /**
+     * Starts a storage manager, which loads the contact list file.
+     *
+     * @return the started storage manager
+     * @throws Exception if loading the contact list fails
+     */
+    protected MclStorageManager startStorageManager()
+        throws Exception
+    {
+        MclStorageManager storageManager = new MclStorageManager();
+
+        storageManager.start(
+            environment.getBundleContext(),
+            new MetaContactListServiceImpl());
+        return storageManager;
+    }
+}
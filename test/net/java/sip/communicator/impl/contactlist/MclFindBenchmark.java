@@ -0,0 +1,115 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+import net.java.sip.communicator.benchmark.*;
+import net.java.sip.communicator.impl.protocol.mock.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Measures finding the meta contacts of protocol contacts, by contact and by
+ * address and account, in a contact list built in memory. The number of meta
+ * contacts is set with the <tt>CONTACTS</tt> property, 10000 by default, and
+ * the number of groups they are spread over with the <tt>GROUPS</tt>
+ * property, 20 by default. Setting the <tt>FIND_BY_WALK</tt> property to
+ * <tt>true</tt> measures walking the tree from the root group, as the lookups
+ * did before the contact list was indexed.
+ */
+public class MclFindBenchmark
+    extends Benchmark
+{
+    /**
+     * Whether the tree is walked rather than the index used.
+     */
+    private final boolean walk = getBooleanProperty("FIND_BY_WALK", false);
+
+    /**
+     * The contact list.
+     */
+    private MetaContactListServiceImpl mcl;
+
+    /**
+     * The protocol contacts of the contact list.
+     */
+    private Contact[] contacts;
+
+    /**
+     * The unique ID of the account of the protocol contacts.
+     */
+    private String accountID;
+
+    /**
+     * Generates the indexes of the contacts to find.
+     */
+    private final Random random = new Random(0);
+
+    /**
+     * Builds the contact list.
+     */
+    @Override
+    public void setUp()
+    {
+        int contactCount = getIntProperty("CONTACTS", 10000);
+        int groupCount = Math.max(1, getIntProperty("GROUPS", 20));
+        MockProvider provider = new MockProvider("benchmark");
+        MetaContactGroupImpl[] groups = new MetaContactGroupImpl[groupCount];
+
+        mcl = new MetaContactListServiceImpl();
+        contacts = new Contact[contactCount];
+        accountID = provider.getAccountID().getAccountUniqueID();
+
+        for (int g = 0; g < groupCount; g++)
+        {
+            groups[g] = new MetaContactGroupImpl(mcl, "Group " + g);
+            ((MetaContactGroupImpl) mcl.getRoot()).addSubgroup(groups[g]);
+        }
+        for (int i = 0; i < contactCount; i++)
+        {
+            MetaContactImpl metaContact = new MetaContactImpl();
+
+            contacts[i] = new MockContact("contact" + i + "@example.com",
+                provider);
+            metaContact.addProtoContact(contacts[i]);
+            groups[i % groupCount].addMetaContact(metaContact);
+        }
+    }
+
+    /**
+     * Returns the name of this benchmark, which tells whether the tree is
+     * walked.
+     *
+     * @return the name of this benchmark
+     */
+    @Override
+    public String getName()
+    {
+        return walk ? (super.getName() + "(walk)") : super.getName();
+    }
+
+    @Override
+    public Object run()
+    {
+        Contact contact = contacts[random.nextInt(contacts.length)];
+
+        if (walk)
+        {
+            MetaContactGroupImpl root = (MetaContactGroupImpl) mcl.getRoot();
+
+            root.findMetaContactByContact(contact);
+            return root.findMetaContactByContact(
+                contact.getAddress(), accountID);
+        }
+        else
+        {
+            mcl.findMetaContactByContact(contact);
+            return mcl.findMetaContactByContact(
+                contact.getAddress(), accountID);
+        }
+    }
+}
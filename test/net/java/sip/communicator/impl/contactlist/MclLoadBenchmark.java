@@ -0,0 +1,25 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+/**
+ * Measures loading a generated contact list file with the
+ * <tt>MclStorageManager</tt>.
+ */
+public class MclLoadBenchmark
+    extends MclBenchmark
+{
+    @Override
+    public Object run()
+        throws Exception
+    {
+        MclStorageManager storageManager = startStorageManager();
+
+        storageManager.stop();
+        return storageManager;
+    }
+}
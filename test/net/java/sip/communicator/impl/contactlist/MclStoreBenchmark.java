@@ -0,0 +1,74 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.contactlist.event.*;
+
+/**
+ * Measures storing the change of a single meta contact of a generated
+ * contact list, which is journaled or written as a snapshot of the whole
+ * contact list depending on the configuration of the
+ * <tt>MclStorageManager</tt>.
+ */
+public class MclStoreBenchmark
+    extends MclBenchmark
+{
+    /**
+     * The benchmarked storage manager.
+     */
+    private MclStorageManager storageManager;
+
+    /**
+     * The number of renamed meta contacts.
+     */
+    private int renameCount;
+
+    @Override
+    public void setUp()
+        throws Exception
+    {
+        super.setUp();
+        storageManager = startStorageManager();
+
+        // keeps the storage thread from storing the changes itself
+        storageManager.beginBatchUpdate();
+    }
+
+    @Override
+    public void tearDown()
+    {
+        storageManager.stop();
+        super.tearDown();
+    }
+
+    /**
+     * Renames the next meta contact.
+     */
+    @Override
+    public void prepare()
+    {
+        int i = renameCount++;
+        MetaContactImpl metaContact
+            = new MetaContactImpl(
+                    getMetaUID(i % contactCount),
+                    new Hashtable<String, List<String>>());
+
+        storageManager.metaContactRenamed(
+            new MetaContactRenamedEvent(
+                metaContact, null, "Renamed contact " + i));
+    }
+
+    @Override
+    public Object run()
+        throws Exception
+    {
+        storageManager.storeContactList();
+        return storageManager;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.gui.main.chat;
+
+import javax.swing.text.html.*;
+
+import net.java.sip.communicator.benchmark.*;
+
+/**
+ * Measures appending a message to a chat conversation through its
+ * <tt>ChatTranscript</tt>, after a long conversation has already been
+ * appended. The messages have the structure of the messages of the simple
+ * chat theme, a header table followed by the message text.
+ * <p>
+ * The number of messages appended before the measurement is set with the
+ * <tt>MESSAGES</tt> property, 100000 by default. Comparing the result with
+ * the one for <tt>MESSAGES=0</tt> shows whether the cost of an append grows
+ * with the length of the conversation.
+ */
+public class ChatTranscriptBenchmark
+    extends Benchmark
+{
+    /**
+     * The transcript the messages are appended to.
+     */
+    private ChatTranscript transcript;
+
+    /**
+     * The number of messages appended so far.
+     */
+    private int messageCount;
+
+    /**
+     * Appends the messages of the conversation preceding the measurement.
+     */
+    @Override
+    public void setUp()
+        throws Exception
+    {
+        HTMLEditorKit editorKit = new HTMLEditorKit();
+        int messages = getIntProperty("MESSAGES", 100000);
+
+        transcript
+            = new ChatTranscript(
+                    (HTMLDocument) editorKit.createDefaultDocument());
+        messageCount = 0;
+
+        for (int i = 0; i < messages; i++)
+            run();
+    }
+
+    /**
+     * Returns the name of this benchmark, which tells how many messages
+     * were appended before the measurement.
+     *
+     * @return the name of this benchmark
+     */
+    @Override
+    public String getName()
+    {
+        return super.getName() + "(" + getIntProperty("MESSAGES", 100000)
+            + ")";
+    }
+
+    @Override
+    public Object run()
+        throws Exception
+    {
+        int id = messageCount++;
+
+        transcript.append(
+            "<table width=\"100%\" style=\"background-color:#efefef;\">"
+                + "<tr><td align=\"left\"><h2 id=\"messageHeader\">"
+                + "<a href=\"contact" + (id % 10) + "\">Contact " + (id % 10)
+                + "</a></h2></td><td align=\"right\"><h2>12:00</h2></td>"
+                + "</tr></table>"
+                + "<div id=\"message" + id + "\" date=\"0\">"
+                + "Message number " + id + " of the conversation</div>");
+        return transcript;
+    }
+}
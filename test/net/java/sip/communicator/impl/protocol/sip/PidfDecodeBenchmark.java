@@ -0,0 +1,203 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+import net.java.sip.communicator.benchmark.*;
+
+import org.jitsi.util.xml.XMLUtils;
+import org.w3c.dom.*;
+
+/**
+ * Measures decoding the PIDF documents received in presence NOTIFY requests.
+ * Every operation decodes one of a fixed set of documents, from the ones we
+ * publish ourselves to documents with several tuples and contacts.
+ * <p>
+ * By default the documents are decoded into a <tt>PidfDocument</tt> with the
+ * pull parser. Setting the <tt>PIDF_STREAMING</tt> property to <tt>false</tt>
+ * decodes them into a DOM and looks the same elements up in it, as presence
+ * documents were decoded before.
+ * <p>
+ * The benchmark lives in the package of the SIP provider, as the decoder is
+ * not public, and is left out of the SIP provider bundle.
+ */
+public class PidfDecodeBenchmark
+    extends Benchmark
+{
+    /**
+     * The namespace wildcard of DOM lookups.
+     */
+    private static final String ANY_NS = "*";
+
+    /**
+     * Whether the documents are decoded with the pull parser.
+     */
+    private final boolean streaming
+        = getBooleanProperty("PIDF_STREAMING", true);
+
+    /**
+     * The decoded documents.
+     */
+    private final List<String> documents = new ArrayList<String>();
+
+    /**
+     * The number of executed operations.
+     */
+    private int operationCount;
+
+    @Override
+    public String getName()
+    {
+        return super.getName() + (streaming ? "" : "(dom)");
+    }
+
+    /**
+     * Generates the documents.
+     */
+    @Override
+    public void setUp()
+    {
+        String[] activities
+            = {
+                null,
+                PidfDocument.AWAY_ELEMENT,
+                PidfDocument.BUSY_ELEMENT,
+                PidfDocument.OTP_ELEMENT
+            };
+        String[] notes = { "Online", "Away", "Busy", "On the phone" };
+
+        for (int i = 0; i < activities.length; i++)
+        {
+            documents.add(
+                PidfDocument.write(
+                    "sip:contact" + i + "@example.com",
+                    "p1234",
+                    activities[i],
+                    (i % 2 == 0) ? null : "http://example.com/" + i + ".png",
+                    "t5678",
+                    true,
+                    notes[i]));
+        }
+        documents.add(
+            PidfDocument.write(
+                "sip:offline@example.com",
+                "p1234",
+                null,
+                null,
+                "t5678",
+                false,
+                "Offline"));
+
+        // a document of a client with several devices
+        StringBuilder multiple = new StringBuilder();
+
+        multiple.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+            .append("<presence xmlns=\"urn:ietf:params:xml:ns:pidf\"")
+            .append(" xmlns:dm=\"urn:ietf:params:xml:ns:pidf:data-model\"")
+            .append(" xmlns:rpid=\"urn:ietf:params:xml:ns:pidf:rpid\"")
+            .append(" entity=\"sip:devices@example.com\">");
+        for (int i = 0; i < 4; i++)
+        {
+            multiple.append("<tuple id=\"t").append(i).append("\">")
+                .append("<status><basic>")
+                .append((i == 0) ? "open" : "closed")
+                .append("</basic></status>")
+                .append("<contact priority=\"0.").append(i).append("\">")
+                .append("sip:devices@example.com</contact>")
+                .append("<timestamp>2013-01-01T00:00:00Z</timestamp>")
+                .append("</tuple>");
+        }
+        multiple.append("<dm:person id=\"p1\"><rpid:activities><rpid:busy/>")
+            .append("</rpid:activities></dm:person></presence>");
+        documents.add(multiple.toString());
+    }
+
+    @Override
+    public Object run()
+        throws Exception
+    {
+        String document
+            = documents.get(operationCount++ % documents.size());
+
+        return streaming ? PidfDocument.parse(document) : parseDom(document);
+    }
+
+    /**
+     * Decodes a document into a DOM and looks up the elements which
+     * <tt>OperationSetPresenceSipImpl</tt> interprets.
+     *
+     * @param document the document
+     * @return the looked up values
+     * @throws Exception if the document is not well formed
+     */
+    private static List<String> parseDom(String document)
+        throws Exception
+    {
+        List<String> values = new ArrayList<String>();
+        Document doc = XMLUtils.createDocument(document);
+        Element presence
+            = (Element)
+                doc.getElementsByTagNameNS(
+                        PidfDocument.PIDF_NS_VALUE,
+                        PidfDocument.PRESENCE_ELEMENT)
+                    .item(0);
+
+        values.add(presence.getAttribute("entity"));
+
+        NodeList persons = presence.getElementsByTagNameNS(ANY_NS, "person");
+
+        if (persons.getLength() > 0)
+        {
+            Element person = (Element) persons.item(0);
+            NodeList activities
+                = person.getElementsByTagNameNS(ANY_NS, "activities");
+
+            for (int i = 0; i < activities.getLength(); i++)
+            {
+                NodeList children = activities.item(i).getChildNodes();
+
+                for (int j = 0; j < children.getLength(); j++)
+                    values.add(children.item(j).getLocalName());
+            }
+
+            NodeList statusIcons
+                = person.getElementsByTagNameNS(ANY_NS, "status-icon");
+
+            if (statusIcons.getLength() > 0)
+                values.add(XMLUtils.getText((Element) statusIcons.item(0)));
+        }
+
+        NodeList tuples
+            = presence.getElementsByTagNameNS(
+                    PidfDocument.PIDF_NS_VALUE,
+                    "tuple");
+
+        for (int i = 0; i < tuples.getLength(); i++)
+        {
+            Element tuple = (Element) tuples.item(i);
+            String[] names = { "contact", "basic", "note" };
+
+            for (String name : names)
+            {
+                NodeList elements
+                    = tuple.getElementsByTagNameNS(
+                            PidfDocument.PIDF_NS_VALUE,
+                            name);
+
+                for (int j = 0; j < elements.getLength(); j++)
+                {
+                    Element element = (Element) elements.item(j);
+
+                    values.add(XMLUtils.getText(element));
+                    values.add(element.getAttribute("priority"));
+                }
+            }
+        }
+        return values;
+    }
+}
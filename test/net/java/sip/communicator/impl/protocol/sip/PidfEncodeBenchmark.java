@@ -0,0 +1,165 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import net.java.sip.communicator.benchmark.*;
+
+import org.jitsi.util.xml.XMLUtils;
+import org.w3c.dom.*;
+
+/**
+ * Measures encoding the PIDF documents we publish and send in presence
+ * NOTIFY requests. Every operation encodes the document of one of the
+ * statuses a contact can be in and converts it into the bytes of a request.
+ * <p>
+ * By default the documents are written by <tt>PidfDocument</tt>. Setting the
+ * <tt>PIDF_STREAMING</tt> property to <tt>false</tt> builds a DOM and
+ * serializes it instead, as presence documents were encoded before.
+ * <p>
+ * The benchmark lives in the package of the SIP provider, as the encoder is
+ * not public, and is left out of the SIP provider bundle.
+ */
+public class PidfEncodeBenchmark
+    extends Benchmark
+{
+    /**
+     * The activities of the encoded statuses.
+     */
+    private static final String[] ACTIVITIES
+        = {
+            null,
+            PidfDocument.AWAY_ELEMENT,
+            PidfDocument.BUSY_ELEMENT,
+            PidfDocument.OTP_ELEMENT,
+            null
+        };
+
+    /**
+     * The names of the encoded statuses.
+     */
+    private static final String[] NOTES
+        = { "Online", "Away", "Busy", "On the phone", "Offline" };
+
+    /**
+     * Whether the documents are written without a DOM.
+     */
+    private final boolean streaming
+        = getBooleanProperty("PIDF_STREAMING", true);
+
+    /**
+     * The number of executed operations.
+     */
+    private int operationCount;
+
+    @Override
+    public String getName()
+    {
+        return super.getName() + (streaming ? "" : "(dom)");
+    }
+
+    @Override
+    public Object run()
+        throws Exception
+    {
+        int i = operationCount++ % NOTES.length;
+        String entity = "sip:contact" + i + "@example.com";
+        String statusIcon
+            = (i % 2 == 0) ? null : "http://example.com/" + i + ".png";
+        boolean open = (i != NOTES.length - 1);
+        String document;
+
+        if (streaming)
+        {
+            document
+                = PidfDocument.write(
+                        entity,
+                        "p1234",
+                        ACTIVITIES[i],
+                        statusIcon,
+                        "t5678",
+                        open,
+                        NOTES[i]);
+        }
+        else
+        {
+            document
+                = writeDom(entity, ACTIVITIES[i], statusIcon, open, NOTES[i]);
+        }
+        return document.getBytes("UTF-8");
+    }
+
+    /**
+     * Builds and serializes the DOM which
+     * <tt>OperationSetPresenceSipImpl</tt> used to publish.
+     *
+     * @param entity the URI of the presentity
+     * @param activity the RPID activity or <tt>null</tt>
+     * @param statusIcon the URI of the status icon or <tt>null</tt>
+     * @param open whether the basic status is open
+     * @param note the name of the status
+     * @return the serialized document
+     * @throws Exception if the document cannot be built or serialized
+     */
+    private static String writeDom(
+            String entity,
+            String activity,
+            String statusIcon,
+            boolean open,
+            String note)
+        throws Exception
+    {
+        Document doc = XMLUtils.createDocument();
+
+        Element presence = doc.createElement(PidfDocument.PRESENCE_ELEMENT);
+        presence.setAttribute("xmlns", PidfDocument.PIDF_NS_VALUE);
+        presence.setAttribute("xmlns:rpid", PidfDocument.RPID_NS_VALUE);
+        presence.setAttribute("xmlns:dm", PidfDocument.DM_NS_VALUE);
+        presence.setAttribute("entity", entity);
+        doc.appendChild(presence);
+
+        Element person = doc.createElement("dm:person");
+        person.setAttribute("id", "p1234");
+        presence.appendChild(person);
+
+        Element activities = doc.createElement("rpid:activities");
+        person.appendChild(activities);
+
+        if (statusIcon != null)
+        {
+            Element statusIconEl = doc.createElement("rpid:status-icon");
+            statusIconEl.setTextContent(statusIcon);
+            person.appendChild(statusIconEl);
+        }
+        if (activity != null)
+            activities.appendChild(doc.createElement("rpid:" + activity));
+
+        Element tuple = doc.createElement("tuple");
+        tuple.setAttribute("id", "t5678");
+        presence.appendChild(tuple);
+
+        Element status = doc.createElement("status");
+        tuple.appendChild(status);
+
+        Element basic = doc.createElement("basic");
+        basic.appendChild(
+            doc.createTextNode(
+                    open
+                        ? PidfDocument.ONLINE_STATUS
+                        : PidfDocument.OFFLINE_STATUS));
+        status.appendChild(basic);
+
+        Element contact = doc.createElement("contact");
+        contact.appendChild(doc.createTextNode(entity));
+        tuple.appendChild(contact);
+
+        Element noteEl = doc.createElement("note");
+        noteEl.appendChild(doc.createTextNode(note));
+        tuple.appendChild(noteEl);
+
+        return XMLUtils.createXml(doc);
+    }
+}
@@ -82,6 +82,90 @@ public class TestMetaContactGroup extends TestCase
                     , mockGroup.countContacts());
     }
 
+    /**
+     * Changes the status of the contacts of the tested group back and forth
+     * between online and offline and verifies that the number of online
+     * child contacts kept by every group matches a full recount.
+     */
+    public void testCountOnlineChildContacts()
+    {
+        MockPersistentPresenceOperationSet opSetPresence
+            = (MockPersistentPresenceOperationSet) MclSlickFixture.mockProvider
+                .getOperationSet(OperationSetPersistentPresence.class);
+        List<MockContact> contacts = new ArrayList<MockContact>();
+        List<MockStatusEnum> statuses = new ArrayList<MockStatusEnum>();
+        Iterator<Contact> contactsIter = mockGroup.contacts();
+
+        while (contactsIter.hasNext())
+        {
+            MockContact contact = (MockContact) contactsIter.next();
+
+            contacts.add(contact);
+            statuses.add((MockStatusEnum) contact.getPresenceStatus());
+        }
+
+        assertOnlineChildContactsCount(fixture.metaClService.getRoot());
+
+        try
+        {
+            for (int i = 0; i < contacts.size(); i++)
+            {
+                opSetPresence.changePresenceStatusForContact(
+                    contacts.get(i), MockStatusEnum.MOCK_STATUS_00);
+                assertOnlineChildContactsCount(metaGroup);
+            }
+            for (int i = 0; i < contacts.size(); i += 2)
+            {
+                opSetPresence.changePresenceStatusForContact(
+                    contacts.get(i), MockStatusEnum.MOCK_STATUS_40);
+                assertOnlineChildContactsCount(metaGroup);
+            }
+        }
+        finally
+        {
+            for (int i = 0; i < contacts.size(); i++)
+            {
+                opSetPresence.changePresenceStatusForContact(
+                    contacts.get(i), statuses.get(i));
+            }
+        }
+
+        assertOnlineChildContactsCount(fixture.metaClService.getRoot());
+    }
+
+    /**
+     * Verifies that the number of online child contacts of
+     * <tt>metaContactGroup</tt> and of all its subgroups matches the number
+     * of child contacts whose default contact is online.
+     *
+     * @param metaContactGroup the group to check
+     */
+    private static void assertOnlineChildContactsCount(
+                                            MetaContactGroup metaContactGroup)
+    {
+        int onlineContacts = 0;
+        Iterator<MetaContact> childContacts
+            = metaContactGroup.getChildContacts();
+
+        while (childContacts.hasNext())
+        {
+            Contact contact = childContacts.next().getDefaultContact();
+
+            if (contact != null && contact.getPresenceStatus().isOnline())
+                onlineContacts++;
+        }
+
+        assertEquals("countOnlineChildContacts() of "
+                        + metaContactGroup.getGroupName()
+                    , onlineContacts
+                    , metaContactGroup.countOnlineChildContacts());
+
+        Iterator<MetaContactGroup> subgroups = metaContactGroup.getSubgroups();
+
+        while (subgroups.hasNext())
+            assertOnlineChildContactsCount(subgroups.next());
+    }
+
     /**
      * Verifies whehter the returned number of subgroups corresponds to the
      * subgroups of the corresponding mock contact group.
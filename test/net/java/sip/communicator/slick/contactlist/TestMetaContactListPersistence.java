@@ -1,5 +1,6 @@
 package net.java.sip.communicator.slick.contactlist;
 
+import java.io.*;
 import java.util.*;
 
 import junit.framework.*;
@@ -7,6 +8,8 @@ import net.java.sip.communicator.impl.protocol.mock.*;
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.protocol.*;
 
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.osgi.framework.*;
 
 /**
@@ -16,6 +19,53 @@ import org.osgi.framework.*;
  */
 public class TestMetaContactListPersistence extends TestCase
 {
+    /**
+     * The name of the property holding the name of the contact list file.
+     */
+    private static final String FILE_NAME_PROPERTY
+        = "net.java.sip.communicator.CONTACTLIST_FILE_NAME";
+
+    /**
+     * The ID of the contact whose meta contact is renamed before the last
+     * snapshot of the contact list.
+     */
+    private static final String SNAPSHOT_CONTACT_ID
+        = "testJournalMetaContactChanges.SnapshotContactID";
+
+    /**
+     * The ID of the contact whose meta contact is renamed after the last
+     * snapshot of the contact list.
+     */
+    private static final String JOURNALED_CONTACT_ID
+        = "testJournalMetaContactChanges.JournaledContactID";
+
+    /**
+     * The name given to the snapshot meta contact in the journal of the
+     * previous snapshot.
+     */
+    private static final String STALE_NAME = "testJournal.StaleName";
+
+    /**
+     * The name of the snapshot meta contact in the last snapshot.
+     */
+    private static final String SNAPSHOT_NAME = "testJournal.SnapshotName";
+
+    /**
+     * The name given to the journaled meta contact after the last snapshot.
+     */
+    private static final String JOURNALED_NAME = "testJournal.JournaledName";
+
+    /**
+     * The time in milliseconds we wait for the contact list to be stored.
+     */
+    private static final long STORAGE_TIMEOUT = 10000;
+
+    /**
+     * The journal of the previous snapshot of the contact list, which is
+     * left over by the simulated crash.
+     */
+    private static byte[] staleJournal = null;
+
     /**
      * A reference to the SLICK fixture.
      */
@@ -56,9 +106,21 @@ public class TestMetaContactListPersistence extends TestCase
         suite.addTest(new TestMetaContactListPersistence(
             "testCreateAndMoveMetaContact"));
 
+        suite.addTest(new TestMetaContactListPersistence(
+            "testJournalMetaContactChanges"));
+
         suite.addTest(new TestMetaContactListPersistence(
             "testReloadMetaContactListBundle"));
 
+        suite.addTest(new TestMetaContactListPersistence(
+            "testReplayJournalAfterCrash"));
+
+        suite.addTest(new TestMetaContactListPersistence(
+            "testIgnoreStaleJournalEntries"));
+
+        suite.addTest(new TestMetaContactListPersistence(
+            "testCompactReplayedJournal"));
+
         suite.addTest( new TestMetaContactListPersistence(
             "testPartialContactListRestauration"));
 
@@ -107,6 +169,89 @@ public class TestMetaContactListPersistence extends TestCase
             newMetaContact, fixture.metaClService.getRoot());
     }
 
+    /**
+     * Renames meta contacts and verifies that the changes are appended to
+     * the journal, and that the journal is truncated once a change of a
+     * group writes a snapshot of the contact list. The journal of the
+     * previous snapshot is kept so that the reload of the meta contact list
+     * may simulate a crash before it was truncated.
+     *
+     * @throws Exception if the contact list files cannot be accessed
+     */
+    public void testJournalMetaContactChanges()
+        throws Exception
+    {
+        MetaContactGroup root = fixture.metaClService.getRoot();
+
+        fixture.metaClService.createMetaContact(
+            MclSlickFixture.mockProvider, root, SNAPSHOT_CONTACT_ID);
+        fixture.metaClService.createMetaContact(
+            MclSlickFixture.mockProvider, root, JOURNALED_CONTACT_ID);
+
+        MetaContact snapshotContact = root.getMetaContact(
+            MclSlickFixture.mockProvider, SNAPSHOT_CONTACT_ID);
+        MetaContact journaledContact = root.getMetaContact(
+            MclSlickFixture.mockProvider, JOURNALED_CONTACT_ID);
+
+        assertNotNull("create failed. couldn't find the new contact."
+            , snapshotContact);
+        assertNotNull("create failed. couldn't find the new contact."
+            , journaledContact);
+
+        File contactListFile = getContactListFile();
+        File journalFile = getJournalFile(contactListFile);
+
+        //the change of a single meta contact is only journaled
+        fixture.metaClService.renameMetaContact(snapshotContact, STALE_NAME);
+
+        assertTrue("The rename was not journaled."
+            , waitForContent(journalFile, STALE_NAME));
+        assertFalse("The rename was written to the contact list file."
+            , containsContent(contactListFile, STALE_NAME));
+
+        staleJournal = readFile(journalFile);
+
+        //the change of a group writes a snapshot and truncates the journal
+        fixture.metaClService.renameMetaContact(snapshotContact, SNAPSHOT_NAME);
+
+        MetaContactGroup group = fixture.metaClService.createMetaContactGroup(
+            root, "testJournalMetaContactChanges.Group");
+
+        fixture.metaClService.removeMetaContactGroup(group);
+
+        assertTrue("The snapshot was not written."
+            , waitForContent(contactListFile, SNAPSHOT_NAME));
+
+        long timeout = System.currentTimeMillis() + STORAGE_TIMEOUT;
+        while (journalFile.length() != 0
+                && System.currentTimeMillis() < timeout)
+            Thread.sleep(100);
+
+        assertEquals("The journal was not truncated after the snapshot."
+            , 0, journalFile.length());
+
+        //an entry left incomplete by a crash while it was being appended
+        OutputStream out = new FileOutputStream(journalFile, true);
+        try
+        {
+            out.write(("<entry generation=\"0\" group=\"0\">"
+                + "<meta-contact uid=\"testJournal.TornEntry\">")
+                    .getBytes("UTF-8"));
+        }
+        finally
+        {
+            out.close();
+        }
+
+        //journaled after the snapshot and the incomplete entry, replayed
+        //when reloading
+        fixture.metaClService.renameMetaContact(
+            journaledContact, JOURNALED_NAME);
+
+        assertTrue("The rename was not journaled."
+            , waitForContent(journalFile, JOURNALED_NAME));
+    }
+
 
     /**
      * Uninstalls the meta contact list bundle so that it would be forced to
@@ -144,6 +289,10 @@ public class TestMetaContactListPersistence extends TestCase
         assertEquals("Couldn't stop the meta cl bundle."
                      , Bundle.UNINSTALLED, metaClBundle.getState());
 
+        //the reloaded contact list has to survive a crash
+        if (staleJournal != null)
+            simulateCrashWhileStoringContactList();
+
         //unregister all mock providers
         MclSlickFixture.mockPrServiceRegistration.unregister();
         MclSlickFixture.mockP1ServiceRegistration.unregister();
@@ -188,6 +337,66 @@ public class TestMetaContactListPersistence extends TestCase
                       , fixture.metaClService);
     }
 
+    /**
+     * Tests whether the contact list was restored from the backup of the
+     * failsafe transaction after the simulated crash and whether the
+     * changes journaled after its last snapshot were replayed over it.
+     */
+    public void testReplayJournalAfterCrash()
+    {
+        MetaContact journaledContact
+            = fixture.metaClService.getRoot().getMetaContact(
+                    MclSlickFixture.replacementMockPr, JOURNALED_CONTACT_ID);
+
+        assertNotNull("The contact list was not restored from its backup."
+            , journaledContact);
+        assertEquals("The journal was not replayed."
+            , JOURNALED_NAME, journaledContact.getDisplayName());
+    }
+
+    /**
+     * Tests whether the journal entries of the previous snapshot, which
+     * were left over by the simulated crash, were ignored rather than
+     * replayed over the last snapshot.
+     */
+    public void testIgnoreStaleJournalEntries()
+    {
+        MetaContact snapshotContact
+            = fixture.metaClService.getRoot().getMetaContact(
+                    MclSlickFixture.replacementMockPr, SNAPSHOT_CONTACT_ID);
+
+        assertNotNull("The contact list was not restored from its backup."
+            , snapshotContact);
+        assertEquals("A stale journal entry was replayed."
+            , SNAPSHOT_NAME, snapshotContact.getDisplayName());
+    }
+
+    /**
+     * Tests whether the journal, which holds an incomplete entry followed by
+     * the entry appended after it, was compacted into a snapshot after it
+     * was replayed, so that the entries appended from now on do not follow
+     * the incomplete one.
+     *
+     * @throws Exception if the contact list files cannot be accessed
+     */
+    public void testCompactReplayedJournal()
+        throws Exception
+    {
+        File contactListFile = getContactListFile();
+        File journalFile = getJournalFile(contactListFile);
+
+        assertTrue("The replayed journal was not written to a snapshot."
+            , waitForContent(contactListFile, JOURNALED_NAME));
+
+        long timeout = System.currentTimeMillis() + STORAGE_TIMEOUT;
+        while (journalFile.length() != 0
+                && System.currentTimeMillis() < timeout)
+            Thread.sleep(100);
+
+        assertEquals("The replayed journal was not truncated."
+            , 0, journalFile.length());
+    }
+
     /**
      * Tests whether the freshly reloaded meta contact list has properly
      * reloaded contacts for the provider that was registered at the time of its
@@ -334,6 +543,163 @@ public class TestMetaContactListPersistence extends TestCase
         fixture.metaClService.purgeLocallyStoredContactListCopy();
     }
 
+    /**
+     * Leaves the contact list files as a crash would while a new snapshot is
+     * written, just after the previous snapshot was committed but before
+     * its journal was truncated: the journal still starts with the entries
+     * of the previous snapshot, and the contact list file is half written
+     * with its backup next to it.
+     *
+     * @throws Exception if the contact list files cannot be accessed
+     */
+    private void simulateCrashWhileStoringContactList()
+        throws Exception
+    {
+        File contactListFile = getContactListFile();
+        File journalFile = getJournalFile(contactListFile);
+        byte[] journal = readFile(journalFile);
+        byte[] snapshot = readFile(contactListFile);
+
+        OutputStream out = new FileOutputStream(journalFile);
+        try
+        {
+            out.write(staleJournal);
+            out.write(journal);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        writeFile(new File(contactListFile.getPath() + ".bak"), snapshot);
+        writeFile(contactListFile,
+            Arrays.copyOf(snapshot, snapshot.length / 2));
+    }
+
+    /**
+     * Returns the contact list file of the meta contact list service.
+     *
+     * @return the contact list file
+     * @throws Exception if the file cannot be accessed
+     */
+    private File getContactListFile()
+        throws Exception
+    {
+        BundleContext bc = MclSlickFixture.bundleContext;
+        ConfigurationService configurationService
+            = (ConfigurationService) bc.getService(
+                    bc.getServiceReference(
+                            ConfigurationService.class.getName()));
+        FileAccessService faService
+            = (FileAccessService) bc.getService(
+                    bc.getServiceReference(FileAccessService.class.getName()));
+
+        String fileName = configurationService.getString(FILE_NAME_PROPERTY);
+
+        if (fileName == null)
+        {
+            fileName
+                = System.getProperty(FILE_NAME_PROPERTY, "contactlist.xml");
+        }
+        return faService.getPrivatePersistentFile(fileName);
+    }
+
+    /**
+     * Returns the journal of a contact list file.
+     *
+     * @param contactListFile the contact list file
+     * @return the journal of <tt>contactListFile</tt>
+     */
+    private static File getJournalFile(File contactListFile)
+    {
+        return new File(contactListFile.getPath() + ".journal");
+    }
+
+    /**
+     * Waits until a file contains a string, as the contact list is stored
+     * by a separate thread.
+     *
+     * @param file the file
+     * @param content the string
+     * @return <tt>true</tt> if <tt>file</tt> contains <tt>content</tt>
+     * before the storage timeout
+     * @throws Exception if reading the file fails or we are interrupted
+     */
+    private static boolean waitForContent(File file, String content)
+        throws Exception
+    {
+        long timeout = System.currentTimeMillis() + STORAGE_TIMEOUT;
+
+        while (!containsContent(file, content))
+        {
+            if (System.currentTimeMillis() >= timeout)
+                return false;
+            Thread.sleep(100);
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a file contains a string.
+     *
+     * @param file the file
+     * @param content the string
+     * @return <tt>true</tt> if <tt>file</tt> contains <tt>content</tt>
+     * @throws IOException if reading the file fails
+     */
+    private static boolean containsContent(File file, String content)
+        throws IOException
+    {
+        return file.exists()
+            && new String(readFile(file), "UTF-8").contains(content);
+    }
+
+    /**
+     * Reads the content of a file.
+     *
+     * @param file the file
+     * @return the content of <tt>file</tt>
+     * @throws IOException if reading the file fails
+     */
+    private static byte[] readFile(File file)
+        throws IOException
+    {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+        try
+        {
+            in.readFully(bytes);
+        }
+        finally
+        {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Replaces the content of a file.
+     *
+     * @param file the file
+     * @param bytes the new content of <tt>file</tt>
+     * @throws IOException if writing the file fails
+     */
+    private static void writeFile(File file, byte[] bytes)
+        throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+
+        try
+        {
+            out.write(bytes);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
     /**
      * Returns the bundle that has registered the meta contact list service
      * implementation that we're currently testing. The method would go through
@@ -6,12 +6,16 @@
  */
 package net.java.sip.communicator.slick.history;
 
+import java.io.*;
 import java.util.*;
 
 import junit.framework.*;
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
 
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.osgi.framework.*;
 
 public class TestHistoryService extends TestCase {
@@ -19,6 +23,26 @@ public class TestHistoryService extends TestCase {
     private static HistoryRecordStructure recordStructure =
         new HistoryRecordStructure(new String[] { "age", "name_CDATA", "sex" });
 
+    /**
+     * The name of the property which selects how the records of a history
+     * are stored.
+     */
+    private static final String STORAGE_TYPE_PROPERTY
+        = "net.java.sip.communicator.impl.history.STORAGE_TYPE";
+
+    /**
+     * The number of records written by the tests of the segment storage,
+     * more than fit in an XML document or in a batch of records read at
+     * once.
+     */
+    private static final int SEGMENT_RECORD_COUNT = 400;
+
+    /**
+     * The timestamp of the first record written by the tests of the segment
+     * storage.
+     */
+    private static final long SEGMENT_START_TIME = 1000000000000L;
+
     /**
      * The ConfigurationService that we will be testing.
      */
@@ -43,6 +67,8 @@ public class TestHistoryService extends TestCase {
         suite.addTest(new TestHistoryService("testWriteRecords"));
         suite.addTest(new TestHistoryService("testReadRecords"));
         suite.addTest(new TestHistoryService("testPurgeLocallyStoredHistory"));
+        suite.addTest(new TestHistoryService("testSegmentStorage"));
+        suite.addTest(new TestHistoryService("testMigrateToSegmentStorage"));
 
         return suite;
     }
@@ -193,4 +219,309 @@ public class TestHistoryService extends TestCase {
                  + " : " + ex.getMessage());
         }
     }
+
+    /**
+     * Writes records to a history stored in a segment and reads them back
+     * by period, last and first records, keyword and after an update. The
+     * queries cross the boundaries of the batches in which records are
+     * read from the segment.
+     *
+     * @throws Exception if the history cannot be created, written or read
+     */
+    public void testSegmentStorage()
+        throws Exception
+    {
+        HistoryID id = HistoryID.createFromRawID(new String[] { "test",
+                "segment" + Integer.toHexString(random.nextInt()) });
+        String property = getStorageTypeProperty(id);
+        ConfigurationService configService
+            = ServiceUtils.getService(
+                    HistoryServiceLick.bc, ConfigurationService.class);
+
+        configService.setProperty(property, "segment");
+        try
+        {
+            History history
+                = this.historyService.createHistory(id, recordStructure);
+
+            writeSegmentRecords(history);
+
+            assertTrue("Records not stored in a segment",
+                new File(getHistoryDirectory(id), "records.seg").exists());
+
+            HistoryReader reader = history.getReader();
+
+            assertEquals(SEGMENT_RECORD_COUNT, reader.countRecords());
+            assertRecords(
+                reader.findByPeriod(getSegmentDate(100), getSegmentDate(350)),
+                100, 350);
+            assertRecords(reader.findLast(200),
+                SEGMENT_RECORD_COUNT - 200, SEGMENT_RECORD_COUNT);
+            assertRecords(
+                reader.findFirstRecordsAfter(getSegmentDate(140), 20),
+                140, 160);
+            assertRecords(
+                reader.findLastRecordsBefore(getSegmentDate(310), 20),
+                290, 310);
+
+            // "name3", "name30" to "name39" and "name300" to "name399"
+            assertKeywordRecords(reader, "name3", 111);
+
+            history.getWriter().updateRecord("age", "250", "sex", "x");
+
+            QueryResultSet<HistoryRecord> updated
+                = reader.findByPeriod(getSegmentDate(250), getSegmentDate(251));
+            assertTrue("Updated record not found", updated.hasNext());
+            assertEquals("x", updated.nextRecord().getPropertyValues()[2]);
+            assertFalse("Record duplicated by its update", updated.hasNext());
+            assertEquals(SEGMENT_RECORD_COUNT, reader.countRecords());
+            assertKeywordRecords(reader, "name25", 11);
+        }
+        finally
+        {
+            configService.removeProperty(property);
+            this.historyService.purgeLocallyStoredHistory(id);
+        }
+    }
+
+    /**
+     * Writes records to a history stored in XML documents, copies the
+     * documents to the directory of a history stored in a segment and
+     * checks that the latter migrates them and returns the same records.
+     *
+     * @throws Exception if the histories cannot be created, written or read
+     */
+    public void testMigrateToSegmentStorage()
+        throws Exception
+    {
+        String suffix = Integer.toHexString(random.nextInt());
+        HistoryID xmlID = HistoryID.createFromRawID(new String[] { "test",
+                "xml" + suffix });
+        HistoryID segmentID = HistoryID.createFromRawID(new String[] { "test",
+                "migrated" + suffix });
+        String property = getStorageTypeProperty(segmentID);
+        ConfigurationService configService
+            = ServiceUtils.getService(
+                    HistoryServiceLick.bc, ConfigurationService.class);
+
+        configService.setProperty(property, "segment");
+        try
+        {
+            History xmlHistory
+                = this.historyService.createHistory(xmlID, recordStructure);
+
+            writeSegmentRecords(xmlHistory);
+
+            File xmlDirectory = getHistoryDirectory(xmlID);
+            File[] xmlFiles = xmlDirectory.listFiles(new FilenameFilter()
+            {
+                public boolean accept(File dir, String name)
+                {
+                    return name.endsWith(".xml");
+                }
+            });
+            assertTrue("Records not stored in several XML documents",
+                xmlFiles.length > 1);
+
+            History segmentHistory
+                = this.historyService.createHistory(segmentID, recordStructure);
+            File segmentDirectory = getHistoryDirectory(segmentID);
+
+            for (File xmlFile : xmlFiles)
+            {
+                copyFile(
+                    xmlFile, new File(segmentDirectory, xmlFile.getName()));
+            }
+
+            HistoryReader reader = segmentHistory.getReader();
+
+            assertEquals(SEGMENT_RECORD_COUNT, reader.countRecords());
+            assertRecords(reader.findByStartDate(getSegmentDate(0)),
+                0, SEGMENT_RECORD_COUNT);
+            assertRecords(
+                reader.findByPeriod(getSegmentDate(120), getSegmentDate(320)),
+                120, 320);
+
+            assertTrue("Records not migrated to a segment",
+                new File(segmentDirectory, "records.seg").exists());
+            for (File xmlFile : xmlFiles)
+            {
+                assertFalse("XML document not renamed after its migration",
+                    new File(segmentDirectory, xmlFile.getName()).exists());
+                assertTrue("Migrated XML document not kept",
+                    new File(segmentDirectory, xmlFile.getName() + ".migrated")
+                        .exists());
+            }
+        }
+        finally
+        {
+            configService.removeProperty(property);
+            this.historyService.purgeLocallyStoredHistory(xmlID);
+            this.historyService.purgeLocallyStoredHistory(segmentID);
+        }
+    }
+
+    /**
+     * Writes {@link #SEGMENT_RECORD_COUNT} records one second apart, the
+     * age of each record being its number.
+     *
+     * @param history the history to write to
+     * @throws IOException if writing fails
+     */
+    private void writeSegmentRecords(History history)
+        throws IOException
+    {
+        HistoryWriter writer = history.getWriter();
+
+        for (int i = 0; i < SEGMENT_RECORD_COUNT; i++)
+        {
+            writer.addRecord(
+                new String[] { "" + i, "name" + i, i % 2 == 0 ? "m" : "f" },
+                getSegmentDate(i));
+        }
+    }
+
+    /**
+     * Returns the timestamp of a record written by
+     * {@link #writeSegmentRecords(History)}.
+     *
+     * @param i the number of the record
+     * @return the timestamp of the record
+     */
+    private static Date getSegmentDate(int i)
+    {
+        return new Date(SEGMENT_START_TIME + i * 1000L);
+    }
+
+    /**
+     * Checks that a result contains exactly the records written by
+     * {@link #writeSegmentRecords(History)} with a number in
+     * [<tt>from</tt>, <tt>to</tt>), in order.
+     *
+     * @param result the result to check
+     * @param from the number of the first expected record
+     * @param to the number after the last expected record
+     */
+    private static void assertRecords(QueryResultSet<HistoryRecord> result,
+                                      int from,
+                                      int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            assertTrue("Missing record " + i, result.hasNext());
+
+            HistoryRecord record = result.nextRecord();
+            String[] values = record.getPropertyValues();
+
+            assertEquals(getSegmentDate(i), record.getTimestamp());
+            assertEquals("" + i, values[0]);
+            assertEquals("name" + i, values[1]);
+        }
+        assertFalse("Unexpected record after " + (to - 1), result.hasNext());
+    }
+
+    /**
+     * Checks that a keyword search in the names returns the expected number
+     * of records, all of which contain the keyword.
+     *
+     * @param reader the reader of the history
+     * @param keyword the keyword to search for
+     * @param count the expected number of records
+     */
+    private static void assertKeywordRecords(HistoryReader reader,
+                                             String keyword,
+                                             int count)
+    {
+        QueryResultSet<HistoryRecord> result
+            = reader.findByKeyword(keyword, "name");
+        int found = 0;
+
+        while (result.hasNext())
+        {
+            String name = result.nextRecord().getPropertyValues()[1];
+
+            assertTrue(name + " does not contain " + keyword,
+                name.contains(keyword));
+            found++;
+        }
+        assertEquals(count, found);
+    }
+
+    /**
+     * Returns the name of the property which selects how the records of a
+     * specific history are stored.
+     *
+     * @param id the identifier of the history
+     * @return the name of the property
+     */
+    private static String getStorageTypeProperty(HistoryID id)
+    {
+        StringBuilder property = new StringBuilder(STORAGE_TYPE_PROPERTY);
+
+        for (String component : id.getID())
+            property.append('.').append(component);
+        return property.toString();
+    }
+
+    /**
+     * Returns the directory of a history whose identifier contains only
+     * characters allowed in file names.
+     *
+     * @param id the identifier of the history
+     * @return the directory of the history
+     * @throws Exception if the directory cannot be determined
+     */
+    private static File getHistoryDirectory(HistoryID id)
+        throws Exception
+    {
+        String[] components = id.getID();
+        String[] dirs = new String[components.length + 1];
+        String userSetDataDirectory
+            = System.getProperty("HistoryServiceDirectory");
+
+        dirs[0]
+            = (userSetDataDirectory == null)
+                ? "history_ver1.0"
+                : userSetDataDirectory;
+        System.arraycopy(components, 0, dirs, 1, components.length);
+
+        return ServiceUtils.getService(
+                    HistoryServiceLick.bc, FileAccessService.class)
+                .getPrivatePersistentDirectory(dirs);
+    }
+
+    /**
+     * Copies a file.
+     *
+     * @param source the file to copy
+     * @param destination the copy
+     * @throws IOException if copying fails
+     */
+    private static void copyFile(File source, File destination)
+        throws IOException
+    {
+        InputStream in = new FileInputStream(source);
+
+        try
+        {
+            OutputStream out = new FileOutputStream(destination);
+
+            try
+            {
+                byte[] buffer = new byte[8192];
+                int read;
+
+                while ((read = in.read(buffer)) != -1)
+                    out.write(buffer, 0, read);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
 }
@@ -82,6 +82,9 @@ public class SipProtocolProviderServiceLick
         // xcap parsing tests
         addTest(TestXCapParse.suite());
 
+        // resource list notification parsing tests
+        addTest(TestResourceListParse.suite());
+
         //proxy detection tests
         addTestSuite(TestAutoProxyDetection.class);
 
@@ -0,0 +1,340 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.protocol.sip;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.sip.*;
+
+/**
+ * Contains tests of parsing the multipart/related bodies of the NOTIFY
+ * requests of resource list subscriptions (RFC 4662).
+ */
+public class TestResourceListParse extends TestCase
+{
+    /**
+     * The boundary of the bodies of the notifications.
+     */
+    private static final String BOUNDARY = "50UBfW7LSCVLtggUPe5z";
+
+    /**
+     * The boundary of the bodies of the nested lists.
+     */
+    private static final String NESTED_BOUNDARY = "TfZxoxgAvLqgj4wRWPDL";
+
+    /**
+     * The URI of the notified list.
+     */
+    private static final String LIST_URI = "sip:buddies@example.com";
+
+    /**
+     * The value with a non-ASCII char put in the notes of the presence
+     * documents.
+     */
+    private static final String NOTE = "Caf\u00e9";
+
+    /**
+     * Creates a test suite containing the tests of this class.
+     *
+     * @return the test suite
+     */
+    public static Test suite()
+    {
+        return new TestSuite(TestResourceListParse.class);
+    }
+
+    /**
+     * Tests parsing a full-state notification with the parts of several
+     * resources, a terminated resource and a pending resource.
+     *
+     * @throws Exception if there is some error during test.
+     */
+    public void testParseFullStateNotification() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        appendPart(out, BOUNDARY, "application/rlmi+xml", "rlmi@example.com",
+            createRlmi(LIST_URI, 1, true,
+                "<resource uri=\"sip:alice@example.com\">"
+                + "<instance id=\"a1\" state=\"active\""
+                + " cid=\"alice@example.com\"/></resource>"
+                + "<resource uri=\"sip:bob@example.com\">"
+                + "<instance id=\"b1\" state=\"active\""
+                + " cid=\"bob@example.com\"/></resource>"
+                + "<resource uri=\"sip:carol@example.com\">"
+                + "<instance id=\"c1\" state=\"terminated\""
+                + " reason=\"rejected\"/></resource>"
+                + "<resource uri=\"sip:dave@example.com\"/>")
+                .getBytes("UTF-8"));
+        appendPart(out, BOUNDARY, "application/pidf+xml", "alice@example.com",
+            createPidf("sip:alice@example.com", "open", null)
+                .getBytes("UTF-8"));
+        appendPart(out, BOUNDARY, "application/pidf+xml", "bob@example.com",
+            createPidf("sip:bob@example.com", "closed", null)
+                .getBytes("UTF-8"));
+        closeBody(out, BOUNDARY);
+
+        ResourceListNotification notification
+            = ResourceListNotification.parse(
+                    createContentType(BOUNDARY, "rlmi@example.com"),
+                    out.toByteArray());
+
+        assertNotNull("The notification was not parsed", notification);
+        assertEquals("list uri", LIST_URI, notification.getUri());
+        assertEquals("version", 1, notification.getVersion());
+        assertTrue("fullState", notification.isFullState());
+
+        List<ResourceListNotification.Resource> resources
+            = notification.getResources();
+
+        assertEquals("resource count", 4, resources.size());
+        assertResource(resources.get(0), "sip:alice@example.com",
+            ResourceListNotification.ACTIVE, null, "<basic>open</basic>");
+        assertResource(resources.get(1), "sip:bob@example.com",
+            ResourceListNotification.ACTIVE, null, "<basic>closed</basic>");
+        assertResource(resources.get(2), "sip:carol@example.com",
+            ResourceListNotification.TERMINATED, "rejected", null);
+        assertResource(resources.get(3), "sip:dave@example.com",
+            null, null, null);
+    }
+
+    /**
+     * Tests parsing a partial-state notification which only contains the
+     * resources that changed, with the root part given by the start
+     * parameter rather than being the first one.
+     *
+     * @throws Exception if there is some error during test.
+     */
+    public void testParsePartialStateNotification() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        appendPart(out, BOUNDARY, "application/pidf+xml", "bob@example.com",
+            createPidf("sip:bob@example.com", "open", null)
+                .getBytes("UTF-8"));
+        appendPart(out, BOUNDARY, "application/rlmi+xml", "rlmi@example.com",
+            createRlmi(LIST_URI, 2, false,
+                "<resource uri=\"sip:bob@example.com\">"
+                + "<instance id=\"b1\" state=\"active\""
+                + " cid=\"bob@example.com\"/></resource>")
+                .getBytes("UTF-8"));
+        closeBody(out, BOUNDARY);
+
+        ResourceListNotification notification
+            = ResourceListNotification.parse(
+                    createContentType(BOUNDARY, "rlmi@example.com"),
+                    out.toByteArray());
+
+        assertNotNull("The notification was not parsed", notification);
+        assertEquals("version", 2, notification.getVersion());
+        assertFalse("fullState", notification.isFullState());
+
+        List<ResourceListNotification.Resource> resources
+            = notification.getResources();
+
+        assertEquals("resource count", 1, resources.size());
+        assertResource(resources.get(0), "sip:bob@example.com",
+            ResourceListNotification.ACTIVE, null, "<basic>open</basic>");
+    }
+
+    /**
+     * Tests that each part is decoded with the charset of its Content-Type
+     * and with UTF-8 when it has none, including the parts of a nested
+     * list.
+     *
+     * @throws Exception if there is some error during test.
+     */
+    public void testParsePartCharsets() throws Exception
+    {
+        ByteArrayOutputStream nested = new ByteArrayOutputStream();
+
+        appendPart(nested, NESTED_BOUNDARY, "application/rlmi+xml",
+            "nested@example.com",
+            createRlmi("sip:friends@example.com", 1, true,
+                "<resource uri=\"sip:carol@example.com\">"
+                + "<instance id=\"c1\" state=\"active\""
+                + " cid=\"carol@example.com\"/></resource>")
+                .getBytes("UTF-8"));
+        appendPart(nested, NESTED_BOUNDARY,
+            "application/pidf+xml;charset=ISO-8859-1", "carol@example.com",
+            createPidf("sip:carol@example.com", "open", NOTE)
+                .getBytes("ISO-8859-1"));
+        closeBody(nested, NESTED_BOUNDARY);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        appendPart(out, BOUNDARY, "application/rlmi+xml", "rlmi@example.com",
+            createRlmi(LIST_URI, 3, true,
+                "<resource uri=\"sip:alice@example.com\">"
+                + "<instance id=\"a1\" state=\"active\""
+                + " cid=\"alice@example.com\"/></resource>"
+                + "<resource uri=\"sip:bob@example.com\">"
+                + "<instance id=\"b1\" state=\"active\""
+                + " cid=\"bob@example.com\"/></resource>"
+                + "<resource uri=\"sip:friends@example.com\">"
+                + "<instance id=\"f1\" state=\"active\""
+                + " cid=\"nested@example.com\"/></resource>")
+                .getBytes("UTF-8"));
+        appendPart(out, BOUNDARY,
+            "application/pidf+xml; charset=\"ISO-8859-1\"",
+            "alice@example.com",
+            createPidf("sip:alice@example.com", "open", NOTE)
+                .getBytes("ISO-8859-1"));
+        appendPart(out, BOUNDARY, "application/pidf+xml", "bob@example.com",
+            createPidf("sip:bob@example.com", "open", NOTE)
+                .getBytes("UTF-8"));
+        appendPart(out, BOUNDARY,
+            createContentType(NESTED_BOUNDARY, "nested@example.com"),
+            "nested@example.com",
+            nested.toByteArray());
+        closeBody(out, BOUNDARY);
+
+        ResourceListNotification notification
+            = ResourceListNotification.parse(
+                    createContentType(BOUNDARY, "rlmi@example.com"),
+                    out.toByteArray());
+
+        assertNotNull("The notification was not parsed", notification);
+
+        List<ResourceListNotification.Resource> resources
+            = notification.getResources();
+        String note = "<note>" + NOTE + "</note>";
+
+        assertEquals("resource count", 3, resources.size());
+        assertResource(resources.get(0), "sip:alice@example.com",
+            ResourceListNotification.ACTIVE, null, note);
+        assertResource(resources.get(1), "sip:bob@example.com",
+            ResourceListNotification.ACTIVE, null, note);
+        assertResource(resources.get(2), "sip:carol@example.com",
+            ResourceListNotification.ACTIVE, null, note);
+    }
+
+    /**
+     * Checks the state of a resource of a notification.
+     *
+     * @param resource the resource
+     * @param uri the expected URI
+     * @param state the expected state or <tt>null</tt> if it is pending
+     * @param reason the expected reason or <tt>null</tt>
+     * @param bodyContent a string the body has to contain or <tt>null</tt>
+     * if the resource has no body
+     */
+    private static void assertResource(
+            ResourceListNotification.Resource resource,
+            String uri,
+            String state,
+            String reason,
+            String bodyContent)
+    {
+        assertEquals("resource uri", uri, resource.getUri());
+        assertEquals("state of " + uri, state, resource.getState());
+        assertEquals("reason of " + uri, reason, resource.getReason());
+
+        if (bodyContent == null)
+        {
+            assertNull("body of " + uri, resource.getBody());
+        }
+        else
+        {
+            assertNotNull("body of " + uri, resource.getBody());
+            assertTrue("body of " + uri + ": " + resource.getBody(),
+                resource.getBody().contains(bodyContent));
+        }
+    }
+
+    /**
+     * Creates the Content-Type of a multipart/related list body.
+     *
+     * @param boundary the boundary of the parts
+     * @param start the Content-ID of the RLMI part
+     * @return the Content-Type
+     */
+    private static String createContentType(String boundary, String start)
+    {
+        return "multipart/related;type=\"application/rlmi+xml\""
+            + ";start=\"<" + start + ">\";boundary=\"" + boundary + "\"";
+    }
+
+    /**
+     * Creates an RLMI document.
+     *
+     * @param uri the URI of the list
+     * @param version the version of the document
+     * @param fullState whether the document has the state of all resources
+     * @param resources the resource elements of the list
+     * @return the RLMI document
+     */
+    private static String createRlmi(String uri,
+                                     int version,
+                                     boolean fullState,
+                                     String resources)
+    {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<list xmlns=\"urn:ietf:params:xml:ns:rlmi\" uri=\"" + uri
+            + "\" version=\"" + version + "\" fullState=\"" + fullState
+            + "\">" + resources + "</list>";
+    }
+
+    /**
+     * Creates a PIDF document.
+     *
+     * @param entity the presentity
+     * @param basic the basic status
+     * @param note the note of the tuple or <tt>null</tt>
+     * @return the PIDF document
+     */
+    private static String createPidf(String entity, String basic, String note)
+    {
+        return "<?xml version=\"1.0\"?>"
+            + "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\" entity=\""
+            + entity + "\"><tuple id=\"t1\"><status><basic>" + basic
+            + "</basic></status>"
+            + ((note == null) ? "" : "<note>" + note + "</note>")
+            + "</tuple></presence>";
+    }
+
+    /**
+     * Appends a part to a multipart body.
+     *
+     * @param out the multipart body
+     * @param boundary the boundary of the parts
+     * @param contentType the Content-Type of the part
+     * @param contentID the Content-ID of the part
+     * @param body the body of the part
+     * @throws IOException if writing fails
+     */
+    private static void appendPart(ByteArrayOutputStream out,
+                                   String boundary,
+                                   String contentType,
+                                   String contentID,
+                                   byte[] body)
+        throws IOException
+    {
+        out.write(("--" + boundary + "\r\n"
+            + "Content-Transfer-Encoding: binary\r\n"
+            + "Content-ID: <" + contentID + ">\r\n"
+            + "Content-Type: " + contentType + "\r\n"
+            + "\r\n").getBytes("US-ASCII"));
+        out.write(body);
+        out.write("\r\n".getBytes("US-ASCII"));
+    }
+
+    /**
+     * Appends the close delimiter to a multipart body.
+     *
+     * @param out the multipart body
+     * @param boundary the boundary of the parts
+     * @throws IOException if writing fails
+     */
+    private static void closeBody(ByteArrayOutputStream out, String boundary)
+        throws IOException
+    {
+        out.write(("--" + boundary + "--\r\n").getBytes("US-ASCII"));
+    }
+}